@@ -9,6 +9,8 @@
 plugins {
     // Apply the java-library plugin for API and implementation separation.
     `java-library`
+    // WorkloadGenerator etc., shared by the tests here and the benchmarks in other modules
+    `java-test-fixtures`
     eclipse
     "test-report"
 }
@@ -31,6 +33,48 @@ dependencies {
 //    implementation("com.google.guava:guava:29.0-jre")
 }
 
+// Optional SIMD topic matcher, on jdk.incubator.vector (JDK 17+).  Only built with -PvectorMatching, so a plain build
+// works on any JDK and doesn't get the incubator warnings.  Compiled on its own so the main code doesn't depend on an
+// incubator module; it's found reflectively at runtime, and only used if the JVM has --add-modules jdk.incubator.vector
+val vectorMatching = project.hasProperty("vectorMatching")
+
+// the plain test run never has the module, so it's always testing the scalar fallback
+tasks.test {
+    systemProperty("vectorMatching.expected", "false")
+}
+
+if (vectorMatching) {
+    val vector by sourceSets.creating {
+        compileClasspath += sourceSets.main.get().output + sourceSets.main.get().compileClasspath
+    }
+
+    tasks.named<JavaCompile>("compileVectorJava") {
+        options.compilerArgs.addAll(listOf("--add-modules", "jdk.incubator.vector"))
+    }
+
+    // just the matching tests again, with the module and the vector classes, so only these JVMs print the incubator banner
+    val vectorTest by tasks.registering(Test::class) {
+        description = "Runs the topic matching tests with the vector matcher."
+        group = "verification"
+        testClassesDirs = sourceSets.test.get().output.classesDirs
+        classpath = sourceSets.test.get().runtimeClasspath + vector.output
+        jvmArgs("--add-modules", "jdk.incubator.vector")
+        systemProperty("vectorMatching.expected", "true")
+        filter {
+            includeTestsMatching("*VectorMatchingTests")
+            includeTestsMatching("*TopicMatching*Tests")
+        }
+    }
+
+    tasks.check {
+        dependsOn(vectorTest)
+    }
+
+    tasks.jar {
+        from(vector.output)
+    }
+}
+
 tasks.jar {
     manifest {
         archiveBaseName.set("jcsmp-topic-dispatch-0.0.1")
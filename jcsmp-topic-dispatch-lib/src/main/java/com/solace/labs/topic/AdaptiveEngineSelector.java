@@ -0,0 +1,112 @@
+package com.solace.labs.topic;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the cheap registry and traffic statistics for an {@link EngineType#ADAPTIVE} dispatcher, and
+ * recommends which engine should be running.  {@link #recordTopic(String)} and {@link #messagesSeen(int)} are
+ * thread-safe and lock-free, since they're on every message; everything else isn't, and the dispatcher synchronizes
+ * on it for those.
+ */
+final class AdaptiveEngineSelector {
+
+	/** Messages per sampling window */
+	static final int WINDOW = 1 << 14;
+	/** Each thread counts this many messages on its own before adding them to the window, to keep off a shared counter */
+	static final int THREAD_BATCH = 1 << 8;
+	/** Up to this many subs, nothing beats just walking them all */
+	static final int LINEAR_MAX_SUBS = 32;
+	/** With only this many wildcards (any number of exact subs), a hash plus a short scan is best */
+	static final int EXACT_HASH_MAX_WILDCARDS = 64;
+	/** The topic cache only pays off if nearly every message is a repeat topic */
+	static final double CACHE_MIN_HIT_RATE = 0.9;
+
+	private static final int BITMAP_BITS = 1 << 16;  // linear counting sketch: 8KB, good for ~100k distinct topics per window
+
+	private int subCount = 0;
+	private int wildcardCount = 0;
+	private final AtomicLongArray bitmap = new AtomicLongArray(BITMAP_BITS / 64);
+	private final AtomicInteger windowMessages = new AtomicInteger();
+	private long lastCacheHits = 0;
+	private long lastCacheMisses = 0;
+	private EngineType previousRecommendation = null;
+	private RegistryStats lastStats = null;
+
+	void subAdded(Sub sub) {
+		subCount++;
+		if (sub.isWildcard()) wildcardCount++;
+	}
+
+	void subRemoved(Sub sub) {
+		subCount--;
+		if (sub.isWildcard()) wildcardCount--;
+	}
+
+	/** Thread-safe.  Doesn't count the message, see {@link #messagesSeen(int)}. */
+	void recordTopic(String topic) {
+		int bit = (topic.hashCode() * 0x9E3779B9) >>> 16;  // Fibonacci hashing, top 16 bits
+		long mask = 1L << bit;
+		int word = bit >>> 6;
+		long bits = bitmap.get(word);
+		while ((bits & mask) == 0) {  // a repeat topic (the usual case) never writes the shared word
+			if (bitmap.compareAndSet(word, bits, bits | mask)) break;
+			bits = bitmap.get(word);
+		}
+	}
+
+	/**
+	 * Thread-safe.  Adds a thread's batch of messages to the window.
+	 * @return true for exactly one caller when the window fills up: it's time to {@link #evaluate(MatchEngine)}
+	 */
+	boolean messagesSeen(int messages) {
+		int total = windowMessages.addAndGet(messages);
+		return total >= WINDOW && total - messages < WINDOW;
+	}
+
+	/**
+	 * Closes out the current window.
+	 * @return the engine type we should switch to, or null to stay put
+	 */
+	EngineType evaluate(MatchEngine current) {
+		int windowMessages = this.windowMessages.getAndSet(0);  // other threads carry on recording, a few may land either side
+		int zeroBits = 0;
+		for (int i=0; i<bitmap.length(); i++) {
+			zeroBits += Long.bitCount(~bitmap.getAndSet(i, 0));
+		}
+		long distinct = zeroBits == 0 ? windowMessages : Math.min(windowMessages, Math.round(-BITMAP_BITS * Math.log((double)zeroBits / BITMAP_BITS)));
+		double hitRate;
+		if (current instanceof TopicCacheEngine) {
+			TopicCacheEngine cache = (TopicCacheEngine)current;
+			long hits = cache.getHits() - lastCacheHits;
+			long misses = cache.getMisses() - lastCacheMisses;
+			lastCacheHits = cache.getHits();
+			lastCacheMisses = cache.getMisses();
+			hitRate = hits + misses == 0 ? 0.0 : (double)hits / (hits + misses);
+		} else {
+			hitRate = windowMessages == 0 ? 0.0 : 1.0 - (double)distinct / windowMessages;
+			lastCacheHits = 0;
+			lastCacheMisses = 0;
+		}
+		lastStats = new RegistryStats(current.type(), subCount, wildcardCount, windowMessages, distinct, hitRate);
+
+		EngineType recommendation = recommend(lastStats);
+		// a bit of hysteresis: need the same answer two windows in a row before we go to the trouble of switching
+		EngineType decision = recommendation != current.type() && recommendation == previousRecommendation ? recommendation : null;
+		previousRecommendation = recommendation;
+		return decision;
+	}
+
+	static EngineType recommend(RegistryStats stats) {
+		if (stats.getSubCount() <= LINEAR_MAX_SUBS) return EngineType.LINEAR_SCAN;
+		if (stats.getWildcardCount() <= EXACT_HASH_MAX_WILDCARDS) return EngineType.EXACT_HASH;
+		if (stats.getCacheHitRate() >= CACHE_MIN_HIT_RATE && stats.getDistinctTopics() < TopicCacheEngine.DEFAULT_MAX_TOPICS) return EngineType.TOPIC_CACHE;
+		return EngineType.TRIE;
+	}
+
+	/** The stats as of the end of the last window, or the registry only if no window has completed yet */
+	RegistryStats getStats(EngineType current) {
+		if (lastStats == null) return new RegistryStats(current, subCount, wildcardCount, 0, 0, 0.0);
+		return new RegistryStats(current, subCount, wildcardCount, lastStats.getWindowMessages(), lastStats.getDistinctTopics(), lastStats.getCacheHitRate());
+	}
+}
@@ -0,0 +1,28 @@
+package com.solace.labs.topic;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * A callback that may finish with a message after <code>onReceive()</code> returns, e.g. by handing it off to
+ * another thread.  The message isn't considered done (and for guaranteed messages, won't be acknowledged)
+ * until the listener calls {@link DeliveryCompletion#complete()} or {@link DeliveryCompletion#fail(Exception)}.
+ */
+public interface AsyncDispatchMessageListener extends DispatchMessageListener {
+
+	public void onReceive(BytesXMLMessage msg, DeliveryCompletion completion);
+
+	/**
+	 * What the dispatcher actually calls, with the {@link MessageContext} it's sharing between the listeners this message
+	 * matched (null if it isn't).  Only worth overriding for a wrapper, to pass the context on to a wrapped
+	 * {@link ContextDispatchMessageListener} so it doesn't decode the payload all over again.
+	 */
+	public default void onReceive(BytesXMLMessage msg, MessageContext context, DeliveryCompletion completion) {
+		onReceive(msg, completion);
+	}
+
+	/** Only used if something calls this listener directly, outside of a dispatcher */
+	@Override
+	public default void onReceive(BytesXMLMessage msg) {
+		onReceive(msg, DeliveryCompletion.NONE);
+	}
+}
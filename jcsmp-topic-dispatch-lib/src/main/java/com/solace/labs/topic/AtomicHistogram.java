@@ -0,0 +1,64 @@
+package com.solace.labs.topic;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Log-linear histogram of non-negative longs (nanoseconds, here) in fixed memory: values under 8 get a bucket each, then
+ * every power of 2 is split into 8 buckets, so any value is reported to within 12.5%.  Recording is a couple of atomic
+ * adds, no locks and no allocation, so it's fine on a context thread.
+ * <p>Buckets only go up to 2^40 (about 18 minutes, in nanos): anything bigger is counted in the top bucket, though the
+ * sum and max still get the real value.  That's {@value #BUCKETS} buckets, about 2.5KB per histogram.</p>
+ */
+final class AtomicHistogram {
+
+	private static final int SUB_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_BITS = 40;
+	/** Bigger values than this all share the top bucket */
+	static final long MAX_TRACKED = (1L << MAX_BITS) - 1;
+	static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	void record(long value) {
+		if (value < 0) value = 0;
+		counts.incrementAndGet(index(value));
+		sum.add(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+			// someone else raised it, try again
+		}
+	}
+
+	static int index(long value) {
+		if (value < SUB_BUCKETS) return (int)value;
+		if (value > MAX_TRACKED) value = MAX_TRACKED;
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + (int)((value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1));
+	}
+
+	/** The biggest value that lands in the bucket */
+	static long highest(int index) {
+		if (index < SUB_BUCKETS) return index;
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long)(SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowest + ((1L << shift) - 1);
+	}
+
+	/**
+	 * Copies the counts out.  Not atomic across buckets: something recorded at the same time might be in the buckets but
+	 * not the sum yet, or the other way round, which is fine for stats.
+	 * @param reset also start over, for interval (rather than since-the-start) stats
+	 */
+	LatencySnapshot snapshot(boolean reset) {
+		long[] copy = new long[BUCKETS];
+		for (int i=0; i<BUCKETS; i++) {
+			copy[i] = reset ? counts.getAndSet(i, 0) : counts.get(i);
+		}
+		return new LatencySnapshot(copy, reset ? sum.sumThenReset() : sum.sum(), reset ? max.getAndSet(0) : max.get());
+	}
+}
@@ -0,0 +1,19 @@
+package com.solace.labs.topic;
+
+import java.util.List;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * A callback that wants its messages in batches, e.g. for batch inserts.  Register it with
+ * {@link MessageListenerWithTopicDispatch#registerCallback(Sub, BatchDispatchMessageListener, int, long)}, or wrap it
+ * in a {@link BatchingMessageListener} yourself.
+ */
+public interface BatchDispatchMessageListener {
+	/**
+	 * @param batch the messages, in the order they were dispatched.  <b>The list is reused</b> once this returns, so
+	 *              copy it if you need to hang on to it.
+	 */
+	public void onReceiveBatch(List<BytesXMLMessage> batch);
+	public void onUncaughtException(TopicDispatchException e);
+}
@@ -0,0 +1,289 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * <p>Adapts a {@link BatchDispatchMessageListener} so it can be registered like any other callback.  Messages are
+ * accumulated and handed over as one list once there are <code>maxBatchSize</code> of them (on the dispatching thread),
+ * or once the oldest one has been waiting <code>lingerMillis</code> (on the linger executor; the shared timer thread
+ * only notices, it never calls you).  Batches are never delivered concurrently, and always in the order they were
+ * filled: they queue up, and whichever thread is already delivering carries on with the next one.  The lists are
+ * recycled, so a steady stream of batches doesn't make garbage.</p>
+ * <p>For guaranteed messages, each message is only complete once the batch it's in has been delivered; if the batch
+ * listener throws, every message in that batch fails.  After that the listener is never called again: anything still
+ * waiting, or arriving later, fails too rather than being handed back to the listener that just threw.</p>
+ */
+public final class BatchingMessageListener implements AsyncDispatchMessageListener, AutoCloseable {
+
+	private static final class Batch {
+		final List<BytesXMLMessage> messages;
+		final List<DeliveryCompletion> completions;
+
+		Batch(int capacity) {
+			messages = new ArrayList<>(capacity);
+			completions = new ArrayList<>(capacity);
+		}
+	}
+
+	private final BatchDispatchMessageListener delegate;
+	private final int maxBatchSize;
+	private final long lingerNanos;
+	private final Executor lingerExecutor;
+	private final ScheduledFuture<?> lingerTimer;
+
+	private final Object lock = new Object();
+	private Batch filling;
+	private long fillingSince = 0;  // System.nanoTime() of the first message in the filling batch
+	private final ArrayDeque<Batch> spares = new ArrayDeque<>(2);  // guarded by lock
+	private final ArrayDeque<Batch> ready = new ArrayDeque<>(2);  // full or expired, waiting their turn; guarded by lock
+	private boolean lingerQueued = false;  // a delivery's been handed to the linger executor; guarded by lock
+	private final Object deliveryLock = new Object();  // one batch at a time
+	private boolean closed = false;  // guarded by lock
+	private volatile TopicDispatchException failure = null;  // once the listener threw
+	private volatile Runnable onFailure = null;
+
+	private final LongAdder messages = new LongAdder();
+	private final LongAdder batches = new LongAdder();
+	private final LongAdder sizeTriggered = new LongAdder();
+	private final LongAdder lingerTriggered = new LongAdder();
+	private volatile int largestBatch = 0;
+
+	/**
+	 * Lingering batches are delivered on a shared pool of daemon threads.
+	 * @param maxBatchSize deliver as soon as a batch has this many messages
+	 * @param lingerMillis deliver a partial batch once its oldest message has waited this long; 0 means never (only on size, {@link #flush()} or {@link #close()})
+	 */
+	public BatchingMessageListener(BatchDispatchMessageListener delegate, int maxBatchSize, long lingerMillis) {
+		this(delegate, maxBatchSize, lingerMillis, null);
+	}
+
+	/**
+	 * @param maxBatchSize deliver as soon as a batch has this many messages
+	 * @param lingerMillis deliver a partial batch once its oldest message has waited this long; 0 means never (only on size, {@link #flush()} or {@link #close()})
+	 * @param lingerExecutor where lingering batches are delivered, e.g. the pool the listener's database connections belong to; null for the shared one
+	 */
+	public BatchingMessageListener(BatchDispatchMessageListener delegate, int maxBatchSize, long lingerMillis, Executor lingerExecutor) {
+		this.delegate = delegate;
+		if (this.delegate == null) throw new NullPointerException("BatchDispatchMessageListener is null");
+		if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize must be at least 1");
+		if (lingerMillis < 0) throw new IllegalArgumentException("lingerMillis can't be negative");
+		this.maxBatchSize = maxBatchSize;
+		this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		this.filling = new Batch(maxBatchSize);
+		this.lingerExecutor = lingerExecutor == null ? DispatchTimers.workers() : lingerExecutor;
+		if (lingerMillis > 0) {
+			long period = Math.max(1, lingerMillis / 2);
+			lingerTimer = DispatchTimers.get().scheduleWithFixedDelay(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			lingerTimer = null;
+		}
+	}
+
+	public BatchDispatchMessageListener getDelegate() {
+		return delegate;
+	}
+
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/** 0 if partial batches don't linger */
+	public long getLingerMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(lingerNanos);
+	}
+
+	/** Called by the dispatcher, so that a batch listener that throws gets unregistered like any other callback */
+	void setOnFailure(Runnable onFailure) {
+		this.onFailure = onFailure;
+	}
+
+	@Override
+	public void onReceive(BytesXMLMessage msg, DeliveryCompletion completion) {
+		TopicDispatchException failed = failure;
+		if (failed != null) {  // still matched until the unregistering is done
+			completion.fail(failed);
+			return;
+		}
+		boolean full = false;
+		synchronized (lock) {
+			if (filling.messages.isEmpty()) fillingSince = System.nanoTime();
+			filling.messages.add(msg);
+			filling.completions.add(completion);
+			if (filling.messages.size() >= maxBatchSize || closed) {
+				ready.add(takeFilling());
+				full = true;
+			}
+		}
+		if (full) {
+			sizeTriggered.increment();
+			deliverReady();
+		}
+	}
+
+	@Override
+	public void onUncaughtException(TopicDispatchException e) {
+		delegate.onUncaughtException(e);
+	}
+
+	/** Delivers whatever has accumulated so far, on the calling thread (or waits while another thread does) */
+	public void flush() {
+		synchronized (lock) {
+			Batch partial = takeFilling();
+			if (partial != null) ready.add(partial);
+		}
+		deliverReady();
+	}
+
+	/** Stops the linger timer and flushes.  Anything that still arrives after this gets delivered straight away in a batch of one. */
+	@Override
+	public void close() {
+		synchronized (lock) {
+			closed = true;
+		}
+		if (lingerTimer != null) lingerTimer.cancel(false);
+		flush();
+	}
+
+	/** Runs on the timer thread, so only hands the batch over */
+	private void flushExpired() {
+		boolean queue = false;
+		synchronized (lock) {
+			if (!filling.messages.isEmpty() && System.nanoTime() - fillingSince >= lingerNanos) {
+				ready.add(takeFilling());
+				lingerTriggered.increment();
+				queue = !lingerQueued;  // one's enough, it delivers everything that's ready
+				lingerQueued = true;
+			}
+		}
+		if (!queue) return;
+		try {
+			lingerExecutor.execute(this::deliverLingered);
+		} catch (RejectedExecutionException e) {  // executor's been shut down, do it ourselves rather than hang on to messages
+			deliverLingered();
+		}
+	}
+
+	private void deliverLingered() {
+		synchronized (lock) {
+			lingerQueued = false;
+		}
+		deliverReady();
+	}
+
+	/** Must hold the lock */
+	private Batch takeFilling() {
+		if (filling.messages.isEmpty()) return null;
+		Batch batch = filling;
+		filling = spares.isEmpty() ? new Batch(maxBatchSize) : spares.pop();
+		return batch;
+	}
+
+	/**
+	 * Delivers the ready batches in order, including any queued by other threads while we're at it.  Once this returns, every
+	 * batch that was ready when it was called has been delivered (or failed).
+	 */
+	private void deliverReady() {
+		TopicDispatchException failed = null;
+		synchronized (deliveryLock) {
+			while (true) {
+				Batch batch;
+				synchronized (lock) {
+					batch = ready.poll();
+				}
+				if (batch == null) break;
+				if (deliver(batch)) failed = failure;
+			}
+		}
+		if (failed != null) failed(failed);  // outside deliveryLock: unregistering waits for the dispatcher's write lock
+	}
+
+	/**
+	 * Must hold deliveryLock.
+	 * @return true if the listener threw on this one
+	 */
+	private boolean deliver(Batch batch) {
+		int size = batch.messages.size();
+		TopicDispatchException failed = failure;
+		boolean threw = false;
+		if (failed == null) {  // never call it again once it's thrown
+			try {
+				delegate.onReceiveBatch(batch.messages);
+			} catch (RuntimeException e) {
+				failed = new TopicDispatchException("Uncaught exception from batch callback, unregistering", e);
+				failure = failed;
+				threw = true;
+			}
+			messages.add(size);
+			batches.increment();
+			if (size > largestBatch) largestBatch = size;  // racy but only ever a statistic
+		}
+		for (DeliveryCompletion completion : batch.completions) {
+			if (failed == null) completion.complete();
+			else completion.fail(failed);
+		}
+		batch.messages.clear();
+		batch.completions.clear();
+		synchronized (lock) {
+			if (spares.size() < 2) spares.push(batch);
+		}
+		return threw;
+	}
+
+	private void failed(TopicDispatchException e) {
+		try {
+			delegate.onUncaughtException(e);
+		} catch (Exception e2) {
+			// ignore, we're unregistering
+		}
+		Runnable unregister = onFailure;
+		if (unregister != null) {
+			Jfr.callbackFailed(null, delegate, e.getCause());
+			unregister.run();
+		}
+	}
+
+	/** Messages accepted but not yet delivered in a batch */
+	public int getPendingCount() {
+		synchronized (lock) {
+			int pending = filling.messages.size();
+			for (Batch batch : ready) pending += batch.messages.size();
+			return pending;
+		}
+	}
+
+	public long getMessageCount() {
+		return messages.sum();
+	}
+
+	public long getBatchCount() {
+		return batches.sum();
+	}
+
+	public double getAverageBatchSize() {
+		long b = batches.sum();
+		return b == 0 ? 0.0 : (double)messages.sum() / b;
+	}
+
+	public int getLargestBatchSize() {
+		return largestBatch;
+	}
+
+	/** Batches delivered because they reached <code>maxBatchSize</code> */
+	public long getSizeTriggeredCount() {
+		return sizeTriggered.sum();
+	}
+
+	/** Batches delivered because they were waiting longer than <code>lingerMillis</code> */
+	public long getLingerTriggeredCount() {
+		return lingerTriggered.sum();
+	}
+}
@@ -0,0 +1,59 @@
+package com.solace.labs.topic;
+
+/**
+ * An immutable snapshot of how long one callback takes, as sampled by the dispatcher once callback offload has been
+ * enabled with {@link MessageListenerWithTopicDispatch#enableCallbackOffload(long, java.util.concurrent.Executor)}.
+ */
+public final class CallbackCost {
+
+	private final long invocations;
+	private final long samples;
+	private final long averageNanos;
+	private final long maxNanos;
+	private final boolean offloaded;
+	private final long migrations;
+
+	CallbackCost(long invocations, long samples, long averageNanos, long maxNanos, boolean offloaded, long migrations) {
+		this.invocations = invocations;
+		this.samples = samples;
+		this.averageNanos = averageNanos;
+		this.maxNanos = maxNanos;
+		this.offloaded = offloaded;
+		this.migrations = migrations;
+	}
+
+	/** Roughly how many messages the callback has been handed (the counter is racy across context threads) */
+	public long getInvocationCount() {
+		return invocations;
+	}
+
+	/** How many of those were actually timed */
+	public long getSampleCount() {
+		return samples;
+	}
+
+	/** Exponentially weighted moving average of the sampled durations, so recent behaviour counts most */
+	public long getAverageNanos() {
+		return averageNanos;
+	}
+
+	public long getMaxNanos() {
+		return maxNanos;
+	}
+
+	/** True if the callback is currently running on the offload executor rather than inline on the context thread */
+	public boolean isOffloaded() {
+		return offloaded;
+	}
+
+	/** How many times it has moved between inline and offloaded, either way */
+	public long getMigrationCount() {
+		return migrations;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CallbackCost[invocations=%d, samples=%d, avg=%.1fus, max=%.1fus, offloaded=%b, migrations=%d]",
+				invocations, samples, averageNanos / 1000.0, maxNanos / 1000.0, offloaded, migrations);
+	}
+}
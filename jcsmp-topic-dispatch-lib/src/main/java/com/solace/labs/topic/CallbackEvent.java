@@ -0,0 +1,49 @@
+package com.solace.labs.topic;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Description;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JFR: one callback handling one message.  Only slow ones by default, and they can be sampled too (see
+ * {@link SamplingControl}).  An offloaded callback's event is recorded on the offload thread, covering the call itself;
+ * handing the message to its lane isn't recorded.  A parallel fan-out's calls are marked as fanned out, not offloaded.
+ */
+@Name("com.solace.labs.topic.Callback")
+@Label("Topic Dispatch Callback")
+@Category({ "Solace", "Topic Dispatch" })
+@Threshold("1 ms")
+@StackTrace(false)
+final class CallbackEvent extends jdk.jfr.Event {
+
+	@Label("Topic")
+	String topic;
+
+	@Label("Sub")
+	String sub;
+
+	@Label("Callback Class")
+	Class<?> callbackClass;
+
+	@Label("Offloaded")
+	@Description("Ran on the offload executor, in the callback's lane")
+	boolean offloaded;
+
+	@Label("Fanned Out")
+	@Description("Called as part of a parallel fan-out, alongside the message's other callbacks")
+	boolean fannedOut;
+
+	private transient int sampled = 0;  // 1 in, -1 out: shouldCommit() and commit() both ask, so only roll the dice once
+
+	@SettingDefinition
+	@Label("Sampling")
+	@Description("Of the events over the threshold, record about 1 in this many")
+	boolean sampling(SamplingControl control) {
+		if (sampled == 0) sampled = control.sample() ? 1 : -1;
+		return sampled > 0;
+	}
+}
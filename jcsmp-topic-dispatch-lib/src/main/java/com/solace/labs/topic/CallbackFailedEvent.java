@@ -0,0 +1,50 @@
+package com.solace.labs.topic;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR: a callback threw, and is being unregistered because of it.  Rare, so always recorded, with the exception's stack
+ * trace.  Not the event's own: that would only show where we caught it, which could even be another thread.
+ */
+@Name("com.solace.labs.topic.CallbackFailed")
+@Label("Topic Dispatch Callback Failed")
+@Category({ "Solace", "Topic Dispatch" })
+@StackTrace(false)
+final class CallbackFailedEvent extends jdk.jfr.Event {
+
+	@Label("Sub")
+	String sub;
+
+	@Label("Callback Class")
+	Class<?> callbackClass;
+
+	@Label("Exception")
+	String exception;
+
+	@Label("Exception Stack Trace")
+	@Description("Where the callback threw, with any causes")
+	String exceptionStackTrace;
+
+	/** @param sub null if it's being unregistered from every sub, e.g. a batch or conflated callback */
+	static void emit(Sub sub, Object callback, Throwable cause) {
+		CallbackFailedEvent event = new CallbackFailedEvent();
+		if (event.shouldCommit()) {
+			event.sub = sub == null ? null : sub.toString();
+			event.callbackClass = callback.getClass();
+			event.exception = String.valueOf(cause);
+			if (cause != null) {
+				StringWriter trace = new StringWriter();
+				cause.printStackTrace(new PrintWriter(trace));
+				event.exceptionStackTrace = trace.toString();
+			}
+			event.commit();
+		}
+	}
+}
@@ -0,0 +1,9 @@
+package com.solace.labs.topic;
+
+/**
+ * Optional callback to observe slow callbacks being moved off the context thread, and back again.
+ * Called on the shared timer thread, so keep it quick.
+ */
+public interface CallbackMigrationListener {
+	public void onCallbackMigrated(DispatchMessageListener callback, boolean offloaded, CallbackCost cost);
+}
@@ -0,0 +1,355 @@
+package com.solace.labs.topic;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * <p>Times every {@value #SAMPLE_EVERY}th call of each callback, and keeps a moving average.  A callback whose average
+ * goes over the latency budget gets moved off the context thread onto its own serial lane on the offload executor, so
+ * it still sees its messages in order and never runs concurrently with itself.  Once its average is back under half the
+ * budget, it comes back inline, but only after its lane has drained, so nothing gets reordered.</p>
+ * <p>Each message in a lane has a {@link PriorityClass}, from its registration's {@link DeliveryPolicy}.  Lanes with
+ * something to run queue up for the executor at the best class they have waiting, and each executor task takes the next
+ * lane by weighted round robin and runs up to {@value #QUANTUM} of its messages, best class first, so a backed-up bulk
+ * callback can't hold up a control one for long.  Still one lane per callback, so it never runs concurrently with
+ * itself; a callback registered in more than one class sees its messages in order within each class, but a control
+ * message can overtake its bulk ones.</p>
+ */
+final class CallbackOffloader {
+
+	private static final Logger logger = Logger.getLogger(CallbackOffloader.class.getName());
+
+	static final int SAMPLE_EVERY = 16;  // must be a power of 2
+	static final int MIN_SAMPLES = 8;  // don't judge a callback until we've seen a few
+	private static final int EWMA_SHIFT = 3;  // new sample weighs 1/8
+	static final int QUANTUM = 32;  // messages from one lane before it goes to the back of its class's queue
+	private static final PriorityClass[] CLASSES = PriorityClass.values();
+	private static final int IDLE = Integer.MAX_VALUE;  // a lane that isn't in any ready queue
+
+	/** Everything we know about one callback */
+	private final class Meter {
+		final DispatchMessageListener callback;
+		int calls = 0;  // racy but only ever used for sampling and stats
+		// guarded by this
+		long samples = 0;
+		long ewmaNanos = 0;
+		long maxNanos = 0;
+		long migrations = 0;
+		volatile boolean offloaded = false;
+		volatile Lane lane = null;  // made the first time it's offloaded
+		final AtomicInteger laneDepth = new AtomicInteger();
+
+		Meter(DispatchMessageListener callback) {
+			this.callback = callback;
+		}
+
+		boolean sample() {
+			return (calls++ & (SAMPLE_EVERY-1)) == 0;
+		}
+
+		void record(long nanos) {
+			Boolean migrated = null;
+			CallbackCost cost;
+			synchronized (this) {
+				samples++;
+				ewmaNanos = samples == 1 ? nanos : ewmaNanos + ((nanos - ewmaNanos) >> EWMA_SHIFT);
+				if (nanos > maxNanos) maxNanos = nanos;
+				if (!offloaded && samples >= MIN_SAMPLES && ewmaNanos > budgetNanos) {
+					offloaded = true;
+					migrated = Boolean.TRUE;
+				} else if (offloaded && ewmaNanos < budgetNanos / 2) {
+					offloaded = false;  // new messages keep going to the lane until it's empty
+					migrated = Boolean.FALSE;
+				}
+				if (migrated == null) return;
+				migrations++;
+				cost = snapshot();
+			}
+			migrated(callback, migrated.booleanValue(), cost);
+		}
+
+		/** Must hold the lock on this */
+		CallbackCost snapshot() {
+			return new CallbackCost(calls, samples, ewmaNanos, maxNanos, offloaded, migrations);
+		}
+
+		Lane lane() {
+			Lane current = lane;
+			if (current == null) {
+				synchronized (this) {
+					if (lane == null) lane = new Lane(this);
+					current = lane;
+				}
+			}
+			return current;
+		}
+	}
+
+	/**
+	 * One callback's serial lane, with a queue per class.  It can be in more than one class's ready queue at once (a
+	 * control message showed up while it was waiting as bulk), so whichever executor task gets to it first runs it, and
+	 * any others that find it already running just leave it: the one running looks again when it's done.
+	 */
+	private final class Lane {
+		final Meter meter;
+		final Queue<Runnable>[] tasks;
+		final AtomicInteger scheduledAt = new AtomicInteger(IDLE);  // best class it's waiting in a ready queue at
+		final AtomicBoolean running = new AtomicBoolean(false);
+
+		@SuppressWarnings("unchecked")
+		Lane(Meter meter) {
+			this.meter = meter;
+			tasks = new Queue[CLASSES.length];
+			for (int i=0; i<CLASSES.length; i++) tasks[i] = new ConcurrentLinkedQueue<>();
+		}
+
+		/** Queues onto the lane, and makes sure it's scheduled at least as well as this message's class */
+		void add(Runnable task, PriorityClass priority) {
+			meter.laneDepth.incrementAndGet();
+			queued[priority.ordinal()].incrementAndGet();
+			tasks[priority.ordinal()].add(task);
+			schedule(priority.ordinal());
+		}
+
+		private void schedule(int priority) {
+			while (true) {
+				int current = scheduledAt.get();
+				if (current <= priority) return;  // already waiting at this class or a better one
+				if (scheduledAt.compareAndSet(current, priority)) {
+					ready(this, priority);
+					return;
+				}
+			}
+		}
+
+		/** Runs up to a quantum's worth, best class first, then back in the queue if there's more */
+		void drain() {
+			if (!running.compareAndSet(false, true)) return;  // another task has it
+			for (int i=0; i<QUANTUM; i++) {
+				int priority = next();
+				if (priority < 0) break;
+				Runnable task = tasks[priority].poll();
+				try {
+					task.run();
+				} finally {
+					meter.laneDepth.decrementAndGet();
+					queued[priority].decrementAndGet();
+				}
+			}
+			running.set(false);
+			scheduledAt.set(IDLE);
+			// more left after the quantum, or something snuck in while we were running and couldn't be scheduled
+			int priority = next();
+			if (priority >= 0) schedule(priority);
+		}
+
+		/** The best class with something waiting, or -1; only the running task takes things out, so it stays non-empty */
+		private int next() {
+			for (int i=0; i<CLASSES.length; i++) {
+				if (!tasks[i].isEmpty()) return i;
+			}
+			return -1;
+		}
+	}
+
+	private final long budgetNanos;
+	private final Executor executor;
+	private final BiConsumer<Sub, DispatchMessageListener> onFailure;  // unregister a callback that threw on the executor
+	private final Consumer<BytesXMLMessage> onExpired;  // the default listener, for a missed deadline that says so
+	// one entry per executor task submitted, so every task has a lane to run
+	@SuppressWarnings("unchecked")
+	private final Queue<Lane>[] ready = new Queue[CLASSES.length];
+	private final int[] credits = new int[CLASSES.length];  // smooth weighted round robin, guarded by itself
+	private final AtomicInteger[] queued = new AtomicInteger[CLASSES.length];
+	private final LongAdder[] deadlineMisses = new LongAdder[CLASSES.length];
+	private final Map<DispatchMessageListener, Meter> meters = new ConcurrentHashMap<>();
+	private final LongAdder offloadedMessages = new LongAdder();
+	private volatile CallbackMigrationListener migrationListener = null;
+
+	CallbackOffloader(long budgetNanos, Executor executor, BiConsumer<Sub, DispatchMessageListener> onFailure, Consumer<BytesXMLMessage> onExpired) {
+		this.budgetNanos = budgetNanos;
+		this.executor = executor;
+		this.onFailure = onFailure;
+		this.onExpired = onExpired;
+		for (int i=0; i<CLASSES.length; i++) {
+			ready[i] = new ConcurrentLinkedQueue<>();
+			queued[i] = new AtomicInteger();
+			deadlineMisses[i] = new LongAdder();
+		}
+	}
+
+	void setMigrationListener(CallbackMigrationListener migrationListener) {
+		this.migrationListener = migrationListener;
+	}
+
+	/**
+	 * Either runs the callback right here (timing the odd one), or hands it to its lane.  Exceptions from an inline
+	 * call are thrown, for the dispatcher to deal with as usual; ones from the lane unregister the callback from the sub.
+	 * @param latency if not null, told when the callback starts, and how long the message waited in the lane
+	 * @param policy which class it waits in the lane as, and whether it has a deadline there
+	 * @return true if it went to the lane, false if it ran here
+	 */
+	boolean dispatch(Sub sub, DispatchMessageListener callback, BytesXMLMessage message, MessageContext context, MessageTracker tracker,
+			LatencyTracker.Recorder latency, DeliveryPolicy policy) {
+		Meter meter = meters.computeIfAbsent(callback, Meter::new);
+		if (meter.offloaded || meter.laneDepth.get() > 0) {
+			final DeliveryCompletion completion = tracker == null ? DeliveryCompletion.NONE : tracker.begin(callback);
+			final long queuedAt = latency == null && policy.getDeadlineNanos() == 0 ? 0 : System.nanoTime();
+			offloadedMessages.increment();
+			meter.lane().add(() -> {
+				if (policy.getDeadlineNanos() > 0 && System.nanoTime() - queuedAt > policy.getDeadlineNanos()) {
+					expired(message, completion, policy);
+					return;
+				}
+				if (latency != null) latency.started(message, System.nanoTime() - queuedAt);
+				CallbackEvent event = Jfr.AVAILABLE ? new CallbackEvent() : null;
+				if (event != null) event.begin();
+				try {
+					timed(meter, message, context, completion);
+					MessageListenerWithTopicDispatch.callbackDone(event, message.getDestination().getName(), sub, callback, true);
+				} catch (RuntimeException e) {
+					MessageListenerWithTopicDispatch.callbackDone(event, message.getDestination().getName(), sub, callback, true);
+					Jfr.callbackFailed(sub, callback, e);
+					try {
+						callback.onUncaughtException(new TopicDispatchException("Uncaught exception from offloaded callback for sub " + sub + ", unregistering", e));
+					} catch (Exception e2) {
+						// ignore, we're unregistering
+					}
+					onFailure.accept(sub, callback);
+				}
+			}, policy.getPriority());
+			return true;
+		} else if (tracker == null) {
+			if (latency != null) latency.started(message, 0);
+			if (meter.sample()) {
+				long start = System.nanoTime();
+				MessageListenerWithTopicDispatch.receive(callback, message, context);
+				meter.record(System.nanoTime() - start);
+			} else {
+				MessageListenerWithTopicDispatch.receive(callback, message, context);
+			}
+		} else {
+			if (latency != null) latency.started(message, 0);
+			timed(meter, message, context, tracker.begin(callback));
+		}
+		return false;
+	}
+
+	/** Gives the lane its turn on the executor */
+	private void ready(Lane lane, int priority) {
+		ready[priority].add(lane);
+		try {
+			executor.execute(this::runNext);
+		} catch (RejectedExecutionException e) {  // executor's been shut down, do it ourselves rather than lose messages
+			runNext();
+		}
+	}
+
+	/** One executor task: the next lane, whichever class's turn it is */
+	private void runNext() {
+		Lane lane;
+		synchronized (credits) {
+			int best = -1;
+			int total = 0;
+			for (int i=0; i<CLASSES.length; i++) {
+				if (ready[i].isEmpty()) continue;
+				credits[i] += CLASSES[i].getWeight();
+				total += CLASSES[i].getWeight();
+				if (best < 0 || credits[i] > credits[best]) best = i;
+			}
+			if (best < 0) return;  // can't happen, every task was submitted after its lane was queued
+			credits[best] -= total;
+			lane = ready[best].poll();
+		}
+		lane.drain();
+	}
+
+	/** Waited too long in the lane: the callback never sees it */
+	private void expired(BytesXMLMessage message, DeliveryCompletion completion, DeliveryPolicy policy) {
+		deadlineMisses[policy.getPriority().ordinal()].increment();
+		if (policy.getExpiry() == DeliveryPolicy.Expiry.DEFAULT_LISTENER) {
+			try {
+				onExpired.accept(message);
+			} catch (RuntimeException e) {
+				completion.fail(e);
+				return;
+			}
+		}
+		completion.complete();
+	}
+
+	private static void timed(Meter meter, BytesXMLMessage message, MessageContext context, DeliveryCompletion completion) {
+		if (meter.sample()) {
+			long start = System.nanoTime();
+			MessageListenerWithTopicDispatch.deliver(meter.callback, message, context, completion);
+			meter.record(System.nanoTime() - start);
+		} else {
+			MessageListenerWithTopicDispatch.deliver(meter.callback, message, context, completion);
+		}
+	}
+
+	private void migrated(DispatchMessageListener callback, boolean offloaded, CallbackCost cost) {
+		if (offloaded) logger.info("Callback " + callback + " is over its latency budget, offloading it: " + cost);
+		else logger.info("Callback " + callback + " has recovered, moving it back inline: " + cost);
+		CallbackMigrationListener listener = migrationListener;
+		if (listener != null) {
+			DispatchTimers.get().execute(() -> listener.onCallbackMigrated(callback, offloaded, cost));
+		}
+	}
+
+	/** The callback has been completely unregistered, stop tracking it (anything still in its lane gets delivered) */
+	void forget(DispatchMessageListener callback) {
+		meters.remove(callback);
+	}
+
+	CallbackCost getCost(DispatchMessageListener callback) {
+		Meter meter = meters.get(callback);
+		if (meter == null) return null;
+		synchronized (meter) {
+			return meter.snapshot();
+		}
+	}
+
+	Map<DispatchMessageListener, CallbackCost> getCosts() {
+		Map<DispatchMessageListener, CallbackCost> costs = new HashMap<>();
+		for (Meter meter : meters.values()) {
+			synchronized (meter) {
+				costs.put(meter.callback, meter.snapshot());
+			}
+		}
+		return costs;
+	}
+
+	int getOffloadedCount() {
+		int count = 0;
+		for (Meter meter : meters.values()) {
+			if (meter.offloaded) count++;
+		}
+		return count;
+	}
+
+	long getOffloadedMessageCount() {
+		return offloadedMessages.sum();
+	}
+
+	int getQueuedCount(PriorityClass priority) {
+		return queued[priority.ordinal()].get();
+	}
+
+	long getDeadlineMissCount(PriorityClass priority) {
+		return deadlineMisses[priority.ordinal()].sum();
+	}
+}
@@ -0,0 +1,181 @@
+package com.solace.labs.topic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * <p>Last-value conflation for a slow callback.  The wrapped callback runs on the given executor (never more than one
+ * message at a time), and while it's busy, incoming messages wait in one slot per topic.  A newer message for the same
+ * topic replaces the one waiting in its slot, so when the callback frees up it only sees the latest value for each topic.
+ * The context thread never blocks, and the heap only ever holds one pending message per topic.</p>
+ * <p>Topics are delivered in the order they first became pending.  For guaranteed messages, a conflated (replaced)
+ * message counts as complete.  Once the callback throws, everything still pending, and anything arriving while it's
+ * being unregistered, fails instead.</p>
+ */
+public final class ConflatingMessageListener implements AsyncDispatchMessageListener {
+
+	private static final class Slot {
+		final BytesXMLMessage msg;
+		final MessageContext context;  // may be null
+		final DeliveryCompletion completion;
+
+		Slot(BytesXMLMessage msg, MessageContext context, DeliveryCompletion completion) {
+			this.msg = msg;
+			this.context = context;
+			this.completion = completion;
+		}
+	}
+
+	private final DispatchMessageListener delegate;
+	private final Executor executor;
+	private final Object lock = new Object();
+	private final Map<String, Slot> pending = new LinkedHashMap<>();  // guarded by lock
+	private boolean draining = false;  // guarded by lock
+	private TopicDispatchException failure = null;  // once the callback threw; guarded by lock
+	private volatile Runnable onFailure = null;
+
+	private final LongAdder received = new LongAdder();
+	private final LongAdder delivered = new LongAdder();
+	private final LongAdder conflated = new LongAdder();
+
+	/**
+	 * @param delegate the slow callback
+	 * @param executor where the callback runs; can be shared with other conflating listeners
+	 */
+	public ConflatingMessageListener(DispatchMessageListener delegate, Executor executor) {
+		this.delegate = delegate;
+		if (this.delegate == null) throw new NullPointerException("Callback is null");
+		this.executor = executor;
+		if (this.executor == null) throw new NullPointerException("Executor is null");
+	}
+
+	public DispatchMessageListener getDelegate() {
+		return delegate;
+	}
+
+	/** Called by the dispatcher, so that a callback that throws gets unregistered like any other callback */
+	void setOnFailure(Runnable onFailure) {
+		this.onFailure = onFailure;
+	}
+
+	@Override
+	public void onReceive(BytesXMLMessage msg, DeliveryCompletion completion) {
+		onReceive(msg, null, completion);
+	}
+
+	@Override
+	public void onReceive(BytesXMLMessage msg, MessageContext context, DeliveryCompletion completion) {
+		received.increment();
+		Slot replaced;
+		TopicDispatchException failed;
+		boolean startDraining = false;
+		synchronized (lock) {
+			failed = failure;
+			if (failed != null) {  // our callback threw, and is being unregistered
+				replaced = null;
+			} else {
+				replaced = pending.put(msg.getDestination().getName(), new Slot(msg, context, completion));
+				if (!draining) {
+					draining = startDraining = true;
+				}
+			}
+		}
+		if (failed != null) {  // never got to it, so it mustn't be acked
+			completion.fail(failed);
+			return;
+		}
+		if (replaced != null) {
+			conflated.increment();
+			replaced.completion.complete();
+		}
+		if (startDraining) {
+			try {
+				executor.execute(this::drain);
+			} catch (RuntimeException e) {  // e.g. RejectedExecutionException, executor shut down
+				synchronized (lock) {
+					draining = false;
+				}
+				throw e;
+			}
+		}
+	}
+
+	@Override
+	public void onUncaughtException(TopicDispatchException e) {
+		delegate.onUncaughtException(e);
+	}
+
+	/** Runs on the executor until there's nothing left waiting */
+	private void drain() {
+		while (true) {
+			Slot next;
+			synchronized (lock) {
+				Iterator<Slot> it = pending.values().iterator();
+				if (!it.hasNext()) {
+					draining = false;
+					return;
+				}
+				next = it.next();
+				it.remove();
+			}
+			try {
+				MessageListenerWithTopicDispatch.receive(delegate, next.msg, next.context);
+				delivered.increment();
+				next.completion.complete();
+			} catch (RuntimeException e) {
+				TopicDispatchException tde = new TopicDispatchException("Uncaught exception from conflated callback, unregistering", e);
+				next.completion.fail(tde);
+				failAll(tde);
+				return;
+			}
+		}
+	}
+
+	private void failAll(TopicDispatchException e) {
+		Slot[] leftovers;
+		synchronized (lock) {
+			failure = e;
+			draining = false;
+			leftovers = pending.values().toArray(new Slot[pending.size()]);
+			pending.clear();
+		}
+		for (Slot slot : leftovers) {
+			slot.completion.fail(e);
+		}
+		try {
+			delegate.onUncaughtException(e);
+		} catch (Exception e2) {
+			// ignore, we're unregistering
+		}
+		Runnable unregister = onFailure;
+		if (unregister != null) {
+			Jfr.callbackFailed(null, delegate, e.getCause());
+			unregister.run();
+		}
+	}
+
+	/** Topics with a message waiting for the callback */
+	public int getPendingCount() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+
+	public long getReceivedCount() {
+		return received.sum();
+	}
+
+	public long getDeliveredCount() {
+		return delivered.sum();
+	}
+
+	/** Messages that were replaced by a newer one on the same topic before the callback got to them */
+	public long getConflatedCount() {
+		return conflated.sum();
+	}
+}
@@ -0,0 +1,18 @@
+package com.solace.labs.topic;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * A callback that gets a {@link MessageContext} instead of the bare message.  Every context listener a message matches
+ * gets the <i>same</i> context, so the payload is only decoded once however many of them there are.
+ */
+public interface ContextDispatchMessageListener extends DispatchMessageListener {
+
+	public void onReceive(MessageContext context);
+
+	/** Only used if something calls this listener directly, outside of a dispatcher: gets a context of its own */
+	@Override
+	public default void onReceive(BytesXMLMessage msg) {
+		onReceive(new MessageContext(msg));
+	}
+}
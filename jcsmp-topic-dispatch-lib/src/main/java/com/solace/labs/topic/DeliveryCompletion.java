@@ -0,0 +1,25 @@
+package com.solace.labs.topic;
+
+/**
+ * Handed to an {@link AsyncDispatchMessageListener} with each message.  Call exactly one of these once the
+ * listener is done with the message, from any thread.  Anything after the first call is ignored.
+ */
+public interface DeliveryCompletion {
+
+	/** Used when nobody is tracking completion, e.g. Direct messages */
+	public static final DeliveryCompletion NONE = new DeliveryCompletion() {
+		@Override
+		public void complete() {
+		}
+
+		@Override
+		public void fail(Exception cause) {
+		}
+	};
+
+	/** This listener has successfully finished processing the message */
+	public void complete();
+
+	/** This listener could not process the message; what happens next depends on the listener's failure policy */
+	public void fail(Exception cause);
+}
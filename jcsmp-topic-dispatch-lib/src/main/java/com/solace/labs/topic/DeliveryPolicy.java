@@ -0,0 +1,70 @@
+package com.solace.labs.topic;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>How a registration's messages are treated in the dispatcher's async stage, i.e. once its callback has been
+ * offloaded (see {@link MessageListenerWithTopicDispatch#enableCallbackOffload(long, java.util.concurrent.Executor)}):
+ * which {@link PriorityClass} its lane is scheduled in, and optionally a deadline.  A message that's still waiting in the
+ * lane when its deadline passes is never handed to the callback; it's dropped, or goes to the default listener instead.
+ * Inline calls happen straight away, so none of this matters until a callback is offloaded.</p>
+ * <p>Dropping a guaranteed message still completes it (it's acknowledged), so only drop what's really not wanted late.
+ * Immutable.</p>
+ */
+public final class DeliveryPolicy {
+
+	public enum Expiry {
+		/** Just count it */
+		DROP,
+		/** Hand it to the dispatcher's default listener, on the offload thread */
+		DEFAULT_LISTENER,
+		;
+	}
+
+	/** What a registration without a policy gets: {@link PriorityClass#NORMAL}, no deadline */
+	public static final DeliveryPolicy DEFAULT = new DeliveryPolicy(PriorityClass.NORMAL);
+
+	private final PriorityClass priority;
+	private final long deadlineNanos;
+	private final Expiry expiry;
+
+	/** No deadline */
+	public DeliveryPolicy(PriorityClass priority) {
+		this(priority, 0, Expiry.DROP);
+	}
+
+	/**
+	 * @param deadlineMillis how long a message can wait for an offloaded callback, from when the dispatcher matched it; 0 for no deadline
+	 * @param expiry what happens to a message that waited too long
+	 */
+	public DeliveryPolicy(PriorityClass priority, long deadlineMillis, Expiry expiry) {
+		this.priority = priority;
+		if (this.priority == null) throw new NullPointerException("Priority class is null");
+		if (deadlineMillis < 0) throw new IllegalArgumentException("Deadline can't be negative");
+		this.deadlineNanos = TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+		this.expiry = expiry;
+		if (this.expiry == null) throw new NullPointerException("Expiry is null");
+	}
+
+	public PriorityClass getPriority() {
+		return priority;
+	}
+
+	/** 0 if there's no deadline */
+	public long getDeadlineMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(deadlineNanos);
+	}
+
+	long getDeadlineNanos() {
+		return deadlineNanos;
+	}
+
+	public Expiry getExpiry() {
+		return expiry;
+	}
+
+	@Override
+	public String toString() {
+		return "DeliveryPolicy[" + priority + (deadlineNanos == 0 ? "" : ", deadline=" + getDeadlineMillis() + "ms, " + expiry) + "]";
+	}
+}
@@ -0,0 +1,51 @@
+package com.solace.labs.topic;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.SettingDefinition;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+import jdk.jfr.Timespan;
+
+/**
+ * JFR: one message through <code>onReceive()</code>, matching and all the inline callbacks.  Only slow ones by default,
+ * and they can be sampled too (see {@link SamplingControl}).
+ */
+@Name("com.solace.labs.topic.Dispatch")
+@Label("Topic Dispatch")
+@Category({ "Solace", "Topic Dispatch" })
+@Description("A message dispatched to its matching callbacks, or to the default listener")
+@Threshold("100 us")
+@StackTrace(false)
+final class DispatchEvent extends jdk.jfr.Event {
+
+	@Label("Topic")
+	String topic;
+
+	@Label("Engine")
+	String engine;
+
+	@Label("Matched Subs")
+	int matchCount;
+
+	@Label("Match Duration")
+	@Description("Time spent finding the matching subs, not counting the callbacks")
+	@Timespan(Timespan.NANOSECONDS)
+	long matchDuration;
+
+	@Label("Defaulted")
+	@Description("Nothing matched, went to the default listener")
+	boolean defaulted;
+
+	private transient int sampled = 0;  // 1 in, -1 out: shouldCommit() and commit() both ask, so only roll the dice once
+
+	@SettingDefinition
+	@Label("Sampling")
+	@Description("Of the events over the threshold, record about 1 in this many")
+	boolean sampling(SamplingControl control) {
+		if (sampled == 0) sampled = control.sample() ? 1 : -1;
+		return sampled > 0;
+	}
+}
@@ -0,0 +1,56 @@
+package com.solace.labs.topic;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One shared daemon timer thread for all the little periodic jobs (flush windows, linger timers, etc.).  Those jobs must
+ * never run user code or wait for a lock on it: one slow callback would hold up every ack window and reply timeout in the
+ * process.  Anything a timer decides needs doing that might, goes to {@link #workers()} instead.
+ */
+final class DispatchTimers {
+
+	private static volatile ScheduledExecutorService scheduler = null;
+	private static volatile ExecutorService workers = null;
+
+	static ScheduledExecutorService get() {
+		if (scheduler == null) {
+			synchronized (DispatchTimers.class) {
+				if (scheduler == null) {
+					ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+						Thread t = new Thread(r, "TopicDispatch-Timer");
+						t.setDaemon(true);
+						return t;
+					});
+					executor.setRemoveOnCancelPolicy(true);
+					scheduler = executor;
+				}
+			}
+		}
+		return scheduler;
+	}
+
+	/** Shared daemon threads for what a timer triggered, e.g. lingering batches (when nobody gave us an executor) or pruning */
+	static ExecutorService workers() {
+		if (workers == null) {
+			synchronized (DispatchTimers.class) {
+				if (workers == null) {
+					AtomicInteger threads = new AtomicInteger();
+					workers = Executors.newCachedThreadPool(r -> {
+						Thread t = new Thread(r, "TopicDispatch-Worker-" + threads.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					});
+				}
+			}
+		}
+		return workers;
+	}
+
+	private DispatchTimers() {
+		throw new AssertionError("Don't instantiate util class");
+	}
+}
@@ -0,0 +1,44 @@
+package com.solace.labs.topic;
+
+import java.util.function.ToLongFunction;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * Key extractors for {@link MessageListenerWithTopicDispatch#enableDuplicateSuppression(int, long, ToLongFunction)}: each
+ * boils a message down to a 64-bit key, where two messages with the same key are duplicates.  A key of 0 means "don't
+ * check this one".
+ */
+public final class DuplicateKeys {
+
+	static final long FNV_OFFSET = 0xCBF29CE484222325L;
+	static final long FNV_PRIME = 0x100000001B3L;
+
+	/** The application message ID (as set by the publisher); messages without one are never dropped */
+	public static final ToLongFunction<BytesXMLMessage> APPLICATION_MESSAGE_ID = msg -> hash(msg.getApplicationMessageId());
+
+	/** A well-mixed 64-bit hash of the chars, with no allocation; 0 for null.  For building your own key extractors. */
+	public static long hash(CharSequence s) {
+		if (s == null) return 0;
+		long h = FNV_OFFSET;  // FNV-1a...
+		for (int i=0; i<s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= FNV_PRIME;
+		}
+		return mix(h);  // ...then a proper finalizer, since FNV's low bits are weak
+	}
+
+	/** MurmurHash3's 64-bit finalizer; never returns 0, that's reserved for "no key" */
+	static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	private DuplicateKeys() {
+		throw new AssertionError("Don't instantiate util class");
+	}
+}
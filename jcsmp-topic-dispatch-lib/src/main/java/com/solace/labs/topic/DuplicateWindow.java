@@ -0,0 +1,97 @@
+package com.solace.labs.topic;
+
+import java.util.function.ToLongFunction;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * The last <i>n</i> message keys seen, for dropping duplicates (e.g. the same feed from two sessions).  Fixed memory: a
+ * ring of keys and arrival times, oldest overwritten first, plus an open-addressing index into the ring so a lookup is
+ * O(1).  A key only counts as a duplicate while it's both still in the ring and younger than the time window.  No
+ * allocation per message.
+ */
+final class DuplicateWindow {
+
+	private final ToLongFunction<BytesXMLMessage> keyExtractor;
+
+	private final long[] keys;
+	private final long[] times;  // System.nanoTime() each key was recorded
+	private final int[] index;  // ring slot + 1, or 0 for empty; linear probing
+	private final int indexMask;
+	private final long windowNanos;
+	private int next = 0;  // the ring slot to fill (and so evict) next
+	private boolean full = false;  // has the ring wrapped yet
+
+	DuplicateWindow(int capacity, long windowNanos, ToLongFunction<BytesXMLMessage> keyExtractor) {
+		this.keyExtractor = keyExtractor;
+		if (this.keyExtractor == null) throw new NullPointerException("Key extractor is null");
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1");
+		if (windowNanos <= 0) throw new IllegalArgumentException("Window must be positive");
+		keys = new long[capacity];
+		times = new long[capacity];
+		index = new int[Integer.highestOneBit(capacity) << 2];  // between 2x and 4x, so the probes stay short
+		indexMask = index.length - 1;
+		this.windowNanos = windowNanos;
+	}
+
+	private int home(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & indexMask;
+	}
+
+	/** @return true if a message with the same key was seen within the window */
+	boolean isDuplicate(BytesXMLMessage msg) {
+		long key = keyExtractor.applyAsLong(msg);
+		return key != 0 && check(key, System.nanoTime());
+	}
+
+	/** @return true if the key was seen within the window; otherwise records it, and returns false */
+	synchronized boolean check(long key, long now) {
+		for (int pos = home(key); index[pos] != 0; pos = (pos + 1) & indexMask) {
+			int slot = index[pos] - 1;
+			if (keys[slot] == key) {
+				if (now - times[slot] <= windowNanos) return true;
+				removeAt(pos);  // too old to count, forget it and record it again below
+				break;
+			}
+		}
+		if (full) remove(next);  // evicting the oldest
+		keys[next] = key;
+		times[next] = now;
+		int pos = home(key);
+		while (index[pos] != 0) pos = (pos + 1) & indexMask;
+		index[pos] = next + 1;
+		if (++next == keys.length) {
+			next = 0;
+			full = true;
+		}
+		return false;
+	}
+
+	/** Takes a ring slot out of the index, if it's still in there (it's not if it already expired) */
+	private void remove(int slot) {
+		for (int pos = home(keys[slot]); index[pos] != 0; pos = (pos + 1) & indexMask) {
+			if (index[pos] == slot + 1) {
+				removeAt(pos);
+				return;
+			}
+		}
+	}
+
+	/** Backward-shift delete, so there are no tombstones to build up */
+	private void removeAt(int pos) {
+		int hole = pos;
+		for (int scan = (pos + 1) & indexMask; index[scan] != 0; scan = (scan + 1) & indexMask) {
+			int home = home(keys[index[scan] - 1]);
+			if (((scan - home) & indexMask) >= ((scan - hole) & indexMask)) {  // can move back into the hole without passing its home
+				index[hole] = index[scan];
+				hole = scan;
+			}
+		}
+		index[hole] = 0;
+	}
+
+	int capacity() {
+		return keys.length;
+	}
+}
@@ -0,0 +1,53 @@
+package com.solace.labs.topic;
+
+/**
+ * How stale messages were by the time one callback saw them, for one of its subscriptions, from
+ * {@link MessageListenerWithTopicDispatch#getLatencyStats(boolean)}.  All three are measured at the moment the callback
+ * is started.  The two wall-clock ones are only as good as the clocks involved (millisecond resolution, and the sender's
+ * clock might not agree with ours: anything that comes out negative is counted as 0).
+ */
+public final class EndToEndLatency {
+
+	private final Sub sub;
+	private final DispatchMessageListener callback;
+	private final LatencySnapshot sinceSent;
+	private final LatencySnapshot sinceReceived;
+	private final LatencySnapshot queued;
+
+	EndToEndLatency(Sub sub, DispatchMessageListener callback, LatencySnapshot sinceSent, LatencySnapshot sinceReceived, LatencySnapshot queued) {
+		this.sub = sub;
+		this.callback = callback;
+		this.sinceSent = sinceSent;
+		this.sinceReceived = sinceReceived;
+		this.queued = queued;
+	}
+
+	public Sub getSub() {
+		return sub;
+	}
+
+	/** What was registered: for batched or conflated callbacks, that's the wrapper */
+	public DispatchMessageListener getCallback() {
+		return callback;
+	}
+
+	/** Since the sender timestamp; only messages that had one (the publisher has to turn them on) */
+	public LatencySnapshot getSinceSent() {
+		return sinceSent;
+	}
+
+	/** Since the receive timestamp; only messages that had one (the session has to turn them on) */
+	public LatencySnapshot getSinceReceived() {
+		return sinceReceived;
+	}
+
+	/** Time waiting in the dispatcher's own async stage (an offloaded callback's lane); 0 for every inline call */
+	public LatencySnapshot getQueued() {
+		return queued;
+	}
+
+	@Override
+	public String toString() {
+		return "EndToEndLatency[sub=" + sub + ", callback=" + callback + ", sinceSent=" + sinceSent + ", sinceReceived=" + sinceReceived + ", queued=" + queued + "]";
+	}
+}
@@ -0,0 +1,29 @@
+package com.solace.labs.topic;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** JFR: a whole matching engine (re)built, e.g. an adaptive switch or a snapshot restore */
+@Name("com.solace.labs.topic.EngineRebuild")
+@Label("Topic Dispatch Engine Rebuild")
+@Category({ "Solace", "Topic Dispatch" })
+@StackTrace(false)
+final class EngineRebuildEvent extends jdk.jfr.Event {
+
+	@Label("Reason")
+	String reason;
+
+	@Label("From Engine")
+	String fromEngine;
+
+	@Label("To Engine")
+	String toEngine;
+
+	@Label("Subs")
+	int subCount;
+
+	@Label("Swapped In")
+	boolean swapped;
+}
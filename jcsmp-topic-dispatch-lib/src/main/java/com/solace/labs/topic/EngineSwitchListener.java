@@ -0,0 +1,9 @@
+package com.solace.labs.topic;
+
+/**
+ * Optional callback to observe the decisions of an {@link EngineType#ADAPTIVE} dispatcher.
+ * Called on a background thread, right after the new engine has been swapped in.
+ */
+public interface EngineSwitchListener {
+	public void onEngineSwitch(EngineType from, EngineType to, RegistryStats stats);
+}
@@ -0,0 +1,37 @@
+package com.solace.labs.topic;
+
+/**
+ * The different subscription matching strategies that {@link MessageListenerWithTopicDispatch} can use
+ * to figure out which {@link Sub}s match an incoming message's topic.
+ */
+public enum EngineType {
+	/** Walks every registered subscription for every message.  Cheapest when there are only a handful of subs. */
+	LINEAR_SCAN,
+	/** Non-wildcard subs go into a hash lookup keyed on the full topic, the wildcard subs get linear scanned. */
+	EXACT_HASH,
+	/** Subs are indexed level-by-level in a tree, so each topic only walks the branches that could possibly match. */
+	TRIE,
+	/** A bounded cache of topic &rarr; matching subs in front of a {@link #TRIE}, good for a small set of hot topics. */
+	TOPIC_CACHE,
+	/**
+	 * Same as {@link #TRIE}, but the index's nodes and tables live off-heap in direct <code>ByteBuffer</code>s, so the
+	 * index itself adds nothing for the GC to trace.  The subs (and the dispatcher's sub &rarr; callbacks map) are still
+	 * on the heap, same as with any engine, so some heap cost per sub remains.  For very large registries, millions of
+	 * subs.  {@link #ADAPTIVE} never picks this one.
+	 */
+	OFF_HEAP_TRIE,
+	/**
+	 * The subs are split into segments that are each scanned like {@link #LINEAR_SCAN}, and once the registry is over a
+	 * threshold, a topic is matched against all the segments in parallel on a <code>ForkJoinPool</code>.  For hundreds of
+	 * thousands of wildcard subs that the trie can't prune.  See
+	 * {@link MessageListenerWithTopicDispatch#setParallelMatching(int, java.util.concurrent.ForkJoinPool)}.
+	 * {@link #ADAPTIVE} never picks this one either.
+	 */
+	PARALLEL_SCAN,
+	/**
+	 * Not an engine itself: start with {@link #LINEAR_SCAN}, collect some cheap statistics on the registry and the
+	 * traffic, and switch between the other engines at runtime as the shape of things changes.
+	 */
+	ADAPTIVE,
+	;
+}
@@ -0,0 +1,50 @@
+package com.solace.labs.topic;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Subs without any wildcards can only ever match a topic that is exactly equal to them, so they get looked up
+ * with a single hash.  Only the wildcard subs need to be scanned.
+ */
+final class ExactHashEngine implements MatchEngine {
+
+	private final Map<String, Sub> exact = new HashMap<>();
+	private final SubScanList wildcards = new SubScanList();
+
+	@Override
+	public EngineType type() {
+		return EngineType.EXACT_HASH;
+	}
+
+	@Override
+	public void add(Sub sub) {
+		if (sub.isWildcard()) {
+			wildcards.add(sub);
+		} else {
+			exact.put(sub.topicSubscription, sub);
+		}
+	}
+
+	@Override
+	public void remove(Sub sub) {
+		if (sub.isWildcard()) {
+			wildcards.remove(sub);
+		} else {
+			exact.remove(sub.topicSubscription);
+		}
+	}
+
+	@Override
+	public void match(String topic, List<Sub> matches) {
+		Sub sub = exact.get(topic);
+		if (sub != null) matches.add(sub);
+		wildcards.match(topic, matches);
+	}
+
+	@Override
+	public int size() {
+		return exact.size() + wildcards.size();
+	}
+}
@@ -0,0 +1,329 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPException;
+import com.solacesystems.jcsmp.XMLMessage;
+import com.solacesystems.jcsmp.XMLMessageListener;
+
+/**
+ * <p>Topic dispatch for a client-ack <code>FlowReceiver</code> (i.e. guaranteed messages off a queue).  Each message is
+ * acknowledged only once <i>every</i> callback it matched is done with it, including {@link AsyncDispatchMessageListener}s
+ * that finish on some other thread later.  Messages that only went to the default listener are acked once it returns.</p>
+ * <p>Acks are batched: they're held until <code>ackBatchSize</code> completed messages have built up, or the oldest
+ * one has been waiting for <code>ackWindowMillis</code>, whichever comes first.  Call {@link #close()} (or {@link #flush()})
+ * before closing the flow so the last partial batch isn't left unacknowledged.</p>
+ * <p>A callback fails a message by calling {@link DeliveryCompletion#fail(Exception)}, or by throwing from <code>onReceive()</code>;
+ * a thrown exception still unregisters the callback, exactly like {@link MessageListenerWithTopicDispatch}.  What happens
+ * to a failed message is up to that callback's {@link FailurePolicy}.</p>
+ */
+public final class FlowMessageListenerWithTopicDispatch implements XMLMessageListener, AutoCloseable {
+
+	/** What to do with a message if a callback fails it.  In increasing order of severity: if several callbacks fail the same message, the most severe policy wins. */
+	public enum FailurePolicy {
+		/** Hand the message to the default listener, and then acknowledge it */
+		ROUTE_TO_DEFAULT,
+		/** Settle the message as FAILED, i.e. a nack: the broker will redeliver it */
+		SETTLE_FAILED,
+		/** Settle the message as REJECTED: the broker won't redeliver it, but will move it to the DMQ if there is one */
+		SETTLE_REJECTED,
+		;
+	}
+
+	private final MessageListenerWithTopicDispatch dispatcher;
+	private final DefaultMessageListener defaultMessageListener;
+	private final MessageSettler settler;
+	private final int ackBatchSize;
+	private final long ackWindowNanos;
+	final Map<DispatchMessageListener, FailurePolicy> failurePolicies = new ConcurrentHashMap<>();  // only while registered; package-private for tests
+
+	private final Object ackLock = new Object();
+	private List<BytesXMLMessage> pendingAcks = new ArrayList<>();
+	private long oldestPendingAck = 0;  // System.nanoTime()
+	private final ScheduledFuture<?> ackWindowTimer;
+	private volatile boolean closed = false;
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+	private final LongAdder acked = new LongAdder();
+	private final LongAdder ackBatches = new LongAdder();
+	private final LongAdder settledFailed = new LongAdder();
+	private final LongAdder settledRejected = new LongAdder();
+	private final LongAdder routedToDefault = new LongAdder();
+
+	/**
+	 * Uses a {@link EngineType#LINEAR_SCAN} dispatcher, and acks the messages themselves via {@link MessageSettler#JCSMP}.
+	 * @param ackBatchSize how many completed messages to ack together; 1 means ack each one straight away
+	 * @param ackWindowMillis the longest a completed message waits for its batch to fill up; 0 means no time limit
+	 */
+	public FlowMessageListenerWithTopicDispatch(Mode mode, DefaultMessageListener defaultMessageListener, int ackBatchSize, long ackWindowMillis) {
+		this(mode, EngineType.LINEAR_SCAN, defaultMessageListener, MessageSettler.JCSMP, ackBatchSize, ackWindowMillis);
+	}
+
+	/**
+	 * @param settler what actually does the acks and settlements, e.g. a stand-in for testing
+	 * @param ackBatchSize how many completed messages to ack together; 1 means ack each one straight away
+	 * @param ackWindowMillis the longest a completed message waits for its batch to fill up; 0 means no time limit
+	 */
+	public FlowMessageListenerWithTopicDispatch(Mode mode, EngineType engineType, DefaultMessageListener defaultMessageListener,
+			MessageSettler settler, int ackBatchSize, long ackWindowMillis) {
+		this.dispatcher = new MessageListenerWithTopicDispatch(mode, engineType, defaultMessageListener);
+		dispatcher.setLastUnregisteredListener(failurePolicies::remove);  // messages in flight already have their policy
+		this.defaultMessageListener = defaultMessageListener;
+		this.settler = settler;
+		if (this.settler == null) {
+			throw new NullPointerException("Must specify a non-null MessageSettler");
+		}
+		if (ackBatchSize < 1) throw new IllegalArgumentException("ackBatchSize must be at least 1");
+		if (ackWindowMillis < 0) throw new IllegalArgumentException("ackWindowMillis can't be negative");
+		this.ackBatchSize = ackBatchSize;
+		this.ackWindowNanos = TimeUnit.MILLISECONDS.toNanos(ackWindowMillis);
+		if (ackBatchSize > 1 && ackWindowMillis > 0) {
+			long period = Math.max(1, ackWindowMillis / 2);
+			ackWindowTimer = DispatchTimers.get().scheduleWithFixedDelay(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+		} else {
+			ackWindowTimer = null;
+		}
+	}
+
+	/** The underlying dispatcher, e.g. for {@link MessageListenerWithTopicDispatch#getRegistryStats()}.  Register callbacks on this class, not on it. */
+	public MessageListenerWithTopicDispatch getDispatcher() {
+		return dispatcher;
+	}
+
+	/** Same as {@link #registerCallback(Sub, DispatchMessageListener, FailurePolicy)} with {@link FailurePolicy#SETTLE_FAILED} */
+	public void registerCallback(Sub sub, DispatchMessageListener callback) {
+		registerCallback(sub, callback, FailurePolicy.SETTLE_FAILED);
+	}
+
+	/**
+	 * Adds a callback for a subscription.  The failure policy belongs to the callback, not the subscription: registering the
+	 * same callback again with a different policy replaces it.
+	 */
+	public void registerCallback(Sub sub, DispatchMessageListener callback, FailurePolicy failurePolicy) {
+		if (failurePolicy == null) throw new NullPointerException("FailurePolicy is null");
+		dispatcher.registerCallback(sub, callback);
+		failurePolicies.put(callback, failurePolicy);
+	}
+
+	/**
+	 * The failure policy is kept while the callback is still registered under a different sub, and dropped along with its
+	 * last registration (messages it still has in flight keep the policy they were dispatched with)
+	 */
+	public boolean unregisterCallback(Sub sub, DispatchMessageListener callback) {
+		return dispatcher.unregisterCallback(sub, callback);
+	}
+
+	@Override
+	public void onReceive(BytesXMLMessage message) {
+		inFlight.incrementAndGet();
+		Delivery delivery = new Delivery(message);
+		try {
+			dispatcher.onReceive(message, delivery);
+		} finally {
+			delivery.release();  // the dispatch's own hold; if every callback was synchronous, this finishes the message
+		}
+	}
+
+	@Override
+	public void onException(JCSMPException e) {  // uh oh!
+		defaultMessageListener.onException(e);
+	}
+
+	/** Acks everything that's completed so far, without waiting for the batch to fill */
+	public void flush() {
+		List<BytesXMLMessage> batch;
+		synchronized (ackLock) {
+			batch = takeBatch();
+		}
+		ack(batch);
+	}
+
+	/**
+	 * Stops the ack window timer and flushes.  Messages still in flight are acked individually as they complete,
+	 * so it's best to stop the flow first and wait for {@link #getInFlightCount()} to drop to zero.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if (ackWindowTimer != null) ackWindowTimer.cancel(false);
+		flush();
+	}
+
+	/** Messages that have been received but not yet acked or settled, including any completed ones waiting on a batch */
+	public int getInFlightCount() {
+		return inFlight.get();
+	}
+
+	public long getAckedCount() {
+		return acked.sum();
+	}
+
+	public long getAckBatchCount() {
+		return ackBatches.sum();
+	}
+
+	public long getSettledFailedCount() {
+		return settledFailed.sum();
+	}
+
+	public long getSettledRejectedCount() {
+		return settledRejected.sum();
+	}
+
+	public long getRoutedToDefaultCount() {
+		return routedToDefault.sum();
+	}
+
+	private void enqueueAck(BytesXMLMessage message) {
+		List<BytesXMLMessage> batch = null;
+		synchronized (ackLock) {
+			if (pendingAcks.isEmpty()) oldestPendingAck = System.nanoTime();
+			pendingAcks.add(message);
+			if (pendingAcks.size() >= ackBatchSize || closed) {
+				batch = takeBatch();
+			}
+		}
+		ack(batch);
+	}
+
+	/** Runs on the timer thread */
+	private void flushExpired() {
+		List<BytesXMLMessage> batch = null;
+		synchronized (ackLock) {
+			if (!pendingAcks.isEmpty() && System.nanoTime() - oldestPendingAck >= ackWindowNanos) {
+				batch = takeBatch();
+			}
+		}
+		ack(batch);
+	}
+
+	/** Must hold the ackLock */
+	private List<BytesXMLMessage> takeBatch() {
+		if (pendingAcks.isEmpty()) return null;
+		List<BytesXMLMessage> batch = pendingAcks;
+		pendingAcks = new ArrayList<>(Math.min(ackBatchSize, 1024));
+		return batch;
+	}
+
+	/** Outside the ackLock, so the context thread never waits on someone else's acks */
+	private void ack(List<BytesXMLMessage> batch) {
+		if (batch == null) return;
+		for (BytesXMLMessage message : batch) {
+			try {
+				settler.ack(message);
+			} catch (RuntimeException e) {
+				defaultMessageListener.onException(new TopicDispatchException("Could not acknowledge message", e));
+			}
+		}
+		acked.add(batch.size());
+		ackBatches.increment();
+		inFlight.addAndGet(-batch.size());
+	}
+
+	private void settle(BytesXMLMessage message, XMLMessage.Outcome outcome) {
+		try {
+			settler.settle(message, outcome);
+		} catch (JCSMPException | RuntimeException e) {
+			defaultMessageListener.onException(new TopicDispatchException("Could not settle message as " + outcome, e));
+		}
+		inFlight.decrementAndGet();
+	}
+
+	/** Follows one message through the dispatcher, and settles it once everyone's done */
+	private final class Delivery implements MessageTracker {
+
+		private final BytesXMLMessage message;
+		private final AtomicInteger pending = new AtomicInteger(1);  // 1 is held by onReceive() until the dispatch returns
+		private FailurePolicy failure = null;  // the most severe one so far, guarded by this
+
+		Delivery(BytesXMLMessage message) {
+			this.message = message;
+		}
+
+		@Override
+		public DeliveryCompletion begin(DispatchMessageListener callback) {
+			pending.incrementAndGet();
+			return new ListenerCompletion(this, failurePolicies.getOrDefault(callback, FailurePolicy.SETTLE_FAILED));
+		}
+
+		@Override
+		public void defaulted() {
+			// nothing special, it'll just get acked
+		}
+
+		void failed(FailurePolicy policy) {
+			synchronized (this) {
+				if (failure == null || policy.compareTo(failure) > 0) failure = policy;
+			}
+		}
+
+		void release() {
+			if (pending.decrementAndGet() == 0) finish();
+		}
+
+		private void finish() {
+			FailurePolicy outcome;
+			synchronized (this) {
+				outcome = failure;
+			}
+			if (outcome == null) {
+				enqueueAck(message);
+				return;
+			}
+			switch (outcome) {
+			case ROUTE_TO_DEFAULT:
+				try {
+					defaultMessageListener.onReceiveDefault(message);
+				} catch (Exception e) {
+					defaultMessageListener.onException(new JCSMPException("Uncaught exception from onReceiveDefault()", e));
+				}
+				routedToDefault.increment();
+				enqueueAck(message);
+				break;
+			case SETTLE_FAILED:
+				settledFailed.increment();
+				settle(message, XMLMessage.Outcome.FAILED);
+				break;
+			case SETTLE_REJECTED:
+				settledRejected.increment();
+				settle(message, XMLMessage.Outcome.REJECTED);
+				break;
+			}
+		}
+	}
+
+	private static final class ListenerCompletion implements DeliveryCompletion {
+
+		private final Delivery delivery;
+		private final FailurePolicy policy;  // as of the dispatch: the callback may be unregistered before it fails the message
+		private final AtomicBoolean done = new AtomicBoolean(false);
+
+		ListenerCompletion(Delivery delivery, FailurePolicy policy) {
+			this.delivery = delivery;
+			this.policy = policy;
+		}
+
+		@Override
+		public void complete() {
+			if (done.compareAndSet(false, true)) delivery.release();
+		}
+
+		@Override
+		public void fail(Exception cause) {
+			if (done.compareAndSet(false, true)) {
+				delivery.failed(policy);
+				delivery.release();
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package com.solace.labs.topic;
+
+/** One entry from a top-K traffic sketch: a topic (or topic prefix) and about how many messages it's had */
+public final class HeavyHitter {
+
+	private final String key;
+	private final long count;
+	private final long maxError;
+
+	HeavyHitter(String key, long count, long maxError) {
+		this.key = key;
+		this.count = count;
+		this.maxError = maxError;
+	}
+
+	/** The topic, or the first few levels of it for a prefix */
+	public String getKey() {
+		return key;
+	}
+
+	/** Never less than the true count */
+	public long getCount() {
+		return count;
+	}
+
+	/** How much the count might be over by, from before it was being tracked; the true count is at least count - maxError */
+	public long getMaxError() {
+		return maxError;
+	}
+
+	@Override
+	public String toString() {
+		return maxError == 0 ? key + "=" + count : key + "=" + count + "(-" + maxError + ")";
+	}
+}
@@ -0,0 +1,28 @@
+package com.solace.labs.topic;
+
+/**
+ * Whether the <code>jdk.jfr</code> module is there at all.  It usually is, but a jlinked runtime can leave it out, and then
+ * the first event we made would throw <code>NoClassDefFoundError</code> in the middle of dispatching.  So every event is
+ * only made if this says so, and anything handed one has to put up with a null.
+ */
+final class Jfr {
+
+	static final boolean AVAILABLE = available();
+
+	private Jfr() {
+	}
+
+	private static boolean available() {
+		try {
+			Class.forName("jdk.jfr.Event", false, Jfr.class.getClassLoader());
+			return true;
+		} catch (ClassNotFoundException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/** {@link CallbackFailedEvent#emit(Sub, Object, Throwable)}, if there's JFR to emit it to */
+	static void callbackFailed(Sub sub, Object callback, Throwable cause) {
+		if (AVAILABLE) CallbackFailedEvent.emit(sub, callback, cause);
+	}
+}
@@ -0,0 +1,62 @@
+package com.solace.labs.topic;
+
+/**
+ * An immutable snapshot of one latency histogram, in nanoseconds.  Percentiles are accurate to within 12.5% (they're
+ * reported as the top of the bucket they fall in, so never under), the mean and max are exact.
+ */
+public final class LatencySnapshot {
+
+	private final long[] counts;
+	private final long count;
+	private final long sum;
+	private final long max;
+
+	LatencySnapshot(long[] counts, long sum, long max) {
+		this.counts = counts;
+		long total = 0;
+		for (long c : counts) total += c;
+		this.count = total;
+		this.sum = sum;
+		this.max = max;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public long getMeanNanos() {
+		return count == 0 ? 0 : sum / count;
+	}
+
+	public long getMaxNanos() {
+		return max;
+	}
+
+	/**
+	 * @param percentile 0 to 100, e.g. 99.9
+	 * @return the value that many percent of the recorded ones are at or under, or 0 if nothing's been recorded
+	 */
+	public long getPercentileNanos(double percentile) {
+		if (percentile < 0 || percentile > 100) throw new IllegalArgumentException("Percentile must be 0..100");
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100 * count));
+		long seen = 0;
+		for (int i=0; i<counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(AtomicHistogram.highest(i), max);
+		}
+		return max;  // only if the counts and max were caught mid-update
+	}
+
+	public long getMedianNanos() {
+		return getPercentileNanos(50);
+	}
+
+	@Override
+	public String toString() {
+		if (count == 0) return "LatencySnapshot[count=0]";
+		return String.format("LatencySnapshot[count=%d, mean=%.1fus, p50=%.1fus, p99=%.1fus, p99.9=%.1fus, max=%.1fus]",
+				count, getMeanNanos() / 1000.0, getPercentileNanos(50) / 1000.0, getPercentileNanos(99) / 1000.0,
+				getPercentileNanos(99.9) / 1000.0, max / 1000.0);
+	}
+}
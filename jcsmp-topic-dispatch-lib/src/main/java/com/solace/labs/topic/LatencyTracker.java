@@ -0,0 +1,65 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * End-to-end latency for every registration (sub and callback), from
+ * {@link MessageListenerWithTopicDispatch#enableLatencyTracking()}.  The recorders are looked up under the dispatcher's
+ * read lock and forgotten under its write lock, so an offloaded call that's still queued holds on to its own recorder
+ * rather than bringing a forgotten one back.
+ */
+final class LatencyTracker {
+
+	/** Three {@link AtomicHistogram}s, so about 7.5KB for every registration that's had a message */
+	static final class Recorder {
+		final AtomicHistogram sinceSent = new AtomicHistogram();
+		final AtomicHistogram sinceReceived = new AtomicHistogram();
+		final AtomicHistogram queued = new AtomicHistogram();
+
+		/** Right before the callback gets the message */
+		void started(BytesXMLMessage message, long queuedNanos) {
+			long now = System.currentTimeMillis();
+			Long sent = message.getSenderTimestamp();
+			if (sent != null) sinceSent.record(TimeUnit.MILLISECONDS.toNanos(now - sent.longValue()));
+			long received = message.getReceiveTimestamp();
+			if (received > 0) sinceReceived.record(TimeUnit.MILLISECONDS.toNanos(now - received));
+			queued.record(queuedNanos);
+		}
+	}
+
+	private final Map<Sub, Map<DispatchMessageListener, Recorder>> recorders = new ConcurrentHashMap<>();
+
+	/** Two lookups rather than a composite key, so nothing's allocated per message once it's there */
+	Recorder recorder(Sub sub, DispatchMessageListener callback) {
+		Map<DispatchMessageListener, Recorder> forSub = recorders.get(sub);
+		if (forSub == null) forSub = recorders.computeIfAbsent(sub, s -> new ConcurrentHashMap<>(4));
+		Recorder recorder = forSub.get(callback);
+		return recorder != null ? recorder : forSub.computeIfAbsent(callback, cb -> new Recorder());
+	}
+
+	/** The registration's gone: stop reporting it */
+	void forget(Sub sub, DispatchMessageListener callback) {
+		Map<DispatchMessageListener, Recorder> forSub = recorders.get(sub);
+		if (forSub == null) return;
+		forSub.remove(callback);
+		if (forSub.isEmpty()) recorders.remove(sub, forSub);  // we're under the write lock, nobody's adding to it
+	}
+
+	List<EndToEndLatency> snapshot(boolean reset) {
+		List<EndToEndLatency> stats = new ArrayList<>();
+		for (Map.Entry<Sub, Map<DispatchMessageListener, Recorder>> forSub : recorders.entrySet()) {
+			for (Map.Entry<DispatchMessageListener, Recorder> entry : forSub.getValue().entrySet()) {
+				Recorder recorder = entry.getValue();
+				stats.add(new EndToEndLatency(forSub.getKey(), entry.getKey(), recorder.sinceSent.snapshot(reset),
+						recorder.sinceReceived.snapshot(reset), recorder.queued.snapshot(reset)));
+			}
+		}
+		return stats;
+	}
+}
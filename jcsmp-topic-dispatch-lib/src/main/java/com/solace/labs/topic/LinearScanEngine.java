@@ -0,0 +1,34 @@
+package com.solace.labs.topic;
+
+import java.util.List;
+
+/** The original approach: check the topic against every sub, one after the other. */
+final class LinearScanEngine implements MatchEngine {
+
+	private final SubScanList subs = new SubScanList();
+
+	@Override
+	public EngineType type() {
+		return EngineType.LINEAR_SCAN;
+	}
+
+	@Override
+	public void add(Sub sub) {
+		subs.add(sub);
+	}
+
+	@Override
+	public void remove(Sub sub) {
+		subs.remove(sub);
+	}
+
+	@Override
+	public void match(String topic, List<Sub> matches) {
+		subs.match(topic, matches);
+	}
+
+	@Override
+	public int size() {
+		return subs.size();
+	}
+}
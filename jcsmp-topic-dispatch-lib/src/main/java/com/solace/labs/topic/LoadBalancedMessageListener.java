@@ -0,0 +1,251 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * <p>Like a broker shared subscription, but in-process: a pool of equivalent callbacks registered as one, where each
+ * message goes to exactly <i>one</i> of them.  Every member gets its own worker thread, so a hot subscription's handler
+ * can be scaled out across cores.  Register the pool itself with the dispatcher, like any other callback.</p>
+ * <p>A member that throws is dropped from the pool (and told via its <code>onUncaughtException()</code>).  It's never
+ * called again: the messages still queued for it are handed to the remaining members instead, or fail if there are none.
+ * Once every member is gone, the pool itself throws, and so gets unregistered by the dispatcher.  Members may be
+ * {@link AsyncDispatchMessageListener}s, in which case they count as outstanding until they complete.</p>
+ * <p>"Exactly one" is per call of the pool.  In {@link MessageListenerWithTopicDispatch.Mode#CALL_EACH} mode the
+ * dispatcher calls a callback once for every one of its subs that matches, so a pool registered for overlapping subs
+ * gets a message once per matching sub, and so it's processed that many times.  Register the pool for one sub, or for
+ * subs that don't overlap, or use a deduping mode.</p>
+ */
+public final class LoadBalancedMessageListener implements AsyncDispatchMessageListener, AutoCloseable {
+
+	public enum Strategy {
+		/** Each member in turn */
+		ROUND_ROBIN,
+		/** Whichever member has the fewest messages queued or in progress */
+		LEAST_OUTSTANDING,
+		/** Same topic always goes to the same member (until the pool changes size), which keeps per-topic ordering */
+		STICKY_TOPIC_HASH,
+		;
+	}
+
+	private static final class Member {
+		final DispatchMessageListener listener;
+		final ExecutorService worker;
+		final AtomicInteger outstanding = new AtomicInteger();
+		final AtomicLong dispatched = new AtomicLong();
+		volatile boolean removed = false;
+
+		Member(DispatchMessageListener listener, ExecutorService worker) {
+			this.listener = listener;
+			this.worker = worker;
+		}
+	}
+
+	private static final AtomicInteger poolCount = new AtomicInteger();
+
+	private final Strategy strategy;
+	private volatile Member[] members;  // copy-on-write, members only ever leave
+	private final AtomicInteger next = new AtomicInteger();
+
+	public LoadBalancedMessageListener(Strategy strategy, List<? extends DispatchMessageListener> listeners) {
+		this.strategy = strategy;
+		if (this.strategy == null) throw new NullPointerException("Strategy is null");
+		if (listeners == null || listeners.isEmpty()) throw new IllegalArgumentException("Need at least one listener for the pool");
+		int pool = poolCount.incrementAndGet();
+		members = new Member[listeners.size()];
+		for (int i=0; i<members.length; i++) {
+			if (listeners.get(i) == null) throw new NullPointerException("Listener " + i + " is null");
+			final String name = "TopicDispatch-Pool" + pool + "-" + i;
+			members[i] = new Member(listeners.get(i), Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}));
+		}
+	}
+
+	public Strategy getStrategy() {
+		return strategy;
+	}
+
+	@Override
+	public void onReceive(BytesXMLMessage msg, DeliveryCompletion completion) {
+		onReceive(msg, null, completion);
+	}
+
+	@Override
+	public void onReceive(BytesXMLMessage msg, MessageContext context, DeliveryCompletion completion) {
+		while (true) {
+			Member[] current = members;
+			if (current.length == 0) throw new IllegalStateException("No members left in the load-balanced pool");
+			Member member = current[pick(current, msg)];
+			member.outstanding.incrementAndGet();
+			try {
+				member.worker.execute(() -> deliver(member, msg, context, completion));
+				member.dispatched.incrementAndGet();
+				return;
+			} catch (RejectedExecutionException e) {
+				member.outstanding.decrementAndGet();
+				if (members == current) throw e;  // the whole pool has been closed
+				// else we raced with that member being removed, pick again
+			}
+		}
+	}
+
+	/** On the worker thread of a removed member, for what was still queued for it */
+	private void reroute(BytesXMLMessage msg, MessageContext context, DeliveryCompletion completion) {
+		try {
+			onReceive(msg, context, completion);
+		} catch (RuntimeException e) {  // no members left, or closed
+			completion.fail(new TopicDispatchException("Pool member was removed and no other could take the message", e));
+		}
+	}
+
+	/** On the member's worker thread */
+	private void deliver(Member member, BytesXMLMessage msg, MessageContext context, DeliveryCompletion completion) {
+		if (member.removed) {  // was queued behind the message it threw on
+			member.outstanding.decrementAndGet();
+			reroute(msg, context, completion);
+			return;
+		}
+		DeliveryCompletion done = new MemberCompletion(member, completion);
+		try {
+			if (member.listener instanceof AsyncDispatchMessageListener) {
+				((AsyncDispatchMessageListener)member.listener).onReceive(msg, context, done);
+			} else {
+				MessageListenerWithTopicDispatch.receive(member.listener, msg, context);
+				done.complete();
+			}
+		} catch (RuntimeException e) {
+			TopicDispatchException tde = new TopicDispatchException("Uncaught exception from load-balanced pool member, removing it", e);
+			done.fail(tde);
+			removeMember(member);
+			try {
+				member.listener.onUncaughtException(tde);
+			} catch (Exception e2) {
+				// ignore, we're removing it
+			}
+		}
+	}
+
+	private int pick(Member[] current, BytesXMLMessage msg) {
+		switch (strategy) {
+		case ROUND_ROBIN:
+			return Math.floorMod(next.getAndIncrement(), current.length);
+		case LEAST_OUTSTANDING:
+			int start = Math.floorMod(next.getAndIncrement(), current.length);  // rotate the start, so ties get spread around
+			int best = start;
+			int bestOutstanding = Integer.MAX_VALUE;
+			for (int i=0; i<current.length; i++) {
+				int index = (start + i) % current.length;
+				int outstanding = current[index].outstanding.get();
+				if (outstanding < bestOutstanding) {
+					best = index;
+					bestOutstanding = outstanding;
+					if (outstanding == 0) break;  // can't do better than idle
+				}
+			}
+			return best;
+		case STICKY_TOPIC_HASH:
+			int h = msg.getDestination().getName().hashCode();
+			return Math.floorMod(h ^ (h >>> 16), current.length);
+		default:
+			throw new AssertionError(strategy);
+		}
+	}
+
+	private synchronized void removeMember(Member member) {
+		List<Member> remaining = new ArrayList<>();
+		for (Member m : members) {
+			if (m != member) remaining.add(m);
+		}
+		members = remaining.toArray(new Member[remaining.size()]);
+		member.removed = true;
+		member.worker.shutdown();  // anything already queued for it goes to the others
+	}
+
+	/** Only called if the pool itself gets unregistered for throwing, i.e. it has run out of members */
+	@Override
+	public void onUncaughtException(TopicDispatchException e) {
+		// nothing left to tell, each member already got its own
+	}
+
+	/** Stops taking messages, lets the workers finish what's queued, and waits up to the timeout for them */
+	public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+		Member[] current = members;
+		for (Member member : current) {
+			member.worker.shutdown();
+		}
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Member member : current) {
+			if (!member.worker.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) return false;
+		}
+		return true;
+	}
+
+	/** Stops taking messages; anything already queued still gets processed */
+	@Override
+	public void close() {
+		for (Member member : members) {
+			member.worker.shutdown();
+		}
+	}
+
+	public int getMemberCount() {
+		return members.length;
+	}
+
+	/** Messages queued or in progress, per (remaining) member */
+	public int[] getOutstandingCounts() {
+		Member[] current = members;
+		int[] counts = new int[current.length];
+		for (int i=0; i<current.length; i++) counts[i] = current[i].outstanding.get();
+		return counts;
+	}
+
+	/** Messages handed to each (remaining) member so far */
+	public long[] getDispatchedCounts() {
+		Member[] current = members;
+		long[] counts = new long[current.length];
+		for (int i=0; i<current.length; i++) counts[i] = current[i].dispatched.get();
+		return counts;
+	}
+
+	/** Takes the member off its outstanding count exactly once, then passes the completion on */
+	private static final class MemberCompletion implements DeliveryCompletion {
+
+		private final Member member;
+		private final DeliveryCompletion completion;
+		private final AtomicBoolean done = new AtomicBoolean(false);
+
+		MemberCompletion(Member member, DeliveryCompletion completion) {
+			this.member = member;
+			this.completion = completion;
+		}
+
+		@Override
+		public void complete() {
+			if (done.compareAndSet(false, true)) {
+				member.outstanding.decrementAndGet();
+				completion.complete();
+			}
+		}
+
+		@Override
+		public void fail(Exception cause) {
+			if (done.compareAndSet(false, true)) {
+				member.outstanding.decrementAndGet();
+				completion.fail(cause);
+			}
+		}
+	}
+}
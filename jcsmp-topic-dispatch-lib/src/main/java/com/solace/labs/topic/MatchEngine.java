@@ -0,0 +1,55 @@
+package com.solace.labs.topic;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * An index over a set of subscriptions, answering "which of my subs match this topic?".
+ * The dispatcher owns the engine: mutations happen under its write lock, but {@link #match(String, List)} is called
+ * under the shared read lock by any number of threads at once, so it must not modify anything that isn't thread-safe.
+ * Each {@link Sub} is only ever added once (the dispatcher tracks that).
+ */
+interface MatchEngine {
+
+	EngineType type();
+
+	void add(Sub sub);
+
+	void remove(Sub sub);
+
+	/** Appends every registered Sub that matches the topic to <code>matches</code>, without duplicates */
+	void match(String topic, List<Sub> matches);
+
+	int size();
+
+	/** Builds a new, populated engine of the given (concrete) type. */
+	static MatchEngine build(EngineType type, Collection<Sub> subs) {
+		MatchEngine engine;
+		switch (type) {
+		case LINEAR_SCAN:
+			engine = new LinearScanEngine();
+			break;
+		case EXACT_HASH:
+			engine = new ExactHashEngine();
+			break;
+		case TRIE:
+			engine = new TrieEngine();
+			break;
+		case OFF_HEAP_TRIE:
+			engine = new OffHeapTrieEngine();
+			break;
+		case PARALLEL_SCAN:
+			engine = new ParallelScanEngine();
+			break;
+		case TOPIC_CACHE:
+			engine = new TopicCacheEngine(new TrieEngine(), TopicCacheEngine.DEFAULT_MAX_TOPICS);
+			break;
+		default:
+			throw new IllegalArgumentException("Not a concrete engine type: " + type);
+		}
+		for (Sub sub : subs) {
+			engine.add(sub);
+		}
+		return engine;
+	}
+}
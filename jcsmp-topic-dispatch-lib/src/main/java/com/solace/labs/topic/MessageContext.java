@@ -0,0 +1,98 @@
+package com.solace.labs.topic;
+
+import java.nio.ByteBuffer;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.SDTMap;
+
+/**
+ * <p>One message, as seen by all the {@link ContextDispatchMessageListener}s it matched.  The payload is decoded lazily,
+ * the first time any of them asks, and then cached for the rest: a message that fans out to ten callbacks that all
+ * want the text (or the parsed JSON, or the map) is only decoded once.</p>
+ * <p>Safe to use from several threads at once (e.g. offloaded callbacks).  Decoded results are shared, so treat them as
+ * read-only: don't modify a shared {@link SDTMap} or parsed tree.</p>
+ */
+public final class MessageContext {
+
+	private static final Object[] NONE = new Object[0];
+
+	/** A decoder that threw, so the next callback to ask doesn't try again */
+	private static final class Failed {
+		final Exception cause;
+
+		Failed(Exception cause) {
+			this.cause = cause;
+		}
+	}
+
+	private final BytesXMLMessage message;
+	private Object[] decoded = NONE;  // pairs of decoder, result; guarded by this.  Almost always only one or two of them
+
+	public MessageContext(BytesXMLMessage message) {
+		this.message = message;
+		if (this.message == null) throw new NullPointerException("Message is null");
+	}
+
+	public BytesXMLMessage getMessage() {
+		return message;
+	}
+
+	public String getTopic() {
+		return message.getDestination().getName();
+	}
+
+	/**
+	 * The payload decoded by this decoder, decoding it now if nobody has yet.  Decoders are told apart by instance.
+	 * @throws PayloadDecodingException if the decoder throws (now, or when it was first tried)
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> T get(PayloadDecoder<T> decoder) {
+		if (decoder == null) throw new NullPointerException("Decoder is null");
+		Object result;
+		synchronized (this) {  // held while decoding too, so a second thread waits for the first one's result instead of decoding it again
+			int index = indexOf(decoder);
+			if (index >= 0) {
+				result = decoded[index + 1];
+			} else {
+				try {
+					result = decoder.decode(message);
+				} catch (Exception e) {
+					result = new Failed(e);
+				}
+				Object[] grown = new Object[decoded.length + 2];
+				System.arraycopy(decoded, 0, grown, 0, decoded.length);
+				grown[decoded.length] = decoder;
+				grown[decoded.length + 1] = result;
+				decoded = grown;
+			}
+		}
+		if (result instanceof Failed) {
+			throw new PayloadDecodingException("Could not decode payload of message on " + getTopic(), ((Failed)result).cause);
+		}
+		return (T)result;
+	}
+
+	/** Must hold the lock */
+	private int indexOf(PayloadDecoder<?> decoder) {
+		for (int i=0; i<decoded.length; i+=2) {
+			if (decoded[i] == decoder) return i;
+		}
+		return -1;
+	}
+
+	/** @see PayloadDecoders#TEXT */
+	public String getText() {
+		return get(PayloadDecoders.TEXT);
+	}
+
+	/** @return a read-only view of the attachment, with its own position and limit, so reading it doesn't disturb anyone else */
+	public ByteBuffer getBytes() {
+		ByteBuffer bytes = get(PayloadDecoders.BYTES);
+		return bytes == null ? null : bytes.duplicate();
+	}
+
+	/** @see PayloadDecoders#SDT_MAP */
+	public SDTMap getMap() {
+		return get(PayloadDecoders.SDT_MAP);
+	}
+}
@@ -1,18 +1,50 @@
 package com.solace.labs.topic;
 
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+import java.util.logging.Logger;
 
 import com.solacesystems.jcsmp.BytesXMLMessage;
 import com.solacesystems.jcsmp.JCSMPException;
 import com.solacesystems.jcsmp.XMLMessageListener;
 
-public final class MessageListenerWithTopicDispatch implements XMLMessageListener {
+/**
+ * <p>An <code>XMLMessageListener</code> that dispatches each message to the callbacks registered against matching {@link Sub}s,
+ * or to the {@link DefaultMessageListener} if nothing matches.</p>
+ * <p>One instance can be shared by several consumers or flows (on one or many Sessions): <code>onReceive()</code> is safe
+ * to call concurrently from any number of context threads.  They all read the same registry under a shared read lock,
+ * and all the per-message scratch state is confined to the calling thread.  Registering and unregistering takes the
+ * write lock, so waits for any in-flight messages to finish.  A callback may (un)register callbacks from inside
+ * <code>onReceive()</code>: that change is applied right after the current message is done.</p>
+ */
+public final class MessageListenerWithTopicDispatch implements XMLMessageListener, AutoCloseable {
+
+	private static final Logger logger = Logger.getLogger(MessageListenerWithTopicDispatch.class.getName());
 
 	public enum Mode {
 		/** If there are overlapping subscriptions for the exact same callback, the callback will only be called once */
@@ -26,16 +58,80 @@ public final class MessageListenerWithTopicDispatch implements XMLMessageListene
 //		// what's this for????
 //	}
 	
+	/** Everything that's needed during one onReceive() call, reused per thread so there's no garbage per message */
+	private static final class Scratch {
+		final List<Sub> matchedSubs = new ArrayList<>();
+		final Set<DispatchMessageListener> calledCallbacks = new HashSet<>();
+		// callbacks that threw, to be unregistered once we're out of the read lock
+		final List<Sub> failedSubs = new ArrayList<>();
+		final List<DispatchMessageListener> failedCallbacks = new ArrayList<>();
+		// (un)registrations made by callbacks from inside onReceive(), applied once we're out of the read lock
+		final List<Runnable> deferred = new ArrayList<>();
+		boolean inUse = false;
+		// selector values for the current message, only set up once a registration with a selector matches
+		SelectorEvaluation selectorEvaluation = null;
+		BytesXMLMessage selectorMessage = null;
+		// the calls for a parallel fan-out, one element each, made once we're out of the read lock
+		final List<Sub> fanOutSubs = new ArrayList<>();
+		final List<DispatchMessageListener> fanOutCallbacks = new ArrayList<>();
+		final List<LatencyTracker.Recorder> fanOutRecorders = new ArrayList<>();
+		// messages this thread has seen that it hasn't yet added to the adaptive engine selector's window
+		int adaptiveMessages = 0;
+
+		void reset() {
+			matchedSubs.clear();
+			calledCallbacks.clear();
+			failedSubs.clear();
+			failedCallbacks.clear();
+			selectorMessage = null;
+			fanOutSubs.clear();
+			fanOutCallbacks.clear();
+			fanOutRecorders.clear();
+		}
+	}
+
 	private Map<Sub, Set<DispatchMessageListener>> callbacks = new HashMap<>();  // for each subscription, a Set of callbacks
-	private ReentrantLock lock = new ReentrantLock();
-	private AtomicBoolean lock2 = new AtomicBoolean(false);
+	private final Map<DispatchMessageListener, Integer> registrationCounts = new HashMap<>();  // how many subs each callback has, guarded by the lock
+	// the (sub, callback) registrations that have a selector, guarded by the lock same as callbacks
+	private final Map<Sub, Map<DispatchMessageListener, SelectorExpr>> selectors = new HashMap<>();
+	private final Map<Sub, Map<DispatchMessageListener, Selector>> selectorSources = new HashMap<>();  // as registered, for snapshots
+	private final SelectorInterner selectorInterner = new SelectorInterner();
+	private final LongAdder selectorRejects = new LongAdder();
+	private final Map<Sub, Map<DispatchMessageListener, DeliveryPolicy>> policies = new HashMap<>();  // only the non-default ones; guarded by the lock too
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();  // lots of concurrent readers (context threads), the occasional writer
+	private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
 	private final Mode mode;
 	private DefaultMessageListener defaultMessageListener;
-	
-	// these variables are reused on each invocation of onReceive()
-	private Set<DispatchMessageListener> calledCallbacks = new HashSet<>();
-	boolean onReceiveMatch = false;
-	boolean onReceiveException = false;
+	private final boolean adaptive;
+	private volatile MatchEngine engine;  // which subs match a topic; the callbacks map above is the source of truth
+	private int registryVersion = 0;  // bumped every time the set of subs changes, so a background engine rebuild knows if it's stale
+	private int registrationVersion = 0;  // bumped on every (un)registration, even of another callback to an existing sub
+	private final AdaptiveEngineSelector engineSelector = new AdaptiveEngineSelector();  // synchronized on itself, except on the message path
+	private final AtomicBoolean engineSwitching = new AtomicBoolean(false);
+	private volatile EngineSwitchListener engineSwitchListener = null;
+	private final Map<BatchDispatchMessageListener, BatchingMessageListener> batchers = new ConcurrentHashMap<>();
+	private final Map<DispatchMessageListener, ConflatingMessageListener> conflaters = new ConcurrentHashMap<>();
+	private volatile CallbackOffloader offloader = null;  // null until enableCallbackOffload()
+	private final PendingReplies pendingReplies = new PendingReplies();
+	private volatile DuplicateWindow duplicateWindow = null;  // null until enableDuplicateSuppression()
+	private final LongAdder duplicates = new LongAdder();
+	private volatile TrafficSketch matchedTraffic = null;  // both null until enableTrafficSketches()
+	private volatile TrafficSketch unmatchedTraffic = null;
+	private volatile LatencyTracker latency = null;  // null until enableLatencyTracking()
+	private volatile ParallelFanOut fanOut = null;  // null until enableParallelFanOut()
+	private volatile Consumer<DispatchMessageListener> lastUnregistered = null;  // see setLastUnregisteredListener()
+	// for EngineType.PARALLEL_SCAN, applied to each one that's built
+	private volatile int parallelThreshold = ParallelScanEngine.DEFAULT_THRESHOLD;
+	private volatile ForkJoinPool parallelPool = ForkJoinPool.commonPool();
+	// weak registrations: each real callback's wrapper (which only weakly holds it), and where the collected ones turn up
+	private final Map<DispatchMessageListener, WeakCallback> weakCallbacks = Collections.synchronizedMap(new WeakHashMap<>());
+	private final ReferenceQueue<DispatchMessageListener> collected = new ReferenceQueue<>();
+	private ScheduledFuture<?> pruneTimer = null;  // guarded by weakCallbacks, started by the first weak registration
+	private final LongAdder pruned = new LongAdder();
+	/** How often the collected weak callbacks get pruned from the registry, all in one go */
+	static final long WEAK_PRUNE_MILLIS = 1000;
+	/** A batch of changes touching more than 1/this of the subs gets a fresh registry and engine, rather than being applied one by one */
+	static final int REBUILD_DIVISOR = 8;
 	
 	
 /*	public MessageListenerWithTopicDispatch(Mode mode) {
@@ -43,6 +139,16 @@ public final class MessageListenerWithTopicDispatch implements XMLMessageListene
 	}
 */
 	public MessageListenerWithTopicDispatch(Mode mode, DefaultMessageListener defaultMessageListener) {
+		this(mode, EngineType.LINEAR_SCAN, defaultMessageListener);
+	}
+
+	/**
+	 * @param mode how to handle overlapping subscriptions for the same callback
+	 * @param engineType how to match topics against the registered subs. {@link EngineType#ADAPTIVE} will pick
+	 *                   (and keep re-picking) one of the others based on the registry and the traffic
+	 * @param defaultMessageListener gets any message that doesn't match a registered callback
+	 */
+	public MessageListenerWithTopicDispatch(Mode mode, EngineType engineType, DefaultMessageListener defaultMessageListener) {
 		this.mode = mode;
 		if (this.mode == null) {
 			throw new NullPointerException("Must specify a non-null Mode for the Topic Dispatcher");
@@ -51,64 +157,1104 @@ public final class MessageListenerWithTopicDispatch implements XMLMessageListene
 		if (this.defaultMessageListener == null) {
 			throw new NullPointerException("Must specify a non-null XMLMessageListener for the default message callback");
 		}
+		if (engineType == null) {
+			throw new NullPointerException("Must specify a non-null EngineType for the Topic Dispatcher");
+		}
+		this.adaptive = engineType == EngineType.ADAPTIVE;
+		this.engine = buildEngine(adaptive ? EngineType.LINEAR_SCAN : engineType, new ArrayList<>());
 	}
 
 	public Mode getMode() {
 		return mode;
 	}
+
+	/** @return the matching engine currently in use; never {@link EngineType#ADAPTIVE}, but the one it has picked */
+	public EngineType getEngineType() {
+		return engine.type();
+	}
+
+	/** @return true if this dispatcher was built with {@link EngineType#ADAPTIVE} */
+	public boolean isAdaptive() {
+		return adaptive;
+	}
+
+	/**
+	 * The current sub counts, plus (for an adaptive dispatcher) the traffic stats from the most recent
+	 * sampling window of {@value AdaptiveEngineSelector#WINDOW} messages.
+	 */
+	public RegistryStats getRegistryStats() {
+		lock.readLock().lock();
+		try {
+			synchronized (engineSelector) {
+				return engineSelector.getStats(engine.type());
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * For {@link EngineType#PARALLEL_SCAN}: once there are at least <code>thresholdSubs</code> registered, each topic is
+	 * matched against the registry's segments in parallel on the pool.  Under that, it's one thread like any other engine.
+	 * Defaults to {@value ParallelScanEngine#DEFAULT_THRESHOLD} subs on the common pool.  Ignored by the other engines.
+	 */
+	public void setParallelMatching(int thresholdSubs, ForkJoinPool pool) {
+		if (thresholdSubs < 0) throw new IllegalArgumentException("Threshold can't be negative");
+		if (pool == null) throw new NullPointerException("Pool is null");
+		lock.writeLock().lock();
+		try {
+			parallelThreshold = thresholdSubs;
+			parallelPool = pool;
+			if (engine instanceof ParallelScanEngine) ((ParallelScanEngine)engine).configure(thresholdSubs, pool);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private MatchEngine buildEngine(EngineType type, Collection<Sub> subs) {
+		MatchEngine newEngine = MatchEngine.build(type, subs);
+		if (newEngine instanceof ParallelScanEngine) ((ParallelScanEngine)newEngine).configure(parallelThreshold, parallelPool);
+		return newEngine;
+	}
+
+	/** Get told whenever an adaptive dispatcher switches engines.  Switches are also logged at INFO level. */
+	public void setEngineSwitchListener(EngineSwitchListener engineSwitchListener) {
+		this.engineSwitchListener = engineSwitchListener;
+	}
 	
-	// possible threading issues around this
+	/**
+	 * <p>Starts timing (a sample of) every callback.  Any callback whose average time goes over the budget gets moved
+	 * off the context thread onto the executor, where it still gets its messages one at a time and in order.  Once it's
+	 * back under half the budget, it moves back inline.  Each move is logged at INFO level, and can be watched with
+	 * {@link #setCallbackMigrationListener(CallbackMigrationListener)}.</p>
+	 * <p>An offloaded callback that throws is unregistered for that sub, same as inline.  Can only be enabled once.</p>
+	 * @param latencyBudgetMicros how long a callback can take on average before it's offloaded
+	 * @param executor where offloaded callbacks run, shared by all of them
+	 */
+	public synchronized void enableCallbackOffload(long latencyBudgetMicros, Executor executor) {
+		if (latencyBudgetMicros <= 0) throw new IllegalArgumentException("Latency budget must be positive");
+		if (executor == null) throw new NullPointerException("Executor is null");
+		if (offloader != null) throw new IllegalStateException("Callback offload already enabled");
+		offloader = new CallbackOffloader(TimeUnit.MICROSECONDS.toNanos(latencyBudgetMicros), executor, this::unregisterCallback, this::expired);
+	}
+
+	/** A message that missed its deadline in an offloaded callback's lane, and whose policy says to hand it over */
+	private void expired(BytesXMLMessage message) {
+		try {
+			defaultMessageListener.onReceiveDefault(message);
+		} catch (Exception e) {
+			defaultMessageListener.onException(new JCSMPException("Uncaught exception from onReceiveDefault()", e));
+		}
+	}
+
+	/** Get told whenever a callback is offloaded, or moved back inline */
+	public void setCallbackMigrationListener(CallbackMigrationListener callbackMigrationListener) {
+		CallbackOffloader current = offloader;
+		if (current == null) throw new IllegalStateException("Callback offload is not enabled");
+		current.setMigrationListener(callbackMigrationListener);
+	}
+
+	/** Messages waiting in offloaded callbacks' lanes of that class, 0 if offload isn't enabled */
+	public int getQueuedCount(PriorityClass priority) {
+		CallbackOffloader current = offloader;
+		return current == null ? 0 : current.getQueuedCount(priority);
+	}
+
+	/** Messages that waited past their registration's deadline in that class, and so were dropped or went to the default listener */
+	public long getDeadlineMissCount(PriorityClass priority) {
+		CallbackOffloader current = offloader;
+		return current == null ? 0 : current.getDeadlineMissCount(priority);
+	}
+
+	/** @return the sampled cost of one callback, or null if offload isn't enabled or it hasn't been called yet */
+	public CallbackCost getCallbackCost(DispatchMessageListener callback) {
+		CallbackOffloader current = offloader;
+		return current == null ? null : current.getCost(callback);
+	}
+
+	/** @return the sampled cost of every callback that's been called, empty if offload isn't enabled */
+	public Map<DispatchMessageListener, CallbackCost> getCallbackCosts() {
+		CallbackOffloader current = offloader;
+		return current == null ? new HashMap<>() : current.getCosts();
+	}
+
+	/** How many callbacks are currently offloaded */
+	public int getOffloadedCallbackCount() {
+		CallbackOffloader current = offloader;
+		return current == null ? 0 : current.getOffloadedCount();
+	}
+
+	/** How many messages have been handed to offloaded callbacks so far */
+	public long getOffloadedMessageCount() {
+		CallbackOffloader current = offloader;
+		return current == null ? 0 : current.getOffloadedMessageCount();
+	}
+
+	/**
+	 * Same as {@link #enableDuplicateSuppression(int, long, ToLongFunction)}, keyed on the application message ID
+	 * @see DuplicateKeys#APPLICATION_MESSAGE_ID
+	 */
+	public void enableDuplicateSuppression(int capacity, long windowMillis) {
+		enableDuplicateSuppression(capacity, windowMillis, DuplicateKeys.APPLICATION_MESSAGE_ID);
+	}
+
+	/**
+	 * For redundant feeds (the same data from two sessions or regions into one dispatcher): drops a message before any
+	 * matching if one with the same key arrived within the window.  Remembers the last <code>capacity</code> keys, in fixed
+	 * memory, so a duplicate that arrives after that many other messages gets through.  Calling this again replaces the
+	 * window (and forgets everything in it).
+	 * @param keyExtractor boils each message down to a 64-bit key, 0 meaning "never a duplicate"; see {@link DuplicateKeys}
+	 */
+	public void enableDuplicateSuppression(int capacity, long windowMillis, ToLongFunction<BytesXMLMessage> keyExtractor) {
+		duplicateWindow = new DuplicateWindow(capacity, TimeUnit.MILLISECONDS.toNanos(windowMillis), keyExtractor);
+	}
+
+	public void disableDuplicateSuppression() {
+		duplicateWindow = null;
+	}
+
+	/** Messages dropped as duplicates */
+	public long getDuplicateCount() {
+		return duplicates.sum();
+	}
+
+	/**
+	 * For tuning subscriptions: keeps a constant-memory summary of which topics (and topic prefixes) are busiest, separately
+	 * for messages that matched a callback and ones that went to the default listener.  The unmatched side is the one to
+	 * look at for subscriptions that are too broad on the broker, or callbacks that are missing.  Costs one pass over the
+	 * topic and a short synchronized section per message.  Calling this again starts both sketches over.
+	 * @param topK how many topics (and prefixes, at each depth) to report
+	 * @param prefixDepth also track prefixes of the first 1 up to this many levels; 0 for none
+	 */
+	public void enableTrafficSketches(int topK, int prefixDepth) {
+		TrafficSketch matched = new TrafficSketch(topK, prefixDepth);  // both made first, so bad args change nothing
+		TrafficSketch unmatched = new TrafficSketch(topK, prefixDepth);
+		matchedTraffic = matched;
+		unmatchedTraffic = unmatched;
+	}
+
+	public void disableTrafficSketches() {
+		matchedTraffic = null;
+		unmatchedTraffic = null;
+	}
+
+	/** @return a snapshot of the busiest topics that matched a callback, or null if sketches aren't enabled */
+	public TrafficStats getMatchedTraffic() {
+		TrafficSketch sketch = matchedTraffic;
+		return sketch == null ? null : sketch.snapshot();
+	}
+
+	/** @return a snapshot of the busiest topics that went to the default listener, or null if sketches aren't enabled */
+	public TrafficStats getUnmatchedTraffic() {
+		TrafficSketch sketch = unmatchedTraffic;
+		return sketch == null ? null : sketch.snapshot();
+	}
+
+	/**
+	 * Tracks how stale messages are by the time each registration's callback starts: since the sender timestamp, since the
+	 * receive timestamp, and time spent queued in an offloaded callback's lane, each in a fixed-size lock-free histogram per
+	 * sub and callback.  Costs a clock read and a few atomic adds per callback call.  Calling this again starts over.
+	 */
+	public void enableLatencyTracking() {
+		latency = new LatencyTracker();
+	}
+
+	public void disableLatencyTracking() {
+		latency = null;
+	}
+
+	/**
+	 * One entry per registration that's been called since tracking was enabled (or last reset).
+	 * @param reset start every histogram over, so a periodic exporter gets just the last interval
+	 * @return null if latency tracking isn't enabled
+	 */
+	public List<EndToEndLatency> getLatencyStats(boolean reset) {
+		LatencyTracker current = latency;
+		return current == null ? null : current.snapshot(reset);
+	}
+
+	/**
+	 * <p>For messages that match lots of independent callbacks: once a message has at least <code>minListeners</code> to
+	 * call, they're all called at once on the executor, instead of one after the other on the context thread.  With
+	 * <code>join</code>, the context thread makes one of the calls itself and then waits for the rest, so the message is
+	 * done when <code>onReceive()</code> returns, as usual; without it, <code>onReceive()</code> returns straight away and
+	 * the calls finish on their own.  Either way, there's no ordering between messages any more, and a callback that's
+	 * matched through two subs in CALL_EACH mode can run at the same time as itself.</p>
+	 * <p>The calls are made outside the dispatcher's lock, so (un)registrations made from them take effect straight away.
+	 * A callback that throws is still told, and unregistered from that sub.  Fanned-out calls skip callback offload, they're
+	 * on the executor already.  Calling this again replaces the settings (and starts the latency over).</p>
+	 * @param minListeners fan out when a message has at least this many callbacks to call, at least 2
+	 * @param executor where the callbacks run; a pool with at least as many threads as the usual fan-out, or there's little to gain
+	 */
+	public void enableParallelFanOut(int minListeners, Executor executor, boolean join) {
+		if (minListeners < 2) throw new IllegalArgumentException("Need at least 2 listeners to fan out");
+		if (executor == null) throw new NullPointerException("Executor is null");
+		fanOut = new ParallelFanOut(minListeners, executor, join, this::unregisterCallback);
+	}
+
+	public void disableParallelFanOut() {
+		fanOut = null;
+	}
+
+	/**
+	 * How long fanned-out messages took, from the fan-out starting until the last of its callbacks returned.
+	 * @param reset start over, for interval stats
+	 * @return null if parallel fan-out isn't enabled
+	 */
+	public LatencySnapshot getFanOutLatency(boolean reset) {
+		ParallelFanOut current = fanOut;
+		return current == null ? null : current.getCompletionLatency(reset);
+	}
+
+	/** Messages that were fanned out in parallel, 0 if it isn't enabled */
+	public long getFanOutCount() {
+		ParallelFanOut current = fanOut;
+		return current == null ? 0 : current.getMessageCount();
+	}
+
+	/**
+	 * Request/reply fast path: the next message that arrives with this correlation ID goes straight to the handler, without
+	 * any topic matching (so not to any registered callbacks, or the default listener either).  One-shot: after the reply,
+	 * or once the timeout passes without one, the correlation ID is forgotten.  Call this <i>before</i> sending the request.
+	 * If the timeout passes, the handler's <code>onUncaughtException()</code> is called instead, on a worker thread.
+	 * @throws IllegalStateException if a reply with that correlation ID is already expected
+	 */
+	public void expectReply(String correlationId, long timeoutMillis, DispatchMessageListener handler) {
+		if (handler == null) throw new NullPointerException("Handler is null");
+		pendingReplies.expect(correlationId, timeoutMillis, handler);
+	}
+
+	/**
+	 * Same as {@link #expectReply(String, long, DispatchMessageListener)}, but completes a future instead, which fails with a
+	 * {@link java.util.concurrent.TimeoutException} if no reply arrives in time.  Cancelling the future stops waiting.
+	 */
+	public CompletableFuture<BytesXMLMessage> expectReply(String correlationId, long timeoutMillis) {
+		return pendingReplies.expect(correlationId, timeoutMillis);
+	}
+
+	/** @return true if a reply was still expected with that correlation ID */
+	public boolean cancelReply(String correlationId) {
+		return pendingReplies.cancel(correlationId);
+	}
+
+	/** Replies still expected */
+	public int getPendingReplyCount() {
+		return pendingReplies.size();
+	}
+
+	/** Messages that went the fast path, straight to whoever was waiting for them */
+	public long getReplyCount() {
+		return pendingReplies.getReplyCount();
+	}
+
+	/** Expected replies that never came */
+	public long getExpiredReplyCount() {
+		return pendingReplies.getExpiredCount();
+	}
+
+	/**
+	 * <p>Writes the registry (every sub, the IDs of its callbacks, and any registration's selector and delivery policy) to a versioned, checksummed binary file that
+	 * {@link #restoreSnapshot(Path, Function)} can load on the next startup.  With {@link EngineType#OFF_HEAP_TRIE} the
+	 * compiled index itself is written too, and restoring maps it straight back in instead of rebuilding it.</p>
+	 * <p>Batched, conflated and weak registrations are saved as such, under their own callback's ID, and restored the same
+	 * way; a weak one that's already been collected is left out.  Their executors can't be saved: see
+	 * {@link #restoreSnapshot(Path, Function, Executor)}.</p>
+	 * <p>Holds the read lock while writing, so (un)registrations wait for it, but messages keep flowing.</p>
+	 * @param listenerIds a stable ID for each registered callback (a {@link DispatchMessageListener}, or a
+	 * {@link BatchDispatchMessageListener} for a batched registration), the same one the restore will be able to resolve
+	 * @param includeHotTopics with {@link EngineType#TOPIC_CACHE}, also save the cached topics and their matches, to warm the cache on restore
+	 * @throws IllegalArgumentException if <code>listenerIds</code> returns null for any callback
+	 */
+	public void saveSnapshot(Path file, Function<Object, String> listenerIds, boolean includeHotTopics) throws IOException {
+		if (file == null) throw new NullPointerException("File is null");
+		if (listenerIds == null) throw new NullPointerException("Listener ID function is null");
+		lock.readLock().lock();
+		try {
+			RegistrySnapshot.write(file, callbacks, engine, listenerIds, this::selectorSource, this::registeredPolicy, includeHotTopics);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * <p>Loads a registry saved by {@link #saveSnapshot(Path, Function, boolean)} into this (empty) dispatcher.  Callbacks
+	 * are rebound by their saved IDs, with their selectors and delivery policies; any ID that resolves to null, or to the
+	 * wrong type of callback for how it was registered, is skipped (logged), as is any sub left with no callbacks.</p>
+	 * <p>If this dispatcher is {@link EngineType#OFF_HEAP_TRIE} and the snapshot has one, the saved index is copied
+	 * as-is out of the memory-mapped file.  Otherwise the current engine type is rebuilt from the subs, and a topic cache is
+	 * warmed with any hot topics that were saved.  The file is only read, so it can be read-only.</p>
+	 * @return how many (sub, callback) registrations were restored
+	 * @throws IOException if the file is unreadable, from a different format version, or fails its checksum
+	 * @throws IllegalStateException if any callbacks are already registered
+	 * @throws IllegalArgumentException if the snapshot has conflated registrations; see {@link #restoreSnapshot(Path, Function, Executor)}
+	 */
+	public int restoreSnapshot(Path file, Function<String, ?> listeners) throws IOException {
+		return restoreSnapshot(file, listeners, null);
+	}
+
+	/**
+	 * Same, with the executor for any conflated registrations.  Batched ones get the shared pool for their lingering
+	 * batches, whatever they were registered with.
+	 * @param listeners resolves each saved ID to its callback: a {@link BatchDispatchMessageListener} for a batched registration, else a {@link DispatchMessageListener}
+	 * @param conflationExecutor for conflated registrations, as in {@link #registerConflatedCallback(Sub, DispatchMessageListener, Executor)}; may be null if there aren't any
+	 * @throws IllegalArgumentException if the snapshot has conflated registrations and there's no executor for them
+	 */
+	public int restoreSnapshot(Path file, Function<String, ?> listeners, Executor conflationExecutor) throws IOException {
+		if (file == null) throw new NullPointerException("File is null");
+		if (listeners == null) throw new NullPointerException("Listener lookup function is null");
+		RegistrySnapshot snapshot = RegistrySnapshot.read(file);
+		if (conflationExecutor == null) {
+			for (RegistrySnapshot.Kind[] kinds : snapshot.kinds) {
+				if (Arrays.asList(kinds).contains(RegistrySnapshot.Kind.CONFLATED)) throw new IllegalArgumentException("Snapshot " + file + " has conflated registrations, need an executor for them");
+			}
+		}
+		lock.readLock().lock();
+		try {  // checked again under the write lock, but before making any wrappers
+			if (!callbacks.isEmpty()) throw new IllegalStateException("Can only restore a snapshot into an empty dispatcher");
+		} finally {
+			lock.readLock().unlock();
+		}
+		Map<String, Object> resolved = new HashMap<>();
+		Map<Sub, Set<DispatchMessageListener>> restored = new HashMap<>();
+		Map<Sub, Map<DispatchMessageListener, Selector>> restoredSelectors = new HashMap<>();
+		Map<Sub, Map<DispatchMessageListener, DeliveryPolicy>> restoredPolicies = new HashMap<>();
+		List<Sub> dropped = new ArrayList<>();
+		int registrations = 0;
+		for (int i=0; i<snapshot.subs.size(); i++) {
+			Set<DispatchMessageListener> set = new HashSet<>(4);
+			String[] ids = snapshot.listenerIds.get(i);
+			for (int j=0; j<ids.length; j++) {
+				Object target = resolved.computeIfAbsent(ids[j], listeners);
+				if (target == null) {
+					logger.warning("No callback for ID '" + ids[j] + "' in snapshot " + file + ", skipping it");
+					continue;
+				}
+				RegistrySnapshot.Kind kind = snapshot.kinds.get(i)[j];
+				DispatchMessageListener callback;
+				if (kind == RegistrySnapshot.Kind.BATCHED && target instanceof BatchDispatchMessageListener) {
+					callback = batcherFor((BatchDispatchMessageListener)target, snapshot.maxBatchSizes.get(i)[j], snapshot.lingerMillis.get(i)[j], null);
+				} else if (kind != RegistrySnapshot.Kind.BATCHED && target instanceof DispatchMessageListener) {
+					DispatchMessageListener plain = (DispatchMessageListener)target;
+					if (kind == RegistrySnapshot.Kind.CONFLATED) {
+						callback = conflaterFor(plain, conflationExecutor);
+					} else if (kind == RegistrySnapshot.Kind.WEAK) {
+						WeakCallback weak = weakFor(plain);
+						weak.subs.add(snapshot.subs.get(i));
+						callback = weak;
+					} else {
+						callback = plain;
+					}
+				} else {
+					logger.warning("Callback for ID '" + ids[j] + "' in snapshot " + file + " can't be registered " + kind + ", skipping it");
+					continue;
+				}
+				set.add(callback);
+				Selector selector = snapshot.selectors.get(i)[j];
+				if (selector != null) restoredSelectors.computeIfAbsent(snapshot.subs.get(i), s -> new HashMap<>(4)).put(callback, selector);
+				DeliveryPolicy policy = snapshot.policies.get(i)[j];
+				if (policy != null) restoredPolicies.computeIfAbsent(snapshot.subs.get(i), s -> new HashMap<>(4)).put(callback, policy);
+			}
+			if (set.isEmpty()) {
+				dropped.add(snapshot.subs.get(i));
+			} else {
+				restored.put(snapshot.subs.get(i), set);
+				registrations += set.size();
+			}
+		}
+		EngineRebuildEvent event = Jfr.AVAILABLE ? new EngineRebuildEvent() : null;
+		if (event != null) event.begin();
+		lock.writeLock().lock();
+		try {
+			if (!callbacks.isEmpty()) throw new IllegalStateException("Can only restore a snapshot into an empty dispatcher");
+			MatchEngine newEngine;
+			if (engine.type() == EngineType.OFF_HEAP_TRIE && snapshot.offHeapEngine != null) {
+				newEngine = snapshot.offHeapEngine;
+				for (Sub sub : dropped) newEngine.remove(sub);
+			} else {
+				newEngine = buildEngine(engine.type(), restored.keySet());
+				if (newEngine instanceof TopicCacheEngine) {
+					hot: for (Map.Entry<String, Sub[]> entry : snapshot.hotTopics.entrySet()) {
+						for (Sub sub : entry.getValue()) {
+							if (!restored.containsKey(sub)) continue hot;  // stale now, let it be looked up again
+						}
+						((TopicCacheEngine)newEngine).preload(entry.getKey(), entry.getValue());
+					}
+				}
+			}
+			callbacks = restored;
+			for (Set<DispatchMessageListener> set : restored.values()) {
+				for (DispatchMessageListener callback : set) registered(callback);
+			}
+			engine = newEngine;
+			for (Map.Entry<Sub, Map<DispatchMessageListener, Selector>> forSub : restoredSelectors.entrySet()) {
+				for (Map.Entry<DispatchMessageListener, Selector> entry : forSub.getValue().entrySet()) setSelector(forSub.getKey(), entry.getKey(), entry.getValue());
+			}
+			for (Map.Entry<Sub, Map<DispatchMessageListener, DeliveryPolicy>> forSub : restoredPolicies.entrySet()) {
+				for (Map.Entry<DispatchMessageListener, DeliveryPolicy> entry : forSub.getValue().entrySet()) setPolicy(forSub.getKey(), entry.getKey(), entry.getValue());
+			}
+			synchronized (engineSelector) {
+				for (Sub sub : restored.keySet()) engineSelector.subAdded(sub);
+			}
+			registryVersion++;
+			registrationVersion++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		engineRebuilt(event, "SNAPSHOT_RESTORE", engine.type(), engine.type(), restored.size(), true);
+		logger.info("Restored " + restored.size() + " subs (" + registrations + " registrations) from snapshot " + file);
+		return registrations;
+	}
+
+	/**
+	 * Adds a callback for a subscription.  Safe to call from any thread, including from inside a callback (in which case
+	 * it takes effect once the current message has been dispatched).
+	 */
 	public void registerCallback(Sub sub, DispatchMessageListener callback/* , boolean stillInvokeDefaulListener */) {
+		registerCallback(sub, callback, (Selector)null);
+	}
+
+	/**
+	 * Adds a callback for a subscription that only gets the matching messages the selector is TRUE for, e.g. just the
+	 * high-priority ones of a broad sub.  The selector's checked after the topic match, before the callback's called; a
+	 * message it rejects doesn't go to the default listener either (its topic did match).  Sub-expressions that are in
+	 * more than one registered selector are only worked out once per message.  In DEDUPE mode, a callback registered
+	 * for several matching subs gets the message once if any of those registrations' selectors let it through.
+	 * Registering the same callback for the same sub again replaces its selector; <code>null</code> removes it.
+	 */
+	public void registerCallback(Sub sub, DispatchMessageListener callback, Selector selector) {
+		registerCallback(sub, callback, selector, null);
+	}
+
+	/**
+	 * Same, with a {@link DeliveryPolicy} for when the callback's been offloaded: the priority class its lane is scheduled
+	 * in, and a deadline after which a message still waiting there is dropped or goes to the default listener.  Only
+	 * matters once {@link #enableCallbackOffload(long, Executor)} has moved the callback off the context thread.
+	 * Registering the same callback for the same sub again replaces its policy; <code>null</code> means
+	 * {@link DeliveryPolicy#DEFAULT}.
+	 * @param selector or null for every matching message
+	 */
+	public void registerCallback(Sub sub, DispatchMessageListener callback, Selector selector, DeliveryPolicy policy) {
 		if (sub == null) throw new NullPointerException("Sub is null");
 		if (callback == null) throw new NullPointerException("Callback is null");
-		// which should we use?  
-		lock.lock();
-		while (lock2.compareAndSet(false, true)) {  // almost busy wait
-			try {
-				Thread.sleep(1);
-			} catch (InterruptedException e) {
-				// ignore and continue
-			}
+		if (lock.getReadHoldCount() > 0) {  // called from a callback, can't upgrade the read lock to a write lock
+			scratch.get().deferred.add(() -> registerCallback(sub, callback, selector, policy));
+			return;
 		}
+		RegistryChangeEvent event = Jfr.AVAILABLE ? new RegistryChangeEvent() : null;
+		if (event != null) event.begin();  // before the lock, so a long wait for it shows up
+		boolean newSub;
+		lock.writeLock().lock();
 		// we are now locked and can modify the callbacks maps and sets if need be
 		try {
-			if (!callbacks.containsKey(sub)) {
-				callbacks.put(sub, new HashSet<>(4));
-			}
-			callbacks.get(sub).add(callback);
+			newSub = addCallback(sub, callback);
+			if (selector != null || !selectors.isEmpty()) setSelector(sub, callback, selector);
+			if (policy != null || !policies.isEmpty()) setPolicy(sub, callback, policy);
 		} finally {
-			lock.unlock();
-			lock2.set(false);
+			lock.writeLock().unlock();
 		}
+		registryChanged(event, "REGISTER", sub, callback, newSub);
 	}
 	
-	// possible threading issues around this
-	// the app on app thread will be adding and removing callbacks
-	// the API on context thread might be walking callback datastructure during onReceive()
+	/**
+	 * Removes a callback for a subscription.  Safe to call from any thread, including from inside a callback (in which case
+	 * it takes effect once the current message has been dispatched).
+	 * @return true if the callback was registered for that subscription
+	 */
 	public boolean unregisterCallback(Sub sub, DispatchMessageListener callback) {
 		if (sub == null) throw new NullPointerException("Sub is null");
 		if (callback == null) throw new NullPointerException("Callback is null");
-		lock.lock();
-		while (lock2.compareAndSet(false, true)) {  // almost busy wait
-			try {
-				Thread.sleep(1);
-			} catch (InterruptedException e) {
-				// ignore and continue
+		if (lock.getReadHoldCount() > 0) {  // called from a callback, we can still answer the question under the read lock
+			Set<DispatchMessageListener> set = callbacks.get(sub);
+			scratch.get().deferred.add(() -> unregisterCallback(sub, callback));
+			return set != null && set.contains(callback);
+		}
+		RegistryChangeEvent event = Jfr.AVAILABLE ? new RegistryChangeEvent() : null;
+		if (event != null) event.begin();
+		boolean existed;
+		boolean subGone;
+		lock.writeLock().lock();
+		try {
+			existed = removeCallback(sub, callback);
+			subGone = existed && !callbacks.containsKey(sub);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		registryChanged(event, "UNREGISTER", sub, callback, subGone);
+		return existed;
+	}
+
+	/** JFR, after the fact: cheap enough to always call, nothing gets filled in unless a recording wants it */
+	private static void registryChanged(RegistryChangeEvent event, String action, Sub sub, DispatchMessageListener callback, boolean indexChanged) {
+		if (event != null && event.shouldCommit()) {
+			event.action = action;
+			event.sub = sub == null ? null : sub.toString();
+			event.callbackClass = callback.getClass();
+			event.indexChanged = indexChanged;
+			event.commit();
+		}
+	}
+
+	/**
+	 * Adds a batch callback for a subscription: matching messages are accumulated and delivered as a list.  Registering the same
+	 * batch callback for more subs shares the one accumulator (and the batch size and linger time it was first registered with).
+	 * @param maxBatchSize deliver as soon as a batch has this many messages
+	 * @param lingerMillis deliver a partial batch once its oldest message has waited this long; 0 means only on size or {@link #close()}
+	 * @return the accumulator, for its stats or to {@link BatchingMessageListener#flush()} it
+	 */
+	public BatchingMessageListener registerCallback(Sub sub, BatchDispatchMessageListener callback, int maxBatchSize, long lingerMillis) {
+		return registerCallback(sub, callback, maxBatchSize, lingerMillis, null);
+	}
+
+	/**
+	 * Same, but lingering batches are delivered on your executor rather than the shared pool.
+	 * @param lingerExecutor null for the shared pool
+	 */
+	public BatchingMessageListener registerCallback(Sub sub, BatchDispatchMessageListener callback, int maxBatchSize, long lingerMillis, Executor lingerExecutor) {
+		if (sub == null) throw new NullPointerException("Sub is null");
+		if (callback == null) throw new NullPointerException("Callback is null");
+		BatchingMessageListener batcher = batcherFor(callback, maxBatchSize, lingerMillis, lingerExecutor);
+		registerCallback(sub, batcher);
+		return batcher;
+	}
+
+	/** The batch callback's one accumulator, made the first time */
+	private BatchingMessageListener batcherFor(BatchDispatchMessageListener callback, int maxBatchSize, long lingerMillis, Executor lingerExecutor) {
+		return batchers.computeIfAbsent(callback, cb -> {
+			BatchingMessageListener newBatcher = new BatchingMessageListener(cb, maxBatchSize, lingerMillis, lingerExecutor);
+			newBatcher.setOnFailure(() -> {  // threw, so unregister it from everywhere like any other callback
+				unregisterAll(newBatcher);
+				batchers.remove(cb, newBatcher);
+				newBatcher.close();
+			});
+			return newBatcher;
+		});
+	}
+
+	/**
+	 * Removes a batch callback for a subscription.  If that was its last subscription, any partial batch is delivered.
+	 * @return true if the callback was registered for that subscription
+	 */
+	public boolean unregisterCallback(Sub sub, BatchDispatchMessageListener callback) {
+		if (sub == null) throw new NullPointerException("Sub is null");
+		if (callback == null) throw new NullPointerException("Callback is null");
+		BatchingMessageListener batcher = batchers.get(callback);
+		if (batcher == null) return false;
+		boolean existed = unregisterCallback(sub, batcher);
+		if (existed && !isRegistered(batcher) && batchers.remove(callback, batcher)) {
+			batcher.close();
+		}
+		return existed;
+	}
+
+	/**
+	 * Adds a callback for a subscription with last-value conflation: the callback runs on the executor, and while it's busy,
+	 * only the latest message per topic is kept for it.  Registering the same callback conflated for more subs shares the one
+	 * set of slots (and the executor it was first registered with).
+	 * @return the conflater, for its stats
+	 */
+	public ConflatingMessageListener registerConflatedCallback(Sub sub, DispatchMessageListener callback, Executor executor) {
+		if (sub == null) throw new NullPointerException("Sub is null");
+		if (callback == null) throw new NullPointerException("Callback is null");
+		ConflatingMessageListener conflater = conflaterFor(callback, executor);
+		registerCallback(sub, conflater);
+		return conflater;
+	}
+
+	/** The callback's one conflater, made the first time */
+	private ConflatingMessageListener conflaterFor(DispatchMessageListener callback, Executor executor) {
+		return conflaters.computeIfAbsent(callback, cb -> {
+			ConflatingMessageListener newConflater = new ConflatingMessageListener(cb, executor);
+			newConflater.setOnFailure(() -> {
+				unregisterAll(newConflater);
+				conflaters.remove(cb, newConflater);
+			});
+			return newConflater;
+		});
+	}
+
+	/** @return true if the callback was registered with conflation for that subscription */
+	public boolean unregisterConflatedCallback(Sub sub, DispatchMessageListener callback) {
+		if (sub == null) throw new NullPointerException("Sub is null");
+		if (callback == null) throw new NullPointerException("Callback is null");
+		ConflatingMessageListener conflater = conflaters.get(callback);
+		if (conflater == null) return false;
+		boolean existed = unregisterCallback(sub, conflater);
+		if (existed && !isRegistered(conflater)) {
+			conflaters.remove(callback, conflater);  // anything already pending still gets delivered
+		}
+		return existed;
+	}
+
+	/**
+	 * Adds a callback for a subscription without the dispatcher holding on to it: once nothing else references the
+	 * callback, it's garbage collected, and shortly after that pruned from every sub it was registered for, in one batch on
+	 * a worker thread.  Until then it just doesn't get called.  For callbacks whose owner might forget to unregister them,
+	 * e.g. per-session UI listeners.  Registering the same callback weakly for more subs shares the one wrapper.
+	 */
+	public void registerWeakCallback(Sub sub, DispatchMessageListener callback) {
+		if (sub == null) throw new NullPointerException("Sub is null");
+		if (callback == null) throw new NullPointerException("Callback is null");
+		WeakCallback weak = weakFor(callback);
+		weak.subs.add(sub);
+		registerCallback(sub, weak);
+	}
+
+	/** The callback's one weak wrapper, made the first time (along with the prune timer, if this is the first ever) */
+	private WeakCallback weakFor(DispatchMessageListener callback) {
+		synchronized (weakCallbacks) {
+			WeakCallback weak = weakCallbacks.computeIfAbsent(callback, cb -> new WeakCallback(cb, collected));
+			if (pruneTimer == null) pruneTimer = PruneTimer.start(this);
+			return weak;
+		}
+	}
+
+	/** @return true if the callback was registered weakly for that subscription */
+	public boolean unregisterWeakCallback(Sub sub, DispatchMessageListener callback) {
+		if (sub == null) throw new NullPointerException("Sub is null");
+		if (callback == null) throw new NullPointerException("Callback is null");
+		WeakCallback weak = weakCallbacks.get(callback);
+		if (weak == null) return false;
+		boolean existed = unregisterCallback(sub, weak);
+		if (existed) weak.subs.remove(sub);
+		if (existed && !isRegistered(weak)) weakCallbacks.remove(callback, weak);
+		return existed;
+	}
+
+	/**
+	 * The fixed-delay job that looks for collected weak callbacks.  It only weakly holds the dispatcher, so a dispatcher
+	 * nobody closed can still be collected; the job cancels itself once it is.
+	 */
+	private static final class PruneTimer implements Runnable {
+		private final WeakReference<MessageListenerWithTopicDispatch> dispatcher;
+		private volatile ScheduledFuture<?> future = null;
+
+		private PruneTimer(MessageListenerWithTopicDispatch dispatcher) {
+			this.dispatcher = new WeakReference<>(dispatcher);
+		}
+
+		static ScheduledFuture<?> start(MessageListenerWithTopicDispatch dispatcher) {
+			PruneTimer timer = new PruneTimer(dispatcher);
+			timer.future = DispatchTimers.get().scheduleWithFixedDelay(timer, WEAK_PRUNE_MILLIS, WEAK_PRUNE_MILLIS, TimeUnit.MILLISECONDS);
+			return timer.future;
+		}
+
+		/** On the timer thread, so only polls the queue; the removals wait for the write lock, so they go to a worker */
+		@Override
+		public void run() {
+			MessageListenerWithTopicDispatch current = dispatcher.get();
+			if (current == null) {
+				ScheduledFuture<?> f = future;
+				if (f != null) f.cancel(false);
+				return;
 			}
+			List<WeakCallback> dead = current.collectedSinceLastTime();
+			if (dead.isEmpty()) return;
+			DispatchTimers.workers().execute(() -> current.prune(dead));
+		}
+	}
+
+	private List<WeakCallback> collectedSinceLastTime() {
+		List<WeakCallback> dead = new ArrayList<>();
+		Reference<? extends DispatchMessageListener> ref;
+		while ((ref = collected.poll()) != null) {
+			dead.add((WeakCallback)ref);
 		}
+		return dead;
+	}
+
+	/** Everything collected since last time, out of the registry under one write lock, on the calling thread */
+	void pruneCollected() {
+		prune(collectedSinceLastTime());
+	}
+
+	/** Only visits the subs each dead one was registered for */
+	private void prune(List<WeakCallback> dead) {
+		if (dead.isEmpty()) return;
+		lock.writeLock().lock();
+		try {
+			for (WeakCallback weak : dead) {
+				for (Sub sub : weak.subs) removeCallback(sub, weak);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		pruned.add(dead.size());
+		logger.fine("Pruned " + dead.size() + " garbage collected weak callbacks");
+	}
+
+	/** Weakly registered callbacks that were garbage collected and taken out of the registry */
+	public long getPrunedCallbackCount() {
+		return pruned.sum();
+	}
+
+	/** Delivers any partial batches right now, on the calling thread */
+	public void flushBatches() {
+		for (BatchingMessageListener batcher : batchers.values()) {
+			batcher.flush();
+		}
+	}
+
+	/**
+	 * For a clean shutdown: call after the consumer/flow has been stopped.  Delivers any partial batches and stops their timers.
+	 * The dispatcher can still be used after this, but batch callbacks will get every message in a batch of one.
+	 */
+	@Override
+	public void close() {
+		for (BatchingMessageListener batcher : batchers.values()) {
+			batcher.close();
+		}
+		synchronized (weakCallbacks) {
+			if (pruneTimer != null) pruneTimer.cancel(false);
+			pruneTimer = null;
+		}
+	}
+
+	private boolean isRegistered(DispatchMessageListener callback) {
+		lock.readLock().lock();
+		try {
+			return isRegisteredLocked(callback);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Must hold the read or write lock */
+	private boolean isRegisteredLocked(DispatchMessageListener callback) {
+		return registrationCounts.containsKey(callback);
+	}
+
+	/** Must hold the write lock */
+	private void registered(DispatchMessageListener callback) {
+		registrationCounts.merge(callback, 1, Integer::sum);
+	}
+
+	/** Must hold the write lock */
+	private void unregistered(DispatchMessageListener callback) {
+		if (registrationCounts.computeIfPresent(callback, (cb, n) -> n == 1 ? null : n - 1) == null) {
+			Consumer<DispatchMessageListener> listener = lastUnregistered;
+			if (listener != null) listener.accept(callback);
+		}
+	}
+
+	/**
+	 * For a wrapper that keeps per-callback state, to drop it once the callback has no registrations left, however it got
+	 * there: unregistered, thrown and unregistered by us, or reloaded away.  Called under the write lock, so keep it quick.
+	 */
+	void setLastUnregisteredListener(Consumer<DispatchMessageListener> listener) {
+		this.lastUnregistered = listener;
+	}
+
+	/** Removes a callback from every sub it's registered for */
+	void unregisterAll(DispatchMessageListener callback) {
+		if (lock.getReadHoldCount() > 0) {  // called from a callback
+			scratch.get().deferred.add(() -> unregisterAll(callback));
+			return;
+		}
+		RegistryChangeEvent event = Jfr.AVAILABLE ? new RegistryChangeEvent() : null;
+		if (event != null) event.begin();
+		int subs;
+		lock.writeLock().lock();
+		try {
+			subs = callbacks.size();
+			for (Sub sub : new ArrayList<>(callbacks.keySet())) {
+				removeCallback(sub, callback);
+			}
+			subs -= callbacks.size();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		registryChanged(event, "UNREGISTER_ALL", null, callback, subs > 0);
+	}
+
+	/** The registered subs that anything published with this template could match, e.g. to check the routing at startup */
+	public List<Sub> getMatchingSubs(TopicTemplate template) {
+		lock.readLock().lock();
+		try {
+			return template.matchingSubs(callbacks.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Every sub each of these callbacks is registered for, e.g. for a {@link RoutingTable} to diff against
+	 * @return a copy, keyed by sub, with just those of the given callbacks that are registered for it
+	 */
+	Map<Sub, Set<DispatchMessageListener>> getRegistrations(Collection<? extends DispatchMessageListener> of) {
+		Set<DispatchMessageListener> wanted = new HashSet<>(of);
+		Map<Sub, Set<DispatchMessageListener>> found = new HashMap<>();
+		lock.readLock().lock();
 		try {
-			if (!callbacks.containsKey(sub)) return false;
-			boolean existed = callbacks.get(sub).remove(callback);
-			if (existed) {
-				if (callbacks.get(sub).isEmpty()) {
-					callbacks.remove(sub);
+			for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : callbacks.entrySet()) {
+				for (DispatchMessageListener callback : entry.getValue()) {
+					if (wanted.contains(callback)) found.computeIfAbsent(entry.getKey(), k -> new HashSet<>(4)).add(callback);
 				}
 			}
-			return existed;
 		} finally {
-			lock.unlock();
-			lock2.set(false);
+			lock.readLock().unlock();
 		}
+		return found;
+	}
+
+	/**
+	 * <p>Applies a whole batch of (un)registrations as one change: a message either sees all of it or none of it.  A batch
+	 * that touches only a few of the subs (at most 1/{@link #REBUILD_DIVISOR} of them) is just applied one by one under
+	 * the write lock, engine and all, so it costs the size of the diff rather than the size of the registry.</p>
+	 * <p>A bigger one is cheaper to build from scratch: the new registry (and, if any subs came or went, a new matching
+	 * engine) is built on the calling thread while messages keep flowing, then swapped in under the write lock, which is
+	 * only held for the swap itself.  If something else changed the registry in the meantime, it starts over; after a few
+	 * goes it gives up on that and just applies the changes under the write lock.  A new engine starts out cold, so a
+	 * {@link EngineType#TOPIC_CACHE} has to warm up again.</p>
+	 * @param removals applied first
+	 */
+	void applyChanges(Map<Sub, Set<DispatchMessageListener>> removals, Map<Sub, Set<DispatchMessageListener>> additions) {
+		if (lock.getReadHoldCount() > 0) throw new IllegalStateException("Can't apply a batch of changes from inside a callback");
+		lock.writeLock().lock();
+		try {
+			if ((long)(removals.size() + additions.size()) * REBUILD_DIVISOR <= callbacks.size()) {
+				applyInPlace(removals, additions);
+				return;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		EngineRebuildEvent event = Jfr.AVAILABLE ? new EngineRebuildEvent() : null;
+		if (event != null) event.begin();
+		for (int attempt=0; attempt<3; attempt++) {
+			Map<Sub, Set<DispatchMessageListener>> next = new HashMap<>();
+			MatchEngine current;
+			int version;
+			lock.readLock().lock();
+			try {
+				for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : callbacks.entrySet()) {
+					next.put(entry.getKey(), new HashSet<>(entry.getValue()));
+				}
+				current = engine;
+				version = registrationVersion;
+			} finally {
+				lock.readLock().unlock();
+			}
+			Set<Sub> before = new HashSet<>(next.keySet());
+			List<DispatchMessageListener> gone = new ArrayList<>();  // one per registration that really changed, for the counts
+			List<DispatchMessageListener> came = new ArrayList<>();
+			for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : removals.entrySet()) {
+				Set<DispatchMessageListener> set = next.get(entry.getKey());
+				if (set == null) continue;
+				for (DispatchMessageListener callback : entry.getValue()) {
+					if (set.remove(callback)) gone.add(callback);
+				}
+				if (set.isEmpty()) next.remove(entry.getKey());
+			}
+			for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : additions.entrySet()) {
+				if (entry.getValue().isEmpty()) continue;
+				Set<DispatchMessageListener> set = next.computeIfAbsent(entry.getKey(), k -> new HashSet<>(4));
+				for (DispatchMessageListener callback : entry.getValue()) {
+					if (set.add(callback)) came.add(callback);
+				}
+			}
+			List<Sub> added = new ArrayList<>();
+			for (Sub sub : next.keySet()) {
+				if (!before.remove(sub)) added.add(sub);
+			}
+			Set<Sub> removed = before;  // whatever's left over
+			boolean rebuild = !added.isEmpty() || !removed.isEmpty();
+			MatchEngine newEngine = rebuild ? buildEngine(current.type(), next.keySet()) : current;
+			lock.writeLock().lock();
+			try {
+				if (version != registrationVersion || current != engine) continue;  // lost the race, go again
+				callbacks = next;
+				for (DispatchMessageListener callback : gone) unregistered(callback);
+				for (DispatchMessageListener callback : came) registered(callback);
+				engine = newEngine;
+				synchronized (engineSelector) {
+					for (Sub sub : removed) engineSelector.subRemoved(sub);
+					for (Sub sub : added) engineSelector.subAdded(sub);
+				}
+				if (rebuild) registryVersion++;
+				registrationVersion++;
+				forgetUnregistered(removals);
+			} finally {
+				lock.writeLock().unlock();
+			}
+			if (rebuild) engineRebuilt(event, "BATCH_CHANGE", current.type(), newEngine.type(), next.size(), true);
+			return;
+		}
+		logger.fine("Registry kept changing underneath a batch of changes, applying it under the write lock");
+		lock.writeLock().lock();
+		try {
+			applyInPlace(removals, additions);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Must hold the write lock */
+	private void applyInPlace(Map<Sub, Set<DispatchMessageListener>> removals, Map<Sub, Set<DispatchMessageListener>> additions) {
+		for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : removals.entrySet()) {
+			for (DispatchMessageListener callback : entry.getValue()) removeCallback(entry.getKey(), callback);
+		}
+		for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : additions.entrySet()) {
+			for (DispatchMessageListener callback : entry.getValue()) addCallback(entry.getKey(), callback);
+		}
+	}
+
+	/** Must hold the write lock */
+	private void forgetUnregistered(Map<Sub, Set<DispatchMessageListener>> removals) {
+		CallbackOffloader current = offloader;
+		LatencyTracker currentLatency = latency;
+		for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : removals.entrySet()) {
+			Set<DispatchMessageListener> stillThere = callbacks.get(entry.getKey());
+			for (DispatchMessageListener callback : entry.getValue()) {
+				boolean gone = stillThere == null || !stillThere.contains(callback);
+				if (!selectors.isEmpty() && gone) setSelector(entry.getKey(), callback, null);
+				if (!policies.isEmpty() && gone) setPolicy(entry.getKey(), callback, null);
+				if (currentLatency != null && gone) currentLatency.forget(entry.getKey(), callback);
+				if (current != null && !isRegisteredLocked(callback)) current.forget(callback);
+			}
+		}
+	}
+
+	/** Must hold the write lock.  Null removes the registration's selector, if it had one */
+	private void setSelector(Sub sub, DispatchMessageListener callback, Selector selector) {
+		Map<DispatchMessageListener, SelectorExpr> forSub = selectors.get(sub);
+		SelectorExpr old = forSub == null ? null : forSub.remove(callback);
+		Map<DispatchMessageListener, Selector> sources = selectorSources.get(sub);
+		if (sources != null) sources.remove(callback);
+		if (selector != null) {
+			if (forSub == null) {
+				forSub = new HashMap<>(4);
+				selectors.put(sub, forSub);
+				sources = new HashMap<>(4);
+				selectorSources.put(sub, sources);
+			}
+			forSub.put(callback, selectorInterner.intern(selector.root));
+			sources.put(callback, selector);
+		} else if (forSub != null && forSub.isEmpty()) {
+			selectors.remove(sub);
+			selectorSources.remove(sub);
+		}
+		if (old != null) selectorInterner.release(old);  // after the new one's interned, so anything they share keeps its slot
+	}
+
+	/** Must hold the write lock.  Null (or the default) goes back to the default */
+	private void setPolicy(Sub sub, DispatchMessageListener callback, DeliveryPolicy policy) {
+		Map<DispatchMessageListener, DeliveryPolicy> forSub = policies.get(sub);
+		if (policy != null && policy != DeliveryPolicy.DEFAULT) {
+			if (forSub == null) {
+				forSub = new HashMap<>(4);
+				policies.put(sub, forSub);
+			}
+			forSub.put(callback, policy);
+		} else if (forSub != null) {
+			forSub.remove(callback);
+			if (forSub.isEmpty()) policies.remove(sub);
+		}
+	}
+
+	/** Must hold the read lock.  Null if the registration has the default policy */
+	private DeliveryPolicy registeredPolicy(Sub sub, DispatchMessageListener callback) {
+		Map<DispatchMessageListener, DeliveryPolicy> forSub = policies.get(sub);
+		return forSub == null ? null : forSub.get(callback);
+	}
+
+	/** Must hold the read lock */
+	private DeliveryPolicy policy(Sub sub, DispatchMessageListener callback) {
+		if (policies.isEmpty()) return DeliveryPolicy.DEFAULT;
+		DeliveryPolicy policy = registeredPolicy(sub, callback);
+		return policy == null ? DeliveryPolicy.DEFAULT : policy;
+	}
+
+	/** Must hold the read lock */
+	private Selector selectorSource(Sub sub, DispatchMessageListener callback) {
+		Map<DispatchMessageListener, Selector> sources = selectorSources.get(sub);
+		return sources == null ? null : sources.get(callback);
+	}
+
+	/** Must hold the read lock.  True if the registration has no selector, or one that's TRUE for this message */
+	private boolean selected(Sub sub, DispatchMessageListener callback, BytesXMLMessage message, Scratch vars) {
+		Map<DispatchMessageListener, SelectorExpr> forSub = selectors.get(sub);
+		SelectorExpr selector = forSub == null ? null : forSub.get(callback);
+		if (selector == null) return true;
+		if (vars.selectorMessage != message) {  // the first selector for this message
+			if (vars.selectorEvaluation == null) vars.selectorEvaluation = new SelectorEvaluation(selectorInterner.slots());
+			vars.selectorEvaluation.reset(message, selectorInterner.slots());
+			vars.selectorMessage = message;
+		}
+		if (selector.eval(vars.selectorEvaluation) == Boolean.TRUE) return true;
+		selectorRejects.increment();
+		return false;
+	}
+
+	/** Matching messages that a registration's selector kept from its callback */
+	public long getSelectorRejectedCount() {
+		return selectorRejects.sum();
+	}
+
+	/** Distinct selector sub-expressions across all the registered selectors, each evaluated at most once per message */
+	int getSelectorNodeCount() {
+		lock.readLock().lock();
+		try {
+			return selectorInterner.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Must hold the write lock
+	 * @return true if the sub itself was new
+	 */
+	private boolean addCallback(Sub sub, DispatchMessageListener callback) {
+		boolean newSub = false;
+		if (!callbacks.containsKey(sub)) {
+			callbacks.put(sub, new HashSet<>(4));
+			subAdded(sub);
+			newSub = true;
+		}
+		if (callbacks.get(sub).add(callback)) {
+			registrationVersion++;
+			registered(callback);
+		}
+		return newSub;
+	}
+
+	/** Must hold the write lock */
+	private boolean removeCallback(Sub sub, DispatchMessageListener callback) {
+		if (!callbacks.containsKey(sub)) return false;
+		boolean existed = callbacks.get(sub).remove(callback);
+		if (existed) {
+			registrationVersion++;
+			unregistered(callback);
+			if (callbacks.get(sub).isEmpty()) {
+				callbacks.remove(sub);
+				subRemoved(sub);
+			}
+			if (!selectors.isEmpty()) setSelector(sub, callback, null);
+			if (!policies.isEmpty()) setPolicy(sub, callback, null);
+			LatencyTracker currentLatency = latency;
+			if (currentLatency != null) currentLatency.forget(sub, callback);
+			CallbackOffloader current = offloader;
+			if (current != null && !isRegisteredLocked(callback)) current.forget(callback);
+		}
+		return existed;
+	}
+
+	/** Must hold the write lock */
+	private void subAdded(Sub sub) {
+		engine.add(sub);
+		synchronized (engineSelector) {
+			engineSelector.subAdded(sub);
+		}
+		registryVersion++;
+	}
+
+	/** Must hold the write lock */
+	private void subRemoved(Sub sub) {
+		engine.remove(sub);
+		synchronized (engineSelector) {
+			engineSelector.subRemoved(sub);
+		}
+		registryVersion++;
 	}
 	
 /*	@Override
@@ -131,58 +1277,289 @@ public final class MessageListenerWithTopicDispatch implements XMLMessageListene
 
     @Override
     public void onReceive(BytesXMLMessage message) {
+    	onReceive(message, null);
+    }
+
+    /** @param tracker if not null, gets told about every callback the message is handed to, and when each is done with it */
+    void onReceive(BytesXMLMessage message, MessageTracker tracker) {
+    	DuplicateWindow duplicateWindow = this.duplicateWindow;
+    	if (duplicateWindow != null && duplicateWindow.isDuplicate(message)) {  // already had this one from the other feed
+    		duplicates.increment();
+    		return;
+    	}
+    	if (!pendingReplies.isEmpty() && pendingReplies.deliver(message, tracker)) return;  // a reply someone's waiting for, no matching needed
     	String topic = message.getDestination().getName();
-    	// reset my vars on each new message
-		calledCallbacks.clear();
-		onReceiveMatch = false;
-		onReceiveException = false;
-		lock.lock();
-		while (lock2.compareAndSet(false, true)) { } // busy wait
-		try {
-			for (Sub sub : callbacks.keySet()) {
-				if (sub.matches(topic)) {  // topic match!
-					onReceiveMatch = true;
-					for (Iterator<DispatchMessageListener> it = callbacks.get(sub).iterator(); it.hasNext(); ) {
-						DispatchMessageListener callback = it.next();
-						if (!calledCallbacks.contains(callback)) {  // haven't called this guy yet
-							if (mode == Mode.DEDUPE) calledCallbacks.add(callback);  // only if we're in de-dupe mode, otherwise call each one we find
-							try {
-								callback.onReceive(message);
-							} catch (Exception e) {
-								onReceiveException = true;
-								it.remove();
-								try {
-//									callback.onUncaughtException("Uncaught exception from custom callback for sub " + sub + ", unregistering", e);
-									callback.onUncaughtException(new TopicDispatchException("Uncaught exception from custom callback for sub " + sub + ", unregistering", e));
-								} catch (Exception e2) {
-									// ignore, we're unregistering
-								}
+    	Scratch vars = scratch.get();
+    	if (vars.inUse) vars = new Scratch();  // a callback called onReceive() on this same thread, don't trample the outer message's state
+    	else vars.inUse = true;
+		EngineType switchTo = null;
+		MessageContext context = null;  // only made if a context listener (or an async one, could be wrapping one) matches, then shared by all of them
+		// not if this is nested in a callback: the workers could need the write lock while this thread still has the read lock
+		ParallelFanOut fanOut = lock.getReadHoldCount() == 0 ? this.fanOut : null;
+		DispatchEvent dispatchEvent = Jfr.AVAILABLE ? new DispatchEvent() : null;  // JFR: when no recording wants it (or there's no JFR, see Jfr), this all compiles away to nothing
+		if (dispatchEvent != null) dispatchEvent.begin();
+		try {
+			lock.readLock().lock();
+			try {
+				if (dispatchEvent != null && dispatchEvent.isEnabled()) {
+					long matchStart = System.nanoTime();
+					engine.match(topic, vars.matchedSubs);
+					dispatchEvent.matchDuration = System.nanoTime() - matchStart;
+					dispatchEvent.engine = engine.type().name();
+				} else {
+					engine.match(topic, vars.matchedSubs);
+				}
+				for (int i=0; i<vars.matchedSubs.size(); i++) {  // topic match!
+					Sub sub = vars.matchedSubs.get(i);
+					for (DispatchMessageListener callback : callbacks.get(sub)) {
+						if (!vars.calledCallbacks.contains(callback)) {  // haven't called this guy yet
+							if (!selectors.isEmpty() && !selected(sub, callback, message, vars)) continue;  // its selector says no
+							if (mode == Mode.DEDUPE) vars.calledCallbacks.add(callback);  // only if we're in de-dupe mode, otherwise call each one we find
+							if (context == null && (callback instanceof ContextDispatchMessageListener || callback instanceof AsyncDispatchMessageListener)) context = new MessageContext(message);
+							if (fanOut != null) {  // just collect them until we know how many there are
+								vars.fanOutSubs.add(sub);
+								vars.fanOutCallbacks.add(callback);
+								continue;
 							}
+							call(sub, callback, message, topic, context, tracker, vars);
 						}
 					}
 				}
-			}
-			if (onReceiveException) {
-				// check if any subs have no callbacks left due to unregistering...
-				for (Iterator<Map.Entry<Sub, Set<DispatchMessageListener>>> it = callbacks.entrySet().iterator(); it.hasNext(); ) {
-					if (it.next().getValue().isEmpty()) {
-						it.remove();
+				if (fanOut != null) {
+					if (vars.fanOutCallbacks.size() < fanOut.minListeners) {  // not worth it, same as usual
+						for (int i=0; i<vars.fanOutCallbacks.size(); i++) {
+							call(vars.fanOutSubs.get(i), vars.fanOutCallbacks.get(i), message, topic, context, tracker, vars);
+						}
+						vars.fanOutCallbacks.clear();
+					} else {
+						LatencyTracker latency = this.latency;
+						if (latency != null) {  // looked up now, while we've got the lock
+							for (int i=0; i<vars.fanOutCallbacks.size(); i++) vars.fanOutRecorders.add(latency.recorder(vars.fanOutSubs.get(i), vars.fanOutCallbacks.get(i)));
+						}
+					}
+				}
+				if (adaptive) {  // lock-free, the monitor's only for closing out a window
+					engineSelector.recordTopic(topic);
+					if (++vars.adaptiveMessages == AdaptiveEngineSelector.THREAD_BATCH) {
+						vars.adaptiveMessages = 0;
+						if (engineSelector.messagesSeen(AdaptiveEngineSelector.THREAD_BATCH)) {
+							synchronized (engineSelector) {
+								switchTo = engineSelector.evaluate(engine);
+							}
+						}
+					}
+				}
+				if (vars.matchedSubs.isEmpty()) {  // didn't match any custom callbacks
+					try {
+						defaultMessageListener.onReceiveDefault(message);
+					} catch (Exception e) {
+						defaultMessageListener.onException(new JCSMPException("Uncaught exception from onReceiveDefault()", e));
 					}
+					if (tracker != null) tracker.defaulted();
 				}
+			} finally {
+				lock.readLock().unlock();
 			}
-			if (!onReceiveMatch) {  // didn't match any custom callbacks
-				try {
-					defaultMessageListener.onReceiveDefault(message);
-				} catch (Exception e) {
-					defaultMessageListener.onException(new JCSMPException("Uncaught exception from onReceiveDefault()", e));
+			if (fanOut != null && !vars.fanOutCallbacks.isEmpty()) {
+				fanOut.fanOut(topic, vars.fanOutSubs, vars.fanOutCallbacks, vars.fanOutRecorders.isEmpty() ? null : vars.fanOutRecorders, message, context, tracker);
+			}
+			TrafficSketch sketch = vars.matchedSubs.isEmpty() ? unmatchedTraffic : matchedTraffic;
+			if (sketch != null) sketch.record(topic);
+			if (dispatchEvent != null && dispatchEvent.shouldCommit()) {  // only the slow ones, unless the recording lowered the threshold
+				dispatchEvent.topic = topic;
+				dispatchEvent.matchCount = vars.matchedSubs.size();
+				dispatchEvent.defaulted = vars.matchedSubs.isEmpty();
+				dispatchEvent.commit();
+			}
+			if (!vars.failedCallbacks.isEmpty()) {  // unregister the ones that threw
+				if (lock.getReadHoldCount() > 0) {  // nested in an outer onReceive() on this thread, can't upgrade to the write lock
+					List<Sub> subs = new ArrayList<>(vars.failedSubs);
+					List<DispatchMessageListener> failed = new ArrayList<>(vars.failedCallbacks);
+					scratch.get().deferred.add(() -> removeFailed(subs, failed));
+				} else {
+					removeFailed(vars.failedSubs, vars.failedCallbacks);
 				}
 			}
 		} finally {
-			lock.unlock();
-			lock2.set(false);
+			vars.reset();
+			if (vars == scratch.get()) vars.inUse = false;
+		}
+		applyDeferred();
+		if (switchTo != null) {
+			switchEngine(switchTo);
 		}
     }
 
+	/** Takes the write lock, so not while this thread has the read lock */
+	private void removeFailed(List<Sub> subs, List<DispatchMessageListener> failed) {
+		lock.writeLock().lock();
+		try {
+			for (int i=0; i<failed.size(); i++) {
+				removeCallback(subs.get(i), failed.get(i));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Must hold the read lock.  One callback, inline or offloaded; if it throws, it's noted in the scratch for unregistering */
+	private void call(Sub sub, DispatchMessageListener callback, BytesXMLMessage message, String topic, MessageContext context, MessageTracker tracker, Scratch vars) {
+		CallbackEvent callbackEvent = Jfr.AVAILABLE ? new CallbackEvent() : null;
+		if (callbackEvent != null) callbackEvent.begin();
+		try {
+			CallbackOffloader offloader = this.offloader;
+			LatencyTracker latency = this.latency;
+			LatencyTracker.Recorder recorder = latency == null ? null : latency.recorder(sub, callback);
+			boolean queued = false;
+			if (offloader != null) {
+				queued = offloader.dispatch(sub, callback, message, context, tracker, recorder, policy(sub, callback));
+			} else {
+				if (recorder != null) recorder.started(message, 0);
+				invoke(callback, message, context, tracker);
+			}
+			if (!queued) callbackDone(callbackEvent, topic, sub, callback, false);  // else the lane records the real call
+		} catch (Exception e) {
+			callbackDone(callbackEvent, topic, sub, callback, false);
+			Jfr.callbackFailed(sub, callback, e);
+			vars.failedSubs.add(sub);
+			vars.failedCallbacks.add(callback);
+			try {
+//				callback.onUncaughtException("Uncaught exception from custom callback for sub " + sub + ", unregistering", e);
+				callback.onUncaughtException(new TopicDispatchException("Uncaught exception from custom callback for sub " + sub + ", unregistering", e));
+			} catch (Exception e2) {
+				// ignore, we're unregistering
+			}
+		}
+	}
+
+	static void callbackDone(CallbackEvent event, String topic, Sub sub, DispatchMessageListener callback, boolean offloaded) {
+		callbackDone(event, topic, sub, callback, offloaded, false);
+	}
+
+	static void callbackDone(CallbackEvent event, String topic, Sub sub, DispatchMessageListener callback, boolean offloaded, boolean fannedOut) {
+		if (event != null && event.shouldCommit()) {
+			event.topic = topic;
+			event.sub = sub.toString();
+			event.callbackClass = callback.getClass();
+			event.offloaded = offloaded;
+			event.fannedOut = fannedOut;
+			event.commit();
+		}
+	}
+
+	private static void invoke(DispatchMessageListener callback, BytesXMLMessage message, MessageContext context, MessageTracker tracker) {
+		if (tracker == null) {
+			receive(callback, message, context);  // async listeners default to DeliveryCompletion.NONE
+			return;
+		}
+		deliver(callback, message, context, tracker.begin(callback));
+	}
+
+	/** Plain synchronous hand-off; a context listener gets the shared context (if there is one), everyone else the bare message */
+	static void receive(DispatchMessageListener callback, BytesXMLMessage message, MessageContext context) {
+		if (context != null && callback instanceof ContextDispatchMessageListener) {
+			((ContextDispatchMessageListener)callback).onReceive(context);
+		} else if (context != null && callback instanceof AsyncDispatchMessageListener) {  // a wrapper might have a context listener inside
+			((AsyncDispatchMessageListener)callback).onReceive(message, context, DeliveryCompletion.NONE);
+		} else {
+			callback.onReceive(message);
+		}
+	}
+
+	/** Hands the message to the callback, and completes (or fails and rethrows) for it unless it's an async one */
+	static void deliver(DispatchMessageListener callback, BytesXMLMessage message, MessageContext context, DeliveryCompletion completion) {
+		try {
+			if (callback instanceof AsyncDispatchMessageListener) {
+				((AsyncDispatchMessageListener)callback).onReceive(message, context, completion);
+			} else {
+				receive(callback, message, context);
+				completion.complete();
+			}
+		} catch (RuntimeException e) {
+			completion.fail(e);
+			throw e;
+		}
+	}
+
+	/** Same, but with no shared context: a context listener gets one of its own */
+	static void deliver(DispatchMessageListener callback, BytesXMLMessage message, DeliveryCompletion completion) {
+		deliver(callback, message, null, completion);
+	}
+
+	/** Any (un)registrations made by callbacks during onReceive(), once this thread is completely out of the read lock */
+	private void applyDeferred() {
+		if (lock.getReadHoldCount() > 0) return;  // still nested inside an outer onReceive() on this thread
+		List<Runnable> deferred = scratch.get().deferred;
+		while (!deferred.isEmpty()) {
+			deferred.remove(0).run();
+		}
+	}
+
+	/**
+	 * Builds the new engine on a background thread so the context thread doesn't stall, then swaps it in under
+	 * the write lock.  If the subs changed while we were building, the new engine is stale: throw it away, and the next
+	 * sampling window will try again.
+	 */
+	private void switchEngine(final EngineType newType) {
+		if (!engineSwitching.compareAndSet(false, true)) return;  // already one in progress
+		Thread builder = new Thread(() -> {
+			EngineRebuildEvent event = Jfr.AVAILABLE ? new EngineRebuildEvent() : null;
+			if (event != null) event.begin();
+			try {
+				List<Sub> subs;
+				int version;
+				lock.readLock().lock();
+				try {
+					subs = new ArrayList<>(callbacks.keySet());
+					version = registryVersion;
+				} finally {
+					lock.readLock().unlock();
+				}
+				MatchEngine newEngine = buildEngine(newType, subs);
+				EngineType oldType;
+				RegistryStats stats;
+				lock.writeLock().lock();
+				try {
+					oldType = engine.type();
+					if (version != registryVersion) {
+						logger.fine("Subscriptions changed during " + newType + " engine build, discarding it");
+						engineRebuilt(event, "ADAPTIVE", oldType, newType, subs.size(), false);
+						return;
+					}
+					engine = newEngine;
+					synchronized (engineSelector) {
+						stats = engineSelector.getStats(newType);
+					}
+				} finally {
+					lock.writeLock().unlock();
+				}
+				engineRebuilt(event, "ADAPTIVE", oldType, newType, subs.size(), true);
+				logger.info("Topic dispatch engine switched from " + oldType + " to " + newType + ": " + stats);
+				EngineSwitchListener listener = engineSwitchListener;
+				if (listener != null) {
+					listener.onEngineSwitch(oldType, newType, stats);
+				}
+			} catch (RuntimeException e) {
+				logger.warning("Could not switch topic dispatch engine to " + newType + ": " + e);
+			} finally {
+				engineSwitching.set(false);
+			}
+		}, "TopicDispatch-EngineSwitch");
+		builder.setDaemon(true);
+		builder.start();
+	}
+
+	private static void engineRebuilt(EngineRebuildEvent event, String reason, EngineType from, EngineType to, int subs, boolean swapped) {
+		if (event != null && event.shouldCommit()) {
+			event.reason = reason;
+			event.fromEngine = from.name();
+			event.toEngine = to.name();
+			event.subCount = subs;
+			event.swapped = swapped;
+			event.commit();
+		}
+	}
+
     @Override
     public void onException(JCSMPException e) {  // uh oh!
     	defaultMessageListener.onException(e);
@@ -0,0 +1,32 @@
+package com.solace.labs.topic;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPException;
+import com.solacesystems.jcsmp.XMLMessage;
+
+/**
+ * How a {@link FlowMessageListenerWithTopicDispatch} acknowledges or settles guaranteed messages.  The default
+ * just uses the message itself; swap in your own to test without a broker, or to count / log settlements.
+ */
+public interface MessageSettler {
+
+	/**
+	 * Calls {@link BytesXMLMessage#ackMessage()} and {@link BytesXMLMessage#settle(XMLMessage.Outcome)}.  Note that
+	 * FAILED and REJECTED outcomes need to be enabled on the flow with <code>ConsumerFlowProperties.addRequiredSettlementOutcomes()</code>.
+	 */
+	public static final MessageSettler JCSMP = new MessageSettler() {
+		@Override
+		public void ack(BytesXMLMessage msg) {
+			msg.ackMessage();
+		}
+
+		@Override
+		public void settle(BytesXMLMessage msg, XMLMessage.Outcome outcome) throws JCSMPException {
+			msg.settle(outcome);
+		}
+	};
+
+	public void ack(BytesXMLMessage msg);
+
+	public void settle(BytesXMLMessage msg, XMLMessage.Outcome outcome) throws JCSMPException;
+}
@@ -0,0 +1,14 @@
+package com.solace.labs.topic;
+
+/**
+ * Lets a wrapper (like {@link FlowMessageListenerWithTopicDispatch}) follow one message through the dispatcher: which
+ * callbacks it went to, and when each of them is finished with it.  Called on the dispatching thread.
+ */
+interface MessageTracker {
+
+	/** A callback is about to be handed the message; the returned handle must be completed or failed exactly once */
+	DeliveryCompletion begin(DispatchMessageListener callback);
+
+	/** No callbacks matched, the message went to the default listener (and has returned from it) */
+	void defaulted();
+}
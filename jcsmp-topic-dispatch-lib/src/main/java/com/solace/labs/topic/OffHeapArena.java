@@ -0,0 +1,193 @@
+package com.solace.labs.topic;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * <p>A very simple allocator over direct (off-heap) <code>ByteBuffer</code>s, for {@link OffHeapTrieEngine}.  Blocks are
+ * always a power of 2 bytes, bump-allocated out of 1 MB chunks, with a free list per size so that freed blocks get reused.
+ * Anything too big to share a chunk gets a chunk of its own.  All access is by absolute index, so any number of threads
+ * can read at once as long as nobody is allocating.</p>
+ * <p>A block is referred to by an <code>int</code>: the top 12 bits are the chunk, the bottom 20 the offset into it.
+ * 0 is never handed out, so it can mean null.</p>
+ */
+final class OffHeapArena {
+
+	static final int CHUNK_SHIFT = 20;
+	static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int OFFSET_MASK = CHUNK_SIZE - 1;
+	private static final int MAX_CHUNKS = 1 << (32 - CHUNK_SHIFT);
+	private static final int MIN_BLOCK_SHIFT = 3;  // 8 bytes
+	private static final int MAX_SHARED_SHIFT = CHUNK_SHIFT - 2;  // anything bigger than 256 KB gets its own chunk
+
+	private ByteBuffer[] chunks = new ByteBuffer[16];
+	private int chunkCount = 0;
+	private int[] freeChunks = new int[4];  // indexes of dedicated chunks that have been freed
+	private int freeChunkCount = 0;
+	private int current = -1;  // the chunk we're bump-allocating from
+	private int bump = 0;
+	private final int[][] freeBlocks = new int[MAX_SHARED_SHIFT + 1][];  // per size class, a stack of refs
+	private final int[] freeBlockCounts = new int[MAX_SHARED_SHIFT + 1];
+	private long allocatedBytes = 0;  // in use, not counting free blocks
+	private long reservedBytes = 0;  // all the direct memory we're holding
+
+	OffHeapArena() {
+		newSharedChunk();
+		bump = 1 << MIN_BLOCK_SHIFT;  // burn the first block, so that ref 0 can mean null
+	}
+
+	/**
+	 * Picks up where a {@link #write(DataOutputStream)} left off.  Each chunk is bulk-copied out of <code>in</code> into its
+	 * own direct buffer, since <code>in</code> may be read-only (e.g. a mapped file) and the arena keeps writing to them.
+	 */
+	private OffHeapArena(ByteBuffer in) {
+		chunkCount = in.getInt();
+		chunks = new ByteBuffer[Math.max(16, chunkCount)];
+		int[] sizes = new int[chunkCount];
+		for (int i=0; i<chunkCount; i++) sizes[i] = in.getInt();
+		freeChunkCount = in.getInt();
+		freeChunks = new int[Math.max(4, freeChunkCount)];
+		for (int i=0; i<freeChunkCount; i++) freeChunks[i] = in.getInt();
+		current = in.getInt();
+		bump = in.getInt();
+		for (int shift=0; shift<=MAX_SHARED_SHIFT; shift++) {
+			freeBlockCounts[shift] = in.getInt();
+			if (freeBlockCounts[shift] > 0) {
+				freeBlocks[shift] = new int[freeBlockCounts[shift]];
+				for (int i=0; i<freeBlockCounts[shift]; i++) freeBlocks[shift][i] = in.getInt();
+			}
+		}
+		allocatedBytes = in.getLong();
+		for (int i=0; i<chunkCount; i++) {
+			if (sizes[i] == 0) continue;  // a dedicated chunk that was freed
+			ByteBuffer saved = in.duplicate();
+			saved.limit(in.position() + sizes[i]);
+			chunks[i] = ByteBuffer.allocateDirect(sizes[i]);
+			chunks[i].put(saved).clear();
+			in.position(in.position() + sizes[i]);
+			reservedBytes += sizes[i];
+		}
+	}
+
+	static OffHeapArena read(ByteBuffer in) {
+		return new OffHeapArena(in);
+	}
+
+	/** The allocator's state, then every chunk's bytes as-is.  Refs stay valid across a write and read. */
+	void write(DataOutputStream out) throws IOException {
+		out.writeInt(chunkCount);
+		for (int i=0; i<chunkCount; i++) out.writeInt(chunks[i] == null ? 0 : chunks[i].capacity());
+		out.writeInt(freeChunkCount);
+		for (int i=0; i<freeChunkCount; i++) out.writeInt(freeChunks[i]);
+		out.writeInt(current);
+		out.writeInt(bump);
+		for (int shift=0; shift<=MAX_SHARED_SHIFT; shift++) {
+			out.writeInt(freeBlockCounts[shift]);
+			for (int i=0; i<freeBlockCounts[shift]; i++) out.writeInt(freeBlocks[shift][i]);
+		}
+		out.writeLong(allocatedBytes);
+		byte[] copy = new byte[64 * 1024];
+		for (int i=0; i<chunkCount; i++) {
+			if (chunks[i] == null) continue;
+			ByteBuffer chunk = chunks[i].duplicate();
+			chunk.clear();
+			while (chunk.hasRemaining()) {
+				int n = Math.min(copy.length, chunk.remaining());
+				chunk.get(copy, 0, n);
+				out.write(copy, 0, n);
+			}
+		}
+	}
+
+	ByteBuffer buf(int ref) {
+		return chunks[ref >>> CHUNK_SHIFT];
+	}
+
+	int off(int ref) {
+		return ref & OFFSET_MASK;
+	}
+
+	/** @return a block of at least this many bytes, <b>not</b> zeroed */
+	int allocate(int bytes) {
+		int shift = shiftFor(bytes);
+		allocatedBytes += 1L << shift;
+		if (shift > MAX_SHARED_SHIFT) return dedicatedChunk(1 << shift);
+		if (freeBlockCounts[shift] > 0) return freeBlocks[shift][--freeBlockCounts[shift]];
+		int size = 1 << shift;
+		if (bump + size > CHUNK_SIZE) {
+			newSharedChunk();
+		}
+		int ref = (current << CHUNK_SHIFT) | bump;
+		bump += size;
+		return ref;
+	}
+
+	/** Same as {@link #allocate(int)}, but every byte is 0 */
+	int allocateZeroed(int bytes) {
+		int ref = allocate(bytes);
+		ByteBuffer b = buf(ref);
+		int o = off(ref);
+		int size = 1 << shiftFor(bytes);
+		for (int i=0; i<size; i+=8) b.putLong(o+i, 0L);
+		return ref;
+	}
+
+	/** @param bytes the same size it was allocated with */
+	void free(int ref, int bytes) {
+		if (ref == 0) return;
+		int shift = shiftFor(bytes);
+		allocatedBytes -= 1L << shift;
+		if (shift > MAX_SHARED_SHIFT) {
+			int chunk = ref >>> CHUNK_SHIFT;
+			reservedBytes -= chunks[chunk].capacity();
+			chunks[chunk] = null;  // the GC will give the direct memory back
+			if (freeChunkCount == freeChunks.length) freeChunks = Arrays.copyOf(freeChunks, freeChunkCount * 2);
+			freeChunks[freeChunkCount++] = chunk;
+			return;
+		}
+		int[] stack = freeBlocks[shift];
+		if (stack == null) stack = freeBlocks[shift] = new int[16];
+		else if (freeBlockCounts[shift] == stack.length) stack = freeBlocks[shift] = Arrays.copyOf(stack, stack.length * 2);
+		stack[freeBlockCounts[shift]++] = ref;
+	}
+
+	/** Off-heap bytes in use */
+	long allocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/** Off-heap bytes held, in use or not */
+	long reservedBytes() {
+		return reservedBytes;
+	}
+
+	private static int shiftFor(int bytes) {
+		if (bytes <= 1 << MIN_BLOCK_SHIFT) return MIN_BLOCK_SHIFT;
+		return 32 - Integer.numberOfLeadingZeros(bytes - 1);
+	}
+
+	private void newSharedChunk() {
+		current = addChunk(ByteBuffer.allocateDirect(CHUNK_SIZE));
+		bump = 0;
+	}
+
+	private int dedicatedChunk(int size) {
+		return addChunk(ByteBuffer.allocateDirect(size)) << CHUNK_SHIFT;
+	}
+
+	private int addChunk(ByteBuffer chunk) {
+		reservedBytes += chunk.capacity();
+		int index;
+		if (freeChunkCount > 0) {
+			index = freeChunks[--freeChunkCount];
+		} else {
+			if (chunkCount == MAX_CHUNKS) throw new OutOfMemoryError("Off-heap subscription index is full");
+			if (chunkCount == chunks.length) chunks = Arrays.copyOf(chunks, Math.min(MAX_CHUNKS, chunks.length * 2));
+			index = chunkCount++;
+		}
+		chunks[index] = chunk;
+		return index;
+	}
+}
@@ -0,0 +1,519 @@
+package com.solace.labs.topic;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>The same level-by-level index as {@link TrieEngine}, but with every node, every hash table of children and every
+ * literal level's characters living off-heap in an {@link OffHeapArena}.  The engine's own heap footprint is one array of
+ * {@link Sub}s, indexed by the int IDs that the trie stores, so the index's nodes and tables add nothing for the GC to
+ * trace.  The subs themselves are still on the heap, though (each with its strings and compiled pattern), as is the
+ * dispatcher's sub &rarr; callbacks map: that per-sub cost is the same as with any other engine.  Meant for registries of
+ * millions of subs.</p>
+ * <p>Levels are stored as UTF-16 chars so they can be compared directly against the topic String, and matching
+ * doesn't allocate anything.</p>
+ */
+final class OffHeapTrieEngine implements MatchEngine {
+
+	// node layout: refs to the literal table, the prefix list, and 3 sub ID lists
+	private static final int NODE_LITERALS = 0;
+	private static final int NODE_PREFIXES = 4;
+	private static final int NODE_TERMINAL = 8;  // subs that end exactly here
+	private static final int NODE_MULTI_LEVEL = 12;  // subs ending in '>' here
+	private static final int NODE_ZERO_OR_MORE = 16;  // subs ending in '#' here, double-checked with Sub.matches()
+	private static final int NODE_BYTES = 20;
+
+	// tables (literals: open addressing, prefixes: just a list) and ID lists both start with capacity and count
+	private static final int CAPACITY = 0;
+	private static final int COUNT = 4;
+	private static final int HEADER = 8;
+	// table entries
+	private static final int ENTRY_HASH = 0;
+	private static final int ENTRY_LEVEL = 4;
+	private static final int ENTRY_CHILD = 8;
+	private static final int ENTRY_BYTES = 12;
+
+	private final OffHeapArena arena;
+	private final int root;
+	private Sub[] subs = new Sub[1024];  // sub ID -> Sub
+	private int[] freeIds = new int[16];
+	private int freeIdCount = 0;
+	private int nextId = 0;
+	private int size = 0;
+
+	OffHeapTrieEngine() {
+		arena = new OffHeapArena();
+		root = arena.allocateZeroed(NODE_BYTES);
+	}
+
+	private OffHeapTrieEngine(OffHeapArena arena, int root) {
+		this.arena = arena;
+		this.root = root;
+	}
+
+	/**
+	 * Writes the sub ID table and then the arena as-is, so that {@link #read(ByteBuffer, List)} can serve lookups
+	 * straight out of the (mapped) bytes without rebuilding anything.
+	 * @param subIndexes where each registered Sub is in the list that will be passed to {@link #read(ByteBuffer, List)}
+	 */
+	void write(DataOutputStream out, Map<Sub, Integer> subIndexes) throws IOException {
+		out.writeInt(root);
+		out.writeInt(size);
+		out.writeInt(nextId);
+		for (int id=0; id<nextId; id++) out.writeInt(subs[id] == null ? -1 : subIndexes.get(subs[id]));
+		out.writeInt(freeIdCount);
+		for (int i=0; i<freeIdCount; i++) out.writeInt(freeIds[i]);
+		arena.write(out);
+	}
+
+	static OffHeapTrieEngine read(ByteBuffer in, List<Sub> subList) {
+		int root = in.getInt();
+		int size = in.getInt();
+		int nextId = in.getInt();
+		Sub[] subs = new Sub[Math.max(1024, nextId)];
+		for (int id=0; id<nextId; id++) {
+			int index = in.getInt();
+			if (index >= 0) subs[id] = subList.get(index);
+		}
+		int freeIdCount = in.getInt();
+		int[] freeIds = new int[Math.max(16, freeIdCount)];
+		for (int i=0; i<freeIdCount; i++) freeIds[i] = in.getInt();
+		OffHeapTrieEngine engine = new OffHeapTrieEngine(OffHeapArena.read(in), root);
+		engine.subs = subs;
+		engine.nextId = nextId;
+		engine.freeIds = freeIds;
+		engine.freeIdCount = freeIdCount;
+		engine.size = size;
+		return engine;
+	}
+
+	@Override
+	public EngineType type() {
+		return EngineType.OFF_HEAP_TRIE;
+	}
+
+	@Override
+	public void add(Sub sub) {
+		String[] levels = sub.topicSubscription.split("/", -1);
+		int node = root;
+		int last = levels.length - 1;
+		for (int i=0; i<last; i++) {
+			node = child(node, levels[i]);
+		}
+		String level = levels[last];
+		int field;
+		if (level.equals(">")) {
+			field = NODE_MULTI_LEVEL;
+		} else if (level.equals("#")) {
+			field = NODE_ZERO_OR_MORE;
+		} else {
+			node = child(node, level);
+			field = NODE_TERMINAL;
+		}
+		addId(node, field, newId(sub));
+		size++;
+	}
+
+	private int child(int node, String level) {
+		if (level.endsWith("*")) {  // a validated Sub only ever has a * at the end of a level
+			return getOrAddPrefix(node, level.substring(0, level.length()-1));
+		}
+		return getOrAddLiteral(node, level);
+	}
+
+	@Override
+	public void remove(Sub sub) {
+		String[] levels = sub.topicSubscription.split("/", -1);
+		if (remove(root, levels, 0, sub)) size--;
+	}
+
+	/** Recursive so that we can prune any nodes left empty on the way back up */
+	private boolean remove(int node, String[] levels, int index, Sub sub) {
+		String level = levels[index];
+		if (index == levels.length-1) {
+			if (level.equals(">")) return removeId(node, NODE_MULTI_LEVEL, sub);
+			if (level.equals("#")) return removeId(node, NODE_ZERO_OR_MORE, sub);
+		}
+		boolean prefix = level.endsWith("*");
+		if (prefix) level = level.substring(0, level.length()-1);
+		int kid = prefix ? findPrefix(node, level) : findLiteral(node, level, 0, level.length(), TrieEngine.hash(level, 0, level.length()));
+		if (kid == 0) return false;
+		boolean removed;
+		if (index == levels.length-1) {
+			removed = removeId(kid, NODE_TERMINAL, sub);
+		} else {
+			removed = remove(kid, levels, index+1, sub);
+		}
+		if (removed && isEmpty(kid)) {
+			if (prefix) removePrefix(node, level);
+			else removeLiteral(node, level);
+			arena.free(kid, NODE_BYTES);
+		}
+		return removed;
+	}
+
+	@Override
+	public void match(String topic, List<Sub> matches) {
+		match(root, topic, 0, matches);
+	}
+
+	private void match(int node, String topic, int pos, List<Sub> matches) {
+		ByteBuffer b = arena.buf(node);
+		int o = arena.off(node);
+		if (pos > topic.length()) {  // no more topic levels left
+			addAll(b.getInt(o + NODE_TERMINAL), matches);
+			addVerified(b.getInt(o + NODE_ZERO_OR_MORE), topic, matches);
+			return;
+		}
+		// still at least one more topic level
+		addAll(b.getInt(o + NODE_MULTI_LEVEL), matches);
+		addVerified(b.getInt(o + NODE_ZERO_OR_MORE), topic, matches);
+		int end = topic.indexOf('/', pos);
+		if (end < 0) end = topic.length();
+		int kid = findLiteral(node, topic, pos, end, TrieEngine.hash(topic, pos, end));
+		if (kid != 0) match(kid, topic, end+1, matches);
+		int prefixes = b.getInt(o + NODE_PREFIXES);
+		if (prefixes != 0) {
+			ByteBuffer pb = arena.buf(prefixes);
+			int po = arena.off(prefixes);
+			int count = pb.getInt(po + COUNT);
+			for (int i=0; i<count; i++) {
+				int entry = po + HEADER + i*ENTRY_BYTES;
+				if (levelIsPrefixOf(pb.getInt(entry + ENTRY_LEVEL), topic, pos, end)) {
+					match(pb.getInt(entry + ENTRY_CHILD), topic, end+1, matches);
+				}
+			}
+		}
+	}
+
+	private void addAll(int ids, List<Sub> matches) {
+		if (ids == 0) return;
+		ByteBuffer b = arena.buf(ids);
+		int o = arena.off(ids);
+		int count = b.getInt(o + COUNT);
+		for (int i=0; i<count; i++) matches.add(subs[b.getInt(o + HEADER + i*4)]);
+	}
+
+	private void addVerified(int ids, String topic, List<Sub> matches) {
+		if (ids == 0) return;
+		ByteBuffer b = arena.buf(ids);
+		int o = arena.off(ids);
+		int count = b.getInt(o + COUNT);
+		for (int i=0; i<count; i++) {
+			Sub sub = subs[b.getInt(o + HEADER + i*4)];
+			if (sub.matches(topic)) matches.add(sub);
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/** Direct memory in use by the index */
+	long offHeapBytes() {
+		return arena.allocatedBytes();
+	}
+
+	/** Direct memory held by the index, in use or not */
+	long reservedOffHeapBytes() {
+		return arena.reservedBytes();
+	}
+
+	private boolean isEmpty(int node) {
+		ByteBuffer b = arena.buf(node);
+		int o = arena.off(node);
+		for (int i=0; i<NODE_BYTES; i+=4) {
+			if (b.getInt(o + i) != 0) return false;
+		}
+		return true;
+	}
+
+	////////////////////////////////////////////////////////////////////
+	// sub IDs, and the lists of them at each node
+
+	private int newId(Sub sub) {
+		int id;
+		if (freeIdCount > 0) {
+			id = freeIds[--freeIdCount];
+		} else {
+			id = nextId++;
+			if (id == subs.length) subs = Arrays.copyOf(subs, subs.length * 2);
+		}
+		subs[id] = sub;
+		return id;
+	}
+
+	private void addId(int node, int field, int id) {
+		ByteBuffer nb = arena.buf(node);
+		int ids = nb.getInt(arena.off(node) + field);
+		if (ids == 0) {
+			ids = arena.allocate(HEADER + 2*4);
+			arena.buf(ids).putInt(arena.off(ids) + CAPACITY, 2).putInt(arena.off(ids) + COUNT, 0);
+			nb.putInt(arena.off(node) + field, ids);
+		}
+		ByteBuffer b = arena.buf(ids);
+		int o = arena.off(ids);
+		int cap = b.getInt(o + CAPACITY);
+		int count = b.getInt(o + COUNT);
+		if (count == cap) {  // grow
+			int bigger = arena.allocate(HEADER + cap*2*4);
+			ByteBuffer bb = arena.buf(bigger);
+			int bo = arena.off(bigger);
+			for (int i=0; i<count; i++) bb.putInt(bo + HEADER + i*4, b.getInt(o + HEADER + i*4));
+			bb.putInt(bo + CAPACITY, cap*2);
+			arena.free(ids, HEADER + cap*4);
+			ids = bigger;
+			b = bb;
+			o = bo;
+			nb.putInt(arena.off(node) + field, ids);
+		}
+		b.putInt(o + HEADER + count*4, id);
+		b.putInt(o + COUNT, count+1);
+	}
+
+	private boolean removeId(int node, int field, Sub sub) {
+		ByteBuffer nb = arena.buf(node);
+		int ids = nb.getInt(arena.off(node) + field);
+		if (ids == 0) return false;
+		ByteBuffer b = arena.buf(ids);
+		int o = arena.off(ids);
+		int count = b.getInt(o + COUNT);
+		for (int i=0; i<count; i++) {
+			int id = b.getInt(o + HEADER + i*4);
+			if (subs[id].equals(sub)) {
+				b.putInt(o + HEADER + i*4, b.getInt(o + HEADER + (count-1)*4));  // last one fills the gap
+				b.putInt(o + COUNT, count-1);
+				if (count == 1) {
+					arena.free(ids, HEADER + b.getInt(o + CAPACITY)*4);
+					nb.putInt(arena.off(node) + field, 0);
+				}
+				subs[id] = null;
+				if (freeIdCount == freeIds.length) freeIds = Arrays.copyOf(freeIds, freeIdCount * 2);
+				freeIds[freeIdCount++] = id;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	////////////////////////////////////////////////////////////////////
+	// levels
+
+	private int newLevel(String level) {
+		int ref = arena.allocate(4 + level.length()*2);
+		ByteBuffer b = arena.buf(ref);
+		int o = arena.off(ref);
+		b.putInt(o, level.length());
+		for (int i=0; i<level.length(); i++) b.putChar(o + 4 + i*2, level.charAt(i));
+		return ref;
+	}
+
+	private void freeLevel(int ref) {
+		arena.free(ref, 4 + arena.buf(ref).getInt(arena.off(ref))*2);
+	}
+
+	private boolean levelEquals(int ref, CharSequence s, int from, int to) {
+		ByteBuffer b = arena.buf(ref);
+		int o = arena.off(ref);
+		int len = b.getInt(o);
+		if (len != to - from) return false;
+		for (int i=0; i<len; i++) {
+			if (b.getChar(o + 4 + i*2) != s.charAt(from+i)) return false;
+		}
+		return true;
+	}
+
+	private boolean levelIsPrefixOf(int ref, CharSequence s, int from, int to) {
+		ByteBuffer b = arena.buf(ref);
+		int o = arena.off(ref);
+		int len = b.getInt(o);
+		if (len > to - from) return false;
+		for (int i=0; i<len; i++) {
+			if (b.getChar(o + 4 + i*2) != s.charAt(from+i)) return false;
+		}
+		return true;
+	}
+
+	////////////////////////////////////////////////////////////////////
+	// literal children: open addressing with linear probing, load factor under 0.5
+
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	private int findLiteral(int node, CharSequence level, int from, int to, int hash) {
+		int table = arena.buf(node).getInt(arena.off(node) + NODE_LITERALS);
+		if (table == 0) return 0;
+		ByteBuffer b = arena.buf(table);
+		int o = arena.off(table);
+		int mask = b.getInt(o + CAPACITY) - 1;
+		for (int i = spread(hash) & mask; ; i = (i+1) & mask) {
+			int entry = o + HEADER + i*ENTRY_BYTES;
+			int levelRef = b.getInt(entry + ENTRY_LEVEL);
+			if (levelRef == 0) return 0;
+			if (b.getInt(entry + ENTRY_HASH) == hash && levelEquals(levelRef, level, from, to)) return b.getInt(entry + ENTRY_CHILD);
+		}
+	}
+
+	private int getOrAddLiteral(int node, String level) {
+		int hash = TrieEngine.hash(level, 0, level.length());
+		int kid = findLiteral(node, level, 0, level.length(), hash);
+		if (kid != 0) return kid;
+		ByteBuffer nb = arena.buf(node);
+		int table = nb.getInt(arena.off(node) + NODE_LITERALS);
+		if (table == 0) {
+			table = newTable(4);
+			nb.putInt(arena.off(node) + NODE_LITERALS, table);
+		}
+		int cap = arena.buf(table).getInt(arena.off(table) + CAPACITY);
+		int count = arena.buf(table).getInt(arena.off(table) + COUNT);
+		if ((count+1) * 2 > cap) {
+			int bigger = newTable(cap * 2);
+			ByteBuffer b = arena.buf(table);
+			int o = arena.off(table);
+			for (int i=0; i<cap; i++) {
+				int entry = o + HEADER + i*ENTRY_BYTES;
+				if (b.getInt(entry + ENTRY_LEVEL) != 0) put(bigger, b.getInt(entry + ENTRY_HASH), b.getInt(entry + ENTRY_LEVEL), b.getInt(entry + ENTRY_CHILD));
+			}
+			arena.buf(bigger).putInt(arena.off(bigger) + COUNT, count);
+			arena.free(table, HEADER + cap*ENTRY_BYTES);
+			table = bigger;
+			nb.putInt(arena.off(node) + NODE_LITERALS, table);
+		}
+		kid = arena.allocateZeroed(NODE_BYTES);
+		put(table, hash, newLevel(level), kid);
+		arena.buf(table).putInt(arena.off(table) + COUNT, count+1);
+		return kid;
+	}
+
+	private int newTable(int cap) {
+		int table = arena.allocateZeroed(HEADER + cap*ENTRY_BYTES);
+		arena.buf(table).putInt(arena.off(table) + CAPACITY, cap);
+		return table;
+	}
+
+	/** Doesn't touch the count */
+	private void put(int table, int hash, int levelRef, int kid) {
+		ByteBuffer b = arena.buf(table);
+		int o = arena.off(table);
+		int mask = b.getInt(o + CAPACITY) - 1;
+		int i = spread(hash) & mask;
+		while (b.getInt(o + HEADER + i*ENTRY_BYTES + ENTRY_LEVEL) != 0) i = (i+1) & mask;
+		int entry = o + HEADER + i*ENTRY_BYTES;
+		b.putInt(entry + ENTRY_HASH, hash);
+		b.putInt(entry + ENTRY_LEVEL, levelRef);
+		b.putInt(entry + ENTRY_CHILD, kid);
+	}
+
+	/** Backward-shift deletion, so no tombstones and no rehash */
+	private void removeLiteral(int node, String level) {
+		ByteBuffer nb = arena.buf(node);
+		int table = nb.getInt(arena.off(node) + NODE_LITERALS);
+		ByteBuffer b = arena.buf(table);
+		int o = arena.off(table);
+		int cap = b.getInt(o + CAPACITY);
+		int mask = cap - 1;
+		int hash = TrieEngine.hash(level, 0, level.length());
+		int i = spread(hash) & mask;
+		while (!levelEquals(b.getInt(o + HEADER + i*ENTRY_BYTES + ENTRY_LEVEL), level, 0, level.length())) i = (i+1) & mask;
+		freeLevel(b.getInt(o + HEADER + i*ENTRY_BYTES + ENTRY_LEVEL));
+		int count = b.getInt(o + COUNT) - 1;
+		if (count == 0) {
+			arena.free(table, HEADER + cap*ENTRY_BYTES);
+			nb.putInt(arena.off(node) + NODE_LITERALS, 0);
+			return;
+		}
+		b.putInt(o + COUNT, count);
+		int gap = i;
+		for (int j = (gap+1) & mask; ; j = (j+1) & mask) {
+			int entry = o + HEADER + j*ENTRY_BYTES;
+			if (b.getInt(entry + ENTRY_LEVEL) == 0) break;
+			int home = spread(b.getInt(entry + ENTRY_HASH)) & mask;
+			// can this entry move back into the gap?  only if its home isn't cyclically in (gap, j]
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				int gapEntry = o + HEADER + gap*ENTRY_BYTES;
+				b.putInt(gapEntry + ENTRY_HASH, b.getInt(entry + ENTRY_HASH));
+				b.putInt(gapEntry + ENTRY_LEVEL, b.getInt(entry + ENTRY_LEVEL));
+				b.putInt(gapEntry + ENTRY_CHILD, b.getInt(entry + ENTRY_CHILD));
+				gap = j;
+			}
+		}
+		b.putInt(o + HEADER + gap*ENTRY_BYTES + ENTRY_LEVEL, 0);
+	}
+
+	////////////////////////////////////////////////////////////////////
+	// prefix wildcard children, e.g. "ab*" is stored as prefix "ab", and "*" as "".  Usually only a few, so just a list.
+
+	private int findPrefix(int node, String prefix) {
+		int list = arena.buf(node).getInt(arena.off(node) + NODE_PREFIXES);
+		if (list == 0) return 0;
+		ByteBuffer b = arena.buf(list);
+		int o = arena.off(list);
+		int count = b.getInt(o + COUNT);
+		for (int i=0; i<count; i++) {
+			int entry = o + HEADER + i*ENTRY_BYTES;
+			if (levelEquals(b.getInt(entry + ENTRY_LEVEL), prefix, 0, prefix.length())) return b.getInt(entry + ENTRY_CHILD);
+		}
+		return 0;
+	}
+
+	private int getOrAddPrefix(int node, String prefix) {
+		int kid = findPrefix(node, prefix);
+		if (kid != 0) return kid;
+		ByteBuffer nb = arena.buf(node);
+		int list = nb.getInt(arena.off(node) + NODE_PREFIXES);
+		if (list == 0) {
+			list = newTable(2);
+			nb.putInt(arena.off(node) + NODE_PREFIXES, list);
+		}
+		ByteBuffer b = arena.buf(list);
+		int o = arena.off(list);
+		int cap = b.getInt(o + CAPACITY);
+		int count = b.getInt(o + COUNT);
+		if (count == cap) {
+			int bigger = newTable(cap * 2);
+			ByteBuffer bb = arena.buf(bigger);
+			int bo = arena.off(bigger);
+			for (int i=0; i<count*ENTRY_BYTES; i+=4) bb.putInt(bo + HEADER + i, b.getInt(o + HEADER + i));
+			arena.free(list, HEADER + cap*ENTRY_BYTES);
+			list = bigger;
+			b = bb;
+			o = bo;
+			nb.putInt(arena.off(node) + NODE_PREFIXES, list);
+		}
+		kid = arena.allocateZeroed(NODE_BYTES);
+		int entry = o + HEADER + count*ENTRY_BYTES;
+		b.putInt(entry + ENTRY_LEVEL, newLevel(prefix));
+		b.putInt(entry + ENTRY_CHILD, kid);
+		b.putInt(o + COUNT, count+1);
+		return kid;
+	}
+
+	private void removePrefix(int node, String prefix) {
+		ByteBuffer nb = arena.buf(node);
+		int list = nb.getInt(arena.off(node) + NODE_PREFIXES);
+		ByteBuffer b = arena.buf(list);
+		int o = arena.off(list);
+		int count = b.getInt(o + COUNT);
+		for (int i=0; i<count; i++) {
+			int entry = o + HEADER + i*ENTRY_BYTES;
+			if (levelEquals(b.getInt(entry + ENTRY_LEVEL), prefix, 0, prefix.length())) {
+				freeLevel(b.getInt(entry + ENTRY_LEVEL));
+				int last = o + HEADER + (count-1)*ENTRY_BYTES;
+				b.putInt(entry + ENTRY_LEVEL, b.getInt(last + ENTRY_LEVEL));
+				b.putInt(entry + ENTRY_CHILD, b.getInt(last + ENTRY_CHILD));
+				b.putInt(o + COUNT, count-1);
+				if (count == 1) {
+					arena.free(list, HEADER + b.getInt(o + CAPACITY)*ENTRY_BYTES);
+					nb.putInt(arena.off(node) + NODE_PREFIXES, 0);
+				}
+				return;
+			}
+		}
+	}
+}
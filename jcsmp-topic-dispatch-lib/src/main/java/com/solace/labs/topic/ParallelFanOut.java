@@ -0,0 +1,117 @@
+package com.solace.labs.topic;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * Calls all of one message's matched callbacks at once on an executor, from
+ * {@link MessageListenerWithTopicDispatch#enableParallelFanOut(int, Executor, boolean)}.  Runs outside the dispatcher's
+ * read lock: a callback on a worker thread that (un)registers something would otherwise wait for the write lock while
+ * the context thread waits for it.  A callback that throws is unregistered from that sub straight away, from whichever
+ * thread it threw on.
+ */
+final class ParallelFanOut {
+
+	/** One fanned-out message */
+	private final class Batch {
+		final long start = System.nanoTime();
+		final AtomicInteger remaining;
+		final CountDownLatch joined;  // only if the context thread waits
+
+		Batch(int calls) {
+			remaining = new AtomicInteger(calls);
+			joined = join ? new CountDownLatch(1) : null;
+		}
+
+		void done() {
+			if (remaining.decrementAndGet() > 0) return;
+			completion.record(System.nanoTime() - start);
+			if (joined != null) joined.countDown();
+		}
+	}
+
+	final int minListeners;
+	private final Executor executor;
+	private final boolean join;
+	private final BiConsumer<Sub, DispatchMessageListener> onFailure;
+	private final AtomicHistogram completion = new AtomicHistogram();
+	private final LongAdder messages = new LongAdder();
+
+	ParallelFanOut(int minListeners, Executor executor, boolean join, BiConsumer<Sub, DispatchMessageListener> onFailure) {
+		this.minListeners = minListeners;
+		this.executor = executor;
+		this.join = join;
+		this.onFailure = onFailure;
+	}
+
+	/**
+	 * Called on the context thread, once it's out of the read lock.  Element <code>i</code> of each list is one call; the
+	 * lists are the caller's to reuse as soon as this returns.  When joining, the context thread makes the first call
+	 * itself rather than just sit there, then waits for the rest.
+	 * @param recorders null, or an end-to-end latency recorder per call
+	 */
+	void fanOut(String topic, List<Sub> subs, List<DispatchMessageListener> callbacks, List<LatencyTracker.Recorder> recorders,
+			BytesXMLMessage message, MessageContext context, MessageTracker tracker) {
+		int calls = callbacks.size();
+		Batch batch = new Batch(calls);
+		messages.increment();
+		for (int i = join ? 1 : 0; i<calls; i++) {
+			final Sub sub = subs.get(i);
+			final DispatchMessageListener callback = callbacks.get(i);
+			final LatencyTracker.Recorder recorder = recorders == null ? null : recorders.get(i);
+			final DeliveryCompletion done = tracker == null ? DeliveryCompletion.NONE : tracker.begin(callback);  // must be on this thread
+			Runnable task = () -> call(batch, topic, sub, callback, recorder, message, context, done);
+			try {
+				executor.execute(task);
+			} catch (RejectedExecutionException e) {  // executor's been shut down, do it ourselves rather than lose messages
+				task.run();
+			}
+		}
+		if (!join) return;
+		call(batch, topic, subs.get(0), callbacks.get(0), recorders == null ? null : recorders.get(0), message, context,
+				tracker == null ? DeliveryCompletion.NONE : tracker.begin(callbacks.get(0)));
+		try {
+			batch.joined.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();  // stop waiting, the calls still finish on their own
+		}
+	}
+
+	private void call(Batch batch, String topic, Sub sub, DispatchMessageListener callback, LatencyTracker.Recorder recorder,
+			BytesXMLMessage message, MessageContext context, DeliveryCompletion done) {
+		if (recorder != null) recorder.started(message, System.nanoTime() - batch.start);
+		CallbackEvent event = Jfr.AVAILABLE ? new CallbackEvent() : null;
+		if (event != null) event.begin();
+		try {
+			MessageListenerWithTopicDispatch.deliver(callback, message, context, done);
+			MessageListenerWithTopicDispatch.callbackDone(event, topic, sub, callback, false, true);
+		} catch (RuntimeException e) {
+			MessageListenerWithTopicDispatch.callbackDone(event, topic, sub, callback, false, true);
+			Jfr.callbackFailed(sub, callback, e);
+			try {
+				callback.onUncaughtException(new TopicDispatchException("Uncaught exception from custom callback for sub " + sub + ", unregistering", e));
+			} catch (Exception e2) {
+				// ignore, we're unregistering
+			}
+			onFailure.accept(sub, callback);
+		} finally {
+			batch.done();
+		}
+	}
+
+	/** From the fan-out starting until the last of its callbacks returned (async ones: handed off) */
+	LatencySnapshot getCompletionLatency(boolean reset) {
+		return completion.snapshot(reset);
+	}
+
+	long getMessageCount() {
+		return messages.sum();
+	}
+}
@@ -0,0 +1,100 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * For huge registries of wildcard subs that no index prunes well (e.g. lots of leading <code>*</code> levels), where
+ * matching one topic is milliseconds of scanning on one core.  Scans like {@link LinearScanEngine}, but once there are
+ * more subs than the threshold, the list is split into segments that are matched in parallel on a {@link ForkJoinPool},
+ * and their results appended in order.  The segments are contiguous ranges of the one list, not buckets by hash: the
+ * subs were allocated in the order they were added, so a range walks memory in order, and scattering them made each
+ * segment several times slower than the whole linear scan.  Each sub is in exactly one segment, so the matches have no
+ * duplicates, and the dispatcher's DEDUPE / CALL_EACH handling of them is the same as for any other engine.
+ */
+final class ParallelScanEngine implements MatchEngine {
+
+	static final int DEFAULT_THRESHOLD = 20_000;
+	/** Segments smaller than this cost more to hand off than to scan */
+	static final int MIN_SEGMENT = 1024;
+	/** Segments per worker, so idle workers can steal from a slow one */
+	static final int SEGMENTS_PER_WORKER = 4;
+
+	private final SubScanList subs = new SubScanList();
+	// set under the dispatcher's write lock (or before the engine's published), read under its read lock
+	private int threshold = DEFAULT_THRESHOLD;
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	void configure(int threshold, ForkJoinPool pool) {
+		this.threshold = threshold;
+		this.pool = pool;
+	}
+
+	@Override
+	public EngineType type() {
+		return EngineType.PARALLEL_SCAN;
+	}
+
+	@Override
+	public void add(Sub sub) {
+		subs.add(sub);
+	}
+
+	@Override
+	public void remove(Sub sub) {
+		subs.remove(sub);
+	}
+
+	@Override
+	public void match(String topic, List<Sub> matches) {
+		int size = subs.size();
+		int workers = pool.getParallelism();
+		if (size < threshold || workers < 2) {  // not worth the hand-off
+			subs.match(topic, matches);
+			return;
+		}
+		int segmentSize = Math.max(MIN_SEGMENT, size / (workers * SEGMENTS_PER_WORKER) + 1);
+		@SuppressWarnings("unchecked")
+		List<Sub>[] results = new List[(size + segmentSize - 1) / segmentSize];
+		pool.invoke(new SegmentTask(topic, results, segmentSize, 0, results.length));
+		for (List<Sub> result : results) matches.addAll(result);
+	}
+
+	/** Splits the segments in half until it's down to one, so idle workers can steal the other halves */
+	private final class SegmentTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+		private final String topic;
+		private final List<Sub>[] results;
+		private final int segmentSize;
+		private final int from;
+		private final int to;
+
+		SegmentTask(String topic, List<Sub>[] results, int segmentSize, int from, int to) {
+			this.topic = topic;
+			this.results = results;
+			this.segmentSize = segmentSize;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from == 1) {
+				List<Sub> found = new ArrayList<>();
+				subs.match(topic, found, from * segmentSize, Math.min(subs.size(), (from + 1) * segmentSize));
+				results[from] = found;
+				return;
+			}
+			int mid = (from + to) >>> 1;
+			invokeAll(new SegmentTask(topic, results, segmentSize, from, mid), new SegmentTask(topic, results, segmentSize, mid, to));
+		}
+	}
+
+	@Override
+	public int size() {
+		return subs.size();
+	}
+}
@@ -0,0 +1,14 @@
+package com.solace.labs.topic;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * Turns a message's payload into something useful (text, a parsed JSON tree, a protobuf...).  Used through a
+ * {@link MessageContext}, which runs each decoder at most once per message no matter how many callbacks ask for it, so
+ * the decoder must be stateless (or at least thread-safe), and should be a shared constant: results are cached by decoder
+ * instance.  See {@link PayloadDecoders} for the built-in ones.
+ */
+@FunctionalInterface
+public interface PayloadDecoder<T> {
+	public T decode(BytesXMLMessage msg) throws Exception;
+}
@@ -0,0 +1,32 @@
+package com.solace.labs.topic;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import com.solacesystems.jcsmp.MapMessage;
+import com.solacesystems.jcsmp.SDTMap;
+import com.solacesystems.jcsmp.TextMessage;
+
+/** The built-in {@link PayloadDecoder}s.  Anything fancier (JSON etc.) is easy to plug in, as a constant somewhere. */
+public final class PayloadDecoders {
+
+	/** The text of a {@link TextMessage}, or the binary attachment as UTF-8 for anything else; null if there's no payload */
+	public static final PayloadDecoder<String> TEXT = msg -> {
+		if (msg instanceof TextMessage) return ((TextMessage)msg).getText();
+		ByteBuffer attachment = msg.getAttachmentByteBuffer();
+		return attachment == null ? null : StandardCharsets.UTF_8.decode(attachment.duplicate()).toString();
+	};
+
+	/** The binary attachment, read-only; null if there isn't one */
+	public static final PayloadDecoder<ByteBuffer> BYTES = msg -> {
+		ByteBuffer attachment = msg.getAttachmentByteBuffer();
+		return attachment == null ? null : attachment.asReadOnlyBuffer();
+	};
+
+	/** The map of a {@link MapMessage}; null for any other kind of message */
+	public static final PayloadDecoder<SDTMap> SDT_MAP = msg -> msg instanceof MapMessage ? ((MapMessage)msg).getMap() : null;
+
+	private PayloadDecoders() {
+		throw new AssertionError("Don't instantiate util class");
+	}
+}
@@ -0,0 +1,11 @@
+package com.solace.labs.topic;
+
+/** A {@link PayloadDecoder} failed.  Thrown to every callback that asks for that decoding of that message. */
+public class PayloadDecodingException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public PayloadDecodingException(String message, Throwable cause) {
+		super(message, cause);
+	}
+}
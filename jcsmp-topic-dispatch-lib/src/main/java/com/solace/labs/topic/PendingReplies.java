@@ -0,0 +1,148 @@
+package com.solace.labs.topic;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * The request/reply fast path: replies we're waiting for, by correlation ID.  A reply that's expected goes straight to
+ * whoever's waiting for it, before (and instead of) any topic matching, so its latency doesn't depend on how many subs
+ * are registered.  Each expected reply is one-shot, and expires after its timeout: a future fails with a
+ * {@link TimeoutException}, and a handler gets an <code>onUncaughtException()</code> (on a worker thread, not the timer's).
+ */
+final class PendingReplies {
+
+	private static final Logger logger = Logger.getLogger(PendingReplies.class.getName());
+
+	private static final class Pending {
+		final DispatchMessageListener handler;
+		volatile ScheduledFuture<?> timer = null;  // set just after it's put in the map, so might still be null on a very quick reply
+		final CompletableFuture<BytesXMLMessage> future;  // only if someone's waiting on a future instead of a handler
+
+		Pending(DispatchMessageListener handler, CompletableFuture<BytesXMLMessage> future) {
+			this.handler = handler;
+			this.future = future;
+		}
+	}
+
+	/** So a future can go through the same delivery path as a handler */
+	private static final class FutureHandler implements DispatchMessageListener {
+		final CompletableFuture<BytesXMLMessage> future = new CompletableFuture<>();
+
+		@Override
+		public void onReceive(BytesXMLMessage msg) {
+			future.complete(msg);
+		}
+
+		@Override
+		public void onUncaughtException(TopicDispatchException e) {
+			// can't happen, complete() doesn't throw
+		}
+	}
+
+	private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+	private final LongAdder replies = new LongAdder();
+	private final LongAdder expired = new LongAdder();
+
+	/** @throws IllegalStateException if there's already a reply expected with that correlation ID */
+	void expect(String correlationId, long timeoutMillis, DispatchMessageListener handler) {
+		add(correlationId, timeoutMillis, new Pending(handler, null));
+	}
+
+	CompletableFuture<BytesXMLMessage> expect(String correlationId, long timeoutMillis) {
+		FutureHandler handler = new FutureHandler();
+		Pending p = new Pending(handler, handler.future);
+		add(correlationId, timeoutMillis, p);
+		handler.future.whenComplete((msg, e) -> {  // cancelled by the caller: stop waiting
+			if (handler.future.isCancelled()) remove(correlationId, p);
+		});
+		return handler.future;
+	}
+
+	private void add(String correlationId, long timeoutMillis, Pending p) {
+		if (correlationId == null) throw new NullPointerException("Correlation ID is null");
+		if (timeoutMillis <= 0) throw new IllegalArgumentException("Timeout must be positive");
+		if (pending.putIfAbsent(correlationId, p) != null) {
+			throw new IllegalStateException("Already expecting a reply with correlation ID '" + correlationId + "'");
+		}
+		p.timer = DispatchTimers.get().schedule(() -> expire(correlationId, p), timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Runs on the timer thread */
+	private void expire(String correlationId, Pending p) {
+		if (!pending.remove(correlationId, p)) return;  // got its reply just in time
+		expired.increment();
+		if (p.future != null) {
+			p.future.completeExceptionally(new TimeoutException("No reply with correlation ID '" + correlationId + "'"));
+		} else {
+			logger.fine("No reply with correlation ID '" + correlationId + "' before the timeout, giving up on it");
+			DispatchTimers.workers().execute(() -> {  // user code, so not on the timer thread
+				try {
+					p.handler.onUncaughtException(new TopicDispatchException("No reply with correlation ID '" + correlationId + "' before the timeout"));
+				} catch (Exception e) {
+					// ignore, it's a one-shot anyway
+				}
+			});
+		}
+	}
+
+	private boolean remove(String correlationId, Pending p) {
+		if (!pending.remove(correlationId, p)) return false;
+		ScheduledFuture<?> timer = p.timer;
+		if (timer != null) timer.cancel(false);
+		return true;
+	}
+
+	boolean cancel(String correlationId) {
+		Pending p = pending.get(correlationId);
+		if (p == null || !remove(correlationId, p)) return false;
+		if (p.future != null) p.future.cancel(false);
+		return true;
+	}
+
+	/** Cheap enough to check on every message */
+	boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * If this message is a reply we're waiting for, hands it over and returns true; the dispatcher doesn't need to do
+	 * anything else with it.  A handler that throws is told, but there's nothing to unregister.
+	 */
+	boolean deliver(BytesXMLMessage message, MessageTracker tracker) {
+		String correlationId = message.getCorrelationId();
+		if (correlationId == null) return false;
+		Pending p = pending.get(correlationId);
+		if (p == null || !remove(correlationId, p)) return false;  // not ours, or it just expired
+		replies.increment();
+		try {
+			MessageListenerWithTopicDispatch.deliver(p.handler, message, tracker == null ? DeliveryCompletion.NONE : tracker.begin(p.handler));
+		} catch (RuntimeException e) {
+			try {
+				p.handler.onUncaughtException(new TopicDispatchException("Uncaught exception from reply handler for correlation ID '" + correlationId + "'", e));
+			} catch (Exception e2) {
+				// ignore, it's a one-shot anyway
+			}
+		}
+		return true;
+	}
+
+	int size() {
+		return pending.size();
+	}
+
+	long getReplyCount() {
+		return replies.sum();
+	}
+
+	long getExpiredCount() {
+		return expired.sum();
+	}
+}
@@ -0,0 +1,26 @@
+package com.solace.labs.topic;
+
+/**
+ * How urgently a registration's messages get the offload executor when it's backed up (see {@link DeliveryPolicy}).
+ * The executor's threads are shared out by weighted round robin over the classes that have something waiting, so a
+ * busy class gets most of the turns but never all of them: nothing starves.
+ */
+public enum PriorityClass {
+	/** Control and order-management traffic: 16 turns for every 4 of {@link #NORMAL} and 1 of {@link #BULK} */
+	CONTROL(16),
+	NORMAL(4),
+	/** Telemetry and the like, that can wait */
+	BULK(1),
+	;
+
+	private final int weight;
+
+	private PriorityClass(int weight) {
+		this.weight = weight;
+	}
+
+	/** Relative share of the offload executor's turns, when every class has something waiting */
+	public int getWeight() {
+		return weight;
+	}
+}
@@ -0,0 +1,29 @@
+package com.solace.labs.topic;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/** JFR: a callback (un)registered.  The duration includes waiting for the write lock, so shows contention with the context threads. */
+@Name("com.solace.labs.topic.RegistryChange")
+@Label("Topic Dispatch Registry Change")
+@Category({ "Solace", "Topic Dispatch" })
+@Description("A callback registered or unregistered, including the wait for the registry write lock")
+@StackTrace(false)
+final class RegistryChangeEvent extends jdk.jfr.Event {
+
+	@Label("Action")
+	String action;
+
+	@Label("Sub")
+	String sub;
+
+	@Label("Callback Class")
+	Class<?> callbackClass;
+
+	@Label("Sub Added or Removed")
+	@Description("The sub itself was new to the registry, or is now gone from it, so the index changed")
+	boolean indexChanged;
+}
@@ -0,0 +1,283 @@
+package com.solace.labs.topic;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * <p>The on-disk format for {@link MessageListenerWithTopicDispatch#saveSnapshot(Path, Function, boolean)}.  Big-endian:</p>
+ * <pre>
+ *   int magic, int version
+ *   int listener ID count, then each ID string
+ *   int sub count, then for each: the sub string, int n, then n of: listener ID index, int {@link Kind} ordinal (and for
+ *     {@link Kind#BATCHED}, int max batch size and long linger millis), int 1 and the selector expression string if that
+ *     registration has one, else int 0, then int 1 and its delivery policy (priority class name string, long deadline
+ *     millis, expiry name string) if it has one, else int 0
+ *   int hot topic count, then for each: the topic string, int n, n sub indexes
+ *   int 1 if an off-heap trie follows (its ID table and raw arena bytes), else 0
+ *   int CRC32 of everything before it
+ * </pre>
+ * <p>Strings are an int length and UTF-8 bytes.  Reading maps the file read-only, and an off-heap trie's arena
+ * chunks are bulk-copied straight out of the mapping, with nothing rebuilt.</p>
+ * <p>The listener IDs are for what the application registered, not the dispatcher's wrappers: a batched, conflated or
+ * weak registration saves its delegate's ID and its kind, so it can be registered the same way again.  A lingering
+ * batch's executor and a conflater's executor can't be saved.</p>
+ */
+final class RegistrySnapshot {
+
+	static final int MAGIC = 0x54445350;  // "TDSP"
+	static final int VERSION = 4;  // 2 added selectors, 3 delivery policies, 4 registration kinds
+
+	/** How a registration was made, i.e. which register method gets it back */
+	enum Kind {
+		/** {@link MessageListenerWithTopicDispatch#registerCallback(Sub, DispatchMessageListener, Selector, DeliveryPolicy)} */
+		PLAIN,
+		/** {@link MessageListenerWithTopicDispatch#registerCallback(Sub, BatchDispatchMessageListener, int, long)} */
+		BATCHED,
+		/** {@link MessageListenerWithTopicDispatch#registerConflatedCallback(Sub, DispatchMessageListener, java.util.concurrent.Executor)} */
+		CONFLATED,
+		/** {@link MessageListenerWithTopicDispatch#registerWeakCallback(Sub, DispatchMessageListener)} */
+		WEAK,
+		;
+
+		static Kind of(DispatchMessageListener registered) {
+			if (registered instanceof BatchingMessageListener) return BATCHED;
+			if (registered instanceof ConflatingMessageListener) return CONFLATED;
+			if (registered instanceof WeakCallback) return WEAK;
+			return PLAIN;
+		}
+
+		/** What the application registered: null for a weak one that's been collected */
+		static Object unwrap(DispatchMessageListener registered) {
+			if (registered instanceof BatchingMessageListener) return ((BatchingMessageListener)registered).getDelegate();
+			if (registered instanceof ConflatingMessageListener) return ((ConflatingMessageListener)registered).getDelegate();
+			if (registered instanceof WeakCallback) return ((WeakCallback)registered).get();
+			return registered;
+		}
+	}
+
+	final List<Sub> subs = new ArrayList<>();
+	final List<String[]> listenerIds = new ArrayList<>();  // per sub
+	final List<Selector[]> selectors = new ArrayList<>();  // per sub, lined up with its listener IDs; null where there's none
+	final List<DeliveryPolicy[]> policies = new ArrayList<>();  // same
+	final List<Kind[]> kinds = new ArrayList<>();  // same
+	final List<int[]> maxBatchSizes = new ArrayList<>();  // same, only set for BATCHED
+	final List<long[]> lingerMillis = new ArrayList<>();  // same
+	final Map<String, Sub[]> hotTopics = new LinkedHashMap<>();
+	OffHeapTrieEngine offHeapEngine = null;
+
+	private RegistrySnapshot() {
+	}
+
+	/**
+	 * Writes to a temp file next to it first, forces that to disk, then moves it into place, so a crash never leaves a
+	 * half-written snapshot (or an empty one, if the rename made it to disk before the data did)
+	 */
+	static void write(Path file, Map<Sub, Set<DispatchMessageListener>> callbacks, MatchEngine engine,
+			Function<Object, String> idOf, BiFunction<Sub, DispatchMessageListener, Selector> selectorOf,
+			BiFunction<Sub, DispatchMessageListener, DeliveryPolicy> policyOf, boolean includeHotTopics) throws IOException {
+		Map<String, Integer> idIndexes = new LinkedHashMap<>();
+		Map<Sub, List<Integer>> subIds = new LinkedHashMap<>();
+		Map<Sub, List<Selector>> subSelectors = new HashMap<>();
+		Map<Sub, List<DeliveryPolicy>> subPolicies = new HashMap<>();
+		Map<Sub, List<DispatchMessageListener>> subCallbacks = new HashMap<>();
+		for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : callbacks.entrySet()) {
+			List<Integer> ids = new ArrayList<>();
+			List<Selector> selectors = new ArrayList<>();
+			List<DeliveryPolicy> policies = new ArrayList<>();
+			List<DispatchMessageListener> registered = new ArrayList<>();
+			for (DispatchMessageListener callback : entry.getValue()) {
+				Object target = Kind.unwrap(callback);
+				if (target == null) continue;  // weak, and already collected: nothing to bring back
+				registered.add(callback);
+				selectors.add(selectorOf.apply(entry.getKey(), callback));
+				policies.add(policyOf.apply(entry.getKey(), callback));
+				String id = idOf.apply(target);
+				if (id == null) throw new IllegalArgumentException("No ID for callback " + target + " on sub " + entry.getKey());
+				Integer index = idIndexes.get(id);
+				if (index == null) {
+					index = idIndexes.size();
+					idIndexes.put(id, index);
+				}
+				ids.add(index);
+			}
+			subIds.put(entry.getKey(), ids);
+			subSelectors.put(entry.getKey(), selectors);
+			subPolicies.put(entry.getKey(), policies);
+			subCallbacks.put(entry.getKey(), registered);
+		}
+		Map<Sub, Integer> subIndexes = new HashMap<>();
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		CRC32 crc = new CRC32();
+		try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			OutputStream fileOut = Channels.newOutputStream(channel);
+			DataOutputStream out = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(fileOut, 1 << 16), crc));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(idIndexes.size());
+			for (String id : idIndexes.keySet()) writeString(out, id);
+			out.writeInt(subIds.size());
+			for (Map.Entry<Sub, List<Integer>> entry : subIds.entrySet()) {
+				subIndexes.put(entry.getKey(), subIndexes.size());
+				writeString(out, entry.getKey().topicSubscription);
+				out.writeInt(entry.getValue().size());
+				List<Selector> selectors = subSelectors.get(entry.getKey());
+				List<DeliveryPolicy> policies = subPolicies.get(entry.getKey());
+				List<DispatchMessageListener> registered = subCallbacks.get(entry.getKey());
+				for (int i=0; i<entry.getValue().size(); i++) {
+					out.writeInt(entry.getValue().get(i));
+					Kind kind = Kind.of(registered.get(i));
+					out.writeInt(kind.ordinal());
+					if (kind == Kind.BATCHED) {
+						BatchingMessageListener batcher = (BatchingMessageListener)registered.get(i);
+						out.writeInt(batcher.getMaxBatchSize());
+						out.writeLong(batcher.getLingerMillis());
+					}
+					Selector selector = selectors.get(i);
+					if (selector == null) {
+						out.writeInt(0);
+					} else {
+						out.writeInt(1);
+						writeString(out, selector.getExpression());
+					}
+					DeliveryPolicy policy = policies.get(i);
+					if (policy == null) {
+						out.writeInt(0);
+					} else {
+						out.writeInt(1);
+						writeString(out, policy.getPriority().name());
+						out.writeLong(policy.getDeadlineMillis());
+						writeString(out, policy.getExpiry().name());
+					}
+				}
+			}
+			if (includeHotTopics && engine instanceof TopicCacheEngine) {
+				Map<String, Sub[]> cached = new HashMap<>(((TopicCacheEngine)engine).getCached());  // it might change under us
+				out.writeInt(cached.size());
+				for (Map.Entry<String, Sub[]> entry : cached.entrySet()) {
+					writeString(out, entry.getKey());
+					out.writeInt(entry.getValue().length);
+					for (Sub sub : entry.getValue()) out.writeInt(subIndexes.get(sub));
+				}
+			} else {
+				out.writeInt(0);
+			}
+			if (engine instanceof OffHeapTrieEngine) {
+				out.writeInt(1);
+				((OffHeapTrieEngine)engine).write(out, subIndexes);
+			} else {
+				out.writeInt(0);
+			}
+			out.flush();
+			new DataOutputStream(fileOut).writeInt((int)crc.getValue());
+			channel.force(true);
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		Path dir = file.toAbsolutePath().getParent();
+		try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			dirChannel.force(true);  // and the rename itself
+		} catch (IOException e) {
+			// not every platform lets you open a directory, the file's safe either way
+		}
+	}
+
+	/** @throws IOException if the file can't be read, isn't a snapshot, is a different version, or is corrupt */
+	static RegistrySnapshot read(Path file) throws IOException {
+		MappedByteBuffer map;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() < 12 || channel.size() > Integer.MAX_VALUE) throw new IOException("Not a topic dispatch snapshot: " + file);
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());  // stays valid after the channel is closed
+		}
+		int length = map.capacity() - 4;
+		if (map.getInt(0) != MAGIC) throw new IOException("Not a topic dispatch snapshot: " + file);
+		if (map.getInt(4) != VERSION) throw new IOException("Unsupported snapshot version " + map.getInt(4) + " in " + file + ", expected " + VERSION);
+		CRC32 crc = new CRC32();
+		ByteBuffer body = map.duplicate();
+		body.limit(length);
+		crc.update(body);
+		if ((int)crc.getValue() != map.getInt(length)) throw new IOException("Snapshot checksum mismatch, file is corrupt: " + file);
+		try {
+			ByteBuffer in = map.duplicate();
+			in.position(8);
+			in.limit(length);
+			RegistrySnapshot snapshot = new RegistrySnapshot();
+			String[] ids = new String[in.getInt()];
+			for (int i=0; i<ids.length; i++) ids[i] = readString(in);
+			int subCount = in.getInt();
+			for (int i=0; i<subCount; i++) {
+				snapshot.subs.add(new Sub(readString(in)));
+				String[] subIds = new String[in.getInt()];
+				Selector[] selectors = new Selector[subIds.length];
+				DeliveryPolicy[] policies = new DeliveryPolicy[subIds.length];
+				Kind[] kinds = new Kind[subIds.length];
+				int[] maxBatchSizes = new int[subIds.length];
+				long[] lingerMillis = new long[subIds.length];
+				for (int j=0; j<subIds.length; j++) {
+					subIds[j] = ids[in.getInt()];
+					kinds[j] = Kind.values()[in.getInt()];
+					if (kinds[j] == Kind.BATCHED) {
+						maxBatchSizes[j] = in.getInt();
+						lingerMillis[j] = in.getLong();
+					}
+					if (in.getInt() == 1) selectors[j] = new Selector(readString(in));
+					if (in.getInt() == 1) {
+						PriorityClass priority = PriorityClass.valueOf(readString(in));
+						long deadlineMillis = in.getLong();
+						policies[j] = new DeliveryPolicy(priority, deadlineMillis, DeliveryPolicy.Expiry.valueOf(readString(in)));
+					}
+				}
+				snapshot.listenerIds.add(subIds);
+				snapshot.selectors.add(selectors);
+				snapshot.policies.add(policies);
+				snapshot.kinds.add(kinds);
+				snapshot.maxBatchSizes.add(maxBatchSizes);
+				snapshot.lingerMillis.add(lingerMillis);
+			}
+			int hotCount = in.getInt();
+			for (int i=0; i<hotCount; i++) {
+				String topic = readString(in);
+				Sub[] matches = new Sub[in.getInt()];
+				for (int j=0; j<matches.length; j++) matches[j] = snapshot.subs.get(in.getInt());
+				snapshot.hotTopics.put(topic, matches);
+			}
+			if (in.getInt() == 1) {
+				snapshot.offHeapEngine = OffHeapTrieEngine.read(in, snapshot.subs);
+			}
+			return snapshot;
+		} catch (RuntimeException e) {  // checksum was fine, so this would be a bug in the writer
+			throw new IOException("Malformed snapshot: " + file, e);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,66 @@
+package com.solace.labs.topic;
+
+/**
+ * An immutable snapshot of the cheap statistics that the dispatcher keeps on its subscription registry and
+ * on the topics flowing through it.  The traffic numbers are for the most recent sampling window only.
+ */
+public final class RegistryStats {
+
+	private final EngineType engineType;
+	private final int subCount;
+	private final int wildcardCount;
+	private final long windowMessages;
+	private final long distinctTopics;
+	private final double cacheHitRate;
+
+	RegistryStats(EngineType engineType, int subCount, int wildcardCount, long windowMessages, long distinctTopics, double cacheHitRate) {
+		this.engineType = engineType;
+		this.subCount = subCount;
+		this.wildcardCount = wildcardCount;
+		this.windowMessages = windowMessages;
+		this.distinctTopics = distinctTopics;
+		this.cacheHitRate = cacheHitRate;
+	}
+
+	/** The engine that was active when this snapshot was taken */
+	public EngineType getEngineType() {
+		return engineType;
+	}
+
+	public int getSubCount() {
+		return subCount;
+	}
+
+	public int getWildcardCount() {
+		return wildcardCount;
+	}
+
+	/** Fraction of subs that have any kind of wildcard in them, 0.0 if there are no subs */
+	public double getWildcardRatio() {
+		return subCount == 0 ? 0.0 : (double)wildcardCount / subCount;
+	}
+
+	/** How many messages were in the sampling window */
+	public long getWindowMessages() {
+		return windowMessages;
+	}
+
+	/** Estimated number of distinct topics seen during the sampling window (it's a linear-counting sketch, not exact) */
+	public long getDistinctTopics() {
+		return distinctTopics;
+	}
+
+	/**
+	 * The actual hit rate if the topic cache engine was active during the window, otherwise the
+	 * hit rate that an unbounded topic cache <i>would</i> have got on that traffic.
+	 */
+	public double getCacheHitRate() {
+		return cacheHitRate;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("RegistryStats[engine=%s, subs=%d, wildcards=%d (%.1f%%), window msgs=%d, distinct topics~%d, cache hit rate=%.1f%%]",
+				engineType, subCount, wildcardCount, getWildcardRatio()*100, windowMessages, distinctTopics, cacheHitRate*100);
+	}
+}
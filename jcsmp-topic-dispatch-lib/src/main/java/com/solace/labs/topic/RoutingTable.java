@@ -0,0 +1,281 @@
+package com.solace.labs.topic;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * <p>Declarative routing: a text file of subscriptions mapped to named callbacks ("handles"), kept in sync with a dispatcher.
+ * Each (re)load works out the smallest set of (un)registrations that gets the dispatcher's live registry from where it is
+ * to what the file says, and applies them all as one atomic swap, built off to the side so messages keep flowing.  One
+ * line per sub, then whitespace, then one or more comma-separated handle names (spaces around the commas are fine);
+ * <code>//</code> starts a comment (<code>#</code> can't, it's a wildcard):</p>
+ * <pre>
+ * // orders
+ * orders/&gt;           orderHandler
+ * prices/*&#47;fx        pricer, auditor
+ * </pre>
+ * <p>The table owns its handles' registrations: any sub a handle is registered for that isn't in the file gets
+ * unregistered, even if it was registered some other way.  Callbacks that aren't handles are never touched.  A handle
+ * that got unregistered for throwing is put back by the next reload.</p>
+ */
+public final class RoutingTable implements AutoCloseable {
+
+	/** What one (re)load changed */
+	public static final class Diff {
+
+		private final int added;
+		private final int removed;
+		private final int subs;
+
+		Diff(int added, int removed, int subs) {
+			this.added = added;
+			this.removed = removed;
+			this.subs = subs;
+		}
+
+		/** (sub, handle) registrations that weren't there before */
+		public int getAddedCount() {
+			return added;
+		}
+
+		/** (sub, handle) registrations that aren't in the table any more */
+		public int getRemovedCount() {
+			return removed;
+		}
+
+		/** Subs in the table as loaded */
+		public int getSubCount() {
+			return subs;
+		}
+
+		public boolean isEmpty() {
+			return added == 0 && removed == 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("RoutingTable.Diff[subs=%d, added=%d, removed=%d]", subs, added, removed);
+		}
+	}
+
+	private static final Logger logger = Logger.getLogger(RoutingTable.class.getName());
+	/** Editors often save in a few steps (truncate, write, rename...), so wait for the file to settle before reading it */
+	static final long SETTLE_MILLIS = 100;
+
+	private final MessageListenerWithTopicDispatch dispatcher;
+	private final Map<String, DispatchMessageListener> handles = new ConcurrentHashMap<>();
+	private final Object applyLock = new Object();  // one (re)load at a time
+	private volatile WatchService watchService = null;
+	private volatile Diff lastDiff = null;
+	private final AtomicLong reloads = new AtomicLong();
+	private final AtomicLong failedReloads = new AtomicLong();
+
+	public RoutingTable(MessageListenerWithTopicDispatch dispatcher) {
+		this.dispatcher = dispatcher;
+		if (this.dispatcher == null) throw new NullPointerException("Dispatcher is null");
+	}
+
+	/** Names a callback, so the table can route to it.  Register them all before the first load. */
+	public void registerHandle(String name, DispatchMessageListener callback) {
+		if (name == null || name.isEmpty() || name.matches(".*[\\s,].*")) throw new IllegalArgumentException("Bad handle name: '" + name + "'");
+		if (callback == null) throw new NullPointerException("Callback is null");
+		DispatchMessageListener existing = handles.putIfAbsent(name, callback);
+		if (existing != null && existing != callback) throw new IllegalArgumentException("Handle '" + name + "' is already registered");
+	}
+
+	/**
+	 * Reads the file and brings the dispatcher in line with it.  If anything in the file is bad, nothing changes.
+	 * @throws IllegalArgumentException on a malformed sub or an unknown handle, with the line number
+	 */
+	public Diff load(Path file) throws IOException {
+		try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			return load(reader, file.toString());
+		}
+	}
+
+	/** @see #load(Path) */
+	public Diff load(Reader reader, String source) throws IOException {
+		Map<Sub, Set<String>> table = parse(reader instanceof BufferedReader ? (BufferedReader)reader : new BufferedReader(reader), source);
+		Diff diff = apply(table);
+		lastDiff = diff;
+		reloads.incrementAndGet();
+		logger.info("Routing table loaded from " + source + ": " + diff);
+		return diff;
+	}
+
+	static Map<Sub, Set<String>> parse(BufferedReader reader, String source) throws IOException {
+		Map<Sub, Set<String>> table = new LinkedHashMap<>();
+		String line;
+		int lineNum = 0;
+		while ((line = reader.readLine()) != null) {
+			lineNum++;
+			int comment = line.indexOf("//");
+			if (comment >= 0) line = line.substring(0, comment);
+			line = line.trim();
+			if (line.isEmpty()) continue;
+			int split = lastWhitespace(line, line.length());  // handle names have no spaces, a sub could
+			while (split > 0) {  // but "pricer, auditor" is still all handles: take in any word that's joined on by a comma
+				int before = split;
+				while (before > 0 && Character.isWhitespace(line.charAt(before - 1))) before--;
+				int after = split + 1;
+				while (after < line.length() && Character.isWhitespace(line.charAt(after))) after++;
+				if (before == 0 || (line.charAt(before - 1) != ',' && line.charAt(after) != ',')) break;
+				split = lastWhitespace(line, before);
+			}
+			if (split < 0) throw new IllegalArgumentException(source + " line " + lineNum + ": no handle for sub '" + line + "'");
+			Sub sub;
+			try {
+				sub = new Sub(line.substring(0, split).trim());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException(source + " line " + lineNum + ": " + e.getMessage());
+			}
+			Set<String> names = table.computeIfAbsent(sub, k -> new LinkedHashSet<>());
+			for (String name : line.substring(split + 1).split(",", -1)) {
+				name = name.trim();
+				if (name.isEmpty()) throw new IllegalArgumentException(source + " line " + lineNum + ": empty handle name");
+				names.add(name);
+			}
+		}
+		return table;
+	}
+
+	/** The last space or tab before <code>end</code>, or -1 */
+	private static int lastWhitespace(String line, int end) {
+		for (int i=end-1; i>=0; i--) {
+			if (line.charAt(i) == ' ' || line.charAt(i) == '\t') return i;
+		}
+		return -1;
+	}
+
+	private Diff apply(Map<Sub, Set<String>> table) {
+		Map<Sub, Set<DispatchMessageListener>> wanted = new HashMap<>();
+		for (Map.Entry<Sub, Set<String>> entry : table.entrySet()) {
+			Set<DispatchMessageListener> set = new HashSet<>(4);
+			for (String name : entry.getValue()) {
+				DispatchMessageListener callback = handles.get(name);
+				if (callback == null) throw new IllegalArgumentException("Unknown handle '" + name + "' for sub " + entry.getKey());
+				set.add(callback);
+			}
+			wanted.put(entry.getKey(), set);
+		}
+		synchronized (applyLock) {
+			Map<Sub, Set<DispatchMessageListener>> live = dispatcher.getRegistrations(handles.values());
+			Map<Sub, Set<DispatchMessageListener>> removals = new HashMap<>();
+			Map<Sub, Set<DispatchMessageListener>> additions = new HashMap<>();
+			int removed = 0;
+			int added = 0;
+			for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : live.entrySet()) {
+				Set<DispatchMessageListener> gone = new HashSet<>(entry.getValue());
+				Set<DispatchMessageListener> keep = wanted.get(entry.getKey());
+				if (keep != null) gone.removeAll(keep);
+				if (!gone.isEmpty()) {
+					removals.put(entry.getKey(), gone);
+					removed += gone.size();
+				}
+			}
+			for (Map.Entry<Sub, Set<DispatchMessageListener>> entry : wanted.entrySet()) {
+				Set<DispatchMessageListener> fresh = new HashSet<>(entry.getValue());
+				Set<DispatchMessageListener> already = live.get(entry.getKey());
+				if (already != null) fresh.removeAll(already);
+				if (!fresh.isEmpty()) {
+					additions.put(entry.getKey(), fresh);
+					added += fresh.size();
+				}
+			}
+			if (added > 0 || removed > 0) dispatcher.applyChanges(removals, additions);
+			return new Diff(added, removed, table.size());
+		}
+	}
+
+	/**
+	 * Loads the file now, then again every time it changes, on a daemon thread.  A reload that fails (bad line,
+	 * unknown handle) is logged and leaves the previous routing in place.
+	 * @throws IOException or IllegalArgumentException if the first load fails, in which case nothing is watched
+	 */
+	public synchronized void watch(Path file) throws IOException {
+		if (watchService != null) throw new IllegalStateException("Already watching a file");
+		final Path path = file.toAbsolutePath();
+		load(path);
+		WatchService service = path.getFileSystem().newWatchService();
+		path.getParent().register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+		watchService = service;
+		Thread watcher = new Thread(() -> watchLoop(service, path), "TopicDispatch-RoutingTable");
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	private void watchLoop(WatchService service, Path path) {
+		try {
+			while (true) {
+				if (!changed(service.take(), path)) continue;
+				// let it settle, and swallow the rest of the burst
+				Thread.sleep(SETTLE_MILLIS);
+				WatchKey more;
+				while ((more = service.poll()) != null) changed(more, path);
+				try {
+					load(path);
+				} catch (IOException | RuntimeException e) {  // bad edit, or a half-written file: keep what we've got
+					failedReloads.incrementAndGet();
+					logger.warning("Could not reload routing table " + path + ", keeping the previous one: " + e);
+				}
+			}
+		} catch (ClosedWatchServiceException | InterruptedException e) {
+			// closed, we're done
+		}
+	}
+
+	/** @return true if any of the key's events were for our file */
+	private static boolean changed(WatchKey key, Path path) {
+		boolean ours = false;
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || path.getFileName().equals(event.context())) ours = true;  // an overflow might have lost ours
+		}
+		key.reset();
+		return ours;
+	}
+
+	/** Stops watching; the current routing stays registered */
+	@Override
+	public synchronized void close() {
+		if (watchService == null) return;
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			// ignore, closing anyway
+		}
+		watchService = null;
+	}
+
+	/** @return what the most recent successful (re)load changed, or null if nothing's been loaded yet */
+	public Diff getLastDiff() {
+		return lastDiff;
+	}
+
+	/** Successful loads, including the first */
+	public long getReloadCount() {
+		return reloads.get();
+	}
+
+	/** Reloads from {@link #watch(Path)} that were rejected, leaving the previous routing in place */
+	public long getFailedReloadCount() {
+		return failedReloads.get();
+	}
+}
@@ -0,0 +1,49 @@
+package com.solace.labs.topic;
+
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import jdk.jfr.SettingControl;
+
+/**
+ * JFR setting <code>sampling</code> for the per-message events: of the ones that get past the event's threshold, only
+ * record about 1 in this many.  Defaults to 1, i.e. all of them.  With the threshold lowered to 0 to see the typical
+ * message rather than just the slow ones, a value like 1000 keeps the recording (and its overhead) small even at
+ * hundreds of thousands of messages a second.  If several recordings set it, the lowest wins.  Random rather than every
+ * n-th, so there's no shared counter for the context threads to fight over.
+ */
+final class SamplingControl extends SettingControl {
+
+	private volatile int oneIn = 1;
+
+	/** On the thread that's about to commit the event, once it's passed the threshold */
+	boolean sample() {
+		int n = oneIn;
+		return n <= 1 || ThreadLocalRandom.current().nextInt(n) == 0;
+	}
+
+	@Override
+	public String combine(Set<String> values) {
+		int lowest = Integer.MAX_VALUE;
+		for (String value : values) lowest = Math.min(lowest, parse(value));
+		return lowest == Integer.MAX_VALUE ? "1" : Integer.toString(lowest);
+	}
+
+	@Override
+	public void setValue(String value) {
+		oneIn = parse(value);
+	}
+
+	@Override
+	public String getValue() {
+		return Integer.toString(oneIn);
+	}
+
+	private static int parse(String value) {
+		try {
+			return Math.max(1, Integer.parseInt(value.trim()));
+		} catch (NumberFormatException e) {
+			return 1;
+		}
+	}
+}
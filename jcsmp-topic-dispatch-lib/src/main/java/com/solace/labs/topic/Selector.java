@@ -0,0 +1,291 @@
+package com.solace.labs.topic;
+
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * <p>A message selector: a SQL-92-like condition over a message's user properties and header fields, the same syntax as
+ * JMS (and broker-side) selectors, e.g. <code>priority &gt; 5 AND region IN ('eu', 'uk') AND JMSType LIKE 'order.%'</code>.
+ * Register a callback with one (see {@link MessageListenerWithTopicDispatch#registerCallback(Sub, DispatchMessageListener, Selector)})
+ * and it's checked after the topic matches, before the callback's called; only messages it's TRUE for get through.</p>
+ * <p>Supported: <code>AND OR NOT</code>, <code>= &lt;&gt; &lt; &lt;= &gt; &gt;=</code>, <code>+ - * /</code>,
+ * <code>[NOT] BETWEEN</code>, <code>[NOT] IN ('a', ...)</code>, <code>[NOT] LIKE 'pat%_' [ESCAPE 'c']</code>,
+ * <code>IS [NOT] NULL</code>, string, integer, decimal and boolean literals.  Identifiers are user properties (from
+ * {@link BytesXMLMessage#getProperties()}), except for the header fields <code>JMSPriority</code>,
+ * <code>JMSCorrelationID</code>, <code>JMSMessageID</code> (the application message ID), <code>JMSType</code> (the
+ * application message type), <code>JMSTimestamp</code> (sender timestamp), <code>JMSDeliveryMode</code> and
+ * <code>JMSRedelivered</code>.  A missing property is NULL, and like SQL, anything compared with NULL is UNKNOWN, which
+ * doesn't pass.</p>
+ * <p>Compiled once, in the constructor, into a tree; immutable and thread-safe.</p>
+ */
+public final class Selector {
+
+	private final String expression;
+	final SelectorExpr root;
+
+	/**
+	 * @param expression e.g. <code>priority &gt; 5 AND JMSType = 'order'</code>
+	 * @throws IllegalArgumentException if it doesn't parse, or isn't a condition (e.g. just <code>a + 1</code>)
+	 */
+	public Selector(String expression) {
+		this.expression = expression;
+		if (this.expression == null) throw new NullPointerException("Selector is null");
+		root = new Parser(expression).parse();
+	}
+
+	public String getExpression() {
+		return expression;
+	}
+
+	/** Evaluates it against the message on its own, without any of the sharing a dispatcher does */
+	public boolean matches(BytesXMLMessage message) {
+		SelectorEvaluation ev = new SelectorEvaluation(0);
+		ev.reset(message, 0);
+		return root.eval(ev) == Boolean.TRUE;
+	}
+
+	/** Selectors are equal if they're the same condition, after normalizing things like case and spacing */
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof Selector && root.key.equals(((Selector)o).root.key);
+	}
+
+	@Override
+	public int hashCode() {
+		return root.key.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return expression;
+	}
+
+	/** Recursive descent, straight off the JMS grammar */
+	private static final class Parser {
+
+		private final String text;
+		private int pos = 0;
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		SelectorExpr parse() {
+			SelectorExpr expr = or();
+			skipSpaces();
+			if (pos < text.length()) throw error("Unexpected '" + text.charAt(pos) + "'");
+			if (!expr.isConditional()) throw error("Not a condition");
+			return expr;
+		}
+
+		private IllegalArgumentException error(String message) {
+			return new IllegalArgumentException(message + " at position " + pos + " of selector: " + text);
+		}
+
+		private SelectorExpr or() {
+			SelectorExpr expr = and();
+			while (keyword("OR")) expr = new SelectorExpr.Or(expr, and());
+			return expr;
+		}
+
+		private SelectorExpr and() {
+			SelectorExpr expr = not();
+			while (keyword("AND")) expr = new SelectorExpr.And(expr, not());
+			return expr;
+		}
+
+		private SelectorExpr not() {
+			if (keyword("NOT")) return new SelectorExpr.Not(not());
+			return predicate();
+		}
+
+		private SelectorExpr predicate() {
+			SelectorExpr left = sum();
+			String op = comparison();
+			if (op != null) return new SelectorExpr.Compare(op, left, sum());
+			if (keyword("IS")) {
+				boolean not = keyword("NOT");
+				if (!keyword("NULL")) throw error("Expected NULL");
+				return new SelectorExpr.IsNull(not, left);
+			}
+			int mark = pos;
+			boolean not = keyword("NOT");
+			if (keyword("BETWEEN")) {
+				SelectorExpr low = sum();
+				if (!keyword("AND")) throw error("Expected AND");
+				return new SelectorExpr.Between(not, left, low, sum());
+			}
+			if (keyword("IN")) {
+				expect('(');
+				Set<String> values = new HashSet<>();
+				do {
+					values.add(string());
+				} while (accept(','));
+				expect(')');
+				return new SelectorExpr.In(not, left, values);
+			}
+			if (keyword("LIKE")) {
+				String pattern = string();
+				Character escape = null;
+				if (keyword("ESCAPE")) {
+					String e = string();
+					if (e.length() != 1) throw error("ESCAPE must be one char");
+					escape = e.charAt(0);
+				}
+				return new SelectorExpr.Like(not, left, pattern, escape);
+			}
+			if (not) throw error("Expected BETWEEN, IN or LIKE after NOT");
+			pos = mark;
+			return left;
+		}
+
+		private String comparison() {
+			skipSpaces();
+			for (String op : new String[] { "<>", "<=", ">=", "=", "<", ">" }) {  // two-char ones first
+				if (text.startsWith(op, pos)) {
+					pos += op.length();
+					return op;
+				}
+			}
+			return null;
+		}
+
+		private SelectorExpr sum() {
+			SelectorExpr expr = product();
+			while (true) {
+				if (accept('+')) expr = new SelectorExpr.Arithmetic('+', expr, product());
+				else if (accept('-')) expr = new SelectorExpr.Arithmetic('-', expr, product());
+				else return expr;
+			}
+		}
+
+		private SelectorExpr product() {
+			SelectorExpr expr = unary();
+			while (true) {
+				if (accept('*')) expr = new SelectorExpr.Arithmetic('*', expr, unary());
+				else if (accept('/')) expr = new SelectorExpr.Arithmetic('/', expr, unary());
+				else return expr;
+			}
+		}
+
+		private SelectorExpr unary() {
+			if (accept('-')) {
+				SelectorExpr operand = unary();
+				if (operand instanceof SelectorExpr.Literal && ((SelectorExpr.Literal)operand).value instanceof Long) {
+					return new SelectorExpr.Literal(-(Long)((SelectorExpr.Literal)operand).value);
+				} else if (operand instanceof SelectorExpr.Literal && ((SelectorExpr.Literal)operand).value instanceof Double) {
+					return new SelectorExpr.Literal(-(Double)((SelectorExpr.Literal)operand).value);
+				}
+				return new SelectorExpr.Negate(operand);
+			}
+			accept('+');
+			return primary();
+		}
+
+		private SelectorExpr primary() {
+			skipSpaces();
+			if (pos >= text.length()) throw error("Unexpected end");
+			char c = text.charAt(pos);
+			if (accept('(')) {
+				SelectorExpr expr = or();
+				expect(')');
+				return expr;
+			}
+			if (c == '\'') return new SelectorExpr.Literal(string());
+			if (Character.isDigit(c) || c == '.') return number();
+			if (Character.isJavaIdentifierStart(c)) {
+				int start = pos;
+				while (pos < text.length() && Character.isJavaIdentifierPart(text.charAt(pos))) pos++;
+				String word = text.substring(start, pos);
+				switch (word.toUpperCase(Locale.ROOT)) {
+				case "TRUE":
+					return new SelectorExpr.Literal(Boolean.TRUE);
+				case "FALSE":
+					return new SelectorExpr.Literal(Boolean.FALSE);
+				case "NULL": case "AND": case "OR": case "NOT": case "BETWEEN": case "IN": case "LIKE": case "ESCAPE": case "IS":
+					pos = start;
+					throw error("Unexpected " + word);
+				default:
+					return new SelectorExpr.Identifier(word);
+				}
+			}
+			throw error("Unexpected '" + c + "'");
+		}
+
+		private SelectorExpr number() {
+			int start = pos;
+			boolean decimal = false;
+			while (pos < text.length() && Character.isDigit(text.charAt(pos))) pos++;
+			if (pos < text.length() && text.charAt(pos) == '.') {
+				decimal = true;
+				pos++;
+				while (pos < text.length() && Character.isDigit(text.charAt(pos))) pos++;
+			}
+			if (pos < text.length() && (text.charAt(pos) == 'e' || text.charAt(pos) == 'E')) {
+				decimal = true;
+				pos++;
+				if (pos < text.length() && (text.charAt(pos) == '+' || text.charAt(pos) == '-')) pos++;
+				while (pos < text.length() && Character.isDigit(text.charAt(pos))) pos++;
+			}
+			String number = text.substring(start, pos);
+			try {
+				return new SelectorExpr.Literal(decimal ? (Object)Double.valueOf(number) : (Object)Long.valueOf(number));
+			} catch (NumberFormatException e) {
+				pos = start;
+				throw error("Bad number '" + number + "'");
+			}
+		}
+
+		/** A quoted string literal, with '' for a quote */
+		private String string() {
+			skipSpaces();
+			if (pos >= text.length() || text.charAt(pos) != '\'') throw error("Expected a quoted string");
+			StringBuilder sb = new StringBuilder();
+			pos++;
+			while (true) {
+				if (pos >= text.length()) throw error("Unterminated string");
+				char c = text.charAt(pos++);
+				if (c == '\'') {
+					if (pos < text.length() && text.charAt(pos) == '\'') {
+						sb.append('\'');
+						pos++;
+					} else {
+						return sb.toString();
+					}
+				} else {
+					sb.append(c);
+				}
+			}
+		}
+
+		/** Case-insensitive, and only a whole word */
+		private boolean keyword(String word) {
+			skipSpaces();
+			int end = pos + word.length();
+			if (!text.regionMatches(true, pos, word, 0, word.length())) return false;
+			if (end < text.length() && Character.isJavaIdentifierPart(text.charAt(end))) return false;
+			pos = end;
+			return true;
+		}
+
+		private boolean accept(char c) {
+			skipSpaces();
+			if (pos < text.length() && text.charAt(pos) == c) {
+				pos++;
+				return true;
+			}
+			return false;
+		}
+
+		private void expect(char c) {
+			if (!accept(c)) throw error("Expected '" + c + "'");
+		}
+
+		private void skipSpaces() {
+			while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+		}
+	}
+}
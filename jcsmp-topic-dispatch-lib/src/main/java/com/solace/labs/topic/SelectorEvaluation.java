@@ -0,0 +1,75 @@
+package com.solace.labs.topic;
+
+import java.util.Arrays;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.SDTException;
+import com.solacesystems.jcsmp.SDTMap;
+
+/**
+ * Everything about evaluating selectors against one message: its user properties (only fetched if a selector asks for
+ * one), and the value of every interned sub-expression worked out so far.  One per thread, reused for every message via
+ * a stamp, so resetting it is just an increment.  Not thread-safe.
+ */
+final class SelectorEvaluation {
+
+	private BytesXMLMessage message;
+	private SDTMap properties;
+	private boolean propertiesFetched;
+	private Object[] values;
+	private int[] stamps;
+	private int stamp = 0;
+
+	SelectorEvaluation(int slots) {
+		values = new Object[Math.max(slots, 8)];
+		stamps = new int[values.length];
+	}
+
+	/** Starts on a new message; everything memoized for the last one is forgotten */
+	void reset(BytesXMLMessage message, int slots) {
+		this.message = message;
+		properties = null;
+		propertiesFetched = false;
+		if (slots > values.length) {
+			values = new Object[Math.max(slots, values.length * 2)];
+			stamps = new int[values.length];
+		}
+		if (++stamp == 0) {  // wrapped around, now an old stamp could look current
+			Arrays.fill(stamps, 0);
+			stamp = 1;
+		}
+	}
+
+	BytesXMLMessage message() {
+		return message;
+	}
+
+	Object memoized(SelectorExpr expr) {
+		int slot = expr.slot;
+		if (stamps[slot] == stamp) return values[slot];
+		Object value = expr.compute(this);
+		values[slot] = value;
+		stamps[slot] = stamp;
+		return value;
+	}
+
+	/** A user property, as a selector sees it: integers as Long, floats as Double, chars as String; anything else is null */
+	Object property(String name) {
+		if (!propertiesFetched) {
+			properties = message.getProperties();
+			propertiesFetched = true;
+		}
+		if (properties == null) return null;
+		Object value;
+		try {
+			value = properties.get(name);
+		} catch (SDTException e) {
+			return null;
+		}
+		if (value instanceof Long || value instanceof Double || value instanceof String || value instanceof Boolean) return value;
+		if (value instanceof Integer || value instanceof Short || value instanceof Byte) return ((Number)value).longValue();
+		if (value instanceof Float) return ((Float)value).doubleValue();
+		if (value instanceof Character) return value.toString();
+		return null;  // maps, streams, byte arrays, destinations: not comparable
+	}
+}
@@ -0,0 +1,402 @@
+package com.solace.labs.topic;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.DeliveryMode;
+
+/**
+ * One node of a compiled {@link Selector}.  Values are SQL-style: Boolean (with null meaning UNKNOWN), Long or Double
+ * for numbers, or String.  Nothing here throws while evaluating: a missing property, a type mismatch or a divide by zero
+ * is just UNKNOWN, which a selector doesn't pass.
+ * <p>Each node's {@link #key} is canonical text for it, so the same sub-expression gets the same key whichever selector
+ * it came from (and whichever way round an AND, OR, = or &lt;&gt; was written).  A dispatcher interns its selectors on
+ * those keys, giving each distinct sub-expression a {@link #slot}, so it's worked out once per message no matter how
+ * many listeners' selectors have it.</p>
+ */
+abstract class SelectorExpr {
+
+	final String key;
+	/** Where this node's value is memoized per message; -1 for never (literals, and selectors used on their own) */
+	int slot = -1;
+
+	SelectorExpr(String key) {
+		this.key = key;
+	}
+
+	abstract SelectorExpr[] children();
+
+	/** A copy of this node with (interned) children in place of its own */
+	abstract SelectorExpr withChildren(SelectorExpr[] children);
+
+	abstract Object compute(SelectorEvaluation ev);
+
+	/** Whether it can be a whole selector: only things that might come out TRUE */
+	boolean isConditional() {
+		return true;
+	}
+
+	final Object eval(SelectorEvaluation ev) {
+		if (slot < 0) return compute(ev);
+		return ev.memoized(this);
+	}
+
+	@Override
+	public String toString() {
+		return key;
+	}
+
+	private static final SelectorExpr[] NONE = new SelectorExpr[0];
+
+	// --- leaves ---
+
+	static final class Literal extends SelectorExpr {
+		final Object value;
+
+		Literal(Object value) {
+			super(value instanceof String ? "'" + ((String)value).replace("'", "''") + "'" : String.valueOf(value).toUpperCase());
+			this.value = value;
+		}
+
+		@Override SelectorExpr[] children() { return NONE; }
+		@Override SelectorExpr withChildren(SelectorExpr[] children) { return this; }
+		@Override Object compute(SelectorEvaluation ev) { return value; }
+		@Override boolean isConditional() { return value instanceof Boolean; }
+	}
+
+	/** A header field (the JMS names, same as broker-side selectors) or else a user property */
+	static final class Identifier extends SelectorExpr {
+		final String name;
+		private final int header;
+
+		static final String[] HEADERS = { "JMSPriority", "JMSCorrelationID", "JMSMessageID", "JMSType", "JMSTimestamp", "JMSDeliveryMode", "JMSRedelivered" };
+
+		Identifier(String name) {
+			super(name);
+			this.name = name;
+			this.header = Arrays.asList(HEADERS).indexOf(name);
+		}
+
+		@Override SelectorExpr[] children() { return NONE; }
+		@Override SelectorExpr withChildren(SelectorExpr[] children) { return new Identifier(name); }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			if (header < 0) return ev.property(name);
+			BytesXMLMessage msg = ev.message();
+			switch (header) {
+			case 0: return (long)msg.getPriority();
+			case 1: return msg.getCorrelationId();
+			case 2: return msg.getApplicationMessageId();
+			case 3: return msg.getApplicationMessageType();
+			case 4: return msg.getSenderTimestamp();
+			case 5: return msg.getDeliveryMode() == DeliveryMode.PERSISTENT ? "PERSISTENT" : "NON_PERSISTENT";  // like JMS: direct is non-persistent
+			default: return msg.getRedelivered();
+			}
+		}
+	}
+
+	// --- logic, three-valued ---
+
+	static final class And extends SelectorExpr {
+		final SelectorExpr left, right;
+
+		And(SelectorExpr a, SelectorExpr b) {
+			super(commutative(a, " AND ", b));
+			boolean swap = a.key.compareTo(b.key) > 0;
+			this.left = swap ? b : a;
+			this.right = swap ? a : b;
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { left, right }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new And(c[0], c[1]); }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			Object l = left.eval(ev);
+			if (l == Boolean.FALSE) return Boolean.FALSE;
+			Object r = right.eval(ev);
+			if (r == Boolean.FALSE) return Boolean.FALSE;
+			return l == Boolean.TRUE && r == Boolean.TRUE ? Boolean.TRUE : null;
+		}
+	}
+
+	static final class Or extends SelectorExpr {
+		final SelectorExpr left, right;
+
+		Or(SelectorExpr a, SelectorExpr b) {
+			super(commutative(a, " OR ", b));
+			boolean swap = a.key.compareTo(b.key) > 0;
+			this.left = swap ? b : a;
+			this.right = swap ? a : b;
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { left, right }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new Or(c[0], c[1]); }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			Object l = left.eval(ev);
+			if (l == Boolean.TRUE) return Boolean.TRUE;
+			Object r = right.eval(ev);
+			if (r == Boolean.TRUE) return Boolean.TRUE;
+			return l == Boolean.FALSE && r == Boolean.FALSE ? Boolean.FALSE : null;
+		}
+	}
+
+	static final class Not extends SelectorExpr {
+		final SelectorExpr operand;
+
+		Not(SelectorExpr operand) {
+			super("NOT " + operand.key);
+			this.operand = operand;
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { operand }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new Not(c[0]); }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			Object v = operand.eval(ev);
+			return v instanceof Boolean ? !(Boolean)v : null;
+		}
+	}
+
+	// --- predicates ---
+
+	static final class Compare extends SelectorExpr {
+		final String op;
+		final SelectorExpr left, right;
+
+		Compare(String op, SelectorExpr a, SelectorExpr b) {
+			super(op.equals("=") || op.equals("<>") ? commutative(a, " " + op + " ", b) : "(" + a.key + " " + op + " " + b.key + ")");
+			this.op = op;
+			boolean swap = (op.equals("=") || op.equals("<>")) && a.key.compareTo(b.key) > 0;
+			this.left = swap ? b : a;
+			this.right = swap ? a : b;
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { left, right }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new Compare(op, c[0], c[1]); }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			Object l = left.eval(ev);
+			if (l == null) return null;
+			Object r = right.eval(ev);
+			if (r == null) return null;
+			int cmp;
+			if (l instanceof Number && r instanceof Number) {
+				cmp = compareNumbers((Number)l, (Number)r);
+			} else if (l.getClass() == r.getClass() && (op.equals("=") || op.equals("<>"))) {  // strings and booleans: only = and <>
+				cmp = l.equals(r) ? 0 : 1;
+			} else {
+				return null;  // like JMS, comparing different types is UNKNOWN, so NOT doesn't turn it into a match
+			}
+			switch (op) {
+			case "=": return cmp == 0;
+			case "<>": return cmp != 0;
+			case "<": return cmp < 0;
+			case "<=": return cmp <= 0;
+			case ">": return cmp > 0;
+			default: return cmp >= 0;
+			}
+		}
+	}
+
+	static final class Between extends SelectorExpr {
+		final boolean not;
+		final SelectorExpr value, low, high;
+
+		Between(boolean not, SelectorExpr value, SelectorExpr low, SelectorExpr high) {
+			super("(" + value.key + (not ? " NOT" : "") + " BETWEEN " + low.key + " AND " + high.key + ")");
+			this.not = not;
+			this.value = value;
+			this.low = low;
+			this.high = high;
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { value, low, high }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new Between(not, c[0], c[1], c[2]); }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			Object v = value.eval(ev);
+			Object l = low.eval(ev);
+			Object h = high.eval(ev);
+			if (!(v instanceof Number && l instanceof Number && h instanceof Number)) return null;
+			boolean in = compareNumbers((Number)l, (Number)v) <= 0 && compareNumbers((Number)v, (Number)h) <= 0;
+			return in != not;
+		}
+	}
+
+	static final class In extends SelectorExpr {
+		final boolean not;
+		final SelectorExpr value;
+		final Set<String> values;
+
+		In(boolean not, SelectorExpr value, Set<String> values) {
+			super("(" + value.key + (not ? " NOT" : "") + " IN " + quoted(values) + ")");
+			this.not = not;
+			this.value = value;
+			this.values = values;
+		}
+
+		private static String quoted(Set<String> values) {
+			StringBuilder sb = new StringBuilder("(");
+			for (String s : new TreeSet<>(values)) {
+				if (sb.length() > 1) sb.append(", ");
+				sb.append('\'').append(s.replace("'", "''")).append('\'');
+			}
+			return sb.append(')').toString();
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { value }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new In(not, c[0], values); }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			Object v = value.eval(ev);
+			if (!(v instanceof String)) return null;
+			return values.contains(v) != not;
+		}
+	}
+
+	static final class Like extends SelectorExpr {
+		final boolean not;
+		final SelectorExpr value;
+		final String pattern;
+		final Character escape;
+		private final Pattern regex;
+
+		Like(boolean not, SelectorExpr value, String pattern, Character escape) {
+			super("(" + value.key + (not ? " NOT" : "") + " LIKE '" + pattern.replace("'", "''") + "'" + (escape == null ? "" : " ESCAPE '" + escape + "'") + ")");
+			this.not = not;
+			this.value = value;
+			this.pattern = pattern;
+			this.escape = escape;
+			StringBuilder sb = new StringBuilder();
+			StringBuilder literal = new StringBuilder();
+			for (int i=0; i<pattern.length(); i++) {
+				char c = pattern.charAt(i);
+				if (escape != null && c == escape) {
+					if (++i == pattern.length()) throw new IllegalArgumentException("LIKE pattern '" + pattern + "' ends with its escape char");
+					literal.append(pattern.charAt(i));
+				} else if (c == '%' || c == '_') {
+					if (literal.length() > 0) sb.append(Pattern.quote(literal.toString()));
+					literal.setLength(0);
+					sb.append(c == '%' ? ".*" : ".");
+				} else {
+					literal.append(c);
+				}
+			}
+			if (literal.length() > 0) sb.append(Pattern.quote(literal.toString()));
+			regex = Pattern.compile(sb.toString(), Pattern.DOTALL);
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { value }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new Like(not, c[0], pattern, escape); }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			Object v = value.eval(ev);
+			if (!(v instanceof String)) return null;
+			return regex.matcher((String)v).matches() != not;
+		}
+	}
+
+	static final class IsNull extends SelectorExpr {
+		final boolean not;
+		final SelectorExpr value;
+
+		IsNull(boolean not, SelectorExpr value) {
+			super("(" + value.key + " IS " + (not ? "NOT " : "") + "NULL)");
+			this.not = not;
+			this.value = value;
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { value }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new IsNull(not, c[0]); }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			return (value.eval(ev) == null) != not;
+		}
+	}
+
+	// --- arithmetic ---
+
+	static final class Arithmetic extends SelectorExpr {
+		final char op;
+		final SelectorExpr left, right;
+
+		Arithmetic(char op, SelectorExpr left, SelectorExpr right) {
+			super("(" + left.key + " " + op + " " + right.key + ")");
+			this.op = op;
+			this.left = left;
+			this.right = right;
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { left, right }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new Arithmetic(op, c[0], c[1]); }
+		@Override boolean isConditional() { return false; }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			Object l = left.eval(ev);
+			Object r = right.eval(ev);
+			if (!(l instanceof Number && r instanceof Number)) return null;
+			if (l instanceof Long && r instanceof Long) {
+				long a = (Long)l;
+				long b = (Long)r;
+				switch (op) {
+				case '+': return a + b;
+				case '-': return a - b;
+				case '*': return a * b;
+				default: return b == 0 ? null : a / b;
+				}
+			}
+			double a = ((Number)l).doubleValue();
+			double b = ((Number)r).doubleValue();
+			switch (op) {
+			case '+': return a + b;
+			case '-': return a - b;
+			case '*': return a * b;
+			default: return b == 0 ? null : a / b;
+			}
+		}
+	}
+
+	static final class Negate extends SelectorExpr {
+		final SelectorExpr operand;
+
+		Negate(SelectorExpr operand) {
+			super("-" + operand.key);
+			this.operand = operand;
+		}
+
+		@Override SelectorExpr[] children() { return new SelectorExpr[] { operand }; }
+		@Override SelectorExpr withChildren(SelectorExpr[] c) { return new Negate(c[0]); }
+		@Override boolean isConditional() { return false; }
+
+		@Override
+		Object compute(SelectorEvaluation ev) {
+			Object v = operand.eval(ev);
+			if (v instanceof Long) return -(Long)v;
+			if (v instanceof Double) return -(Double)v;
+			return null;
+		}
+	}
+
+	private static String commutative(SelectorExpr a, String op, SelectorExpr b) {
+		return a.key.compareTo(b.key) <= 0 ? "(" + a.key + op + b.key + ")" : "(" + b.key + op + a.key + ")";
+	}
+
+	static int compareNumbers(Number a, Number b) {
+		if (a instanceof Long && b instanceof Long) return Long.compare((Long)a, (Long)b);
+		return Double.compare(a.doubleValue(), b.doubleValue());
+	}
+}
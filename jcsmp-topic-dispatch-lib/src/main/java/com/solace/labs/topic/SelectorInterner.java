@@ -0,0 +1,63 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dedupes selector sub-expressions across everything registered with one dispatcher, so that e.g.
+ * <code>priority &gt; 5</code> in fifty listeners' selectors is one node, with one memo slot, and gets evaluated once
+ * per message.  Reference counted, so slots are given back once no registered selector uses them any more.  Guarded by
+ * the dispatcher's write lock.
+ */
+final class SelectorInterner {
+
+	private static final class Entry {
+		final SelectorExpr expr;
+		int refs = 1;
+
+		Entry(SelectorExpr expr) {
+			this.expr = expr;
+		}
+	}
+
+	private final Map<String, Entry> entries = new HashMap<>();
+	private final ArrayDeque<Integer> freeSlots = new ArrayDeque<>();
+	private int slots = 0;
+
+	/** @return the shared copy of this expression, with shared children; release it when it's not needed */
+	SelectorExpr intern(SelectorExpr expr) {
+		if (expr instanceof SelectorExpr.Literal) return expr;  // nothing to save
+		Entry entry = entries.get(expr.key);
+		if (entry != null) {
+			entry.refs++;
+			return entry.expr;
+		}
+		SelectorExpr[] children = expr.children();
+		for (int i=0; i<children.length; i++) children[i] = intern(children[i]);
+		SelectorExpr shared = expr.withChildren(children);
+		shared.slot = freeSlots.isEmpty() ? slots++ : freeSlots.pop();
+		entries.put(shared.key, new Entry(shared));
+		return shared;
+	}
+
+	void release(SelectorExpr expr) {
+		if (expr instanceof SelectorExpr.Literal) return;
+		Entry entry = entries.get(expr.key);
+		if (entry == null || entry.expr != expr) throw new IllegalStateException("Not interned here: " + expr);
+		if (--entry.refs > 0) return;
+		entries.remove(expr.key);
+		freeSlots.push(expr.slot);
+		for (SelectorExpr child : expr.children()) release(child);
+	}
+
+	/** How big a {@link SelectorEvaluation} needs to be */
+	int slots() {
+		return slots;
+	}
+
+	/** Distinct sub-expressions in use */
+	int size() {
+		return entries.size();
+	}
+}
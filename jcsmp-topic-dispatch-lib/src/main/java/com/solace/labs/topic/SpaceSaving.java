@@ -0,0 +1,130 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The Space-Saving heavy-hitters sketch (Metwally et al.): a fixed number of counters, and when a new key arrives with
+ * no counter free, it takes over the smallest one (inheriting its count as the error bound).  Any key with more than
+ * <i>n / capacity</i> hits is guaranteed to be in there.  Keys are 64-bit hashes; the label (e.g. the topic string) is
+ * only made when a key gets a counter, so the common case of a hit allocates nothing.  Not thread-safe.
+ */
+final class SpaceSaving {
+
+	private final long[] keys;
+	private final long[] counts;
+	private final long[] errors;
+	private final String[] labels;
+	private final int[] heap;  // slots, as a min-heap on count, so the one to evict is at the top
+	private final int[] heapPos;  // where each slot is in the heap
+	private final int[] index;  // slot + 1, or 0 for empty; linear probing on the key
+	private final int indexMask;
+	private int size = 0;
+
+	SpaceSaving(int capacity) {
+		if (capacity < 1) throw new IllegalArgumentException("Capacity must be at least 1");
+		keys = new long[capacity];
+		counts = new long[capacity];
+		errors = new long[capacity];
+		labels = new String[capacity];
+		heap = new int[capacity];
+		heapPos = new int[capacity];
+		index = new int[Integer.highestOneBit(capacity) << 2];
+		indexMask = index.length - 1;
+	}
+
+	/**
+	 * One more hit for the key.
+	 * @param source the label is the first <code>length</code> chars of this, if it's needed
+	 */
+	void offer(long key, String source, int length) {
+		int slot = find(key);
+		if (slot >= 0) {
+			counts[slot]++;
+			siftDown(heapPos[slot]);
+			return;
+		}
+		if (size < keys.length) {
+			slot = size++;
+			counts[slot] = 1;
+			errors[slot] = 0;
+			heap[slot] = slot;
+			heapPos[slot] = slot;
+			siftUp(slot);
+		} else {  // take over the smallest counter
+			slot = heap[0];
+			unindex(slot);
+			errors[slot] = counts[slot];
+			counts[slot]++;
+			siftDown(0);
+		}
+		keys[slot] = key;
+		labels[slot] = length == source.length() ? source : source.substring(0, length);
+		int pos = (int)key & indexMask;
+		while (index[pos] != 0) pos = (pos + 1) & indexMask;
+		index[pos] = slot + 1;
+	}
+
+	private int find(long key) {
+		for (int pos = (int)key & indexMask; index[pos] != 0; pos = (pos + 1) & indexMask) {
+			if (keys[index[pos] - 1] == key) return index[pos] - 1;
+		}
+		return -1;
+	}
+
+	/** Backward-shift delete, like in {@link DuplicateWindow} */
+	private void unindex(int slot) {
+		int hole = (int)keys[slot] & indexMask;
+		while (index[hole] != slot + 1) hole = (hole + 1) & indexMask;
+		for (int scan = (hole + 1) & indexMask; index[scan] != 0; scan = (scan + 1) & indexMask) {
+			int home = (int)keys[index[scan] - 1] & indexMask;
+			if (((scan - home) & indexMask) >= ((scan - hole) & indexMask)) {
+				index[hole] = index[scan];
+				hole = scan;
+			}
+		}
+		index[hole] = 0;
+	}
+
+	private void siftUp(int pos) {
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (counts[heap[parent]] <= counts[heap[pos]]) return;
+			swap(pos, parent);
+			pos = parent;
+		}
+	}
+
+	private void siftDown(int pos) {
+		while (true) {
+			int smallest = pos;
+			int left = 2 * pos + 1;
+			if (left < size && counts[heap[left]] < counts[heap[smallest]]) smallest = left;
+			if (left + 1 < size && counts[heap[left + 1]] < counts[heap[smallest]]) smallest = left + 1;
+			if (smallest == pos) return;
+			swap(pos, smallest);
+			pos = smallest;
+		}
+	}
+
+	private void swap(int a, int b) {
+		int slot = heap[a];
+		heap[a] = heap[b];
+		heap[b] = slot;
+		heapPos[heap[a]] = a;
+		heapPos[heap[b]] = b;
+	}
+
+	/** The biggest ones, biggest first */
+	List<HeavyHitter> top(int k) {
+		Integer[] slots = new Integer[size];
+		for (int i=0; i<size; i++) slots[i] = i;
+		Arrays.sort(slots, (a, b) -> Long.compare(counts[b], counts[a]));
+		List<HeavyHitter> top = new ArrayList<>(Math.min(k, size));
+		for (int i=0; i<Math.min(k, size); i++) {
+			top.add(new HeavyHitter(labels[slots[i]], counts[slots[i]], errors[slots[i]]));
+		}
+		return top;
+	}
+}
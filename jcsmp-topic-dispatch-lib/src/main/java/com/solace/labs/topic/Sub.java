@@ -45,6 +45,17 @@ public class Sub implements CharSequence {
 		return TopicUtils.topicMatches(topic, topicSubscription);
 	}
 	
+	/**
+	 * Whether this subscription has any wildcards in it: <code>*</code>, a trailing <code>&gt;</code>, or a trailing MQTT-style <code>#</code>.
+	 * A sub without wildcards can only ever match a topic that is exactly equal to it.
+	 * @return true if this sub could match more than one topic
+	 */
+	public boolean isWildcard() {
+		return topicSubscription.indexOf('*') >= 0
+				|| topicSubscription.equals(">") || topicSubscription.endsWith("/>")
+				|| topicSubscription.equals("#") || topicSubscription.endsWith("/#");
+	}
+
 	@Override
 	public String toString() {
 		return topicSubscription;
@@ -0,0 +1,54 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The subs an engine has to check one at a time: all of them for {@link LinearScanEngine}, the wildcard ones for
+ * {@link ExactHashEngine}.  If the vector matcher is available, each sub's chars are kept alongside it, and a long topic
+ * is copied out once per scan instead of being walked a char at a time for every sub.
+ */
+final class SubScanList {
+
+	private final List<Sub> subs = new ArrayList<>();
+	private final List<char[]> chars = VectorMatching.isAvailable() ? new ArrayList<>() : null;
+
+	void add(Sub sub) {
+		subs.add(sub);
+		if (chars != null) chars.add(sub.topicSubscription.toCharArray());
+	}
+
+	boolean remove(Sub sub) {
+		int i = subs.indexOf(sub);
+		if (i < 0) return false;
+		subs.remove(i);
+		if (chars != null) chars.remove(i);
+		return true;
+	}
+
+	int size() {
+		return subs.size();
+	}
+
+	void match(String topic, List<Sub> matches) {
+		match(topic, matches, 0, subs.size());
+	}
+
+	/** Just the subs in [from, to), for scanning a list in pieces */
+	void match(String topic, List<Sub> matches, int from, int to) {
+		if (chars == null || topic.length() < VectorMatching.MIN_TOPIC_LENGTH) {
+			for (int i=from; i<to; i++) {  // index loop, no iterator garbage on the context thread
+				Sub sub = subs.get(i);
+				if (sub.matches(topic)) matches.add(sub);
+			}
+			return;
+		}
+		VectorMatching.CharMatcher matcher = VectorMatching.matcher();
+		char[] topicChars = VectorMatching.topicChars(topic);
+		int topicLength = topic.length();
+		for (int i=from; i<to; i++) {
+			char[] sub = chars.get(i);
+			if (matcher.matches(topicChars, topicLength, sub, sub.length)) matches.add(subs.get(i));
+		}
+	}
+}
@@ -0,0 +1,88 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the matching subs for each topic it has seen, in front of some other engine.  Great when the
+ * same (relatively small) set of topics keeps coming in over and over.  The cache is bounded: once it's full
+ * it just gets cleared and starts filling again, which is crude but costs nothing per lookup.  Any change
+ * to the registered subs also clears it.
+ */
+final class TopicCacheEngine implements MatchEngine {
+
+	static final int DEFAULT_MAX_TOPICS = 100_000;
+	private static final Sub[] NO_MATCHES = new Sub[0];
+
+	private final MatchEngine delegate;
+	private final int maxTopics;
+	private final Map<String, Sub[]> cache = new ConcurrentHashMap<>();
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	TopicCacheEngine(MatchEngine delegate, int maxTopics) {
+		this.delegate = delegate;
+		this.maxTopics = maxTopics;
+	}
+
+	@Override
+	public EngineType type() {
+		return EngineType.TOPIC_CACHE;
+	}
+
+	@Override
+	public void add(Sub sub) {
+		delegate.add(sub);
+		cache.clear();
+	}
+
+	@Override
+	public void remove(Sub sub) {
+		delegate.remove(sub);
+		cache.clear();
+	}
+
+	@Override
+	public void match(String topic, List<Sub> matches) {
+		Sub[] cached = cache.get(topic);
+		if (cached == null) {
+			misses.increment();
+			List<Sub> found = new ArrayList<>();  // only on a miss, we're about to allocate the array anyway
+			delegate.match(topic, found);
+			cached = found.isEmpty() ? NO_MATCHES : found.toArray(new Sub[found.size()]);
+			if (cache.size() >= maxTopics) cache.clear();
+			cache.put(topic, cached);
+		} else {
+			hits.increment();
+		}
+		for (Sub sub : cached) {
+			matches.add(sub);
+		}
+	}
+
+	@Override
+	public int size() {
+		return delegate.size();
+	}
+
+	/** The cached topics and their matches right now, e.g. to save them; don't modify */
+	Map<String, Sub[]> getCached() {
+		return cache;
+	}
+
+	/** Warms the cache with a topic whose matches are already known */
+	void preload(String topic, Sub[] matches) {
+		if (cache.size() < maxTopics) cache.put(topic, matches.length == 0 ? NO_MATCHES : matches);
+	}
+
+	long getHits() {
+		return hits.sum();
+	}
+
+	long getMisses() {
+		return misses.sum();
+	}
+}
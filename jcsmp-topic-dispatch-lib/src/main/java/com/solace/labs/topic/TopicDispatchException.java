@@ -6,6 +6,10 @@ public class TopicDispatchException extends JCSMPException {
 
 	private static final long serialVersionUID = 1L;
 
+	public TopicDispatchException(String message) {
+		super(message);
+	}
+
 	public TopicDispatchException(String message, Throwable cause) {
 		super(message, cause);
 	}
@@ -0,0 +1,221 @@
+package com.solace.labs.topic;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.Topic;
+
+/**
+ * <p>The publishing-side companion to {@link Sub}: a precompiled topic like <code>prices/{venue}/{symbol}</code>, where
+ * each <code>{name}</code> is a whole level that gets filled in per message.  Instead of concatenating a string and calling
+ * <code>createTopic()</code> for every message, {@link #topic(String...)} looks the filled-in levels up in a bounded cache
+ * of {@link Topic} destinations, so a steady set of topics costs no allocation at all after the first time each is seen.</p>
+ * <p>Literal levels and filled-in values are checked against the same rules as subscriptions (no empty levels, no
+ * wildcard characters), and {@link #canMatch(Sub)} says at startup whether a subscription could ever see anything
+ * published with this template.  Thread-safe.</p>
+ */
+public final class TopicTemplate {
+
+	/** Broker limit, in UTF-8 bytes */
+	public static final int MAX_TOPIC_BYTES = 250;
+	public static final int DEFAULT_CACHE_SIZE = 4096;
+
+	/** Immutable, so the cache array can be read without locking */
+	private static final class Entry {
+		final int hash;
+		final String[] values;
+		final Topic topic;
+
+		Entry(int hash, String[] values, Topic topic) {
+			this.hash = hash;
+			this.values = values;
+			this.topic = topic;
+		}
+	}
+
+	private final String template;
+	private final String[] literals;  // per level; null where it's a variable
+	private final List<String> variables;
+	private final Entry[] cache;  // direct-mapped: a collision just replaces, which keeps it bounded without any bookkeeping
+	private final ThreadLocal<StringBuilder> buffer = ThreadLocal.withInitial(() -> new StringBuilder(64));
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+
+	public TopicTemplate(String template) {
+		this(template, DEFAULT_CACHE_SIZE);
+	}
+
+	/**
+	 * @param template e.g. <code>prices/{venue}/{symbol}</code>
+	 * @param cacheSize how many distinct topics to keep; rounded up to a power of 2
+	 * @throws IllegalArgumentException if the template has empty levels, wildcards, or a repeated or partial-level variable
+	 */
+	public TopicTemplate(String template, int cacheSize) {
+		this.template = template;
+		if (this.template == null) throw new NullPointerException("Template is null");
+		if (cacheSize < 1) throw new IllegalArgumentException("Cache size must be at least 1");
+		String[] levels = template.split("/", -1);
+		literals = new String[levels.length];
+		List<String> names = new ArrayList<>();
+		for (int i=0; i<levels.length; i++) {
+			String level = levels[i];
+			if (level.isEmpty()) throw new IllegalArgumentException("Empty level in topic template '" + template + "'");
+			if (level.startsWith("{") && level.endsWith("}") && level.length() > 2) {
+				String name = level.substring(1, level.length() - 1);
+				if (names.contains(name)) throw new IllegalArgumentException("Variable {" + name + "} is in topic template '" + template + "' twice");
+				names.add(name);
+			} else {
+				if (!isValidLevel(level) || level.indexOf('{') >= 0 || level.indexOf('}') >= 0) {
+					throw new IllegalArgumentException("Bad level '" + level + "' in topic template '" + template + "': variables must be a whole level, and no wildcards");
+				}
+				literals[i] = level;
+			}
+		}
+		variables = Collections.unmodifiableList(names);
+		cache = new Entry[Integer.highestOneBit(Math.max(1, cacheSize - 1)) << 1];
+	}
+
+	/** A level that's fine to publish on, and that a subscription wouldn't take for a wildcard */
+	private static boolean isValidLevel(String level) {
+		if (level.isEmpty()) return false;
+		for (int i=0; i<level.length(); i++) {
+			switch (level.charAt(i)) {
+			case '/':
+			case '*':
+			case '>':
+			case 0:
+				return false;
+			default:
+				// fine
+			}
+		}
+		return !level.equals("#");
+	}
+
+	/** The variable names, in order: the order {@link #topic(String...)} takes their values in */
+	public List<String> getVariables() {
+		return variables;
+	}
+
+	public int getLevelCount() {
+		return literals.length;
+	}
+
+	/**
+	 * The destination for these values, from the cache if it's been made before.
+	 * @param values one per variable, in order; each must be a valid, non-empty topic level
+	 * @throws IllegalArgumentException if the wrong number of values, or one of them isn't a valid level
+	 */
+	public Topic topic(String... values) {
+		if (values.length != variables.size()) throw new IllegalArgumentException("Topic template '" + template + "' needs " + variables.size() + " values, got " + values.length);
+		int hash = 1;
+		for (String value : values) {
+			hash = 31 * hash + (value == null ? 0 : value.hashCode());  // String caches its hash, so this is cheap
+		}
+		int slot = (hash ^ (hash >>> 16)) & (cache.length - 1);
+		Entry entry = cache[slot];
+		if (entry != null && entry.hash == hash && sameValues(entry.values, values)) {
+			hits.increment();
+			return entry.topic;
+		}
+		misses.increment();
+		Topic topic = JCSMPFactory.onlyInstance().createTopic(fill(values));  // only validated on a miss, a hit was already checked
+		cache[slot] = new Entry(hash, values.clone(), topic);  // racy, but the worst case is a lost cache entry
+		return topic;
+	}
+
+	private static boolean sameValues(String[] a, String[] b) {
+		for (int i=0; i<a.length; i++) {
+			if (!a[i].equals(b[i])) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Just the topic string, built in a reused per-thread buffer.
+	 * @throws IllegalArgumentException if the wrong number of values, one of them isn't a valid level, or it's too long
+	 */
+	public String fill(String... values) {
+		if (values.length != variables.size()) throw new IllegalArgumentException("Topic template '" + template + "' needs " + variables.size() + " values, got " + values.length);
+		StringBuilder sb = buffer.get();
+		sb.setLength(0);
+		int next = 0;
+		for (int i=0; i<literals.length; i++) {
+			if (i > 0) sb.append('/');
+			if (literals[i] != null) {
+				sb.append(literals[i]);
+			} else {
+				String value = values[next++];
+				if (value == null || !isValidLevel(value)) {
+					throw new IllegalArgumentException("Bad value '" + value + "' for {" + variables.get(next - 1) + "} in topic template '" + template + "'");
+				}
+				sb.append(value);
+			}
+		}
+		String topic = sb.toString();
+		if (topic.length() > MAX_TOPIC_BYTES / 3 && topic.getBytes(StandardCharsets.UTF_8).length > MAX_TOPIC_BYTES) {  // only count bytes if it could be over
+			throw new IllegalArgumentException("Topic is over " + MAX_TOPIC_BYTES + " bytes: " + topic);
+		}
+		return topic;
+	}
+
+	/** Every variable as a <code>*</code>: the subscription that matches everything this template can publish */
+	public Sub toSub() {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<literals.length; i++) {
+			if (i > 0) sb.append('/');
+			sb.append(literals[i] == null ? "*" : literals[i]);
+		}
+		return new Sub(sb.toString());
+	}
+
+	/**
+	 * Could any topic published with this template match the subscription?  Worked out level by level, treating each
+	 * variable as "any non-empty level".  Handy at startup, to check that every template has someone listening (or that a
+	 * subscription isn't dead), without having to publish anything.
+	 */
+	public boolean canMatch(Sub sub) {
+		String[] subLevels = sub.topicSubscription.split("/", -1);
+		for (int i=0; i<subLevels.length; i++) {
+			String level = subLevels[i];
+			boolean last = i == subLevels.length - 1;
+			if (last && level.equals(">")) return literals.length > i;  // one or more levels left
+			if (last && level.equals("#")) return literals.length >= i;  // zero or more
+			if (i >= literals.length) return false;  // sub is longer than any of our topics
+			String literal = literals[i];
+			if (level.endsWith("*")) {  // prefix wildcard, or plain *
+				if (literal != null && !literal.startsWith(level.substring(0, level.length() - 1))) return false;
+			} else if (literal != null && !literal.equals(level)) {
+				return false;
+			}  // else a variable, which could be exactly that
+		}
+		return subLevels.length == literals.length;
+	}
+
+	/** The ones from the collection that {@link #canMatch(Sub)} */
+	public List<Sub> matchingSubs(Collection<Sub> subs) {
+		List<Sub> matching = new ArrayList<>();
+		for (Sub sub : subs) {
+			if (canMatch(sub)) matching.add(sub);
+		}
+		return matching;
+	}
+
+	public long getCacheHitCount() {
+		return hits.sum();
+	}
+
+	public long getCacheMissCount() {
+		return misses.sum();
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+}
@@ -204,6 +204,25 @@ public final class TopicUtils {
 	}
 	
 	
+	/**
+	 * Same answer as {@link #topicMatches(String, String)}, but using the SIMD matcher if it's available (see
+	 * {@link #isVectorMatchingAvailable()}), which compares whole runs of literal chars at once.  Only worth it for long
+	 * topics: under 64 chars, or without the matcher, it's just the scalar one.
+	 */
+	public static boolean topicMatchesVectorized(String topic, String sub) {
+		if (topic.length() < VectorMatching.MIN_TOPIC_LENGTH) return topicMatches(topic, sub);
+		return VectorMatching.topicMatches(topic, sub);
+	}
+
+	/**
+	 * Whether the optional <code>jdk.incubator.vector</code> matcher loaded: it needs the vector classes on the classpath
+	 * (they're in the jar) and the JVM started with <code>--add-modules jdk.incubator.vector</code>.  When it's there, the
+	 * linear scans in {@link EngineType#LINEAR_SCAN} and {@link EngineType#EXACT_HASH} use it for long topics too.
+	 */
+	public static boolean isVectorMatchingAvailable() {
+		return VectorMatching.isAvailable();
+	}
+
 	/**
 	 * All of the regex pattern matching in this class/package assume that your subscriptions are well-formed.
 	 * That is: it should be noted that the characters '*' and '&gt;' can be treated as literals by the broker
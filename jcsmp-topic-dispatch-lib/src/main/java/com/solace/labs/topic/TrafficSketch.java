@@ -0,0 +1,66 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Constant-memory traffic summary for one kind of traffic (matched, or unmatched): Space-Saving top-K for whole topics
+ * and for their first 1..<i>prefixDepth</i> levels, plus a Count-Min sketch to estimate any topic's count.  Topics are
+ * hashed as they're walked, once, so recording a message allocates nothing unless a new topic makes the top-K.
+ */
+final class TrafficSketch {
+
+	/** Space-Saving needs some headroom over K to be accurate about the top K */
+	static final int COUNTERS_PER_K = 4;
+	static final int CM_ROWS = 4;
+	static final int CM_WIDTH = 2048;
+
+	private final int topK;
+	private final SpaceSaving topics;
+	private final SpaceSaving[] prefixes;  // [0] is the first level, [1] the first two, etc.
+	private final long[][] countMin = new long[CM_ROWS][CM_WIDTH];
+	private long total = 0;
+
+	TrafficSketch(int topK, int prefixDepth) {
+		if (topK < 1) throw new IllegalArgumentException("topK must be at least 1");
+		if (prefixDepth < 0) throw new IllegalArgumentException("prefixDepth can't be negative");
+		this.topK = topK;
+		topics = new SpaceSaving(topK * COUNTERS_PER_K);
+		prefixes = new SpaceSaving[prefixDepth];
+		for (int i=0; i<prefixDepth; i++) prefixes[i] = new SpaceSaving(topK * COUNTERS_PER_K);
+	}
+
+	synchronized void record(String topic) {
+		total++;
+		long h = DuplicateKeys.FNV_OFFSET;
+		int levels = 1;
+		for (int i=0; i<topic.length(); i++) {
+			char c = topic.charAt(i);
+			if (c == '/' && levels <= prefixes.length) {
+				prefixes[levels - 1].offer(DuplicateKeys.mix(h), topic, i);
+				levels++;
+			}
+			h ^= c;
+			h *= DuplicateKeys.FNV_PRIME;
+		}
+		long key = DuplicateKeys.mix(h);
+		if (levels <= prefixes.length) prefixes[levels - 1].offer(key, topic, topic.length());  // the topic's as deep as this prefix
+		topics.offer(key, topic, topic.length());
+		for (int row=0; row<CM_ROWS; row++) {
+			countMin[row][cmColumn(key, row)]++;
+		}
+	}
+
+	/** Double hashing off the one 64-bit key for each row's column */
+	static int cmColumn(long key, int row) {
+		return (int)((key + row * ((key >>> 32) | 1)) >>> 7) & (CM_WIDTH - 1);
+	}
+
+	synchronized TrafficStats snapshot() {
+		List<List<HeavyHitter>> topPrefixes = new ArrayList<>(prefixes.length);
+		for (SpaceSaving prefix : prefixes) topPrefixes.add(prefix.top(topK));
+		long[][] cm = new long[CM_ROWS][];
+		for (int row=0; row<CM_ROWS; row++) cm[row] = countMin[row].clone();
+		return new TrafficStats(total, topics.top(topK), topPrefixes, cm);
+	}
+}
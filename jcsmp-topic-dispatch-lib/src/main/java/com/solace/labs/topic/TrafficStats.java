@@ -0,0 +1,67 @@
+package com.solace.labs.topic;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A snapshot of one traffic sketch (matched or unmatched messages) from
+ * {@link MessageListenerWithTopicDispatch#enableTrafficSketches(int, int)}: the heaviest topics and topic prefixes, and
+ * an estimate for any other topic.  Counts are approximate, but never under the true count.
+ */
+public final class TrafficStats {
+
+	private final long total;
+	private final List<HeavyHitter> topTopics;
+	private final List<List<HeavyHitter>> topPrefixes;
+	private final long[][] countMin;
+
+	TrafficStats(long total, List<HeavyHitter> topTopics, List<List<HeavyHitter>> topPrefixes, long[][] countMin) {
+		this.total = total;
+		this.topTopics = Collections.unmodifiableList(topTopics);
+		this.topPrefixes = Collections.unmodifiableList(topPrefixes);
+		this.countMin = countMin;
+	}
+
+	/** Every message recorded, exactly */
+	public long getTotalCount() {
+		return total;
+	}
+
+	/** The heaviest topics, heaviest first */
+	public List<HeavyHitter> getTopTopics() {
+		return topTopics;
+	}
+
+	public int getPrefixDepth() {
+		return topPrefixes.size();
+	}
+
+	/**
+	 * The heaviest topic prefixes of that many levels, e.g. depth 2 counts <code>a/b/c</code> and <code>a/b/d</code> both as
+	 * <code>a/b</code>.  A topic with exactly that many levels counts as its own prefix.
+	 * @param depth 1 up to {@link #getPrefixDepth()}
+	 */
+	public List<HeavyHitter> getTopPrefixes(int depth) {
+		if (depth < 1 || depth > topPrefixes.size()) throw new IllegalArgumentException("Prefix depth must be 1.." + topPrefixes.size());
+		return Collections.unmodifiableList(topPrefixes.get(depth - 1));
+	}
+
+	/** Count-Min estimate for any topic, top-K or not; never under, and usually close for the busy ones */
+	public long estimate(String topic) {
+		long key = DuplicateKeys.hash(topic);
+		long min = Long.MAX_VALUE;
+		for (int row=0; row<countMin.length; row++) {
+			min = Math.min(min, countMin[row][TrafficSketch.cmColumn(key, row)]);
+		}
+		return min;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("TrafficStats[total=").append(total).append(", topTopics=").append(topTopics);
+		for (int depth=1; depth<=topPrefixes.size(); depth++) {
+			sb.append(", depth").append(depth).append('=').append(topPrefixes.get(depth - 1));
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -0,0 +1,259 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Indexes the subs level-by-level, so matching a topic only walks the branches of the tree that could
+ * possibly match: one hash lookup for the literal level, plus a check of any prefix wildcards (<code>ab*</code>, <code>*</code>)
+ * at that node.  Looking up a topic level doesn't allocate, the literal children are kept in a little
+ * open-addressing table that compares directly against the region of the topic String.
+ */
+final class TrieEngine implements MatchEngine {
+
+	private static final class Node {
+		// literal level children, open addressing with linear probing
+		String[] keys = null;
+		Node[] kids = null;
+		int literalCount = 0;
+		// prefix wildcard level children, e.g. "ab*" is stored as prefix "ab", and "*" as ""
+		List<String> prefixes = null;
+		List<Node> prefixKids = null;
+		// subs that end exactly at this node
+		List<Sub> terminal = null;
+		// subs ending in '>' at this node: match if there is at least one more topic level
+		List<Sub> multiLevel = null;
+		// subs ending in '#' at this node: 0-or-more levels.  Double-checked with Sub.matches() since the linear matcher is the reference.
+		List<Sub> zeroOrMore = null;
+
+		Node findLiteral(CharSequence topic, int from, int to) {
+			if (keys == null) return null;
+			int mask = keys.length - 1;
+			int len = to - from;
+			for (int i = spread(hash(topic, from, to)) & mask; keys[i] != null; i = (i+1) & mask) {
+				if (keys[i].length() == len && regionEquals(keys[i], topic, from, len)) return kids[i];
+			}
+			return null;
+		}
+
+		Node getOrAddLiteral(String level) {
+			Node node = findLiteral(level, 0, level.length());
+			if (node != null) return node;
+			if (keys == null) {
+				keys = new String[4];
+				kids = new Node[4];
+			} else if ((literalCount+1) * 2 > keys.length) {  // keep load factor under 0.5
+				rehash(keys.length * 2, null);
+			}
+			node = new Node();
+			put(keys, kids, level, node);
+			literalCount++;
+			return node;
+		}
+
+		void removeLiteral(String level) {
+			literalCount--;
+			if (literalCount == 0) {
+				keys = null;
+				kids = null;
+			} else {
+				rehash(keys.length, level);  // deletes are rare, just rebuild the table without it
+			}
+		}
+
+		private void rehash(int newSize, String skip) {
+			String[] oldKeys = keys;
+			Node[] oldKids = kids;
+			keys = new String[newSize];
+			kids = new Node[newSize];
+			for (int i=0; i<oldKeys.length; i++) {
+				if (oldKeys[i] != null && !oldKeys[i].equals(skip)) put(keys, kids, oldKeys[i], oldKids[i]);
+			}
+		}
+
+		private static void put(String[] keys, Node[] kids, String key, Node kid) {
+			int mask = keys.length - 1;
+			int i = spread(key.hashCode()) & mask;
+			while (keys[i] != null) i = (i+1) & mask;
+			keys[i] = key;
+			kids[i] = kid;
+		}
+
+		Node getOrAddPrefix(String prefix) {
+			if (prefixes == null) {
+				prefixes = new ArrayList<>(2);
+				prefixKids = new ArrayList<>(2);
+			}
+			int index = prefixes.indexOf(prefix);
+			if (index >= 0) return prefixKids.get(index);
+			Node node = new Node();
+			prefixes.add(prefix);
+			prefixKids.add(node);
+			return node;
+		}
+
+		void removePrefix(String prefix) {
+			int index = prefixes.indexOf(prefix);
+			prefixes.remove(index);
+			prefixKids.remove(index);
+			if (prefixes.isEmpty()) {
+				prefixes = null;
+				prefixKids = null;
+			}
+		}
+
+		boolean isEmpty() {
+			return keys == null && prefixes == null && terminal == null && multiLevel == null && zeroOrMore == null;
+		}
+	}
+
+	private final Node root = new Node();
+	private int size = 0;
+
+	@Override
+	public EngineType type() {
+		return EngineType.TRIE;
+	}
+
+	@Override
+	public void add(Sub sub) {
+		String[] levels = sub.topicSubscription.split("/", -1);
+		Node node = root;
+		int last = levels.length - 1;
+		for (int i=0; i<last; i++) {
+			node = child(node, levels[i]);
+		}
+		String level = levels[last];
+		if (level.equals(">")) {
+			node.multiLevel = addTo(node.multiLevel, sub);
+		} else if (level.equals("#")) {
+			node.zeroOrMore = addTo(node.zeroOrMore, sub);
+		} else {
+			node = child(node, level);
+			node.terminal = addTo(node.terminal, sub);
+		}
+		size++;
+	}
+
+	private static Node child(Node node, String level) {
+		if (level.endsWith("*")) {  // a validated Sub only ever has a * at the end of a level
+			return node.getOrAddPrefix(level.substring(0, level.length()-1));
+		}
+		return node.getOrAddLiteral(level);
+	}
+
+	private static List<Sub> addTo(List<Sub> list, Sub sub) {
+		if (list == null) list = new ArrayList<>(2);
+		list.add(sub);
+		return list;
+	}
+
+	@Override
+	public void remove(Sub sub) {
+		String[] levels = sub.topicSubscription.split("/", -1);
+		if (remove(root, levels, 0, sub)) size--;
+	}
+
+	/** Recursive so that we can prune any nodes left empty on the way back up */
+	private static boolean remove(Node node, String[] levels, int index, Sub sub) {
+		String level = levels[index];
+		if (index == levels.length-1) {
+			if (level.equals(">")) {
+				if (node.multiLevel == null || !node.multiLevel.remove(sub)) return false;
+				if (node.multiLevel.isEmpty()) node.multiLevel = null;
+				return true;
+			} else if (level.equals("#")) {
+				if (node.zeroOrMore == null || !node.zeroOrMore.remove(sub)) return false;
+				if (node.zeroOrMore.isEmpty()) node.zeroOrMore = null;
+				return true;
+			}
+		}
+		boolean prefix = level.endsWith("*");
+		Node kid;
+		if (prefix) {
+			level = level.substring(0, level.length()-1);
+			int i = node.prefixes == null ? -1 : node.prefixes.indexOf(level);
+			kid = i < 0 ? null : node.prefixKids.get(i);
+		} else {
+			kid = node.findLiteral(level, 0, level.length());
+		}
+		if (kid == null) return false;
+		boolean removed;
+		if (index == levels.length-1) {
+			removed = kid.terminal != null && kid.terminal.remove(sub);
+			if (removed && kid.terminal.isEmpty()) kid.terminal = null;
+		} else {
+			removed = remove(kid, levels, index+1, sub);
+		}
+		if (removed && kid.isEmpty()) {
+			if (prefix) node.removePrefix(level);
+			else node.removeLiteral(level);
+		}
+		return removed;
+	}
+
+	@Override
+	public void match(String topic, List<Sub> matches) {
+		match(root, topic, 0, matches);
+	}
+
+	private static void match(Node node, String topic, int pos, List<Sub> matches) {
+		if (pos > topic.length()) {  // no more topic levels left
+			addAll(node.terminal, matches);
+			addVerified(node.zeroOrMore, topic, matches);
+			return;
+		}
+		// still at least one more topic level
+		addAll(node.multiLevel, matches);
+		addVerified(node.zeroOrMore, topic, matches);
+		int end = topic.indexOf('/', pos);
+		if (end < 0) end = topic.length();
+		Node kid = node.findLiteral(topic, pos, end);
+		if (kid != null) match(kid, topic, end+1, matches);
+		if (node.prefixes != null) {
+			for (int i=0; i<node.prefixes.size(); i++) {
+				String prefix = node.prefixes.get(i);
+				if (prefix.length() <= end - pos && topic.startsWith(prefix, pos)) {
+					match(node.prefixKids.get(i), topic, end+1, matches);
+				}
+			}
+		}
+	}
+
+	private static void addAll(List<Sub> subs, List<Sub> matches) {
+		if (subs == null) return;
+		for (int i=0; i<subs.size(); i++) matches.add(subs.get(i));
+	}
+
+	private static void addVerified(List<Sub> subs, String topic, List<Sub> matches) {
+		if (subs == null) return;
+		for (int i=0; i<subs.size(); i++) {
+			if (subs.get(i).matches(topic)) matches.add(subs.get(i));
+		}
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/** Same as String.hashCode() would give for the substring, without making the substring */
+	static int hash(CharSequence s, int from, int to) {
+		int h = 0;
+		for (int i=from; i<to; i++) {
+			h = 31*h + s.charAt(i);
+		}
+		return h;
+	}
+
+	private static int spread(int h) {
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean regionEquals(String key, CharSequence s, int from, int len) {
+		for (int i=0; i<len; i++) {
+			if (key.charAt(i) != s.charAt(from+i)) return false;
+		}
+		return true;
+	}
+}
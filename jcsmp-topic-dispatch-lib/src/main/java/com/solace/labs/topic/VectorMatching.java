@@ -0,0 +1,85 @@
+package com.solace.labs.topic;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * The optional SIMD topic matcher.  It lives in the separate <code>vector</code> source set, since it needs
+ * <code>jdk.incubator.vector</code> (JDK 17+, and <code>--add-modules jdk.incubator.vector</code> at runtime), so it's
+ * loaded reflectively here: if it's not on the classpath, or the module isn't there, everything just stays on the scalar
+ * {@link TopicUtils#topicMatches(String, String)}.  Same answers either way, it's only quicker on long topics.
+ */
+final class VectorMatching {
+
+	/** Works on char arrays instead of Strings, so a topic can be copied out once and checked against lots of subs */
+	interface CharMatcher {
+		boolean matches(char[] topic, int topicLength, char[] sub, int subLength);
+	}
+
+	static final String IMPL_CLASS = "com.solace.labs.topic.VectorTopicMatcher";
+	/** Under this, the scalar loop wins: not enough chars to fill a few vectors, and no copying */
+	static final int MIN_TOPIC_LENGTH = 64;
+
+	private static final Logger logger = Logger.getLogger(VectorMatching.class.getName());
+	private static final CharMatcher MATCHER = load();
+	private static final ThreadLocal<char[][]> buffers = ThreadLocal.withInitial(() -> new char[][] { new char[256], new char[256] });
+
+	private static CharMatcher load() {
+		try {
+			return probed((CharMatcher)Class.forName(IMPL_CLASS).getDeclaredConstructor().newInstance());
+		} catch (ReflectiveOperationException | LinkageError e) {  // NoClassDefFoundError if the incubator module wasn't added
+			logger.fine("No vector topic matcher, staying scalar: " + e);
+			return null;
+		}
+	}
+
+	/**
+	 * Runs one match that goes through every vector loop, so that anything missing from this JDK's incubator API (JDK 16
+	 * has the module but not <code>fromCharArray()</code>, which is only looked up on first use) shows up here, rather
+	 * than as a LinkageError out of <code>onReceive()</code> later.
+	 * @return the matcher, or null if the probe failed
+	 */
+	static CharMatcher probed(CharMatcher matcher) {
+		char[] level = new char[MIN_TOPIC_LENGTH];
+		Arrays.fill(level, 'x');
+		String topic = new String(level) + "/" + new String(level) + "/end";
+		String sub = new String(level) + "/*/end";
+		try {
+			if (matcher.matches(topic.toCharArray(), topic.length(), sub.toCharArray(), sub.length())) return matcher;
+			logger.warning("Vector topic matcher got the probe match wrong, staying scalar");
+		} catch (LinkageError e) {
+			logger.fine("Vector topic matcher doesn't work on this JDK, staying scalar: " + e);
+		}
+		return null;
+	}
+
+	static boolean isAvailable() {
+		return MATCHER != null;
+	}
+
+	/** @return null if it's not available */
+	static CharMatcher matcher() {
+		return MATCHER;
+	}
+
+	static boolean topicMatches(String topic, String sub) {
+		if (MATCHER == null) return TopicUtils.topicMatches(topic, sub);
+		char[][] bufs = buffers.get();
+		return MATCHER.matches(copy(bufs, 0, topic), topic.length(), copy(bufs, 1, sub), sub.length());
+	}
+
+	/** The topic's chars, in this thread's buffer: only good until the next call on this thread */
+	static char[] topicChars(String topic) {
+		return copy(buffers.get(), 0, topic);
+	}
+
+	private static char[] copy(char[][] bufs, int which, String s) {
+		if (bufs[which].length < s.length()) bufs[which] = new char[Math.max(s.length(), bufs[which].length * 2)];
+		s.getChars(0, s.length(), bufs[which], 0);
+		return bufs[which];
+	}
+
+	private VectorMatching() {
+		throw new AssertionError("Don't instantiate util class");
+	}
+}
@@ -0,0 +1,48 @@
+package com.solace.labs.topic;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+/**
+ * What actually gets registered for a weak registration: only weakly holds the real callback, so once nothing else
+ * does, it gets collected and this turns up on the dispatcher's queue to be pruned.  Until then it just ignores messages.
+ */
+final class WeakCallback extends WeakReference<DispatchMessageListener> implements AsyncDispatchMessageListener {
+
+	/** Where it was registered weakly, so pruning doesn't have to look through the whole registry (may include some it no longer is) */
+	final Set<Sub> subs = ConcurrentHashMap.newKeySet();
+
+	WeakCallback(DispatchMessageListener callback, ReferenceQueue<DispatchMessageListener> queue) {
+		super(callback, queue);
+	}
+
+	@Override
+	public void onReceive(BytesXMLMessage msg, DeliveryCompletion completion) {
+		onReceive(msg, null, completion);
+	}
+
+	@Override
+	public void onReceive(BytesXMLMessage msg, MessageContext context, DeliveryCompletion completion) {
+		DispatchMessageListener callback = get();
+		if (callback == null) {  // collected, waiting to be pruned
+			completion.complete();
+			return;
+		}
+		MessageListenerWithTopicDispatch.deliver(callback, msg, context, completion);
+	}
+
+	@Override
+	public void onUncaughtException(TopicDispatchException e) {
+		DispatchMessageListener callback = get();
+		if (callback != null) callback.onUncaughtException(e);
+	}
+
+	@Override
+	public String toString() {
+		return "WeakCallback[" + get() + "]";
+	}
+}
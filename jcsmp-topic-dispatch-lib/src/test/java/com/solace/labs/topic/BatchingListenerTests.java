@@ -0,0 +1,206 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+public class BatchingListenerTests {
+
+	static class RecordingBatchListener implements BatchDispatchMessageListener {
+		final List<List<String>> batches = Collections.synchronizedList(new ArrayList<>());
+		final List<List<BytesXMLMessage>> lists = Collections.synchronizedList(new ArrayList<>());
+		final AtomicInteger uncaught = new AtomicInteger();
+		volatile String thread = null;
+
+		@Override
+		public void onReceiveBatch(List<BytesXMLMessage> batch) {
+			thread = Thread.currentThread().getName();
+			List<String> topics = new ArrayList<>();
+			for (BytesXMLMessage msg : batch) topics.add(msg.getDestination().getName());
+			batches.add(topics);
+			lists.add(batch);
+		}
+
+		@Override
+		public void onUncaughtException(TopicDispatchException e) {
+			uncaught.incrementAndGet();
+		}
+	}
+
+	@Test
+	public void batchesBySizeAndFlushesOnClose() {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		RecordingBatchListener listener = new RecordingBatchListener();
+		BatchingMessageListener batcher = dispatcher.registerCallback(new Sub("jdbc/>"), listener, 3, 0);
+		assertSame(batcher, dispatcher.registerCallback(new Sub("jdbc/*/x"), listener, 3, 0));  // same accumulator, and DEDUPE still applies
+		for (int i=0; i<7; i++) {
+			dispatcher.onReceive(TestMessages.onTopic("jdbc/" + i + "/x"));
+		}
+		assertEquals(2, listener.batches.size());
+		assertEquals(1, batcher.getPendingCount());
+		assertEquals(java.util.Arrays.asList("jdbc/0/x", "jdbc/1/x", "jdbc/2/x"), listener.batches.get(0));
+		dispatcher.close();
+		assertEquals(3, listener.batches.size());
+		assertEquals(Collections.singletonList("jdbc/6/x"), listener.batches.get(2));
+		assertSame("lists are recycled", listener.lists.get(0), listener.lists.get(2));
+		assertEquals(7, batcher.getMessageCount());
+		assertEquals(3, batcher.getBatchCount());
+		assertEquals(3, batcher.getLargestBatchSize());
+		assertEquals(7.0 / 3, batcher.getAverageBatchSize(), 0.0001);
+		assertEquals(2, batcher.getSizeTriggeredCount());
+	}
+
+	@Test
+	public void lingerFlushesPartialBatch() throws InterruptedException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		RecordingBatchListener listener = new RecordingBatchListener();
+		BatchingMessageListener batcher = dispatcher.registerCallback(new Sub("columns/>"), listener, 1000, 20);
+		for (int i=0; i<5; i++) dispatcher.onReceive(TestMessages.onTopic("columns/" + i));
+		long start = System.currentTimeMillis();
+		while (listener.batches.isEmpty() && System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(5);
+		}
+		assertEquals(1, listener.batches.size());
+		assertEquals(5, listener.batches.get(0).size());
+		assertEquals(1, batcher.getLingerTriggeredCount());
+		assertTrue(dispatcher.unregisterCallback(new Sub("columns/>"), listener));
+		assertFalse(dispatcher.unregisterCallback(new Sub("columns/>"), listener));
+	}
+
+	@Test
+	public void throwingBatchListenerIsUnregistered() {
+		CountingDefault def = new CountingDefault();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, def);
+		RecordingBatchListener listener = new RecordingBatchListener() {
+			@Override
+			public void onReceiveBatch(List<BytesXMLMessage> batch) {
+				throw new IllegalStateException("database is down");
+			}
+		};
+		dispatcher.registerCallback(new Sub("db/>"), listener, 2, 0);
+		dispatcher.onReceive(TestMessages.onTopic("db/1"));
+		dispatcher.onReceive(TestMessages.onTopic("db/2"));
+		assertEquals(1, listener.uncaught.get());
+		dispatcher.onReceive(TestMessages.onTopic("db/3"));
+		assertEquals(1, def.count.get());
+	}
+
+	/** Counts how each message ended up */
+	static class Outcomes {
+		final AtomicInteger completed = new AtomicInteger();
+		final AtomicInteger failed = new AtomicInteger();
+
+		DeliveryCompletion next() {
+			return new DeliveryCompletion() {
+				@Override
+				public void complete() {
+					completed.incrementAndGet();
+				}
+
+				@Override
+				public void fail(Exception cause) {
+					failed.incrementAndGet();
+				}
+			};
+		}
+	}
+
+	@Test
+	public void lingeringBatchIsNotDeliveredOnTheTimerThread() throws InterruptedException {
+		ExecutorService pool = Executors.newSingleThreadExecutor(r -> new Thread(r, "jdbc-writer"));
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		RecordingBatchListener mine = new RecordingBatchListener();
+		RecordingBatchListener shared = new RecordingBatchListener();
+		dispatcher.registerCallback(new Sub("mine/>"), mine, 1000, 10, pool);
+		dispatcher.registerCallback(new Sub("shared/>"), shared, 1000, 10);
+		dispatcher.onReceive(TestMessages.onTopic("mine/1"));
+		dispatcher.onReceive(TestMessages.onTopic("shared/1"));
+		long start = System.currentTimeMillis();
+		while ((mine.batches.isEmpty() || shared.batches.isEmpty()) && System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(5);
+		}
+		assertEquals("jdbc-writer", mine.thread);
+		assertNotEquals("TopicDispatch-Timer", shared.thread);
+		assertTrue(shared.thread.startsWith("TopicDispatch-Worker-"));
+		dispatcher.close();
+		pool.shutdown();
+	}
+
+	@Test
+	public void batchesAfterAFailureAreFailedNotRedelivered() {
+		AtomicInteger calls = new AtomicInteger();
+		RecordingBatchListener listener = new RecordingBatchListener() {
+			@Override
+			public void onReceiveBatch(List<BytesXMLMessage> batch) {
+				calls.incrementAndGet();
+				throw new IllegalStateException("database is down");
+			}
+		};
+		BatchingMessageListener batcher = new BatchingMessageListener(listener, 2, 0);
+		Outcomes outcomes = new Outcomes();
+		for (int i=0; i<2; i++) batcher.onReceive(TestMessages.onTopic("db/" + i), outcomes.next());
+		assertEquals(1, calls.get());
+		assertEquals(2, outcomes.failed.get());
+		batcher.onReceive(TestMessages.onTopic("db/2"), outcomes.next());  // e.g. still matched while being unregistered
+		assertEquals(3, outcomes.failed.get());
+		batcher.flush();
+		batcher.close();
+		assertEquals(1, calls.get());
+		assertEquals(1, listener.uncaught.get());
+		assertEquals(0, outcomes.completed.get());
+		assertEquals(0, batcher.getPendingCount());
+	}
+
+	@Test(timeout = 10_000)
+	public void lingeringAndFullBatchesStayInOrder() throws InterruptedException {
+		CountDownLatch firstStarted = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		RecordingBatchListener listener = new RecordingBatchListener() {
+			@Override
+			public void onReceiveBatch(List<BytesXMLMessage> batch) {
+				super.onReceiveBatch(batch);
+				if (batches.size() == 1) {
+					firstStarted.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+		};
+		BatchingMessageListener batcher = new BatchingMessageListener(listener, 2, 10);
+		batcher.onReceive(TestMessages.onTopic("t/0"), DeliveryCompletion.NONE);
+		assertTrue(firstStarted.await(5, TimeUnit.SECONDS));  // linger delivery of [t/0], now stuck
+		batcher.onReceive(TestMessages.onTopic("t/1"), DeliveryCompletion.NONE);
+		Thread.sleep(50);  // [t/1] lingers too, and queues behind it
+		Thread filler = new Thread(() -> {
+			batcher.onReceive(TestMessages.onTopic("t/2"), DeliveryCompletion.NONE);
+			batcher.onReceive(TestMessages.onTopic("t/3"), DeliveryCompletion.NONE);
+		});
+		filler.start();
+		release.countDown();
+		filler.join();
+		batcher.close();
+		List<String> topics = new ArrayList<>();
+		for (List<String> batch : listener.batches) topics.addAll(batch);
+		assertEquals(java.util.Arrays.asList("t/0", "t/1", "t/2", "t/3"), topics);
+	}
+}
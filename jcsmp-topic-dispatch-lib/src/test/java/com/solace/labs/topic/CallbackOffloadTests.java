@@ -0,0 +1,250 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+public class CallbackOffloadTests {
+
+	/** Takes however long it's told to, and remembers which thread and what order */
+	static class SlowListener implements DispatchMessageListener {
+		volatile long sleepMicros;
+		final List<String> threads = Collections.synchronizedList(new ArrayList<>());
+		final List<String> topics = Collections.synchronizedList(new ArrayList<>());
+
+		SlowListener(long sleepMicros) {
+			this.sleepMicros = sleepMicros;
+		}
+
+		@Override
+		public void onReceive(BytesXMLMessage msg) {
+			threads.add(Thread.currentThread().getName());
+			topics.add(msg.getDestination().getName());
+			long until = System.nanoTime() + sleepMicros * 1000;
+			while (System.nanoTime() < until) {
+				// spin
+			}
+		}
+
+		@Override
+		public void onUncaughtException(TopicDispatchException e) {
+		}
+	}
+
+	@Test
+	public void slowCallbackGetsOffloadedAndComesBack() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		dispatcher.enableCallbackOffload(500, pool);
+		List<Boolean> migrations = Collections.synchronizedList(new ArrayList<>());
+		dispatcher.setCallbackMigrationListener((cb, offloaded, cost) -> migrations.add(offloaded));
+		SlowListener slow = new SlowListener(2000);
+		CountingListener fast = new CountingListener();
+		dispatcher.registerCallback(new Sub("a/>"), slow);
+		dispatcher.registerCallback(new Sub("a/>"), fast);
+		String me = Thread.currentThread().getName();
+		int n = CallbackOffloader.SAMPLE_EVERY * CallbackOffloader.MIN_SAMPLES + 50;
+		for (int i=0; i<n; i++) dispatcher.onReceive(TestMessages.onTopic("a/" + i));
+		CallbackCost cost = dispatcher.getCallbackCost(slow);
+		assertNotNull(cost);
+		assertTrue(cost.isOffloaded());
+		assertEquals(1, dispatcher.getOffloadedCallbackCount());
+		assertFalse(dispatcher.getCallbackCost(fast).isOffloaded());
+		assertTrue(dispatcher.getOffloadedMessageCount() > 0);
+		assertEquals(n, fast.count.get());
+		long start = System.currentTimeMillis();
+		while (slow.topics.size() < n && System.currentTimeMillis() - start < 10000) Thread.sleep(5);
+		assertEquals(me, slow.threads.get(0));
+		assertNotEquals(me, slow.threads.get(n-1));
+		for (int i=0; i<n; i++) assertEquals("a/" + i, slow.topics.get(i));  // never reordered
+
+		// now it speeds up
+		slow.sleepMicros = 0;
+		for (int i=0; i<CallbackOffloader.SAMPLE_EVERY * 40; i++) dispatcher.onReceive(TestMessages.onTopic("a/x"));
+		start = System.currentTimeMillis();
+		while (dispatcher.getOffloadedCallbackCount() > 0 && System.currentTimeMillis() - start < 10000) Thread.sleep(5);
+		assertFalse(dispatcher.getCallbackCost(slow).isOffloaded());
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+		dispatcher.onReceive(TestMessages.onTopic("a/last"));
+		assertEquals(me, slow.threads.get(slow.threads.size()-1));
+		start = System.currentTimeMillis();
+		while (migrations.size() < 2 && System.currentTimeMillis() - start < 5000) Thread.sleep(5);
+		assertEquals(Boolean.TRUE, migrations.get(0));
+		assertEquals(Boolean.FALSE, migrations.get(1));
+		assertEquals(2, dispatcher.getCallbackCost(slow).getMigrationCount());
+	}
+
+	@Test
+	public void offloadedCallbackThatThrowsIsUnregistered() throws InterruptedException {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		CountingDefault def = new CountingDefault();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, def);
+		dispatcher.enableCallbackOffload(100, pool);
+		SlowListener slow = new SlowListener(500) {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				super.onReceive(msg);
+				if (msg.getDestination().getName().equals("boom")) throw new IllegalStateException("boom");
+			}
+		};
+		dispatcher.registerCallback(new Sub(">"), slow);
+		for (int i=0; i<CallbackOffloader.SAMPLE_EVERY * CallbackOffloader.MIN_SAMPLES + 1; i++) dispatcher.onReceive(TestMessages.onTopic("t"));
+		assertTrue(dispatcher.getCallbackCost(slow).isOffloaded());
+		dispatcher.onReceive(TestMessages.onTopic("boom"));
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+		dispatcher.onReceive(TestMessages.onTopic("after"));
+		assertEquals(1, def.count.get());
+		assertTrue(dispatcher.getCallbackCosts().isEmpty());
+	}
+
+	/** Both callbacks' lanes, offloaded, then the only executor thread held until the latch is counted down */
+	private static CountDownLatch offloadAndBlock(MessageListenerWithTopicDispatch dispatcher, ExecutorService pool, String... topics) throws InterruptedException {
+		for (int i=0; i<CallbackOffloader.SAMPLE_EVERY * CallbackOffloader.MIN_SAMPLES + 1; i++) {
+			for (String topic : topics) dispatcher.onReceive(TestMessages.onTopic(topic));
+		}
+		long start = System.currentTimeMillis();
+		while (dispatcher.getQueuedCount(PriorityClass.BULK) + dispatcher.getQueuedCount(PriorityClass.CONTROL) > 0 && System.currentTimeMillis() - start < 10000) Thread.sleep(5);
+		assertEquals(2, dispatcher.getOffloadedCallbackCount());
+		CountDownLatch latch = new CountDownLatch(1);
+		pool.execute(() -> {
+			try {
+				latch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		});
+		return latch;
+	}
+
+	@Test
+	public void controlLaneOvertakesBulkBacklog() throws InterruptedException {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		dispatcher.enableCallbackOffload(1, pool);
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+		SlowListener bulk = new SlowListener(20) {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				super.onReceive(msg);
+				order.add(msg.getDestination().getName());
+			}
+		};
+		SlowListener control = new SlowListener(20) {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				super.onReceive(msg);
+				order.add(msg.getDestination().getName());
+			}
+		};
+		dispatcher.registerCallback(new Sub("telemetry/>"), bulk, null, new DeliveryPolicy(PriorityClass.BULK));
+		dispatcher.registerCallback(new Sub("orders/>"), control, null, new DeliveryPolicy(PriorityClass.CONTROL));
+		CountDownLatch latch = offloadAndBlock(dispatcher, pool, "telemetry/warmup", "orders/warmup");
+		order.clear();
+		for (int i=0; i<200; i++) dispatcher.onReceive(TestMessages.onTopic("telemetry/" + i));
+		for (int i=0; i<5; i++) dispatcher.onReceive(TestMessages.onTopic("orders/" + i));
+		assertEquals(200, dispatcher.getQueuedCount(PriorityClass.BULK));
+		assertEquals(5, dispatcher.getQueuedCount(PriorityClass.CONTROL));
+		assertEquals(0, dispatcher.getQueuedCount(PriorityClass.NORMAL));
+		latch.countDown();
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(205, order.size());
+		for (int i=0; i<5; i++) assertTrue(order.indexOf("orders/" + i) < CallbackOffloader.QUANTUM);  // didn't wait behind 200 bulk
+		List<String> bulkOrder = new ArrayList<>(order);
+		bulkOrder.removeIf(topic -> topic.startsWith("orders/"));
+		for (int i=0; i<200; i++) assertEquals("telemetry/" + i, bulkOrder.get(i));  // still in order within the lane
+		assertEquals(0, dispatcher.getQueuedCount(PriorityClass.BULK));
+	}
+
+	@Test
+	public void missedDeadlineGoesToDefaultListener() throws InterruptedException {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		CountingDefault def = new CountingDefault();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, def);
+		dispatcher.enableCallbackOffload(1, pool);
+		SlowListener bulk = new SlowListener(20);
+		SlowListener control = new SlowListener(20);
+		dispatcher.registerCallback(new Sub("telemetry/>"), bulk, null, new DeliveryPolicy(PriorityClass.BULK, 20, DeliveryPolicy.Expiry.DEFAULT_LISTENER));
+		dispatcher.registerCallback(new Sub("orders/>"), control, null, new DeliveryPolicy(PriorityClass.CONTROL, 60_000, DeliveryPolicy.Expiry.DROP));
+		CountDownLatch latch = offloadAndBlock(dispatcher, pool, "telemetry/warmup", "orders/warmup");
+		int bulkSeen = bulk.topics.size();
+		int controlSeen = control.topics.size();
+		for (int i=0; i<10; i++) dispatcher.onReceive(TestMessages.onTopic("telemetry/" + i));
+		dispatcher.onReceive(TestMessages.onTopic("orders/1"));
+		Thread.sleep(50);
+		latch.countDown();
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(bulkSeen, bulk.topics.size());  // all too late
+		assertEquals(controlSeen + 1, control.topics.size());
+		assertEquals(10, dispatcher.getDeadlineMissCount(PriorityClass.BULK));
+		assertEquals(0, dispatcher.getDeadlineMissCount(PriorityClass.CONTROL));
+		assertEquals(10, def.count.get());
+	}
+
+	@Test
+	public void oneCallbackInTwoClassesStillRunsSerially() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.CALL_EACH, new CountingDefault());
+		dispatcher.enableCallbackOffload(1, pool);
+		AtomicInteger running = new AtomicInteger();
+		AtomicInteger overlaps = new AtomicInteger();
+		List<String> order = Collections.synchronizedList(new ArrayList<>());
+		SlowListener both = new SlowListener(20) {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				if (running.incrementAndGet() > 1) overlaps.incrementAndGet();
+				super.onReceive(msg);
+				order.add(msg.getDestination().getName());
+				running.decrementAndGet();
+			}
+		};
+		SlowListener other = new SlowListener(20);  // just so offloadAndBlock() sees two offloaded
+		dispatcher.registerCallback(new Sub("telemetry/>"), both, null, new DeliveryPolicy(PriorityClass.BULK));
+		dispatcher.registerCallback(new Sub("orders/>"), both, null, new DeliveryPolicy(PriorityClass.CONTROL));
+		dispatcher.registerCallback(new Sub("other/>"), other);
+		CountDownLatch latch = offloadAndBlock(dispatcher, pool, "telemetry/warmup", "other/warmup");
+		for (int i=0; i<3; i++) {  // and the pool's other threads
+			pool.execute(() -> {
+				try {
+					latch.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			});
+		}
+		Thread.sleep(50);  // let them all get stuck
+		order.clear();
+		for (int i=0; i<100; i++) dispatcher.onReceive(TestMessages.onTopic("telemetry/" + i));
+		for (int i=0; i<5; i++) dispatcher.onReceive(TestMessages.onTopic("orders/" + i));
+		latch.countDown();
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(0, overlaps.get());
+		assertEquals(105, order.size());
+		for (int i=0; i<5; i++) {
+			assertEquals("orders/" + i, order.get(i));  // in order, and ahead of the bulk backlog
+		}
+		for (int i=0; i<100; i++) assertEquals("telemetry/" + i, order.get(i + 5));
+	}
+}
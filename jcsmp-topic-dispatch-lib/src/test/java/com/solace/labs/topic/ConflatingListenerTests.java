@@ -0,0 +1,96 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+public class ConflatingListenerTests {
+
+	/** Blocks on the first message until the test lets it go, so everything after piles up */
+	static class SlowListener implements DispatchMessageListener {
+		final CountDownLatch gate = new CountDownLatch(1);
+		final List<BytesXMLMessage> received = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void onReceive(BytesXMLMessage msg) {
+			try {
+				gate.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			received.add(msg);
+		}
+
+		@Override
+		public void onUncaughtException(TopicDispatchException e) {
+		}
+	}
+
+	@Test
+	public void onlyLatestPerTopicIsDelivered() throws InterruptedException {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+			SlowListener ui = new SlowListener();
+			ConflatingMessageListener conflater = dispatcher.registerConflatedCallback(new Sub("prices/*/>"), ui, executor);
+			BytesXMLMessage first = TestMessages.onTopic("prices/nyse/IBM");
+			dispatcher.onReceive(first);  // this one gets stuck in the callback
+			Thread.sleep(50);
+			List<BytesXMLMessage> ibm = new ArrayList<>();
+			List<BytesXMLMessage> aapl = new ArrayList<>();
+			for (int i=0; i<100; i++) {  // context thread never blocks
+				ibm.add(TestMessages.onTopic("prices/nyse/IBM"));
+				aapl.add(TestMessages.onTopic("prices/nasdaq/AAPL"));
+				dispatcher.onReceive(ibm.get(i));
+				dispatcher.onReceive(aapl.get(i));
+			}
+			assertEquals(2, conflater.getPendingCount());
+			ui.gate.countDown();
+			executor.shutdown();
+			assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+			assertEquals(3, ui.received.size());
+			assertEquals(first, ui.received.get(0));
+			assertEquals(ibm.get(99), ui.received.get(1));
+			assertEquals(aapl.get(99), ui.received.get(2));
+			assertEquals(201, conflater.getReceivedCount());
+			assertEquals(198, conflater.getConflatedCount());
+			assertEquals(3, conflater.getDeliveredCount());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void messagesAfterAFailureAreFailedNotAcked() {
+		SlowListener broken = new SlowListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				throw new IllegalStateException("screen's gone");
+			}
+		};
+		ConflatingMessageListener conflater = new ConflatingMessageListener(broken, Runnable::run);
+		BatchingListenerTests.Outcomes outcomes = new BatchingListenerTests.Outcomes();
+		conflater.onReceive(TestMessages.onTopic("prices/nyse/IBM"), outcomes.next());
+		assertEquals(1, outcomes.failed.get());
+		for (int i=0; i<3; i++) {  // still matched until it's unregistered
+			conflater.onReceive(TestMessages.onTopic("prices/nyse/IBM"), outcomes.next());
+		}
+		assertEquals(4, outcomes.failed.get());
+		assertEquals(0, outcomes.completed.get());
+		assertEquals(0, conflater.getConflatedCount());
+		assertEquals(0, conflater.getPendingCount());
+	}
+}
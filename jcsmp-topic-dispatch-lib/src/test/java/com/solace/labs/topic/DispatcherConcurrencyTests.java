@@ -0,0 +1,186 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPException;
+
+/** One dispatcher shared by several "context threads" at once */
+public class DispatcherConcurrencyTests {
+
+	static class CountingListener implements DispatchMessageListener {
+		final AtomicLong count = new AtomicLong();
+
+		@Override
+		public void onReceive(BytesXMLMessage msg) {
+			count.incrementAndGet();
+		}
+
+		@Override
+		public void onUncaughtException(TopicDispatchException e) {
+		}
+	}
+
+	static class CountingDefault implements DefaultMessageListener {
+		final AtomicLong count = new AtomicLong();
+
+		@Override
+		public void onReceiveDefault(BytesXMLMessage msg) {
+			count.incrementAndGet();
+		}
+
+		@Override
+		public void onException(JCSMPException e) {
+		}
+	}
+
+	@Test
+	public void concurrentOnReceiveWithRegistryChurn() throws InterruptedException {
+		final CountingDefault defaultListener = new CountingDefault();
+		final MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.TRIE, defaultListener);
+		final CountingListener aListener = new CountingListener();
+		final CountingListener bListener = new CountingListener();
+		dispatcher.registerCallback(new Sub("a/>"), aListener);
+		dispatcher.registerCallback(new Sub("a/*/c"), aListener);  // overlapping, DEDUPE so only once
+		dispatcher.registerCallback(new Sub("b/*"), bListener);
+		final int threads = 4;
+		final int perThread = 50_000;
+		final BytesXMLMessage aMsg = TestMessages.onTopic("a/b/c");
+		final BytesXMLMessage bMsg = TestMessages.onTopic("b/x");
+		final BytesXMLMessage zMsg = TestMessages.onTopic("z");
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger errors = new AtomicInteger();
+		List<Thread> workers = new ArrayList<>();
+		for (int t=0; t<threads; t++) {
+			workers.add(new Thread(() -> {
+				try {
+					for (int i=0; i<perThread; i++) {
+						dispatcher.onReceive(aMsg);
+						dispatcher.onReceive(bMsg);
+						dispatcher.onReceive(zMsg);
+					}
+				} catch (RuntimeException e) {
+					e.printStackTrace();
+					errors.incrementAndGet();
+				} finally {
+					done.countDown();
+				}
+			}));
+		}
+		for (Thread t : workers) t.start();
+		// meanwhile, the app thread keeps adding and removing some unrelated subs
+		CountingListener churn = new CountingListener();
+		while (done.getCount() > 0) {
+			Sub sub = new Sub("c/" + (int)(Math.random() * 100) + "/>");
+			dispatcher.registerCallback(sub, churn);
+			dispatcher.unregisterCallback(sub, churn);
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertEquals(0, errors.get());
+		assertEquals(threads * perThread, aListener.count.get());
+		assertEquals(threads * perThread, bListener.count.get());
+		assertEquals(threads * perThread, defaultListener.count.get());
+		assertEquals(0, churn.count.get());
+	}
+
+	@Test
+	public void callbackCanUnregisterItself() {
+		final CountingDefault defaultListener = new CountingDefault();
+		final MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.CALL_EACH, defaultListener);
+		final Sub sub = new Sub("one/shot");
+		final AtomicLong calls = new AtomicLong();
+		final boolean[] unregistered = new boolean[1];
+		dispatcher.registerCallback(sub, new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				calls.incrementAndGet();
+				unregistered[0] = dispatcher.unregisterCallback(sub, this);  // would deadlock if not deferred
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+			}
+		});
+		BytesXMLMessage msg = TestMessages.onTopic("one/shot");
+		dispatcher.onReceive(msg);
+		assertTrue(unregistered[0]);
+		dispatcher.onReceive(msg);
+		assertEquals(1, calls.get());
+		assertEquals(1, defaultListener.count.get());
+	}
+
+	@Test
+	public void throwingCallbackIsUnregistered() {
+		final CountingDefault defaultListener = new CountingDefault();
+		final MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, defaultListener);
+		final Sub sub = new Sub("bad/*");
+		final AtomicLong uncaught = new AtomicLong();
+		DispatchMessageListener bad = new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				throw new IllegalStateException("boom");
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+				uncaught.incrementAndGet();
+			}
+		};
+		dispatcher.registerCallback(sub, bad);
+		BytesXMLMessage msg = TestMessages.onTopic("bad/news");
+		dispatcher.onReceive(msg);
+		assertEquals(1, uncaught.get());
+		assertEquals(0, defaultListener.count.get());
+		assertFalse(dispatcher.unregisterCallback(sub, bad));  // already gone
+		dispatcher.onReceive(msg);
+		assertEquals(1, uncaught.get());
+		assertEquals(1, defaultListener.count.get());
+	}
+
+	@Test(timeout = 10_000)  // used to deadlock, upgrading the outer read lock
+	public void throwingCallbackInNestedDispatchIsUnregistered() {
+		final CountingDefault defaultListener = new CountingDefault();
+		final MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, defaultListener);
+		final AtomicLong uncaught = new AtomicLong();
+		final Sub badSub = new Sub("inner/*");
+		DispatchMessageListener bad = new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				throw new IllegalStateException("boom");
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+				uncaught.incrementAndGet();
+			}
+		};
+		CountingListener outer = new CountingListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				super.onReceive(msg);
+				dispatcher.onReceive(TestMessages.onTopic("inner/1"));  // re-dispatch on the same thread
+			}
+		};
+		dispatcher.registerCallback(new Sub("outer/*"), outer);
+		dispatcher.registerCallback(badSub, bad);
+		dispatcher.onReceive(TestMessages.onTopic("outer/1"));
+		assertEquals(1, outer.count.get());
+		assertEquals(1, uncaught.get());
+		assertFalse(dispatcher.unregisterCallback(badSub, bad));  // removed once the outer message was done
+		dispatcher.onReceive(TestMessages.onTopic("inner/2"));
+		assertEquals(1, uncaught.get());
+		assertEquals(1, defaultListener.count.get());
+	}
+}
@@ -0,0 +1,85 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+public class DuplicateSuppressionTests {
+
+	private static BytesXMLMessage withId(String topic, String id) {
+		return TestMessages.withHeaders(topic, Collections.singletonMap("getApplicationMessageId", id));
+	}
+
+	@Test
+	public void redundantFeedsDeliveredOnce() {
+		CountingDefault defaults = new CountingDefault();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, defaults);
+		dispatcher.enableDuplicateSuppression(1_000, 60_000);
+		CountingListener listener = new CountingListener();
+		dispatcher.registerCallback(new Sub("prices/>"), listener);
+		for (int i=0; i<500; i++) {
+			dispatcher.onReceive(withId("prices/" + i, "id-" + i));  // feed A
+			dispatcher.onReceive(withId("prices/" + i, "id-" + i));  // feed B, same thing
+		}
+		dispatcher.onReceive(TestMessages.onTopic("prices/x"));  // no ID, never a duplicate
+		dispatcher.onReceive(TestMessages.onTopic("prices/x"));
+		dispatcher.onReceive(withId("other", "id-1"));  // dropped before matching, so not to the default either
+		assertEquals(502, listener.count.get());
+		assertEquals(501, dispatcher.getDuplicateCount());
+		assertEquals(0, defaults.count.get());
+	}
+
+	@Test
+	public void boundedByCountAndTime() throws InterruptedException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		CountingListener listener = new CountingListener();
+		dispatcher.registerCallback(new Sub(">"), listener);
+		dispatcher.enableDuplicateSuppression(4, 60_000);
+		for (int i=0; i<10; i++) dispatcher.onReceive(withId("a", "id-" + i));
+		dispatcher.onReceive(withId("a", "id-0"));  // long gone from a window of 4
+		dispatcher.onReceive(withId("a", "id-9"));  // still there
+		assertEquals(11, listener.count.get());
+		dispatcher.enableDuplicateSuppression(100, 50);
+		dispatcher.onReceive(withId("a", "late"));
+		Thread.sleep(100);
+		dispatcher.onReceive(withId("a", "late"));  // too long ago to count
+		dispatcher.onReceive(withId("a", "late"));  // but this one's a duplicate of that
+		assertEquals(13, listener.count.get());
+	}
+
+	/** Lots of colliding keys through a small window, against a simple reference version */
+	@Test
+	public void windowMatchesReference() {
+		final int capacity = 64;
+		final long window = 1_000;
+		DuplicateWindow dw = new DuplicateWindow(capacity, window, msg -> 0);
+		ArrayDeque<long[]> ring = new ArrayDeque<>();  // {key, time}
+		Random random = new Random(7);
+		long now = 0;
+		for (int i=0; i<200_000; i++) {
+			now += random.nextInt(40);
+			long key = random.nextInt(200);  // plenty of repeats, and of index collisions
+			boolean expected = false;
+			Map<Long, Long> latest = new HashMap<>();
+			for (long[] entry : ring) latest.put(entry[0], entry[1]);
+			Long seen = latest.get(key);
+			if (seen != null && now - seen <= window) expected = true;
+			assertEquals("step " + i, expected, dw.check(key, now));
+			if (!expected) {
+				if (ring.size() == capacity) ring.removeFirst();
+				ring.addLast(new long[] { key, now });
+			}
+		}
+	}
+}
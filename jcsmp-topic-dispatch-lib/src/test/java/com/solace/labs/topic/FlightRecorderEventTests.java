@@ -0,0 +1,220 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.CallbackOffloadTests.SlowListener;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+import jdk.jfr.EventType;
+import jdk.jfr.Recording;
+import jdk.jfr.SettingDescriptor;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class FlightRecorderEventTests {
+
+	private static List<RecordedEvent> eventsNamed(List<RecordedEvent> events, String name) {
+		List<RecordedEvent> named = new ArrayList<>();
+		for (RecordedEvent event : events) {
+			if (event.getEventType().getName().equals(name)) named.add(event);
+		}
+		return named;
+	}
+
+	@Test
+	public void dispatchInternalsAreRecorded() throws IOException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		CountingListener good = new CountingListener();
+		DispatchMessageListener bad = new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				throw new IllegalStateException("boom");
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+			}
+		};
+		Path file = Files.createTempFile("dispatch", ".jfr");
+		try (Recording recording = new Recording()) {
+			for (String name : new String[] { "Dispatch", "Callback", "RegistryChange", "EngineRebuild", "CallbackFailed" }) {
+				recording.enable("com.solace.labs.topic." + name).withThreshold(Duration.ZERO);  // everything, not just the slow ones
+			}
+			recording.start();
+			dispatcher.registerCallback(new Sub("a/>"), good);
+			dispatcher.registerCallback(new Sub("a/b"), bad);
+			dispatcher.onReceive(TestMessages.onTopic("a/b"));
+			dispatcher.onReceive(TestMessages.onTopic("nope"));
+			dispatcher.unregisterCallback(new Sub("a/>"), good);
+			recording.stop();
+			recording.dump(file);
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+
+			List<RecordedEvent> dispatches = eventsNamed(events, "com.solace.labs.topic.Dispatch");
+			assertEquals(2, dispatches.size());
+			assertEquals("a/b", dispatches.get(0).getString("topic"));
+			assertEquals(2, dispatches.get(0).getInt("matchCount"));
+			assertFalse(dispatches.get(0).getBoolean("defaulted"));
+			assertTrue(dispatches.get(0).getLong("matchDuration") >= 0);
+			assertEquals("nope", dispatches.get(1).getString("topic"));
+			assertTrue(dispatches.get(1).getBoolean("defaulted"));
+
+			assertEquals(2, eventsNamed(events, "com.solace.labs.topic.Callback").size());
+
+			List<RecordedEvent> failures = eventsNamed(events, "com.solace.labs.topic.CallbackFailed");
+			assertEquals(1, failures.size());
+			assertEquals("a/b", failures.get(0).getString("sub"));
+			assertTrue(failures.get(0).getString("exception").contains("boom"));
+			String trace = failures.get(0).getString("exceptionStackTrace");
+			assertTrue(trace, trace.contains("boom") && trace.contains("FlightRecorderEventTests$1.onReceive"));  // where it threw
+
+			List<RecordedEvent> changes = eventsNamed(events, "com.solace.labs.topic.RegistryChange");
+			assertEquals(3, changes.size());
+			assertEquals("REGISTER", changes.get(0).getString("action"));
+			assertTrue(changes.get(0).getBoolean("indexChanged"));
+			assertEquals("UNREGISTER", changes.get(2).getString("action"));
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void quietByDefault() throws IOException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		dispatcher.registerCallback(new Sub("a/>"), new CountingListener());
+		Path file = Files.createTempFile("dispatch", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("com.solace.labs.topic.Dispatch");  // with its default threshold
+			recording.enable("com.solace.labs.topic.Callback");
+			recording.start();
+			for (int i=0; i<1_000; i++) {
+				dispatcher.onReceive(TestMessages.onTopic("a/b"));
+			}
+			recording.stop();
+			recording.dump(file);
+			// a few might have been slow, e.g. a GC pause, but nowhere near all of them
+			assertTrue(RecordingFile.readAllEvents(file).size() < 100);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void samplingKeepsSomeOfThem() throws IOException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		dispatcher.registerCallback(new Sub("a/>"), new CountingListener());
+		Path file = Files.createTempFile("dispatch", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("com.solace.labs.topic.Dispatch").withThreshold(Duration.ZERO).with("sampling", "10");
+			recording.enable("com.solace.labs.topic.Callback").withThreshold(Duration.ZERO).with("sampling", "1000000");
+			recording.start();
+			for (int i=0; i<2_000; i++) {
+				dispatcher.onReceive(TestMessages.onTopic("a/b"));
+			}
+			recording.stop();
+			recording.dump(file);
+			List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+			int dispatches = eventsNamed(events, "com.solace.labs.topic.Dispatch").size();
+			assertTrue(dispatches + " of 2000", dispatches > 50 && dispatches < 500);  // about 200
+			assertTrue(eventsNamed(events, "com.solace.labs.topic.Callback").size() < 10);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void samplingSettingIsLabelled() {
+		assertTrue(Jfr.AVAILABLE);
+		for (Class<? extends jdk.jfr.Event> type : Arrays.asList(DispatchEvent.class, CallbackEvent.class)) {
+			SettingDescriptor sampling = null;
+			for (SettingDescriptor setting : EventType.getEventType(type).getSettingDescriptors()) {
+				if (setting.getName().equals("sampling")) sampling = setting;
+			}
+			assertEquals("Sampling", sampling.getLabel());
+			assertTrue(sampling.getDescription().startsWith("Of the events over the threshold"));
+		}
+	}
+
+	@Test
+	public void offloadedCallbackIsRecordedOnceWhereItRuns() throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		dispatcher.enableCallbackOffload(100, pool);
+		SlowListener slow = new SlowListener(1000);
+		dispatcher.registerCallback(new Sub("a/>"), slow);
+		int n = CallbackOffloader.SAMPLE_EVERY * CallbackOffloader.MIN_SAMPLES + 50;
+		Path file = Files.createTempFile("dispatch", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("com.solace.labs.topic.Callback").withThreshold(Duration.ZERO);
+			recording.start();
+			for (int i=0; i<n; i++) dispatcher.onReceive(TestMessages.onTopic("a/" + i));
+			pool.shutdown();
+			assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+			recording.stop();
+			recording.dump(file);
+			List<RecordedEvent> callbacks = eventsNamed(RecordingFile.readAllEvents(file), "com.solace.labs.topic.Callback");
+			assertEquals(n, callbacks.size());  // not one for the enqueue as well
+			int offloaded = 0;
+			for (RecordedEvent event : callbacks) {
+				if (event.getBoolean("offloaded")) {
+					offloaded++;
+					assertTrue(event.getDuration().toNanos() >= TimeUnit.MICROSECONDS.toNanos(1000));  // the call, not the hand-off
+				}
+			}
+			assertTrue(offloaded >= 50);
+		} finally {
+			Files.deleteIfExists(file);
+		}
+	}
+
+	@Test
+	public void fannedOutCallsAreNotMarkedOffloaded() throws IOException {
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.CALL_EACH, new CountingDefault());
+		dispatcher.enableParallelFanOut(2, pool, true);
+		dispatcher.registerCallback(new Sub("a/>"), new CountingListener());
+		dispatcher.registerCallback(new Sub("a/*"), new CountingListener());
+		dispatcher.registerCallback(new Sub("b/>"), new CountingListener());
+		Path file = Files.createTempFile("dispatch", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable("com.solace.labs.topic.Callback").withThreshold(Duration.ZERO);
+			recording.start();
+			dispatcher.onReceive(TestMessages.onTopic("a/b"));  // two callbacks: fanned out
+			dispatcher.onReceive(TestMessages.onTopic("b/c"));  // one: called as usual
+			recording.stop();
+			recording.dump(file);
+			List<RecordedEvent> callbacks = eventsNamed(RecordingFile.readAllEvents(file), "com.solace.labs.topic.Callback");
+			assertEquals(3, callbacks.size());
+			int fannedOut = 0;
+			for (RecordedEvent event : callbacks) {
+				assertFalse(event.getBoolean("offloaded"));
+				if (event.getBoolean("fannedOut")) {
+					fannedOut++;
+					assertTrue(event.getString("sub").startsWith("a/"));
+				}
+			}
+			assertEquals(2, fannedOut);
+		} finally {
+			Files.deleteIfExists(file);
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.FlowMessageListenerWithTopicDispatch.FailurePolicy;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPException;
+import com.solacesystems.jcsmp.XMLMessage;
+
+/** Uses a stand-in settler instead of a real flow */
+public class FlowDispatchTests {
+
+	static class RecordingSettler implements MessageSettler {
+		final List<BytesXMLMessage> acks = Collections.synchronizedList(new ArrayList<>());
+		final Map<BytesXMLMessage, XMLMessage.Outcome> settled = new ConcurrentHashMap<>();
+
+		@Override
+		public void ack(BytesXMLMessage msg) {
+			acks.add(msg);
+		}
+
+		@Override
+		public void settle(BytesXMLMessage msg, XMLMessage.Outcome outcome) {
+			settled.put(msg, outcome);
+		}
+	}
+
+	static class RecordingDefault implements DefaultMessageListener {
+		final List<BytesXMLMessage> received = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void onReceiveDefault(BytesXMLMessage msg) {
+			received.add(msg);
+		}
+
+		@Override
+		public void onException(JCSMPException e) {
+		}
+	}
+
+	static DispatchMessageListener sync() {
+		return new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+			}
+		};
+	}
+
+	/** Hangs on to the completions so the test can finish them whenever it likes */
+	static class HoldingListener implements AsyncDispatchMessageListener {
+		final List<DeliveryCompletion> completions = Collections.synchronizedList(new ArrayList<>());
+
+		@Override
+		public void onReceive(BytesXMLMessage msg, DeliveryCompletion completion) {
+			completions.add(completion);
+		}
+
+		@Override
+		public void onUncaughtException(TopicDispatchException e) {
+		}
+	}
+
+	@Test
+	public void acksInBatchesByCount() {
+		RecordingSettler settler = new RecordingSettler();
+		RecordingDefault def = new RecordingDefault();
+		FlowMessageListenerWithTopicDispatch flow = new FlowMessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.LINEAR_SCAN, def, settler, 3, 0);
+		flow.registerCallback(new Sub("orders/>"), sync());
+		flow.onReceive(TestMessages.onTopic("orders/1"));
+		flow.onReceive(TestMessages.onTopic("nothing/here"));  // goes to default, still gets acked
+		assertEquals(0, settler.acks.size());
+		assertEquals(2, flow.getInFlightCount());
+		flow.onReceive(TestMessages.onTopic("orders/2"));
+		assertEquals(3, settler.acks.size());
+		assertEquals(1, flow.getAckBatchCount());
+		flow.onReceive(TestMessages.onTopic("orders/3"));
+		flow.close();  // flushes the partial batch
+		assertEquals(4, settler.acks.size());
+		assertEquals(0, flow.getInFlightCount());
+		assertEquals(1, def.received.size());
+	}
+
+	@Test
+	public void waitsForAsyncListeners() {
+		RecordingSettler settler = new RecordingSettler();
+		FlowMessageListenerWithTopicDispatch flow = new FlowMessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.TRIE, new RecordingDefault(), settler, 1, 0);
+		HoldingListener async1 = new HoldingListener();
+		HoldingListener async2 = new HoldingListener();
+		flow.registerCallback(new Sub("a/*"), async1);
+		flow.registerCallback(new Sub("a/>"), async2);
+		flow.registerCallback(new Sub("a/b"), sync());
+		BytesXMLMessage msg = TestMessages.onTopic("a/b");
+		flow.onReceive(msg);
+		assertEquals(0, settler.acks.size());
+		async1.completions.get(0).complete();
+		assertEquals(0, settler.acks.size());
+		async2.completions.get(0).complete();
+		async2.completions.get(0).fail(new Exception("too late, ignored"));
+		assertEquals(Collections.singletonList(msg), settler.acks);
+		assertTrue(settler.settled.isEmpty());
+	}
+
+	@Test
+	public void failurePolicies() {
+		RecordingSettler settler = new RecordingSettler();
+		RecordingDefault def = new RecordingDefault();
+		FlowMessageListenerWithTopicDispatch flow = new FlowMessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.LINEAR_SCAN, def, settler, 1, 0);
+		HoldingListener toDefault = new HoldingListener();
+		HoldingListener reject = new HoldingListener();
+		HoldingListener nack = new HoldingListener();
+		flow.registerCallback(new Sub("d/>"), toDefault, FailurePolicy.ROUTE_TO_DEFAULT);
+		flow.registerCallback(new Sub("r/>"), reject, FailurePolicy.SETTLE_REJECTED);
+		flow.registerCallback(new Sub("*/both"), nack);  // SETTLE_FAILED by default
+		flow.registerCallback(new Sub("d/both"), toDefault, FailurePolicy.ROUTE_TO_DEFAULT);
+
+		BytesXMLMessage d = TestMessages.onTopic("d/x");
+		flow.onReceive(d);
+		toDefault.completions.get(0).fail(new Exception("route it"));
+		assertEquals(Collections.singletonList(d), def.received);
+		assertEquals(Collections.singletonList(d), settler.acks);
+
+		BytesXMLMessage r = TestMessages.onTopic("r/x");
+		flow.onReceive(r);
+		reject.completions.get(0).fail(new Exception("poison"));
+		assertEquals(XMLMessage.Outcome.REJECTED, settler.settled.get(r));
+
+		BytesXMLMessage both = TestMessages.onTopic("d/both");  // matches toDefault and nack: the nack is more severe
+		flow.onReceive(both);
+		toDefault.completions.get(1).fail(new Exception("route it"));
+		nack.completions.get(0).fail(new Exception("try again later"));
+		assertEquals(XMLMessage.Outcome.FAILED, settler.settled.get(both));
+		assertEquals(1, def.received.size());
+		assertEquals(1, flow.getRoutedToDefaultCount());
+		assertEquals(1, flow.getSettledRejectedCount());
+		assertEquals(1, flow.getSettledFailedCount());
+		assertEquals(0, flow.getInFlightCount());
+	}
+
+	@Test
+	public void failurePolicyGoesWithLastRegistration() {
+		RecordingSettler settler = new RecordingSettler();
+		FlowMessageListenerWithTopicDispatch flow = new FlowMessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.LINEAR_SCAN, new RecordingDefault(), settler, 1, 0);
+		HoldingListener reject = new HoldingListener();
+		flow.registerCallback(new Sub("r/>"), reject, FailurePolicy.SETTLE_REJECTED);
+		flow.registerCallback(new Sub("*/x"), reject, FailurePolicy.SETTLE_REJECTED);
+		BytesXMLMessage r = TestMessages.onTopic("r/x");
+		flow.onReceive(r);
+		flow.unregisterCallback(new Sub("r/>"), reject);
+		assertEquals(1, flow.failurePolicies.size());  // still got one sub
+		flow.unregisterCallback(new Sub("*/x"), reject);
+		assertTrue(flow.failurePolicies.isEmpty());
+		reject.completions.get(0).fail(new Exception("poison"));  // was dispatched while it still had its policy
+		assertEquals(XMLMessage.Outcome.REJECTED, settler.settled.get(r));
+
+		DispatchMessageListener thrower = new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				throw new IllegalStateException("boom");
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+			}
+		};
+		flow.registerCallback(new Sub("t/>"), thrower, FailurePolicy.ROUTE_TO_DEFAULT);
+		flow.onReceive(TestMessages.onTopic("t/1"));  // unregistered by the dispatcher, not by us
+		assertTrue(flow.failurePolicies.isEmpty());
+	}
+
+	@Test
+	public void acksWhenWindowExpires() throws InterruptedException {
+		RecordingSettler settler = new RecordingSettler();
+		FlowMessageListenerWithTopicDispatch flow = new FlowMessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.LINEAR_SCAN, new RecordingDefault(), settler, 1000, 20);
+		flow.registerCallback(new Sub(">"), sync());
+		for (int i=0; i<10; i++) flow.onReceive(TestMessages.onTopic("t/" + i));
+		long start = System.currentTimeMillis();
+		while (settler.acks.size() < 10 && System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(5);
+		}
+		assertEquals(10, settler.acks.size());
+		assertEquals(1, flow.getAckBatchCount());
+		flow.close();
+	}
+}
@@ -0,0 +1,120 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.CallbackOffloadTests.SlowListener;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+public class LatencyTrackingTests {
+
+	private static BytesXMLMessage stamped(String topic, Long sent, long received) {
+		Map<String, Object> headers = new HashMap<>();
+		headers.put("getSenderTimestamp", sent);
+		headers.put("getReceiveTimestamp", received);
+		return TestMessages.withHeaders(topic, headers);
+	}
+
+	private static EndToEndLatency find(List<EndToEndLatency> stats, String sub, DispatchMessageListener callback) {
+		for (EndToEndLatency latency : stats) {
+			if (latency.getSub().equals(new Sub(sub)) && latency.getCallback() == callback) return latency;
+		}
+		return null;
+	}
+
+	@Test
+	public void histogramBucketsAreWithinAnEighth() {
+		for (long v : new long[] { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123_456_789, AtomicHistogram.MAX_TRACKED }) {
+			int index = AtomicHistogram.index(v);
+			assertTrue(index < AtomicHistogram.BUCKETS);
+			long highest = AtomicHistogram.highest(index);
+			assertTrue(v + " -> " + highest, highest >= v && highest - v <= v / 8);
+			if (index > 0) assertTrue(AtomicHistogram.highest(index - 1) < v);
+		}
+		assertEquals(AtomicHistogram.BUCKETS - 1, AtomicHistogram.index(AtomicHistogram.MAX_TRACKED));
+		assertEquals(AtomicHistogram.BUCKETS - 1, AtomicHistogram.index(Long.MAX_VALUE));  // clamped into the top bucket
+		AtomicHistogram huge = new AtomicHistogram();
+		huge.record(Long.MAX_VALUE / 2);
+		assertEquals(Long.MAX_VALUE / 2, huge.snapshot(false).getMaxNanos());  // the max is still the real one
+		AtomicHistogram histogram = new AtomicHistogram();
+		for (int i=1; i<=1000; i++) histogram.record(i * 1000L);
+		LatencySnapshot snapshot = histogram.snapshot(true);
+		assertEquals(1000, snapshot.getCount());
+		assertEquals(500_500, snapshot.getMeanNanos());
+		assertEquals(1_000_000, snapshot.getMaxNanos());
+		long p99 = snapshot.getPercentileNanos(99);
+		assertTrue(p99 >= 990_000 && p99 <= 990_000 * 9 / 8);
+		assertEquals(0, histogram.snapshot(false).getCount());  // reset
+	}
+
+	@Test
+	public void perRegistrationStaleness() {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.CALL_EACH, new CountingDefault());
+		assertNull(dispatcher.getLatencyStats(false));
+		dispatcher.enableLatencyTracking();
+		CountingListener a = new CountingListener();
+		CountingListener b = new CountingListener();
+		dispatcher.registerCallback(new Sub("prices/>"), a);
+		dispatcher.registerCallback(new Sub("prices/*"), a);
+		dispatcher.registerCallback(new Sub("prices/>"), b);
+		long now = System.currentTimeMillis();
+		for (int i=0; i<10; i++) dispatcher.onReceive(stamped("prices/x", now - 500, now - 100));
+		dispatcher.onReceive(stamped("prices/y/z", null, 0));  // no timestamps turned on
+		dispatcher.onReceive(stamped("prices/y/z", now + 60_000, 0));  // sender's clock is ahead
+
+		List<EndToEndLatency> stats = dispatcher.getLatencyStats(false);
+		assertEquals(3, stats.size());
+		EndToEndLatency aWide = find(stats, "prices/>", a);
+		assertEquals(11, aWide.getSinceSent().getCount());
+		assertEquals(10, aWide.getSinceReceived().getCount());
+		assertEquals(12, aWide.getQueued().getCount());
+		assertEquals(0, aWide.getQueued().getMaxNanos());  // all inline
+		long p50 = aWide.getSinceSent().getMedianNanos();
+		assertTrue(p50 >= TimeUnit.MILLISECONDS.toNanos(500) && p50 < TimeUnit.MILLISECONDS.toNanos(2000));
+		assertTrue(aWide.getSinceSent().getPercentileNanos(0) == 0);  // the clamped one
+		long received = aWide.getSinceReceived().getMedianNanos();
+		assertTrue(received >= TimeUnit.MILLISECONDS.toNanos(100) && received < p50);
+		assertEquals(10, find(stats, "prices/*", a).getSinceSent().getCount());
+
+		dispatcher.unregisterCallback(new Sub("prices/>"), b);
+		stats = dispatcher.getLatencyStats(true);
+		assertEquals(2, stats.size());
+		assertNull(find(stats, "prices/>", b));
+		assertEquals(0, find(dispatcher.getLatencyStats(false), "prices/*", a).getSinceSent().getCount());  // reset
+		dispatcher.disableLatencyTracking();
+		assertNull(dispatcher.getLatencyStats(false));
+	}
+
+	@Test
+	public void offloadedCallbackRecordsTimeInItsLane() throws InterruptedException {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		dispatcher.enableCallbackOffload(100, pool);
+		dispatcher.enableLatencyTracking();
+		SlowListener slow = new SlowListener(1000);
+		dispatcher.registerCallback(new Sub("a/>"), slow);
+		int n = CallbackOffloader.SAMPLE_EVERY * CallbackOffloader.MIN_SAMPLES + 50;
+		for (int i=0; i<n; i++) dispatcher.onReceive(TestMessages.onTopic("a/" + i));
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+		EndToEndLatency stats = find(dispatcher.getLatencyStats(false), "a/>", slow);
+		assertSame(slow, stats.getCallback());
+		assertEquals(n, stats.getQueued().getCount());
+		assertTrue(stats.getQueued().getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(1));  // the lane backed up behind a 1ms callback
+		assertEquals(0, stats.getSinceSent().getCount());
+	}
+}
@@ -0,0 +1,160 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.LoadBalancedMessageListener.Strategy;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+public class LoadBalancedListenerTests {
+
+	private static List<CountingListener> members(int n) {
+		List<CountingListener> list = new ArrayList<>();
+		for (int i=0; i<n; i++) list.add(new CountingListener());
+		return list;
+	}
+
+	@Test
+	public void roundRobinSpreadsEvenly() throws InterruptedException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		List<CountingListener> members = members(4);
+		LoadBalancedMessageListener pool = new LoadBalancedMessageListener(Strategy.ROUND_ROBIN, members);
+		dispatcher.registerCallback(new Sub("hot/>"), pool);
+		dispatcher.registerCallback(new Sub("hot/*/x"), pool);  // overlapping, but still exactly one member per message
+		for (int i=0; i<1000; i++) dispatcher.onReceive(TestMessages.onTopic("hot/" + i + "/x"));
+		assertTrue(pool.close(5, TimeUnit.SECONDS));
+		for (CountingListener member : members) assertEquals(250, member.count.get());
+	}
+
+	@Test
+	public void stickyKeepsTopicsOnOneMember() throws InterruptedException {
+		final Map<String, String> topicToThread = new ConcurrentHashMap<>();
+		final AtomicInteger moved = new AtomicInteger();
+		List<DispatchMessageListener> members = new ArrayList<>();
+		for (int i=0; i<3; i++) {
+			members.add(new DispatchMessageListener() {
+				@Override
+				public void onReceive(BytesXMLMessage msg) {
+					String previous = topicToThread.put(msg.getDestination().getName(), Thread.currentThread().getName());
+					if (previous != null && !previous.equals(Thread.currentThread().getName())) moved.incrementAndGet();
+				}
+
+				@Override
+				public void onUncaughtException(TopicDispatchException e) {
+				}
+			});
+		}
+		LoadBalancedMessageListener pool = new LoadBalancedMessageListener(Strategy.STICKY_TOPIC_HASH, members);
+		for (int i=0; i<3000; i++) pool.onReceive(TestMessages.onTopic("orders/" + (i % 50)));
+		assertTrue(pool.close(5, TimeUnit.SECONDS));
+		assertEquals(0, moved.get());
+		assertEquals(50, topicToThread.size());
+	}
+
+	@Test
+	public void leastOutstandingAvoidsBusyMember() throws InterruptedException {
+		final Object stuck = new Object();
+		DispatchMessageListener slow = new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				synchronized (stuck) {
+					try {
+						stuck.wait(2000);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+			}
+		};
+		CountingListener fast = new CountingListener();
+		LoadBalancedMessageListener pool = new LoadBalancedMessageListener(Strategy.LEAST_OUTSTANDING, Arrays.asList(slow, fast));
+		for (int i=0; i<100; i++) {
+			pool.onReceive(TestMessages.onTopic("t"));
+			Thread.sleep(1);
+		}
+		long[] dispatched = pool.getDispatchedCounts();
+		assertTrue("slow member got " + dispatched[0], dispatched[0] <= 2);
+		synchronized (stuck) {
+			stuck.notifyAll();
+		}
+		assertTrue(pool.close(5, TimeUnit.SECONDS));
+		assertEquals(100 - dispatched[0], fast.count.get());
+	}
+
+	@Test
+	public void throwingMemberIsRemoved() throws InterruptedException {
+		final AtomicInteger uncaught = new AtomicInteger();
+		DispatchMessageListener bad = new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				throw new IllegalStateException("boom");
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+				uncaught.incrementAndGet();
+			}
+		};
+		CountingListener good = new CountingListener();
+		LoadBalancedMessageListener pool = new LoadBalancedMessageListener(Strategy.ROUND_ROBIN, Arrays.asList(bad, good));
+		pool.onReceive(TestMessages.onTopic("a"));  // goes to bad
+		long start = System.currentTimeMillis();
+		while (pool.getMemberCount() > 1 && System.currentTimeMillis() - start < 5000) Thread.sleep(1);
+		assertEquals(1, pool.getMemberCount());
+		for (int i=0; i<10; i++) pool.onReceive(TestMessages.onTopic("a"));
+		assertTrue(pool.close(5, TimeUnit.SECONDS));
+		assertEquals(10, good.count.get());
+		assertEquals(1, uncaught.get());
+	}
+
+	@Test
+	public void removedMemberHandsItsQueueToTheOthers() throws InterruptedException {
+		CountDownLatch gate = new CountDownLatch(1);
+		AtomicInteger badCalls = new AtomicInteger();
+		DispatchMessageListener bad = new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				badCalls.incrementAndGet();
+				try {
+					gate.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new IllegalStateException("boom");
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+			}
+		};
+		CountingListener good = new CountingListener();
+		LoadBalancedMessageListener pool = new LoadBalancedMessageListener(Strategy.ROUND_ROBIN, Arrays.asList(bad, good));
+		for (int i=0; i<10; i++) pool.onReceive(TestMessages.onTopic("a"));  // 5 each, 4 of bad's stuck behind the first
+		gate.countDown();
+		long start = System.currentTimeMillis();
+		while (good.count.get() < 9 && System.currentTimeMillis() - start < 5000) Thread.sleep(1);
+		assertTrue(pool.close(5, TimeUnit.SECONDS));
+		assertEquals(1, badCalls.get());
+		assertEquals(9, good.count.get());
+		assertEquals(1, pool.getMemberCount());
+		assertEquals(0, pool.getOutstandingCounts()[0]);
+	}
+}
@@ -0,0 +1,284 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPException;
+
+/** Every engine has to give exactly the same answers as the original linear scan */
+public class MatchEngineTests {
+
+	static List<Sub> subs = new ArrayList<>();
+	static List<String> topics = new ArrayList<>();
+
+	@BeforeClass
+	public static void populateData() {
+		Set<String> validSubs = new HashSet<>();
+		for (int i=0; i<5_000; i++) {
+			String sub = TestDataGeneratorUtil.buildRandomSub(12);
+			if (TopicUtils.validateSubLinear(sub)) validSubs.add(sub);
+		}
+		// the random generator never makes any of these
+		validSubs.addAll(Arrays.asList("#", "a/#", "a/b/#", "*/#", "a#", "a/#/b", ">", "a/>", "*", "a/*", "a/b"));
+		for (String sub : validSubs) subs.add(new Sub(sub));
+		Set<String> topicSet = new HashSet<>();
+		for (int i=0; i<2_000; i++) {
+			topicSet.add(TestDataGeneratorUtil.buildRandomTopic(20));
+		}
+		topicSet.addAll(Arrays.asList("a", "a/", "a/b", "a/b/", "a//b", "a/#", "a#", "a/#/b", "b/#", ""));
+		topics.addAll(topicSet);
+	}
+
+	private static Set<Sub> matches(MatchEngine engine, String topic) {
+		List<Sub> list = new ArrayList<>();
+		engine.match(topic, list);
+		Set<Sub> set = new HashSet<>(list);
+		assertEquals("duplicate matches from " + engine.type() + " for " + topic, list.size(), set.size());
+		return set;
+	}
+
+	private static void compareAll(MatchEngine reference, MatchEngine engine) {
+		assertEquals(reference.size(), engine.size());
+		for (String topic : topics) {
+			assertEquals(engine.type() + " mismatch on topic '" + topic + "'", matches(reference, topic), matches(engine, topic));
+		}
+	}
+
+	@Test
+	public void allEnginesMatchLinearScan() {
+		MatchEngine reference = MatchEngine.build(EngineType.LINEAR_SCAN, subs);
+		for (EngineType type : new EngineType[] { EngineType.EXACT_HASH, EngineType.TRIE, EngineType.TOPIC_CACHE, EngineType.OFF_HEAP_TRIE, EngineType.PARALLEL_SCAN }) {
+			MatchEngine engine = MatchEngine.build(type, subs);
+			compareAll(reference, engine);
+			compareAll(reference, engine);  // twice, for the cache
+		}
+	}
+
+	@Test
+	public void removalsMatchLinearScan() {
+		MatchEngine reference = MatchEngine.build(EngineType.LINEAR_SCAN, subs);
+		List<MatchEngine> engines = new ArrayList<>();
+		for (EngineType type : new EngineType[] { EngineType.EXACT_HASH, EngineType.TRIE, EngineType.TOPIC_CACHE, EngineType.OFF_HEAP_TRIE, EngineType.PARALLEL_SCAN }) {
+			engines.add(MatchEngine.build(type, subs));
+		}
+		for (int i=0; i<subs.size(); i+=2) {  // remove every other sub
+			reference.remove(subs.get(i));
+			for (MatchEngine engine : engines) engine.remove(subs.get(i));
+		}
+		for (MatchEngine engine : engines) compareAll(reference, engine);
+		for (int i=0; i<subs.size(); i+=2) {  // and put them back
+			reference.add(subs.get(i));
+			for (MatchEngine engine : engines) engine.add(subs.get(i));
+		}
+		for (MatchEngine engine : engines) compareAll(reference, engine);
+	}
+
+	@Test
+	public void offHeapTrieWideRegistry() {
+		OffHeapTrieEngine engine = new OffHeapTrieEngine();
+		long empty = engine.offHeapBytes();
+		List<Sub> devices = new ArrayList<>();
+		for (int i=0; i<200_000; i++) {  // wide enough that the top level's table needs a chunk of its own
+			devices.add(new Sub("fleet/dev" + i + "/telemetry"));
+		}
+		devices.add(new Sub("fleet/*/telemetry"));
+		devices.add(new Sub("fleet/dev1*/>"));
+		for (Sub sub : devices) engine.add(sub);
+		assertEquals(devices.size(), engine.size());
+		assertTrue(engine.reservedOffHeapBytes() > OffHeapArena.CHUNK_SIZE);
+		assertEquals(3, matches(engine, "fleet/dev12345/telemetry").size());
+		assertEquals(1, matches(engine, "fleet/nope/telemetry").size());
+		assertEquals(1, matches(engine, "fleet/dev12345/other").size());  // only the dev1*/> one
+		for (Sub sub : devices) engine.remove(sub);
+		assertEquals(0, engine.size());
+		assertEquals(empty, engine.offHeapBytes());  // everything given back
+		assertEquals(0, matches(engine, "fleet/dev12345/telemetry").size());
+	}
+
+	/** A realistic tree: 20 regions, 500 stores each, 50 sensors each, with hot spots */
+	private static WorkloadGenerator storeWorkload() {
+		WorkloadGenerator generator = new WorkloadGenerator(42, new String[] { "region", "store", "sensor" }, new int[] { 20, 500, 50 });
+		generator.setWildcardMix(0.05, 0.05, 0.05, 0.02);
+		return generator;
+	}
+
+	@Test
+	public void realisticWorkloadMatchesLinearScan() {
+		List<Sub> generated = new ArrayList<>();
+		for (String sub : new HashSet<>(storeWorkload().subs(2_000))) generated.add(new Sub(sub));
+		MatchEngine reference = MatchEngine.build(EngineType.LINEAR_SCAN, generated);
+		for (EngineType type : new EngineType[] { EngineType.EXACT_HASH, EngineType.TRIE, EngineType.TOPIC_CACHE, EngineType.OFF_HEAP_TRIE, EngineType.PARALLEL_SCAN }) {
+			MatchEngine engine = MatchEngine.build(type, generated);
+			storeWorkload().forEachTopic(5_000, topic -> assertEquals(type + " mismatch on topic '" + topic + "'", matches(reference, topic), matches(engine, topic)));
+		}
+	}
+
+	@Test
+	public void trieTimingComparison() {
+		List<Sub> generated = new ArrayList<>();
+		for (String sub : new HashSet<>(storeWorkload().subs(2_000))) generated.add(new Sub(sub));
+		List<Sub> scratch = new ArrayList<>();
+		for (EngineType type : new EngineType[] { EngineType.LINEAR_SCAN, EngineType.EXACT_HASH, EngineType.TRIE, EngineType.TOPIC_CACHE, EngineType.OFF_HEAP_TRIE, EngineType.PARALLEL_SCAN }) {
+			MatchEngine engine = MatchEngine.build(type, generated);
+			for (int run=0; run<2; run++) {  // twice for a bit of warm-up
+				long start = System.nanoTime();
+				Iterator<String> it = storeWorkload().topics(20_000);
+				while (it.hasNext()) {
+					scratch.clear();
+					engine.match(it.next(), scratch);
+				}
+				if (run == 1) System.out.printf("%s matching of %d subs and 20,000 Zipf topics took %d ms.%n", type, generated.size(), (System.nanoTime()-start)/1_000_000);
+			}
+		}
+	}
+
+	@Test
+	public void adaptiveSwitchesToTopicCache() throws InterruptedException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(MessageListenerWithTopicDispatch.Mode.DEDUPE, EngineType.ADAPTIVE, new DefaultMessageListener() {
+			@Override
+			public void onReceiveDefault(BytesXMLMessage msg) {
+			}
+
+			@Override
+			public void onException(JCSMPException e) {
+			}
+		});
+		assertEquals(EngineType.LINEAR_SCAN, dispatcher.getEngineType());
+		DispatchMessageListener listener = new DispatchMessageListener() {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+			}
+
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+			}
+		};
+		for (Sub sub : subs) {  // lots of wildcards, so it's a trie or the cache
+			dispatcher.registerCallback(sub, listener);
+		}
+		final CountDownLatch switched = new CountDownLatch(1);
+		final EngineType[] to = new EngineType[1];
+		dispatcher.setEngineSwitchListener((from, newType, stats) -> {
+			to[0] = newType;
+			switched.countDown();
+		});
+		List<BytesXMLMessage> hotTopics = new ArrayList<>();
+		for (int i=0; i<20; i++) hotTopics.add(TestMessages.onTopic(topics.get(i)));
+		for (int i=0; i<AdaptiveEngineSelector.WINDOW * 2; i++) {  // two windows for the hysteresis
+			dispatcher.onReceive(hotTopics.get(i % hotTopics.size()));
+		}
+		assertTrue("no engine switch", switched.await(10, TimeUnit.SECONDS));
+		assertEquals(EngineType.TOPIC_CACHE, to[0]);
+		assertEquals(EngineType.TOPIC_CACHE, dispatcher.getEngineType());
+		RegistryStats stats = dispatcher.getRegistryStats();
+		assertEquals(subs.size(), stats.getSubCount());
+		assertTrue(stats.getDistinctTopics() < 100);
+		System.out.println(stats);
+	}
+
+	@Test
+	public void adaptiveWindowClosesOnceAcrossThreads() throws InterruptedException {
+		AdaptiveEngineSelector selector = new AdaptiveEngineSelector();
+		AtomicInteger closed = new AtomicInteger();
+		int batches = AdaptiveEngineSelector.WINDOW / AdaptiveEngineSelector.THREAD_BATCH * 2;  // two windows' worth
+		List<Thread> threads = new ArrayList<>();
+		for (int t=0; t<4; t++) {
+			final int thread = t;
+			threads.add(new Thread(() -> {
+				for (int i=0; i<batches/4; i++) {
+					selector.recordTopic("md/" + thread + "/" + (i % 10));
+					if (selector.messagesSeen(AdaptiveEngineSelector.THREAD_BATCH)) closed.incrementAndGet();
+				}
+			}));
+		}
+		for (Thread thread : threads) thread.start();
+		for (Thread thread : threads) thread.join();
+		assertEquals(1, closed.get());  // nobody evaluated, so the count just kept going past the window
+		synchronized (selector) {
+			selector.evaluate(new LinearScanEngine());
+		}
+		RegistryStats stats = selector.getStats(EngineType.LINEAR_SCAN);
+		assertEquals(AdaptiveEngineSelector.WINDOW * 2, stats.getWindowMessages());
+		assertTrue(stats.getDistinctTopics() >= 38 && stats.getDistinctTopics() <= 42);  // 40, give or take the sketch
+		assertTrue(selector.messagesSeen(AdaptiveEngineSelector.WINDOW));  // and the next window starts from zero
+	}
+
+	@Test
+	public void parallelScanMatchesLinearScan() {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			MatchEngine reference = MatchEngine.build(EngineType.LINEAR_SCAN, subs);
+			ParallelScanEngine engine = (ParallelScanEngine)MatchEngine.build(EngineType.PARALLEL_SCAN, subs);
+			engine.configure(0, pool);  // always in parallel
+			compareAll(reference, engine);
+			for (int i=0; i<subs.size(); i+=3) {
+				reference.remove(subs.get(i));
+				engine.remove(subs.get(i));
+			}
+			compareAll(reference, engine);
+
+			// the case it's for: lots of leading * levels, which nothing prunes
+			List<Sub> wide = new ArrayList<>();
+			for (int i=0; i<100_000; i++) wide.add(new Sub("*/*/dev" + i + (i % 2 == 0 ? "" : "*") + "/*/>"));
+			MatchEngine linear = MatchEngine.build(EngineType.LINEAR_SCAN, wide);
+			MatchEngine trie = MatchEngine.build(EngineType.TRIE, wide);
+			ParallelScanEngine parallel = (ParallelScanEngine)MatchEngine.build(EngineType.PARALLEL_SCAN, wide);
+			parallel.configure(10_000, pool);
+			List<String> wideTopics = Arrays.asList("a/b/dev42/c/d", "a/b/dev1234/c/d/e", "a/b/d99999/c/d", "a/b/nope/c/d");
+			for (String topic : wideTopics) {
+				assertEquals(matches(linear, topic), matches(parallel, topic));
+				assertEquals(matches(trie, topic), matches(parallel, topic));
+			}
+			for (MatchEngine timed : new MatchEngine[] { linear, trie, parallel }) {
+				List<Sub> scratch = new ArrayList<>();
+				for (int round=0; round<2; round++) {  // the second one's warmed up
+					long start = System.nanoTime();
+					for (int run=0; run<50; run++) {
+						scratch.clear();
+						timed.match(wideTopics.get(run % wideTopics.size()), scratch);
+					}
+					if (round == 1) System.out.printf("%s matching of %d leading-* subs took %d us per topic (%d cores).%n", timed.type(), wide.size(), (System.nanoTime()-start)/50_000, Runtime.getRuntime().availableProcessors());
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void parallelMatchingKeepsDispatchModes() {
+		ForkJoinPool pool = new ForkJoinPool(4);  // not the common pool: a 1-core box has no parallelism there
+		try {
+			for (Mode mode : new Mode[] { Mode.DEDUPE, Mode.CALL_EACH }) {
+				MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(mode, EngineType.PARALLEL_SCAN, new CountingDefault());
+				dispatcher.setParallelMatching(0, pool);
+				CountingListener listener = new CountingListener();
+				for (int i=0; i<200; i++) dispatcher.registerCallback(new Sub("orders/*/item" + i), listener);
+				dispatcher.registerCallback(new Sub("orders/>"), listener);
+				dispatcher.registerCallback(new Sub("*/eu/item7"), listener);
+				dispatcher.onReceive(TestMessages.onTopic("orders/eu/item7"));
+				assertEquals(mode == Mode.DEDUPE ? 1 : 3, listener.count.get());
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
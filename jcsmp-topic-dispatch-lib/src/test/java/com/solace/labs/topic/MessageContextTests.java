@@ -0,0 +1,134 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.LoadBalancedMessageListener.Strategy;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+public class MessageContextTests {
+
+	static final AtomicInteger decodes = new AtomicInteger();
+
+	/** Stand-in for a JSON parser: splits the text on commas, and counts how often it's called */
+	static final PayloadDecoder<List<String>> FIELDS = msg -> {
+		decodes.incrementAndGet();
+		String text = PayloadDecoders.TEXT.decode(msg);
+		if (text.isEmpty()) throw new IllegalArgumentException("no fields");
+		List<String> fields = new ArrayList<>();
+		Collections.addAll(fields, text.split(","));
+		return Collections.unmodifiableList(fields);
+	};
+
+	static class FieldsListener implements ContextDispatchMessageListener {
+		final List<Object> seen = Collections.synchronizedList(new ArrayList<>());
+		volatile TopicDispatchException failure = null;
+
+		@Override
+		public void onReceive(MessageContext context) {
+			seen.add(context.get(FIELDS));
+		}
+
+		@Override
+		public void onUncaughtException(TopicDispatchException e) {
+			failure = e;
+		}
+	}
+
+	private static BytesXMLMessage withPayload(String topic, String text) {
+		ByteBuffer attachment = ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+		return TestMessages.withHeaders(topic, Collections.singletonMap("getAttachmentByteBuffer", attachment));
+	}
+
+	@Test
+	public void decodedOnceForAllMatchedListeners() {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.CALL_EACH, new CountingDefault());
+		List<FieldsListener> listeners = new ArrayList<>();
+		for (int i=0; i<8; i++) {
+			FieldsListener listener = new FieldsListener();
+			listeners.add(listener);
+			dispatcher.registerCallback(new Sub(i % 2 == 0 ? "orders/>" : "orders/*"), listener);
+		}
+		CountingListener plain = new CountingListener();  // still just gets the message
+		dispatcher.registerCallback(new Sub("orders/>"), plain);
+		decodes.set(0);
+		dispatcher.onReceive(withPayload("orders/1", "a,b,c"));
+		assertEquals(1, decodes.get());
+		assertEquals(1, plain.count.get());
+		Object first = listeners.get(0).seen.get(0);
+		assertEquals(3, ((List<?>)first).size());
+		for (FieldsListener listener : listeners) {
+			assertEquals(1, listener.seen.size());
+			assertSame(first, listener.seen.get(0));  // the very same decoded object
+		}
+		dispatcher.onReceive(withPayload("orders/2", "d,e"));
+		assertEquals(2, decodes.get());  // once per message
+	}
+
+	@Test
+	public void wrappersPassTheContextOn() throws InterruptedException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		FieldsListener direct = new FieldsListener();
+		FieldsListener weak = new FieldsListener();
+		FieldsListener conflated = new FieldsListener();
+		FieldsListener pooled = new FieldsListener();
+		LoadBalancedMessageListener pool = new LoadBalancedMessageListener(Strategy.ROUND_ROBIN, Collections.singletonList(pooled));
+		dispatcher.registerCallback(new Sub("orders/>"), direct);
+		dispatcher.registerWeakCallback(new Sub("orders/>"), weak);
+		dispatcher.registerConflatedCallback(new Sub("orders/>"), conflated, Runnable::run);
+		dispatcher.registerCallback(new Sub("orders/>"), pool);
+		decodes.set(0);
+		dispatcher.onReceive(withPayload("orders/1", "a,b,c"));
+		long start = System.currentTimeMillis();
+		while (pooled.seen.isEmpty() && System.currentTimeMillis() - start < 5000) {
+			Thread.sleep(5);
+		}
+		pool.close();
+		assertEquals(1, decodes.get());
+		Object first = direct.seen.get(0);
+		assertSame(first, weak.seen.get(0));
+		assertSame(first, conflated.seen.get(0));
+		assertSame(first, pooled.seen.get(0));
+	}
+
+	@Test
+	public void failedDecodeIsOnlyTriedOnce() {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		FieldsListener a = new FieldsListener();
+		FieldsListener b = new FieldsListener();
+		dispatcher.registerCallback(new Sub("orders/>"), a);
+		dispatcher.registerCallback(new Sub("orders/>"), b);
+		decodes.set(0);
+		dispatcher.onReceive(withPayload("orders/1", ""));
+		assertEquals(1, decodes.get());
+		assertTrue(a.failure.getCause() instanceof PayloadDecodingException);  // both threw, so both get unregistered
+		assertTrue(b.failure.getCause() instanceof PayloadDecodingException);
+		dispatcher.onReceive(withPayload("orders/1", "x"));
+		assertEquals(1, decodes.get());
+	}
+
+	@Test
+	public void builtInDecoders() {
+		MessageContext context = new MessageContext(withPayload("a/b", "héllo"));
+		assertEquals("héllo", context.getText());
+		ByteBuffer bytes = context.getBytes();
+		assertTrue(bytes.isReadOnly());
+		bytes.get();
+		assertEquals(0, context.getBytes().position());  // everyone gets their own position
+		assertEquals(null, context.getMap());  // not a map message
+		assertEquals("a/b", context.getTopic());
+	}
+}
@@ -0,0 +1,143 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+public class ParallelFanOutTests {
+
+	/** A strategy handler that takes a while (sleeping, so it overlaps even on one core) */
+	static class Strategy implements DispatchMessageListener {
+		final long sleepMillis;
+		final AtomicInteger count = new AtomicInteger();
+		volatile String thread = null;
+		volatile TopicDispatchException failure = null;
+
+		Strategy(long sleepMillis) {
+			this.sleepMillis = sleepMillis;
+		}
+
+		@Override
+		public void onReceive(BytesXMLMessage msg) {
+			thread = Thread.currentThread().getName();
+			try {
+				Thread.sleep(sleepMillis);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			count.incrementAndGet();
+		}
+
+		@Override
+		public void onUncaughtException(TopicDispatchException e) {
+			failure = e;
+		}
+	}
+
+	@Test
+	public void fannedOutCallsOverlap() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.CALL_EACH, new CountingDefault());
+		assertNull(dispatcher.getFanOutLatency(false));
+		dispatcher.enableParallelFanOut(4, pool, true);
+		List<Strategy> strategies = new ArrayList<>();
+		for (int i=0; i<8; i++) {
+			Strategy strategy = new Strategy(50);
+			strategies.add(strategy);
+			dispatcher.registerCallback(new Sub("md/>"), strategy);
+		}
+		Strategy few = new Strategy(0);
+		dispatcher.registerCallback(new Sub("other/>"), few);
+
+		long start = System.nanoTime();
+		dispatcher.onReceive(TestMessages.onTopic("md/eurusd"));
+		long tookMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		for (Strategy strategy : strategies) assertEquals(1, strategy.count.get());  // all done: joined
+		assertTrue("took " + tookMillis + "ms", tookMillis < 8 * 50);
+		assertEquals(1, dispatcher.getFanOutCount());
+		LatencySnapshot latency = dispatcher.getFanOutLatency(false);
+		assertEquals(1, latency.getCount());
+		assertTrue(latency.getMaxNanos() >= TimeUnit.MILLISECONDS.toNanos(50));
+
+		dispatcher.onReceive(TestMessages.onTopic("other/1"));  // under the threshold, called as usual
+		assertEquals(1, few.count.get());
+		assertEquals(Thread.currentThread().getName(), few.thread);
+		assertEquals(1, dispatcher.getFanOutCount());
+		pool.shutdown();
+	}
+
+	@Test
+	public void throwingCallbackIsStillUnregistered() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		dispatcher.enableParallelFanOut(2, pool, true);
+		Strategy good = new Strategy(0);
+		Strategy bad = new Strategy(0) {
+			@Override
+			public void onReceive(BytesXMLMessage msg) {
+				super.onReceive(msg);
+				throw new IllegalStateException("boom");
+			}
+		};
+		Strategy other = new Strategy(0);
+		dispatcher.registerCallback(new Sub("md/>"), good);
+		dispatcher.registerCallback(new Sub("md/>"), bad);
+		dispatcher.registerCallback(new Sub("md/*"), other);
+		dispatcher.onReceive(TestMessages.onTopic("md/1"));
+		assertNotNull(bad.failure);
+		assertFalse(dispatcher.unregisterCallback(new Sub("md/>"), bad));  // already gone by the time onReceive() returned
+		dispatcher.onReceive(TestMessages.onTopic("md/2"));
+		assertEquals(1, bad.count.get());
+		assertEquals(2, good.count.get());
+		assertEquals(2, other.count.get());
+		pool.shutdown();
+	}
+
+	@Test
+	public void withoutJoinOnReceiveDoesNotWait() throws InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		dispatcher.enableParallelFanOut(2, pool, false);
+		CountDownLatch release = new CountDownLatch(1);
+		List<Strategy> strategies = new ArrayList<>();
+		for (int i=0; i<3; i++) {
+			Strategy strategy = new Strategy(0) {
+				@Override
+				public void onReceive(BytesXMLMessage msg) {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					super.onReceive(msg);
+				}
+			};
+			strategies.add(strategy);
+			dispatcher.registerCallback(new Sub("md/>"), strategy);
+		}
+		dispatcher.onReceive(TestMessages.onTopic("md/1"));
+		for (Strategy strategy : strategies) assertEquals(0, strategy.count.get());
+		release.countDown();
+		pool.shutdown();
+		assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+		for (Strategy strategy : strategies) assertEquals(1, strategy.count.get());
+		assertEquals(1, dispatcher.getFanOutLatency(true).getCount());
+		assertEquals(0, dispatcher.getFanOutLatency(false).getCount());
+	}
+}
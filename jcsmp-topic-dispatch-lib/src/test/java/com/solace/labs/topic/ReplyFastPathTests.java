@@ -0,0 +1,113 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+
+public class ReplyFastPathTests {
+
+	private static BytesXMLMessage reply(String topic, String correlationId) {
+		return TestMessages.withHeaders(topic, Collections.singletonMap("getCorrelationId", correlationId));
+	}
+
+	@Test
+	public void replySkipsTopicMatching() {
+		CountingDefault defaults = new CountingDefault();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, defaults);
+		CountingListener everything = new CountingListener();
+		dispatcher.registerCallback(new Sub(">"), everything);
+		CountingListener handler = new CountingListener();
+		dispatcher.expectReply("req-1", 10_000, handler);
+		assertEquals(1, dispatcher.getPendingReplyCount());
+
+		dispatcher.onReceive(reply("#P2P/v:abc/_reply", "req-2"));  // someone else's
+		dispatcher.onReceive(reply("#P2P/v:abc/_reply", "req-1"));
+		assertEquals(1, handler.count.get());
+		assertEquals(1, everything.count.get());
+		dispatcher.onReceive(reply("#P2P/v:abc/_reply", "req-1"));  // one-shot, a duplicate goes the normal way
+		assertEquals(1, handler.count.get());
+		assertEquals(2, everything.count.get());
+		assertEquals(0, dispatcher.getPendingReplyCount());
+		assertEquals(1, dispatcher.getReplyCount());
+		assertEquals(0, defaults.count.get());
+	}
+
+	@Test
+	public void futureCompletesOrTimesOut() throws InterruptedException, ExecutionException, TimeoutException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		CompletableFuture<BytesXMLMessage> answered = dispatcher.expectReply("req-1", 10_000);
+		CompletableFuture<BytesXMLMessage> ignored = dispatcher.expectReply("req-2", 50);
+		try {
+			dispatcher.expectReply("req-1", 10_000);
+			fail("already waiting for req-1");
+		} catch (IllegalStateException e) {
+			// good
+		}
+		BytesXMLMessage msg = reply("reply/topic", "req-1");
+		dispatcher.onReceive(msg);
+		assertSame(msg, answered.get(1, TimeUnit.SECONDS));
+		try {
+			ignored.get(5, TimeUnit.SECONDS);
+			fail("should have timed out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof TimeoutException);
+		}
+		assertEquals(1, dispatcher.getExpiredReplyCount());
+		assertEquals(0, dispatcher.getPendingReplyCount());
+	}
+
+	@Test
+	public void handlerIsToldAboutTheTimeout() throws InterruptedException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		CountDownLatch told = new CountDownLatch(1);
+		AtomicReference<TopicDispatchException> timeout = new AtomicReference<>();
+		AtomicReference<String> thread = new AtomicReference<>();
+		CountingListener handler = new CountingListener() {
+			@Override
+			public void onUncaughtException(TopicDispatchException e) {
+				timeout.set(e);
+				thread.set(Thread.currentThread().getName());
+				told.countDown();
+			}
+		};
+		dispatcher.expectReply("req-1", 50, handler);
+		assertTrue(told.await(5, TimeUnit.SECONDS));
+		assertTrue(timeout.get().getMessage().contains("req-1"));
+		assertFalse("TopicDispatch-Timer".equals(thread.get()));
+		assertEquals(0, handler.count.get());
+		assertEquals(1, dispatcher.getExpiredReplyCount());
+		dispatcher.onReceive(reply("reply/topic", "req-1"));  // too late, goes the normal way
+		assertEquals(0, handler.count.get());
+	}
+
+	@Test
+	public void cancelledReplyGoesTheNormalWay() {
+		CountingDefault defaults = new CountingDefault();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, defaults);
+		CompletableFuture<BytesXMLMessage> future = dispatcher.expectReply("req-1", 10_000);
+		dispatcher.expectReply("req-2", 10_000, new CountingListener());
+		future.cancel(false);
+		assertTrue(dispatcher.cancelReply("req-2"));
+		assertFalse(dispatcher.cancelReply("req-2"));
+		assertEquals(0, dispatcher.getPendingReplyCount());
+		dispatcher.onReceive(reply("reply/topic", "req-1"));
+		assertEquals(1, defaults.count.get());
+	}
+}
@@ -0,0 +1,176 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+
+public class RoutingTableTests {
+
+	private static RoutingTable.Diff load(RoutingTable table, String text) throws IOException {
+		return table.load(new StringReader(text), "test");
+	}
+
+	@Test
+	public void reloadAppliesOnlyTheDiff() throws IOException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.TRIE, new CountingDefault());
+		CountingListener orders = new CountingListener();
+		CountingListener prices = new CountingListener();
+		CountingListener notAHandle = new CountingListener();
+		dispatcher.registerCallback(new Sub("orders/>"), notAHandle);  // registered by hand, the table leaves it alone
+		RoutingTable table = new RoutingTable(dispatcher);
+		table.registerHandle("orders", orders);
+		table.registerHandle("prices", prices);
+
+		RoutingTable.Diff diff = load(table, "// initial\norders/>\torders\nprices/*/fx  prices,orders\n\n");
+		assertEquals(3, diff.getAddedCount());
+		assertEquals(0, diff.getRemovedCount());
+		dispatcher.onReceive(TestMessages.onTopic("prices/eur/fx"));
+		assertEquals(1, orders.count.get());
+		assertEquals(1, prices.count.get());
+
+		diff = load(table, "orders/>\torders\nprices/*/fx  prices\nprices/>  prices // new\n");
+		assertEquals(1, diff.getAddedCount());
+		assertEquals(1, diff.getRemovedCount());
+		dispatcher.onReceive(TestMessages.onTopic("prices/eur/fx"));
+		assertEquals(1, orders.count.get());
+		assertEquals(2, prices.count.get());  // de-duped, even with two subs matching
+
+		assertTrue(load(table, "prices/>  prices\norders/>\torders\nprices/*/fx  prices\n").isEmpty());  // same thing, different order
+		dispatcher.onReceive(TestMessages.onTopic("orders/1"));
+		assertEquals(2, orders.count.get());
+		assertEquals(1, notAHandle.count.get());
+
+		diff = load(table, "");
+		assertEquals(3, diff.getRemovedCount());
+		dispatcher.onReceive(TestMessages.onTopic("orders/1"));
+		assertEquals(2, orders.count.get());
+		assertEquals(2, notAHandle.count.get());
+		assertEquals(4, table.getReloadCount());
+	}
+
+	@Test
+	public void spacesAroundHandleCommas() throws IOException {
+		for (String line : new String[] { "prices/*/fx  pricer, auditor", "prices/*/fx\tpricer ,auditor", "prices/*/fx pricer , auditor  // both" }) {
+			Map<Sub, Set<String>> parsed = RoutingTable.parse(new BufferedReader(new StringReader(line)), "test");
+			assertEquals(line, Collections.singleton(new Sub("prices/*/fx")), parsed.keySet());
+			assertEquals(line, Arrays.asList("pricer", "auditor"), new ArrayList<>(parsed.get(new Sub("prices/*/fx"))));
+		}
+		assertEquals(Collections.singleton(new Sub("a sub/with spaces")),  // a sub can still have spaces of its own
+				RoutingTable.parse(new BufferedReader(new StringReader("a sub/with spaces  h1, h2")), "test").keySet());
+		for (String bad : new String[] { "prices/*/fx pricer,", ", auditor", "prices/*/fx pricer,,auditor" }) {
+			try {
+				RoutingTable.parse(new BufferedReader(new StringReader(bad)), "test");
+				fail("should have rejected: " + bad);
+			} catch (IllegalArgumentException e) {
+				// good
+			}
+		}
+	}
+
+	@Test
+	public void smallReloadIsAppliedInPlace() throws IOException {
+		CountingDefault defaults = new CountingDefault();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.TOPIC_CACHE, defaults);
+		CountingListener orders = new CountingListener();
+		CountingListener regions = new CountingListener();
+		RoutingTable table = new RoutingTable(dispatcher);
+		table.registerHandle("orders", orders);
+		table.registerHandle("regions", regions);
+		StringBuilder text = new StringBuilder();
+		for (int i=0; i<40; i++) text.append("region/").append(i).append("/>  regions\n");
+		String common = text.toString();
+		assertEquals(41, load(table, common + "orders/>  orders\n").getAddedCount());  // from empty, built from scratch
+		dispatcher.onReceive(TestMessages.onTopic("orders/us/1"));  // now cached
+		assertEquals(1, orders.count.get());
+
+		RoutingTable.Diff diff = load(table, common + "orders/eu/>  orders\n");  // 2 of 41 subs: one by one
+		assertEquals(1, diff.getAddedCount());
+		assertEquals(1, diff.getRemovedCount());
+		dispatcher.onReceive(TestMessages.onTopic("orders/us/1"));
+		assertEquals(1, orders.count.get());
+		assertEquals(1, defaults.count.get());
+		dispatcher.onReceive(TestMessages.onTopic("orders/eu/1"));
+		assertEquals(2, orders.count.get());
+		dispatcher.onReceive(TestMessages.onTopic("region/7/x"));
+		assertEquals(1, regions.count.get());
+		assertEquals(41, dispatcher.getRegistryStats().getSubCount());
+	}
+
+	@Test
+	public void badTableChangesNothing() throws IOException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		CountingListener orders = new CountingListener();
+		RoutingTable table = new RoutingTable(dispatcher);
+		table.registerHandle("orders", orders);
+		load(table, "orders/>  orders\n");
+		for (String bad : new String[] { "orders/>  orders\nfoo/>  nobody\n", "orders/>  orders\na//b>  orders\n", "orders/>\n" }) {
+			try {
+				load(table, bad);
+				fail("should have rejected: " + bad);
+			} catch (IllegalArgumentException e) {
+				// good
+			}
+		}
+		dispatcher.onReceive(TestMessages.onTopic("orders/1"));
+		assertEquals(1, orders.count.get());
+		assertEquals(1, table.getReloadCount());
+	}
+
+	@Test
+	public void watchedFileIsReloaded() throws IOException, InterruptedException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		CountingListener orders = new CountingListener();
+		Path dir = Files.createTempDirectory("routing");
+		Path file = dir.resolve("routes.txt");
+		Files.write(file, "orders/eu/>  orders\n".getBytes(StandardCharsets.UTF_8));
+		try (RoutingTable table = new RoutingTable(dispatcher)) {
+			table.registerHandle("orders", orders);
+			table.watch(file);
+			// keep messages flowing the whole time, none should be lost or go to the default listener
+			AtomicBoolean running = new AtomicBoolean(true);
+			AtomicLong sent = new AtomicLong();
+			Thread sender = new Thread(() -> {
+				while (running.get()) {
+					dispatcher.onReceive(TestMessages.onTopic("orders/eu/1"));
+					sent.incrementAndGet();
+				}
+			});
+			sender.start();
+			Files.write(file, "orders/>  orders\n".getBytes(StandardCharsets.UTF_8));
+			long deadline = System.currentTimeMillis() + 10_000;
+			while (table.getReloadCount() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+			assertEquals(2, table.getReloadCount());
+			Files.write(file, "orders/>  nobody\n".getBytes(StandardCharsets.UTF_8));  // bad, gets ignored
+			while (table.getFailedReloadCount() < 1 && System.currentTimeMillis() < deadline) Thread.sleep(20);
+			assertEquals(1, table.getFailedReloadCount());
+			running.set(false);
+			sender.join();
+			assertEquals(sent.get(), orders.count.get());
+			dispatcher.onReceive(TestMessages.onTopic("orders/us/1"));
+			assertEquals(sent.get() + 1, orders.count.get());
+		} finally {
+			Files.deleteIfExists(file);
+			Files.deleteIfExists(dir);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.DeliveryMode;
+import com.solacesystems.jcsmp.SDTMap;
+
+public class SelectorTests {
+
+	static final AtomicInteger propertyReads = new AtomicInteger();
+
+	/** User properties backed by a plain map, counting every read */
+	private static SDTMap properties(Map<String, Object> values) {
+		return (SDTMap)Proxy.newProxyInstance(SelectorTests.class.getClassLoader(), new Class<?>[] { SDTMap.class }, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "get":
+				propertyReads.incrementAndGet();
+				return values.get(args[0]);
+			case "containsKey":
+				return values.containsKey(args[0]);
+			case "keySet":
+				return values.keySet();
+			default:
+				throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	private static BytesXMLMessage message(String topic, Object... keyValues) {
+		Map<String, Object> values = new HashMap<>();
+		for (int i=0; i<keyValues.length; i+=2) values.put((String)keyValues[i], keyValues[i + 1]);
+		Map<String, Object> headers = new HashMap<>();
+		headers.put("getProperties", properties(values));
+		headers.put("getPriority", 4);
+		headers.put("getApplicationMessageType", "order.new");
+		headers.put("getDeliveryMode", DeliveryMode.PERSISTENT);
+		return TestMessages.withHeaders(topic, headers);
+	}
+
+	@Test
+	public void syntaxAndSemantics() {
+		BytesXMLMessage msg = message("a/b", "priority", 7, "region", "eu", "price", 9.5, "flag", true, "name", "it's");
+		String[] passing = {
+				"priority > 5", "priority BETWEEN 5 AND 10", "region IN ('eu', 'uk')", "region NOT IN ('us')",
+				"JMSType LIKE 'order.%'", "JMSType LIKE 'order_new'", "JMSType NOT LIKE 'order!_%' ESCAPE '!'", "missing IS NULL",
+				"region IS NOT NULL", "price * 2 = 19", "price + 0.5 >= 10", "-priority < 0", "flag", "flag = TRUE", "NOT flag = false",
+				"JMSPriority = 4", "JMSDeliveryMode = 'PERSISTENT'", "name = 'it''s'", "priority > 5 and (region = 'us' or region = 'eu')",
+				"NOT (missing > 1) OR priority = 7",  // UNKNOWN OR TRUE is TRUE
+		};
+		for (String s : passing) assertTrue(s, new Selector(s).matches(msg));
+		String[] failing = {
+				"priority > 7", "region = 'EU'", "missing > 1", "NOT missing > 1", "missing = missing", "region > 'a'",  // strings only = and <>
+				"priority = '7'", "priority / 0 = 1", "region IN ('uk')", "JMSType LIKE 'order'", "JMSCorrelationID IS NOT NULL",
+				"priority > 5 AND missing = 1",  // TRUE AND UNKNOWN is UNKNOWN
+				"NOT (priority = '7')", "NOT region > 'a'", "NOT flag = 1",  // a type mismatch is UNKNOWN, not FALSE
+		};
+		for (String s : failing) assertFalse(s, new Selector(s).matches(msg));
+		for (String bad : new String[] { "", "priority >", "a = 'x", "a + 1", "'x'", "a IN (1)", "a LIKE 'x' ESCAPE 'ab'", "a NOT = 1", "(a = 1", "a = 1 b" }) {
+			try {
+				new Selector(bad);
+				fail("should have rejected: " + bad);
+			} catch (IllegalArgumentException e) {
+				// good
+			}
+		}
+		assertEquals(new Selector("a = 1 AND b = 2"), new Selector("(b=2) and 1 = a"));  // same condition
+	}
+
+	@Test
+	public void filtersAfterTopicMatch() {
+		CountingDefault defaults = new CountingDefault();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, defaults);
+		CountingListener urgent = new CountingListener();
+		CountingListener all = new CountingListener();
+		dispatcher.registerCallback(new Sub("orders/>"), urgent, new Selector("priority >= 8"));
+		dispatcher.registerCallback(new Sub("orders/>"), all);
+		dispatcher.onReceive(message("orders/1", "priority", 9));
+		dispatcher.onReceive(message("orders/2", "priority", 3));
+		dispatcher.onReceive(message("orders/3"));
+		assertEquals(1, urgent.count.get());
+		assertEquals(3, all.count.get());
+		assertEquals(0, defaults.count.get());
+		assertEquals(2, dispatcher.getSelectorRejectedCount());
+
+		// DEDUPE: one registration's selector letting it through is enough
+		dispatcher.registerCallback(new Sub("orders/eu/*"), urgent, new Selector("region = 'eu'"));
+		dispatcher.onReceive(message("orders/eu/1", "priority", 1, "region", "eu"));
+		assertEquals(2, urgent.count.get());
+		// replacing, then removing the selector
+		dispatcher.registerCallback(new Sub("orders/>"), urgent, new Selector("priority >= 1"));
+		dispatcher.onReceive(message("orders/4", "priority", 1));
+		assertEquals(3, urgent.count.get());
+		dispatcher.registerCallback(new Sub("orders/>"), urgent);
+		dispatcher.onReceive(message("orders/5"));
+		assertEquals(4, urgent.count.get());
+		assertTrue(dispatcher.unregisterCallback(new Sub("orders/eu/*"), urgent));
+		assertEquals(0, dispatcher.getSelectorNodeCount());  // everything given back
+	}
+
+	@Test
+	public void sharedSubExpressionsEvaluatedOnce() {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.CALL_EACH, new CountingDefault());
+		CountingListener[] listeners = new CountingListener[20];
+		for (int i=0; i<listeners.length; i++) {
+			listeners[i] = new CountingListener();
+			// every one has the same "priority > 5" and region check, written differently, plus one of its own
+			String own = "shard = " + (i % 4);
+			String selector = i % 2 == 0 ? "priority > 5 AND region = 'eu' AND " + own : own + " AND 'eu' = region AND (priority > 5)";
+			dispatcher.registerCallback(new Sub("orders/>"), listeners[i], new Selector(selector));
+		}
+		// per distinct node: priority, 5, priority>5, region, region='eu', shard, shard=0..3, plus the ANDs
+		int nodes = dispatcher.getSelectorNodeCount();
+		assertTrue("not shared: " + nodes, nodes < 30);
+		propertyReads.set(0);
+		dispatcher.onReceive(message("orders/1", "priority", 9, "region", "eu", "shard", 2));
+		assertEquals(3, propertyReads.get());  // each property read once, for all 20 selectors
+		int called = 0;
+		for (CountingListener listener : listeners) called += listener.count.get();
+		assertEquals(5, called);
+		propertyReads.set(0);
+		dispatcher.onReceive(message("orders/2", "priority", 1, "region", "eu", "shard", 2));
+		assertTrue(propertyReads.get() <= 3);  // still at most once each, even though nothing passes
+		for (int i=0; i<listeners.length; i++) dispatcher.unregisterCallback(new Sub("orders/>"), listeners[i]);
+		assertEquals(0, dispatcher.getSelectorNodeCount());
+	}
+}
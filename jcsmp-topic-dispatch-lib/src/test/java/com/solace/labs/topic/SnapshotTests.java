@@ -0,0 +1,319 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.BatchingListenerTests.RecordingBatchListener;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+
+public class SnapshotTests {
+
+	private static Path tempFile() throws IOException {
+		Path file = Files.createTempFile("topic-dispatch", ".snapshot");
+		file.toFile().deleteOnExit();
+		return file;
+	}
+
+	/** The same named callbacks, "before" and "after" the restart */
+	private static Map<String, CountingListener> listeners() {
+		Map<String, CountingListener> map = new HashMap<>();
+		map.put("orders", new CountingListener());
+		map.put("devices", new CountingListener());
+		map.put("audit", new CountingListener());
+		return map;
+	}
+
+	private static MessageListenerWithTopicDispatch populated(EngineType type, Map<String, CountingListener> listeners) {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, type, new CountingDefault());
+		dispatcher.registerCallback(new Sub("orders/*/new"), listeners.get("orders"));
+		dispatcher.registerCallback(new Sub("orders/>"), listeners.get("audit"));
+		for (int i=0; i<1000; i++) {
+			dispatcher.registerCallback(new Sub("fleet/dev" + i + "/telemetry"), listeners.get("devices"));
+		}
+		dispatcher.registerCallback(new Sub("fleet/#"), listeners.get("audit"));
+		return dispatcher;
+	}
+
+	private static String idOf(Map<String, CountingListener> listeners, Object callback) {
+		for (Map.Entry<String, CountingListener> entry : listeners.entrySet()) {
+			if (entry.getValue() == callback) return entry.getKey();
+		}
+		return null;
+	}
+
+	private static void send(MessageListenerWithTopicDispatch dispatcher) {
+		dispatcher.onReceive(TestMessages.onTopic("orders/123/new"));
+		dispatcher.onReceive(TestMessages.onTopic("orders/123/cancelled"));
+		dispatcher.onReceive(TestMessages.onTopic("fleet/dev42/telemetry"));
+		dispatcher.onReceive(TestMessages.onTopic("fleet/dev4200/telemetry"));
+	}
+
+	private static void roundTrip(EngineType type) throws IOException {
+		Map<String, CountingListener> before = listeners();
+		MessageListenerWithTopicDispatch original = populated(type, before);
+		send(original);
+		Path file = tempFile();
+		original.saveSnapshot(file, cb -> idOf(before, cb), true);
+
+		Map<String, CountingListener> after = listeners();
+		MessageListenerWithTopicDispatch restored = new MessageListenerWithTopicDispatch(Mode.DEDUPE, type, new CountingDefault());
+		assertEquals(1003, restored.restoreSnapshot(file, after::get));
+		assertEquals(type, restored.getEngineType());
+		assertEquals(1003, restored.getRegistryStats().getSubCount());
+		send(restored);
+		for (String id : before.keySet()) {
+			assertEquals(type + " " + id, before.get(id).count.get(), after.get(id).count.get());
+		}
+		// and it's still a normal registry afterwards
+		restored.unregisterCallback(new Sub("fleet/dev42/telemetry"), after.get("devices"));
+		restored.registerCallback(new Sub("fleet/new/telemetry"), after.get("devices"));
+		restored.onReceive(TestMessages.onTopic("fleet/dev42/telemetry"));
+		restored.onReceive(TestMessages.onTopic("fleet/new/telemetry"));
+		assertEquals(type.toString(), 2, after.get("devices").count.get());
+	}
+
+	@Test
+	public void roundTripEveryEngine() throws IOException {
+		for (EngineType type : new EngineType[] { EngineType.LINEAR_SCAN, EngineType.EXACT_HASH, EngineType.TRIE, EngineType.TOPIC_CACHE, EngineType.OFF_HEAP_TRIE }) {
+			roundTrip(type);
+		}
+	}
+
+	@Test
+	public void offHeapIndexIsMappedAndHotTopicsAreSaved() throws IOException {
+		Map<String, CountingListener> before = listeners();
+		Path file = tempFile();
+		populated(EngineType.OFF_HEAP_TRIE, before).saveSnapshot(file, cb -> idOf(before, cb), true);
+		assertNotNull(RegistrySnapshot.read(file).offHeapEngine);
+
+		MessageListenerWithTopicDispatch cached = populated(EngineType.TOPIC_CACHE, before);
+		send(cached);
+		cached.saveSnapshot(file, cb -> idOf(before, cb), true);
+		assertEquals(4, RegistrySnapshot.read(file).hotTopics.size());
+		cached.saveSnapshot(file, cb -> idOf(before, cb), false);
+		assertEquals(0, RegistrySnapshot.read(file).hotTopics.size());
+	}
+
+	@Test
+	public void readOnlyFileIsRestoredAndLeftAlone() throws IOException {
+		Map<String, CountingListener> before = listeners();
+		Path file = tempFile();
+		populated(EngineType.OFF_HEAP_TRIE, before).saveSnapshot(file, cb -> idOf(before, cb), false);
+		assertTrue(file.toFile().setWritable(false));
+		byte[] saved = Files.readAllBytes(file);
+
+		Map<String, CountingListener> after = listeners();
+		MessageListenerWithTopicDispatch restored = new MessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.OFF_HEAP_TRIE, new CountingDefault());
+		assertEquals(1003, restored.restoreSnapshot(file, after::get));
+		for (int i=0; i<1000; i++) {  // plenty of writes into the restored arena
+			restored.registerCallback(new Sub("fleet/more" + i + "/telemetry"), after.get("devices"));
+		}
+		restored.onReceive(TestMessages.onTopic("fleet/more999/telemetry"));
+		restored.onReceive(TestMessages.onTopic("fleet/dev42/telemetry"));
+		assertEquals(2, after.get("devices").count.get());
+		assertTrue(Arrays.equals(saved, Files.readAllBytes(file)));
+	}
+
+	@Test
+	public void unknownListenerIdsAreSkipped() throws IOException {
+		Map<String, CountingListener> before = listeners();
+		Path file = tempFile();
+		populated(EngineType.OFF_HEAP_TRIE, before).saveSnapshot(file, cb -> idOf(before, cb), false);
+		Map<String, CountingListener> after = listeners();
+		after.remove("devices");
+		CountingDefault def = new CountingDefault();
+		MessageListenerWithTopicDispatch restored = new MessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.OFF_HEAP_TRIE, def);
+		assertEquals(3, restored.restoreSnapshot(file, after::get));
+		restored.onReceive(TestMessages.onTopic("fleet/dev42/telemetry"));  // only the audit one left
+		assertEquals(1, after.get("audit").count.get());
+		restored.onReceive(TestMessages.onTopic("orders"));
+		assertEquals(1, def.count.get());
+	}
+
+	@Test
+	public void corruptOrWrongVersionIsRejected() throws IOException {
+		Map<String, CountingListener> before = listeners();
+		Path file = tempFile();
+		populated(EngineType.TRIE, before).saveSnapshot(file, cb -> idOf(before, cb), false);
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.seek(raf.length() / 2);
+			int b = raf.read();
+			raf.seek(raf.length() / 2);
+			raf.write(b ^ 0x01);
+		}
+		try {
+			new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault()).restoreSnapshot(file, id -> null);
+			fail("Corrupt snapshot was accepted");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("checksum"));
+		}
+		populated(EngineType.TRIE, before).saveSnapshot(file, cb -> idOf(before, cb), false);
+		try (RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			raf.seek(4);
+			raf.writeInt(RegistrySnapshot.VERSION + 1);
+		}
+		try {
+			RegistrySnapshot.read(file);
+			fail("Wrong version was accepted");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("version"));
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void onlyIntoAnEmptyDispatcher() throws IOException {
+		Map<String, CountingListener> before = listeners();
+		Path file = tempFile();
+		populated(EngineType.TRIE, before).saveSnapshot(file, cb -> idOf(before, cb), false);
+		populated(EngineType.TRIE, before).restoreSnapshot(file, before::get);
+	}
+
+	@Test
+	public void selectorsAreRestored() throws IOException {
+		Map<String, CountingListener> before = listeners();
+		MessageListenerWithTopicDispatch original = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		original.registerCallback(new Sub("orders/>"), before.get("orders"), new Selector("JMSPriority > 5"));
+		original.registerCallback(new Sub("orders/>"), before.get("audit"));
+		Path file = tempFile();
+		original.saveSnapshot(file, cb -> idOf(before, cb), false);
+
+		Map<String, CountingListener> after = listeners();
+		MessageListenerWithTopicDispatch restored = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		assertEquals(2, restored.restoreSnapshot(file, after::get));
+		restored.onReceive(TestMessages.withHeaders("orders/1", Collections.singletonMap("getPriority", 2)));
+		restored.onReceive(TestMessages.withHeaders("orders/2", Collections.singletonMap("getPriority", 9)));
+		assertEquals(1, after.get("orders").count.get());  // still filtered
+		assertEquals(2, after.get("audit").count.get());
+		assertEquals(1, restored.getSelectorRejectedCount());
+	}
+
+	@Test
+	public void deliveryPoliciesAreRestored() throws IOException {
+		Map<String, CountingListener> before = listeners();
+		MessageListenerWithTopicDispatch original = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		DeliveryPolicy control = new DeliveryPolicy(PriorityClass.CONTROL, 250, DeliveryPolicy.Expiry.DEFAULT_LISTENER);
+		original.registerCallback(new Sub("orders/>"), before.get("orders"), null, control);
+		original.registerCallback(new Sub("fleet/>"), before.get("devices"));
+		Path file = tempFile();
+		original.saveSnapshot(file, cb -> idOf(before, cb), false);
+
+		Map<String, CountingListener> after = listeners();
+		MessageListenerWithTopicDispatch restored = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		assertEquals(2, restored.restoreSnapshot(file, after::get));
+		Path again = tempFile();
+		restored.saveSnapshot(again, cb -> idOf(after, cb), false);  // what the restored dispatcher has now
+		RegistrySnapshot snapshot = RegistrySnapshot.read(again);
+		for (int i=0; i<snapshot.subs.size(); i++) {
+			DeliveryPolicy policy = snapshot.policies.get(i)[0];
+			if (snapshot.subs.get(i).equals(new Sub("orders/>"))) {
+				assertEquals(PriorityClass.CONTROL, policy.getPriority());
+				assertEquals(250, policy.getDeadlineMillis());
+				assertEquals(DeliveryPolicy.Expiry.DEFAULT_LISTENER, policy.getExpiry());
+			} else {
+				assertNull(policy);  // the default isn't stored
+			}
+		}
+	}
+
+	@Test
+	public void wrappedRegistrationsComeBackTheSameWay() throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		try {
+			Map<String, Object> before = new HashMap<>();
+			before.put("batch", new RecordingBatchListener());
+			before.put("conflated", new CountingListener());
+			before.put("weak", new CountingListener());
+			before.put("plain", new CountingListener());
+			MessageListenerWithTopicDispatch original = new MessageListenerWithTopicDispatch(Mode.CALL_EACH, EngineType.TRIE, new CountingDefault());
+			original.registerCallback(new Sub("orders/>"), (BatchDispatchMessageListener)before.get("batch"), 2, 0);
+			original.registerConflatedCallback(new Sub("prices/>"), (DispatchMessageListener)before.get("conflated"), pool);
+			original.registerWeakCallback(new Sub("ui/>"), (DispatchMessageListener)before.get("weak"));
+			original.registerCallback(new Sub("ui/>"), (DispatchMessageListener)before.get("plain"));
+			Path file = tempFile();
+			original.saveSnapshot(file, cb -> before.entrySet().stream().filter(e -> e.getValue() == cb).map(Map.Entry::getKey).findFirst().orElse(null), false);
+
+			Map<String, Object> after = new HashMap<>();
+			after.put("batch", new RecordingBatchListener());
+			after.put("conflated", new CountingListener());
+			after.put("weak", new CountingListener());
+			after.put("plain", new CountingListener());
+			try {
+				new MessageListenerWithTopicDispatch(Mode.CALL_EACH, new CountingDefault()).restoreSnapshot(file, after::get);
+				fail("conflated needs an executor");
+			} catch (IllegalArgumentException e) {
+				// good
+			}
+			MessageListenerWithTopicDispatch restored = new MessageListenerWithTopicDispatch(Mode.CALL_EACH, EngineType.TRIE, new CountingDefault());
+			assertEquals(4, restored.restoreSnapshot(file, after::get, pool));
+
+			restored.onReceive(TestMessages.onTopic("orders/1"));
+			restored.onReceive(TestMessages.onTopic("orders/2"));  // batched again, size 2
+			RecordingBatchListener batch = (RecordingBatchListener)after.get("batch");
+			assertEquals(1, batch.batches.size());
+			assertEquals(Arrays.asList("orders/1", "orders/2"), batch.batches.get(0));
+			restored.onReceive(TestMessages.onTopic("prices/eurusd"));
+			pool.submit(() -> { }).get(5, TimeUnit.SECONDS);  // conflated: delivered on the pool
+			assertEquals(1, ((CountingListener)after.get("conflated")).count.get());
+			assertTrue(restored.unregisterConflatedCallback(new Sub("prices/>"), (DispatchMessageListener)after.get("conflated")));
+			restored.onReceive(TestMessages.onTopic("ui/1"));
+			assertEquals(1, ((CountingListener)after.get("weak")).count.get());
+			assertEquals(1, ((CountingListener)after.get("plain")).count.get());
+			assertTrue(restored.unregisterWeakCallback(new Sub("ui/>"), (DispatchMessageListener)after.get("weak")));  // weak again
+			assertFalse(restored.unregisterWeakCallback(new Sub("ui/>"), (DispatchMessageListener)after.get("plain")));
+		} catch (ExecutionException | TimeoutException e) {
+			throw new AssertionError(e);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void batchedRegistrationKeepsItsSettings() throws IOException {
+		RecordingBatchListener listener = new RecordingBatchListener();
+		MessageListenerWithTopicDispatch original = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		original.registerCallback(new Sub("orders/>"), listener, 50, 2_000);
+		original.registerCallback(new Sub("fleet/>"), listener, 50, 2_000);  // the same accumulator
+		Path file = tempFile();
+		original.saveSnapshot(file, cb -> cb == listener ? "batch" : null, false);
+		RegistrySnapshot snapshot = RegistrySnapshot.read(file);
+		assertEquals(2, snapshot.subs.size());
+		for (int i=0; i<2; i++) {
+			assertEquals("batch", snapshot.listenerIds.get(i)[0]);
+			assertEquals(RegistrySnapshot.Kind.BATCHED, snapshot.kinds.get(i)[0]);
+			assertEquals(50, snapshot.maxBatchSizes.get(i)[0]);
+			assertEquals(2_000, snapshot.lingerMillis.get(i)[0]);
+		}
+		MessageListenerWithTopicDispatch restored = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		assertEquals(0, restored.restoreSnapshot(file, id -> new CountingListener()));  // not a batch listener: skipped
+		MessageListenerWithTopicDispatch again = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		RecordingBatchListener after = new RecordingBatchListener();
+		assertEquals(2, again.restoreSnapshot(file, id -> after));
+		BatchingMessageListener batcher = again.registerCallback(new Sub("more/>"), after, 1, 0);  // gets the restored one back
+		assertEquals(50, batcher.getMaxBatchSize());
+		assertEquals(2_000, batcher.getLingerMillis());
+		again.close();
+		original.close();
+	}
+}
@@ -3,6 +3,7 @@ package com.solace.labs.topic;
 import java.util.Iterator;
 import java.util.Set;
 
+/** Random characters, for fuzzing the validators and matchers.  For anything that needs to look like real traffic, use {@link WorkloadGenerator}. */
 public class TestDataGeneratorUtil {
 
 	private static final char[] REG_CHARS = new char[] {'a', 'b', 'c', 'd', '-', '_'};
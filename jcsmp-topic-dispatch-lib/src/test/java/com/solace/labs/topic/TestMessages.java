@@ -0,0 +1,43 @@
+package com.solace.labs.topic;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.Topic;
+
+/** Builds stand-in messages for the dispatcher tests, no broker (or session) required */
+public class TestMessages {
+
+	/** A message that only knows its destination topic, everything else returns null / 0 / false */
+	public static BytesXMLMessage onTopic(String topic) {
+		return withHeaders(topic, null);
+	}
+
+	/** Same, but with some header getters answered from the map, keyed by method name e.g. "getCorrelationId" */
+	public static BytesXMLMessage withHeaders(String topic, Map<String, Object> headers) {
+		final Topic destination = JCSMPFactory.onlyInstance().createTopic(topic);
+		return (BytesXMLMessage)Proxy.newProxyInstance(TestMessages.class.getClassLoader(), new Class<?>[] { BytesXMLMessage.class }, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "getDestination":
+				return destination;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "TestMessage[" + topic + "]";
+			default:
+				if (headers != null && headers.containsKey(method.getName())) return headers.get(method.getName());
+				Class<?> type = method.getReturnType();
+				if (type == boolean.class) return false;
+				if (type == int.class) return 0;
+				if (type == long.class) return 0L;
+				if (type == short.class) return (short)0;
+				if (type == byte.class) return (byte)0;
+				return null;
+			}
+		});
+	}
+}
@@ -0,0 +1,108 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solacesystems.jcsmp.Topic;
+
+public class TopicTemplateTests {
+
+	@Test
+	public void fillsAndCaches() {
+		TopicTemplate template = new TopicTemplate("prices/{venue}/{symbol}/quote");
+		assertEquals(Arrays.asList("venue", "symbol"), template.getVariables());
+		assertEquals("prices/lse/VOD/quote", template.fill("lse", "VOD"));
+		Topic first = template.topic("lse", "VOD");
+		assertEquals("prices/lse/VOD/quote", first.getName());
+		assertSame(first, template.topic(new String("lse"), new String("VOD")));  // equal values, not the same strings
+		assertNotSame(first, template.topic("lse", "BARC"));
+		assertEquals(1, template.getCacheHitCount());
+		assertEquals(2, template.getCacheMissCount());
+		assertEquals("prices/*/*/quote", template.toSub().toString());
+	}
+
+	@Test
+	public void cacheIsBounded() {
+		TopicTemplate template = new TopicTemplate("a/{n}", 16);
+		for (int i=0; i<1_000; i++) {
+			assertEquals("a/" + i, template.topic(Integer.toString(i)).getName());
+		}
+		for (int i=0; i<1_000; i++) {  // still right after everything's been evicted and replaced
+			assertEquals("a/" + i, template.topic(Integer.toString(i)).getName());
+		}
+	}
+
+	@Test
+	public void rejectsBadTemplatesAndValues() {
+		for (String bad : new String[] { "a//{b}", "/a", "a/*", "a/>", "a/x{b}", "a/{b}/{b}", "a/#" }) {
+			try {
+				new TopicTemplate(bad);
+				fail("should have rejected template " + bad);
+			} catch (IllegalArgumentException e) {
+				// good
+			}
+		}
+		TopicTemplate template = new TopicTemplate("a/{b}");
+		for (String bad : new String[] { "x/y", "", "*", "x>", null }) {
+			try {
+				template.topic(bad);
+				fail("should have rejected value " + bad);
+			} catch (IllegalArgumentException e) {
+				// good
+			}
+		}
+		try {
+			template.topic("x", "y");
+			fail("too many values");
+		} catch (IllegalArgumentException e) {
+			// good
+		}
+		char[] longLevel = new char[300];
+		Arrays.fill(longLevel, 'x');
+		try {
+			template.topic(new String(longLevel));
+			fail("too long");
+		} catch (IllegalArgumentException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void canMatchAgreesWithFilledTopics() {
+		TopicTemplate template = new TopicTemplate("prices/{venue}/{symbol}");
+		assertTrue(template.canMatch(new Sub("prices/>")));
+		assertTrue(template.canMatch(new Sub("prices/lse/*")));
+		assertTrue(template.canMatch(new Sub("pri*/*/VOD")));
+		assertTrue(template.canMatch(new Sub("prices/#")));
+		assertTrue(template.canMatch(new Sub(">")));
+		assertFalse(template.canMatch(new Sub("prices/*")));  // too short
+		assertFalse(template.canMatch(new Sub("prices/*/*/>")));  // too long
+		assertFalse(template.canMatch(new Sub("orders/>")));
+		assertFalse(template.canMatch(new Sub("x*/>")));
+		// and the dispatcher's view of it
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		CountingListener listener = new CountingListener();
+		for (String sub : new String[] { "prices/>", "prices/lse/*", "orders/>", "prices/*" }) {
+			dispatcher.registerCallback(new Sub(sub), listener);
+		}
+		assertEquals(new HashSet<>(Arrays.asList(new Sub("prices/>"), new Sub("prices/lse/*"))), new HashSet<>(dispatcher.getMatchingSubs(template)));
+		// anything canMatch() says no to really never matches
+		for (String sub : new String[] { "prices/*", "orders/>", "x*/>", "prices/*/*/>" }) {
+			for (String venue : new String[] { "lse", "x", "prices" }) {
+				assertFalse(new Sub(sub).matches(template.fill(venue, "VOD")));
+			}
+		}
+	}
+}
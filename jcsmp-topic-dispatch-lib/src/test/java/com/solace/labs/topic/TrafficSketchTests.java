@@ -0,0 +1,87 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+
+public class TrafficSketchTests {
+
+	@Test
+	public void heavyHittersFoundInSkewedTraffic() {
+		TrafficSketch sketch = new TrafficSketch(5, 2);
+		Map<String, Long> exact = new HashMap<>();
+		Random random = new Random(42);
+		for (int i=0; i<200_000; i++) {
+			// Zipf-ish: topic n turns up about 1/n as often, out of 10,000 of them
+			int n = (int)Math.floor(Math.exp(random.nextDouble() * Math.log(10_000)));
+			String topic = "prices/venue" + (n % 7) + "/sym" + n;
+			sketch.record(topic);
+			exact.merge(topic, 1L, Long::sum);
+		}
+		TrafficStats stats = sketch.snapshot();
+		assertEquals(200_000, stats.getTotalCount());
+		List<HeavyHitter> top = stats.getTopTopics();
+		assertEquals(5, top.size());
+		assertEquals("prices/venue1/sym1", top.get(0).getKey());
+		for (int i=0; i<top.size(); i++) {
+			HeavyHitter hitter = top.get(i);
+			long actual = exact.get(hitter.getKey());
+			assertTrue(hitter.getCount() >= actual);  // never under...
+			assertTrue(hitter.getCount() - hitter.getMaxError() <= actual);  // ...and within its error bound
+			if (i > 0) assertTrue(top.get(i - 1).getCount() >= hitter.getCount());
+			assertTrue(stats.estimate(hitter.getKey()) >= actual);
+		}
+		assertEquals(1, stats.getTopPrefixes(1).size());  // everything's under prices/
+		assertEquals("prices", stats.getTopPrefixes(1).get(0).getKey());
+		assertEquals(200_000, stats.getTopPrefixes(1).get(0).getCount());
+		assertEquals(5, stats.getTopPrefixes(2).size());
+		assertTrue(stats.getTopPrefixes(2).get(0).getKey().startsWith("prices/venue"));
+		long rare = exact.getOrDefault("prices/venue3/sym9999", 0L);
+		assertTrue(stats.estimate("prices/venue3/sym9999") >= rare);
+	}
+
+	@Test
+	public void shortTopicIsItsOwnPrefix() {
+		TrafficSketch sketch = new TrafficSketch(3, 3);
+		sketch.record("a");
+		sketch.record("a/b");
+		sketch.record("a/b/c/d");
+		TrafficStats stats = sketch.snapshot();
+		assertEquals(3, stats.getTopPrefixes(1).get(0).getCount());
+		assertEquals("a/b", stats.getTopPrefixes(2).get(0).getKey());
+		assertEquals(2, stats.getTopPrefixes(2).get(0).getCount());
+		assertEquals("a/b/c", stats.getTopPrefixes(3).get(0).getKey());
+		assertEquals(1, stats.getTopPrefixes(3).get(0).getCount());
+	}
+
+	@Test
+	public void matchedAndUnmatchedKeptApart() {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		assertNull(dispatcher.getMatchedTraffic());
+		dispatcher.enableTrafficSketches(3, 1);
+		dispatcher.registerCallback(new Sub("orders/>"), new CountingListener());
+		for (int i=0; i<10; i++) dispatcher.onReceive(TestMessages.onTopic("orders/" + (i % 2)));
+		for (int i=0; i<4; i++) dispatcher.onReceive(TestMessages.onTopic("audit/x"));
+		TrafficStats matched = dispatcher.getMatchedTraffic();
+		TrafficStats unmatched = dispatcher.getUnmatchedTraffic();
+		assertEquals(10, matched.getTotalCount());
+		assertEquals(2, matched.getTopTopics().size());
+		assertEquals("orders", matched.getTopPrefixes(1).get(0).getKey());
+		assertEquals(4, unmatched.getTotalCount());
+		assertEquals("audit/x", unmatched.getTopTopics().get(0).getKey());
+		assertEquals(0, unmatched.estimate("orders/0"));
+		dispatcher.disableTrafficSketches();
+		assertNull(dispatcher.getUnmatchedTraffic());
+	}
+}
@@ -0,0 +1,150 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/** The vector matcher has to give exactly the same answers as the scalar one, just quicker on long topics */
+public class VectorMatchingTests {
+
+	/** A long topic, 100+ chars, like the ones we actually see, with some levels swapped for wildcards to make the sub */
+	private static String longTopic(Random random, int levels) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<levels; i++) {
+			if (i > 0) sb.append('/');
+			sb.append("level").append(i).append("-").append(random.nextInt(3) == 0 ? "x" : "abcdefghijklmnopqrstuvwxyz".substring(random.nextInt(20)));
+		}
+		return sb.toString();
+	}
+
+	private static String subFor(Random random, String topic) {
+		String[] levels = topic.split("/", -1);
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<levels.length; i++) {
+			if (i > 0) sb.append('/');
+			int r = random.nextInt(20);
+			if (r == 0) return sb.append(random.nextBoolean() ? ">" : "#").toString();
+			if (r == 1) sb.append('*');
+			else if (r == 2) sb.append(levels[i], 0, random.nextInt(levels[i].length())).append('*');
+			else if (r == 3 && levels[i].length() > 1) sb.append(levels[i], 1, levels[i].length());  // near miss
+			else sb.append(levels[i]);
+		}
+		if (random.nextInt(10) == 0) sb.setLength(sb.length() - 1);  // shorter than the topic
+		return sb.toString();
+	}
+
+	/**
+	 * The build runs the tests without the incubator module (the fallback), and with <code>-PvectorMatching</code> runs
+	 * these again with it; it says which one this is.  Run some other way, just check it's consistent with the JVM.
+	 */
+	@Test
+	public void availableOnlyWithTheModule() {
+		String expected = System.getProperty("vectorMatching.expected");
+		if (expected != null) {
+			assertEquals(Boolean.parseBoolean(expected), TopicUtils.isVectorMatchingAvailable());
+		} else if (!ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			assertFalse(TopicUtils.isVectorMatchingAvailable());
+		}
+		assertTrue(TopicUtils.topicMatchesVectorized(longTopic(new Random(3), 12), ">"));  // works either way
+	}
+
+	@Test
+	public void matcherThatCantLinkIsNotUsed() {
+		VectorMatching.CharMatcher missingApi = (topic, topicLength, sub, subLength) -> {
+			throw new NoSuchMethodError("jdk.incubator.vector.ShortVector.fromCharArray");  // what JDK 16 does
+		};
+		assertNull(VectorMatching.probed(missingApi));
+		assertNull(VectorMatching.probed((topic, topicLength, sub, subLength) -> false));  // wrong answer
+		VectorMatching.CharMatcher scalar = (topic, topicLength, sub, subLength) ->
+				TopicUtils.topicMatches(new String(topic, 0, topicLength), new String(sub, 0, subLength));
+		assertSame(scalar, VectorMatching.probed(scalar));
+	}
+
+	@Test
+	public void sameAnswersAsScalar() {
+		System.out.println("Vector matching available: " + TopicUtils.isVectorMatchingAvailable());
+		Random random = new Random(7);
+		int matched = 0;
+		for (int i=0; i<50_000; i++) {
+			String topic = longTopic(random, 3 + random.nextInt(12));
+			String sub = subFor(random, random.nextInt(4) == 0 ? longTopic(random, 3 + random.nextInt(12)) : topic);
+			if (!TopicUtils.validateSubLinear(sub)) continue;
+			boolean expected = TopicUtils.topicMatches(topic, sub);
+			assertEquals(topic + " vs. " + sub, expected, TopicUtils.topicMatchesVectorized(topic, sub));
+			assertEquals(topic + "/ vs. " + sub, TopicUtils.topicMatches(topic + "/", sub), TopicUtils.topicMatchesVectorized(topic + "/", sub));
+			if (expected) matched++;
+		}
+		assertTrue(matched > 1000);  // not just all misses
+		// and the short, weird, random ones the other matching tests use, forced down the vector path
+		for (int i=0; i<100_000; i++) {
+			String topic = TestDataGeneratorUtil.buildRandomTopic(20);
+			String sub = TestDataGeneratorUtil.buildRandomSub(20);
+			if (!TopicUtils.validateSubLinear(sub)) continue;
+			assertEquals(topic + " vs. " + sub, TopicUtils.topicMatches(topic, sub), VectorMatching.topicMatches(topic, sub));
+		}
+		for (String[] pair : new String[][] { { "", "" }, { "", "#" }, { "", "*" }, { "a", "a/#" }, { "a/", "a/>" }, { "a", "a/>" }, { "a//b", "a/*/b" }, { "ab", "ab*" } }) {
+			assertEquals(pair[0] + " vs. " + pair[1], TopicUtils.topicMatches(pair[0], pair[1]), VectorMatching.topicMatches(pair[0], pair[1]));
+		}
+	}
+
+	@Test
+	public void scanEnginesAgreeOnLongTopics() {
+		Random random = new Random(11);
+		List<String> topics = new ArrayList<>();
+		Set<Sub> subs = new HashSet<>();
+		for (int i=0; i<2_000; i++) topics.add(longTopic(random, 8 + random.nextInt(6)));
+		while (subs.size() < 500) {
+			String sub = subFor(random, topics.get(random.nextInt(topics.size())));
+			if (TopicUtils.validateSubLinear(sub)) subs.add(new Sub(sub));
+		}
+		MatchEngine linear = MatchEngine.build(EngineType.LINEAR_SCAN, subs);
+		MatchEngine exact = MatchEngine.build(EngineType.EXACT_HASH, subs);
+		MatchEngine trie = MatchEngine.build(EngineType.TRIE, subs);
+		List<Sub> a = new ArrayList<>();
+		List<Sub> b = new ArrayList<>();
+		List<Sub> c = new ArrayList<>();
+		for (String topic : topics) {
+			a.clear(); b.clear(); c.clear();
+			linear.match(topic, a);
+			exact.match(topic, b);
+			trie.match(topic, c);
+			assertEquals(new HashSet<>(c), new HashSet<>(a));
+			assertEquals(new HashSet<>(c), new HashSet<>(b));
+		}
+		// rough timing, like the other comparison tests: the scalar loop vs. the linear scan engine, which copies each topic
+		// out once and (if it's available) uses the vector matcher on it for every sub
+		List<Sub> subList = new ArrayList<>(subs);
+		Collections.shuffle(subList, random);
+		for (int round=0; round<5; round++) {  // the last round is the warmed up one
+			long start = System.nanoTime();
+			int scalarCount = 0;
+			for (String topic : topics) {
+				for (int i=0; i<subList.size(); i++) {
+					if (subList.get(i).matches(topic)) scalarCount++;
+				}
+			}
+			long scalarNanos = System.nanoTime() - start;
+			start = System.nanoTime();
+			int engineCount = 0;
+			for (String topic : topics) {
+				a.clear();
+				linear.match(topic, a);
+				engineCount += a.size();
+			}
+			long engineNanos = System.nanoTime() - start;
+			assertEquals(scalarCount, engineCount);
+			if (round == 4) System.out.printf("Long topics (%d x %d subs): scalar %d ms, linear scan engine %d ms%n", topics.size(), subList.size(), scalarNanos / 1_000_000, engineNanos / 1_000_000);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingDefault;
+import com.solace.labs.topic.DispatcherConcurrencyTests.CountingListener;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+
+public class WeakRegistrationTests {
+
+	/** Separate method, so nothing on the test's own stack frame still points at them */
+	private static void registerForgottenListeners(MessageListenerWithTopicDispatch dispatcher, int count) {
+		for (int i=0; i<count; i++) {
+			CountingListener forgotten = new CountingListener();
+			dispatcher.registerWeakCallback(new Sub("session/" + i + "/>"), forgotten);
+			dispatcher.registerWeakCallback(new Sub("broadcast/>"), forgotten);
+		}
+	}
+
+	@Test
+	public void collectedListenersArePruned() throws InterruptedException {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, EngineType.TRIE, new CountingDefault());
+		CountingListener kept = new CountingListener();
+		dispatcher.registerWeakCallback(new Sub("broadcast/>"), kept);
+		registerForgottenListeners(dispatcher, 100);
+		assertEquals(101, dispatcher.getRegistryStats().getSubCount());
+		for (int i=0; i<50 && dispatcher.getPrunedCallbackCount() < 100; i++) {
+			System.gc();
+			Thread.sleep(20);
+			dispatcher.pruneCollected();  // rather than waiting for the timer
+		}
+		assertEquals(100, dispatcher.getPrunedCallbackCount());
+		assertEquals(1, dispatcher.getRegistryStats().getSubCount());  // just broadcast/> left, for the one we kept
+		dispatcher.onReceive(TestMessages.onTopic("broadcast/news"));
+		assertEquals(1, kept.count.get());
+		dispatcher.close();
+	}
+
+	@Test
+	public void weakCanBeUnregistered() {
+		CountingDefault defaults = new CountingDefault();
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, defaults);
+		CountingListener listener = new CountingListener();
+		dispatcher.registerWeakCallback(new Sub("a/>"), listener);
+		dispatcher.registerWeakCallback(new Sub("a/b"), listener);
+		dispatcher.onReceive(TestMessages.onTopic("a/b"));
+		assertEquals(1, listener.count.get());  // one wrapper, so still de-duped
+		assertFalse(dispatcher.unregisterCallback(new Sub("a/>"), listener));  // it's the wrapper that's registered
+		assertTrue(dispatcher.unregisterWeakCallback(new Sub("a/>"), listener));
+		assertTrue(dispatcher.unregisterWeakCallback(new Sub("a/b"), listener));
+		assertFalse(dispatcher.unregisterWeakCallback(new Sub("a/b"), listener));
+		dispatcher.onReceive(TestMessages.onTopic("a/b"));
+		assertEquals(1, listener.count.get());
+		assertEquals(1, defaults.count.get());
+		dispatcher.close();
+	}
+
+	private static WeakReference<MessageListenerWithTopicDispatch> forgottenDispatcher(CountingListener listener) {
+		MessageListenerWithTopicDispatch dispatcher = new MessageListenerWithTopicDispatch(Mode.DEDUPE, new CountingDefault());
+		dispatcher.registerWeakCallback(new Sub("a/>"), listener);  // starts the prune timer
+		return new WeakReference<>(dispatcher);
+	}
+
+	@Test
+	public void pruneTimerDoesNotKeepTheDispatcherAlive() throws InterruptedException {
+		CountingListener listener = new CountingListener();
+		WeakReference<MessageListenerWithTopicDispatch> dispatcher = forgottenDispatcher(listener);  // never closed
+		for (int i=0; i<50 && dispatcher.get() != null; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		assertNull(dispatcher.get());
+	}
+}
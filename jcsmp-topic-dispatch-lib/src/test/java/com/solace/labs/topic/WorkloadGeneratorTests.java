@@ -0,0 +1,124 @@
+package com.solace.labs.topic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.junit.Test;
+
+public class WorkloadGeneratorTests {
+
+	private static WorkloadGenerator fleet(long seed) {
+		return new WorkloadGenerator(seed, new String[] { "fleet", "region", "device", "metric" }, new int[] { 1, 10, 100_000, 20 });
+	}
+
+	@Test
+	public void sameSeedSameWorkload() {
+		assertEquals(fleet(7).subs(1000), fleet(7).subs(1000));
+		StringBuilder a = new StringBuilder();
+		StringBuilder b = new StringBuilder();
+		fleet(7).forEachTopic(1000, a::append);
+		fleet(7).forEachTopic(1000, b::append);
+		assertEquals(a.toString(), b.toString());
+		StringBuilder c = new StringBuilder();
+		fleet(8).forEachTopic(1000, c::append);
+		assertTrue(!a.toString().equals(c.toString()));
+	}
+
+	@Test
+	public void subsAreValidAndHaveTheRightMix() {
+		WorkloadGenerator generator = fleet(1);
+		generator.setWildcardMix(0.1, 0.1, 0.1, 0.1);
+		generator.setMinDepth(2);
+		List<String> subs = generator.subs(20_000);
+		int star = 0, prefix = 0, multi = 0, zero = 0;
+		for (String sub : subs) {
+			assertTrue(sub, TopicUtils.validateSubLinear(sub));
+			assertTrue(sub, !sub.startsWith("*") && !sub.startsWith(">") && !sub.startsWith("#"));  // not at level 0 by default
+			if (sub.endsWith("/>")) multi++;
+			else if (sub.endsWith("/#")) zero++;
+			else if (sub.contains("/*")) star++;  // whole level
+			else if (sub.contains("*")) prefix++;
+		}
+		assertEquals(2_000, star, 200);
+		assertEquals(2_000, prefix, 200);
+		assertEquals(2_000, multi, 200);
+		assertEquals(2_000, zero, 200);
+	}
+
+	@Test
+	public void wildcardsStayInTheirLevels() {
+		WorkloadGenerator generator = fleet(2);
+		generator.setWildcardMix(0.25, 0.25, 0.25, 0.25);  // every sub that can have one
+		generator.setMinDepth(1);
+		generator.setWildcardLevels(2, 3);
+		int exact = 0;
+		for (String sub : generator.subs(5_000)) {
+			String[] levels = sub.split("/");
+			for (int i=0; i<levels.length; i++) {
+				if (levels[i].contains("*") || levels[i].equals(">") || levels[i].equals("#")) assertTrue(sub, i >= 2 && i <= 3);
+			}
+			if (levels.length <= 2) {
+				assertTrue(sub, !sub.contains("*") && !sub.contains(">") && !sub.contains("#"));  // too short for the range
+				exact++;
+			}
+		}
+		assertTrue(exact > 0);
+		try {
+			generator.setWildcardLevels(4, 5);
+			fail("only 4 levels");
+		} catch (IllegalArgumentException e) {
+			// good
+		}
+	}
+
+	@Test
+	public void popularityIsSkewed() {
+		Map<String, Integer> regions = new HashMap<>();
+		fleet(3).forEachTopic(100_000, topic -> regions.merge(topic.split("/")[1], 1, Integer::sum));
+		// Zipf with s=1 over 10: the top one gets 1/H(10), about 34%, the last about 3.4%
+		assertEquals(34_000, regions.get("region0"), 1_500);
+		assertEquals(3_400, regions.get("region9"), 500);
+	}
+
+	@Test
+	public void overlapControlsHowManySubsSeeTraffic() {
+		for (double overlap : new double[] { 0.0, 1.0 }) {
+			WorkloadGenerator generator = fleet(5);
+			generator.setWildcardMix(0, 0, 0, 0);
+			generator.setOverlapRatio(overlap);
+			MatchEngine engine = MatchEngine.build(EngineType.EXACT_HASH, new ArrayList<Sub>());
+			for (String sub : new HashSet<>(generator.subs(2_000))) engine.add(new Sub(sub));
+			List<Sub> scratch = new ArrayList<>();
+			long[] matched = new long[1];
+			generator.forEachTopic(50_000, topic -> {
+				scratch.clear();
+				engine.match(topic, scratch);
+				if (!scratch.isEmpty()) matched[0]++;
+			});
+			if (overlap == 0.0) assertTrue("cold subs matched " + matched[0], matched[0] < 500);
+			else assertTrue("hot subs matched " + matched[0], matched[0] > 5_000);
+		}
+	}
+
+	@Test
+	public void zipfSamplerStaysInRange() {
+		SplittableRandom random = new SplittableRandom(0);
+		for (double s : new double[] { 0.0, 0.5, 1.0, 1.5 }) {
+			ZipfSampler sampler = new ZipfSampler(1_000_000_000L, s);
+			for (int i=0; i<10_000; i++) {
+				long k = sampler.sample(random);
+				assertTrue(k >= 1 && k <= 1_000_000_000L);
+			}
+		}
+		ZipfSampler one = new ZipfSampler(1, 1.0);
+		assertEquals(1, one.sample(random));
+	}
+}
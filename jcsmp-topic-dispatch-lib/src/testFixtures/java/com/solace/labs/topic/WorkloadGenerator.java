@@ -0,0 +1,212 @@
+package com.solace.labs.topic;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+import java.util.function.Consumer;
+
+/**
+ * <p>Seeded, reproducible topics and subscriptions that look like a real topic tree, for tests and benchmarks.
+ * Unlike <code>TestDataGeneratorUtil</code> (which is for fuzzing the validators with random characters), this models a
+ * hierarchy: each level has a name and a fan-out, e.g. <code>region0..region9 / store0..store999 / sensor0..sensor49</code>,
+ * and at each level the children's popularity is Zipf distributed, so a few branches get most of the traffic, like
+ * real life.</p>
+ * <p>Topics are streamed, never stored, so billions of them only cost the time.  The same seed and settings always
+ * give the same subs and the same topic sequence, and the topic sequence doesn't depend on the subs generated.</p>
+ */
+public final class WorkloadGenerator {
+
+	private final long seed;
+	private String[] levelNames;
+	private int[] fanOuts;
+	private int minDepth;
+	private double zipfExponent = 1.0;
+	private ZipfSampler[] levelSamplers;
+	// subscription shape
+	private double starRatio = 0.05;  // a whole level replaced with *
+	private double prefixRatio = 0.05;  // a level cut short with a*
+	private double multiLevelRatio = 0.05;  // the rest of the topic replaced with >
+	private double zeroOrMoreRatio = 0.0;  // the rest of the topic replaced with # (MQTT style)
+	private int wildcardMinLevel = 1;
+	private int wildcardMaxLevel = Integer.MAX_VALUE;
+	private double overlapRatio = 0.8;
+
+	/**
+	 * @param seed everything generated is a pure function of the seed and the settings
+	 * @param levelNames the name of each level, e.g. "region", which becomes "region0", "region1", etc.
+	 * @param fanOuts how many children each level has; must be the same length as <code>levelNames</code>
+	 */
+	public WorkloadGenerator(long seed, String[] levelNames, int[] fanOuts) {
+		this.seed = seed;
+		if (levelNames == null || fanOuts == null) throw new NullPointerException("Level names and fan-outs are required");
+		if (levelNames.length == 0 || levelNames.length != fanOuts.length) throw new IllegalArgumentException("Need the same number (at least 1) of level names and fan-outs");
+		for (int fanOut : fanOuts) {
+			if (fanOut < 1) throw new IllegalArgumentException("Fan-out must be at least 1");
+		}
+		for (String name : levelNames) {
+			if (name == null || name.matches(".*[/*>#].*")) throw new IllegalArgumentException("Bad level name: " + name);
+		}
+		this.levelNames = levelNames.clone();
+		this.fanOuts = fanOuts.clone();
+		this.minDepth = fanOuts.length;
+		buildSamplers();
+	}
+
+	/** A tree <code>depth</code> levels deep, named l0, l1..., with the same fan-out at every level */
+	public WorkloadGenerator(long seed, int depth, int fanOut) {
+		this(seed, defaultNames(depth), repeat(fanOut, depth));
+	}
+
+	private static String[] defaultNames(int depth) {
+		String[] names = new String[depth];
+		for (int i=0; i<depth; i++) names[i] = "l" + i + "v";
+		return names;
+	}
+
+	private static int[] repeat(int value, int times) {
+		int[] array = new int[times];
+		for (int i=0; i<times; i++) array[i] = value;
+		return array;
+	}
+
+	private void buildSamplers() {
+		levelSamplers = new ZipfSampler[fanOuts.length];
+		for (int i=0; i<fanOuts.length; i++) levelSamplers[i] = new ZipfSampler(fanOuts[i], zipfExponent);
+	}
+
+	/** How skewed popularity is at each level: 0 is uniform, 1 (the default) is classic Zipf, higher is hotter */
+	public void setZipfExponent(double zipfExponent) {
+		if (zipfExponent < 0) throw new IllegalArgumentException("Exponent can't be negative");
+		this.zipfExponent = zipfExponent;
+		buildSamplers();
+	}
+
+	/** Topics and subs are between this many levels and the full depth, uniformly; default is always the full depth */
+	public void setMinDepth(int minDepth) {
+		if (minDepth < 1 || minDepth > fanOuts.length) throw new IllegalArgumentException("Min depth must be between 1 and " + fanOuts.length);
+		this.minDepth = minDepth;
+	}
+
+	/**
+	 * What fraction of subs get each kind of wildcard (at most one per sub); the rest are exact topics.
+	 * Defaults are 5% each of <code>*</code>, <code>a*</code> and <code>&gt;</code>, and no <code>#</code>.
+	 */
+	public void setWildcardMix(double star, double prefix, double multiLevel, double zeroOrMore) {
+		if (star < 0 || prefix < 0 || multiLevel < 0 || zeroOrMore < 0 || star + prefix + multiLevel + zeroOrMore > 1.0) {
+			throw new IllegalArgumentException("Wildcard ratios must be non-negative and add up to at most 1");
+		}
+		this.starRatio = star;
+		this.prefixRatio = prefix;
+		this.multiLevelRatio = multiLevel;
+		this.zeroOrMoreRatio = zeroOrMore;
+	}
+
+	/**
+	 * Which levels (0-based, inclusive) a wildcard can go at; default is anywhere but the very first level.  A sub that's
+	 * too short to reach <code>from</code> (see {@link #setMinDepth(int)}) stays an exact topic.
+	 */
+	public void setWildcardLevels(int from, int to) {
+		if (from < 0 || to < from) throw new IllegalArgumentException("Bad wildcard level range " + from + ".." + to);
+		if (from >= fanOuts.length) throw new IllegalArgumentException("Wildcard levels start past the tree's depth of " + fanOuts.length);
+		this.wildcardMinLevel = from;
+		this.wildcardMaxLevel = to;
+	}
+
+	/**
+	 * What fraction of subs are built from the popular part of the tree (the same distribution as the traffic), so
+	 * they'll actually see messages.  The rest are picked uniformly across the whole tree, and mostly stay quiet.
+	 * Default 0.8.
+	 */
+	public void setOverlapRatio(double overlapRatio) {
+		if (overlapRatio < 0 || overlapRatio > 1) throw new IllegalArgumentException("Overlap ratio must be between 0 and 1");
+		this.overlapRatio = overlapRatio;
+	}
+
+	/** @return <code>count</code> subs, possibly with some duplicates, always valid */
+	public List<String> subs(int count) {
+		List<String> subs = new ArrayList<>(count);
+		forEachSub(count, subs::add);
+		return subs;
+	}
+
+	public void forEachSub(long count, Consumer<String> consumer) {
+		SplittableRandom random = new SplittableRandom(seed);
+		int[] path = new int[fanOuts.length];
+		StringBuilder sb = new StringBuilder();
+		for (long n=0; n<count; n++) {
+			int depth = depth(random);
+			boolean hot = random.nextDouble() < overlapRatio;
+			for (int i=0; i<depth; i++) {
+				path[i] = hot ? (int)levelSamplers[i].sample(random) - 1 : random.nextInt(fanOuts[i]);
+			}
+			double kind = random.nextDouble();
+			int highest = Math.min(wildcardMaxLevel, depth-1);
+			int level = highest < wildcardMinLevel ? -1 : wildcardMinLevel + random.nextInt(highest - wildcardMinLevel + 1);  // -1: too short, no wildcard
+			sb.setLength(0);
+			for (int i=0; i<depth; i++) {
+				if (i > 0) sb.append('/');
+				if (i == level && kind < starRatio) {
+					sb.append('*');
+				} else if (i == level && (kind -= starRatio) < prefixRatio) {
+					int start = sb.length();
+					appendLevel(sb, i, path[i]);
+					int cut = levelNames[i].length() + random.nextInt(sb.length() - start - levelNames[i].length());
+					sb.setLength(start + Math.max(1, cut));  // at least one char before the *
+					sb.append('*');
+				} else if (i == level && (kind -= prefixRatio) < multiLevelRatio) {
+					sb.append('>');
+					break;
+				} else if (i == level && (kind -= multiLevelRatio) < zeroOrMoreRatio) {
+					sb.append('#');
+					break;
+				} else {
+					appendLevel(sb, i, path[i]);
+				}
+			}
+			consumer.accept(sb.toString());
+		}
+	}
+
+	/** Streams <code>count</code> topics to the consumer without storing them */
+	public void forEachTopic(long count, Consumer<String> consumer) {
+		Iterator<String> it = topics(count);
+		while (it.hasNext()) consumer.accept(it.next());
+	}
+
+	/** Streams <code>count</code> topics, or forever if <code>count</code> is negative */
+	public Iterator<String> topics(final long count) {
+		final SplittableRandom random = new SplittableRandom(seed ^ 0x5DEECE66DL);  // independent of the subs
+		return new Iterator<String>() {
+			private long produced = 0;
+			private final StringBuilder sb = new StringBuilder();
+
+			@Override
+			public boolean hasNext() {
+				return count < 0 || produced < count;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				produced++;
+				int depth = depth(random);
+				sb.setLength(0);
+				for (int i=0; i<depth; i++) {
+					if (i > 0) sb.append('/');
+					appendLevel(sb, i, (int)levelSamplers[i].sample(random) - 1);
+				}
+				return sb.toString();
+			}
+		};
+	}
+
+	private int depth(SplittableRandom random) {
+		return minDepth == fanOuts.length ? minDepth : minDepth + random.nextInt(fanOuts.length - minDepth + 1);
+	}
+
+	private void appendLevel(StringBuilder sb, int level, int child) {
+		sb.append(levelNames[level]).append(child);
+	}
+}
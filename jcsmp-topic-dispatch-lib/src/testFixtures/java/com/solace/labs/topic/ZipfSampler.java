@@ -0,0 +1,66 @@
+package com.solace.labs.topic;
+
+import java.util.SplittableRandom;
+
+/**
+ * Samples ranks 1..n with probability proportional to 1/k<sup>s</sup>, in constant time for any n, using
+ * Hörmann &amp; Derflinger's rejection-inversion method ("Rejection-inversion to generate variates from monotone
+ * discrete distributions", 1996).  Exponent 0 is uniform; around 1 is typical of real topic popularity.
+ */
+public final class ZipfSampler {
+
+	private final long n;
+	private final double s;
+	private final double hIntegralX1;
+	private final double hIntegralN;
+	private final double squeeze;
+
+	public ZipfSampler(long n, double exponent) {
+		if (n < 1) throw new IllegalArgumentException("Need at least 1 element");
+		if (exponent < 0) throw new IllegalArgumentException("Exponent can't be negative");
+		this.n = n;
+		this.s = exponent;
+		hIntegralX1 = hIntegral(1.5) - 1.0;
+		hIntegralN = hIntegral(n + 0.5);
+		squeeze = 2.0 - hIntegralInverse(hIntegral(2.5) - h(2));
+	}
+
+	/** @return a rank from 1 (most popular) to n */
+	public long sample(SplittableRandom random) {
+		while (true) {
+			double u = hIntegralN + random.nextDouble() * (hIntegralX1 - hIntegralN);
+			double x = hIntegralInverse(u);
+			long k = (long)(x + 0.5);
+			if (k < 1) k = 1;
+			else if (k > n) k = n;
+			if (k - x <= squeeze || u >= hIntegral(k + 0.5) - h(k)) return k;
+		}
+	}
+
+	private double hIntegral(double x) {
+		double logX = Math.log(x);
+		return helper2((1.0 - s) * logX) * logX;
+	}
+
+	private double h(double x) {
+		return Math.exp(-s * Math.log(x));
+	}
+
+	private double hIntegralInverse(double x) {
+		double t = x * (1.0 - s);
+		if (t < -1.0) t = -1.0;  // rounding
+		return Math.exp(helper1(t) * x);
+	}
+
+	/** log(1+x)/x, accurate near 0 */
+	private static double helper1(double x) {
+		if (Math.abs(x) > 1e-8) return Math.log1p(x) / x;
+		return 1.0 - x * (0.5 - x * (1.0/3.0 - 0.25 * x));
+	}
+
+	/** (exp(x)-1)/x, accurate near 0 */
+	private static double helper2(double x) {
+		if (Math.abs(x) > 1e-8) return Math.expm1(x) / x;
+		return 1.0 + x * 0.5 * (1.0 + x * (1.0/3.0) * (1.0 + 0.25 * x));
+	}
+}
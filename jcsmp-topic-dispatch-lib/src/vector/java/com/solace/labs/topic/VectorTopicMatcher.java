@@ -0,0 +1,98 @@
+package com.solace.labs.topic;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * {@link TopicUtils#topicMatches(String, String)}, but with the literal runs of the sub compared against the topic a
+ * whole vector at a time, and the end of a <code>*</code> level found with a vector search for the next <code>/</code>.
+ * Walks through exactly the same states as the scalar one (including its end-of-topic rules), it just takes bigger
+ * steps, so the answers are always the same.  Chars are 16 bits, so it's {@link ShortVector}s.
+ * <p>Loaded reflectively by {@link VectorMatching}; needs <code>--add-modules jdk.incubator.vector</code>.</p>
+ */
+final class VectorTopicMatcher implements VectorMatching.CharMatcher {
+
+	private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+
+	@Override
+	public boolean matches(char[] topic, int topicLength, char[] sub, int subLength) {
+		// a # is only a wildcard at the very end, after a / (or on its own); anywhere else it's a literal
+		boolean trailingHash = subLength > 0 && sub[subLength - 1] == '#' && (subLength == 1 || sub[subLength - 2] == '/');
+		int literalEnd = trailingHash ? subLength - 1 : subLength;
+		int t = 0;
+		int s = 0;
+		while (t < topicLength) {
+			if (s >= subLength) return false;  // have run out of sub, but topic still going
+			int wildcard = indexOfWildcard(sub, s, literalEnd);
+			if (wildcard < 0) wildcard = literalEnd;
+			if (wildcard > s) {  // a run of literal chars: compare as much of it as the topic has left, in one go
+				int run = Math.min(wildcard - s, topicLength - t);
+				if (mismatch(topic, t, sub, s, run)) return false;
+				t += run;
+				s += run;
+				continue;
+			}
+			switch (sub[s]) {
+			case '>':
+			case '#':  // only stops here if it's the trailing one
+				return true;
+			default:  // *, which swallows the rest of this topic level
+				int slash = indexOf(topic, '/', t, topicLength);
+				if (slash < 0) {
+					t = topicLength;
+					break;
+				}
+				s++;
+				if (s == subLength || sub[s] != '/') return false;  // still another topic level to go, or a malformed a*b
+				s++;
+				t = slash + 1;
+			}
+		}
+		// same end-of-topic rules as the scalar one
+		if ((s == subLength - 1 && (sub[s] == '*' || sub[s] == '>')) || s == subLength) return true;
+		return trailingHash && subLength >= 2 && s >= subLength - 2;
+	}
+
+	/** True if the two spans differ anywhere */
+	static boolean mismatch(char[] a, int aFrom, char[] b, int bFrom, int length) {
+		int i = 0;
+		for (int bound = SPECIES.loopBound(length); i < bound; i += SPECIES.length()) {
+			ShortVector va = ShortVector.fromCharArray(SPECIES, a, aFrom + i);
+			ShortVector vb = ShortVector.fromCharArray(SPECIES, b, bFrom + i);
+			if (va.compare(VectorOperators.NE, vb).anyTrue()) return true;
+		}
+		for (; i < length; i++) {
+			if (a[aFrom + i] != b[bFrom + i]) return true;
+		}
+		return false;
+	}
+
+	/** First index of c in [from, to), or -1 */
+	static int indexOf(char[] a, char c, int from, int to) {
+		int i = from;
+		for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+			VectorMask<Short> found = ShortVector.fromCharArray(SPECIES, a, i).eq((short)c);
+			if (found.anyTrue()) return i + found.firstTrue();
+		}
+		for (; i < to; i++) {
+			if (a[i] == c) return i;
+		}
+		return -1;
+	}
+
+	/** First <code>*</code> or <code>&gt;</code> in [from, to), or -1 */
+	static int indexOfWildcard(char[] a, int from, int to) {
+		int i = from;
+		for (int bound = from + SPECIES.loopBound(to - from); i < bound; i += SPECIES.length()) {
+			ShortVector v = ShortVector.fromCharArray(SPECIES, a, i);
+			VectorMask<Short> found = v.eq((short)'*').or(v.eq((short)'>'));
+			if (found.anyTrue()) return i + found.firstTrue();
+		}
+		for (; i < to; i++) {
+			if (a[i] == '*' || a[i] == '>') return i;
+		}
+		return -1;
+	}
+}
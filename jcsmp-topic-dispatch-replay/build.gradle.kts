@@ -0,0 +1,25 @@
+/*
+ * Replays captured topic traces through the topic dispatcher, to measure throughput and latency offline.
+ */
+
+plugins {
+    java
+    application
+    eclipse
+}
+
+repositories {
+    mavenCentral()
+}
+
+dependencies {
+    implementation(project(":jcsmp-topic-dispatch-lib"))
+    implementation("com.solacesystems:sol-jcsmp:10.+")
+    // Use JUnit test framework.
+    testImplementation("junit:junit:4.13")
+    testImplementation(testFixtures(project(":jcsmp-topic-dispatch-lib")))
+}
+
+application {
+    mainClass.set("com.solace.labs.topic.replay.TopicTraceReplay")
+}
@@ -0,0 +1,67 @@
+package com.solace.labs.topic.replay;
+
+/**
+ * Log-linear histogram of nanosecond latencies: exact below 64ns, then 32 buckets per power of 2 (about 3% precision)
+ * up to about 4.6 minutes, anything longer goes in the last bucket.  Fixed size, no allocation per value.  Single-threaded.
+ */
+final class LatencyHistogram {
+
+	private static final int LINEAR = 64;
+	private static final int SUB_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BITS;
+	private static final int MAX_EXPONENT = 38;  // 2^38 ns is about 4.6 minutes
+
+	private final long[] counts = new long[LINEAR + (MAX_EXPONENT - 5) * SUB_BUCKETS];
+	private long total = 0;
+	private long max = 0;
+	private long sum = 0;
+
+	void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts[index(nanos)]++;
+		total++;
+		sum += nanos;
+		if (nanos > max) max = nanos;
+	}
+
+	private int index(long v) {
+		if (v < LINEAR) return (int)v;
+		int exponent = 63 - Long.numberOfLeadingZeros(v);  // 6 or more
+		if (exponent > MAX_EXPONENT) return counts.length - 1;
+		int sub = (int)(v >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return LINEAR + (exponent - 6) * SUB_BUCKETS + sub;
+	}
+
+	/** The highest value that lands in this bucket */
+	private long highestIn(int index) {
+		if (index < LINEAR) return index;
+		int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+		int sub = (index - LINEAR) % SUB_BUCKETS;
+		return ((long)(SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS)) - 1;
+	}
+
+	/** @param percentile e.g. 99.9 */
+	long valueAt(double percentile) {
+		if (total == 0) return 0;
+		long rank = (long)Math.ceil(percentile / 100.0 * total);
+		if (rank < 1) rank = 1;
+		long seen = 0;
+		for (int i=0; i<counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) return Math.min(highestIn(i), max);
+		}
+		return max;
+	}
+
+	long getCount() {
+		return total;
+	}
+
+	long getMax() {
+		return max;
+	}
+
+	double getMean() {
+		return total == 0 ? 0.0 : (double)sum / total;
+	}
+}
@@ -0,0 +1,45 @@
+package com.solace.labs.topic.replay;
+
+import java.lang.reflect.Proxy;
+
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPFactory;
+import com.solacesystems.jcsmp.Topic;
+
+/**
+ * One stand-in message that gets re-pointed at each topic in the trace, so the replay doesn't need a session and
+ * doesn't measure message construction.  Only <code>getDestination()</code> means anything, everything else is null / 0 / false.
+ */
+final class ReplayMessage {
+
+	private Topic destination = null;
+	final BytesXMLMessage message;
+
+	ReplayMessage() {
+		message = (BytesXMLMessage)Proxy.newProxyInstance(ReplayMessage.class.getClassLoader(), new Class<?>[] { BytesXMLMessage.class }, (proxy, method, args) -> {
+			switch (method.getName()) {
+			case "getDestination":
+				return destination;
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			case "toString":
+				return "ReplayMessage[" + destination + "]";
+			default:
+				Class<?> type = method.getReturnType();
+				if (type == boolean.class) return false;
+				if (type == int.class) return 0;
+				if (type == long.class) return 0L;
+				if (type == short.class) return (short)0;
+				if (type == byte.class) return (byte)0;
+				return null;
+			}
+		});
+	}
+
+	BytesXMLMessage on(String topic) {
+		destination = JCSMPFactory.onlyInstance().createTopic(topic);
+		return message;
+	}
+}
@@ -0,0 +1,104 @@
+package com.solace.labs.topic.replay;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/** The results of one {@link TopicTraceReplay#run(TopicTraceReader)} */
+public final class ReplayReport {
+
+	/** Messages that matched this many subs or more all go in the last slot of the distribution */
+	public static final int MAX_MATCH_BUCKET = 16;
+
+	private final String engine;
+	private final long messages;
+	private final long elapsedNanos;
+	private final LatencyHistogram latency;
+	private final long[] matchDistribution;
+	private final List<Map.Entry<String, Long>> topSubs;
+	private final long maxLagNanos;
+
+	ReplayReport(String engine, long messages, long elapsedNanos, LatencyHistogram latency, long[] matchDistribution,
+			List<Map.Entry<String, Long>> topSubs, long maxLagNanos) {
+		this.engine = engine;
+		this.messages = messages;
+		this.elapsedNanos = elapsedNanos;
+		this.latency = latency;
+		this.matchDistribution = matchDistribution.clone();
+		this.topSubs = Collections.unmodifiableList(new ArrayList<>(topSubs));
+		this.maxLagNanos = maxLagNanos;
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	/** Measured messages, not counting the warm-up */
+	public long getMessageCount() {
+		return messages;
+	}
+
+	/** Time spent in the dispatcher's <code>onReceive()</code> for all the measured messages, not reading or pacing the trace */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/** What the dispatcher could keep up with, going by {@link #getElapsedNanos()} */
+	public double getMessagesPerSecond() {
+		return elapsedNanos == 0 ? 0.0 : messages * 1_000_000_000.0 / elapsedNanos;
+	}
+
+	/** Time spent in the dispatcher's <code>onReceive()</code> for one message, at the given percentile e.g. 99.9 */
+	public long getLatencyNanos(double percentile) {
+		return latency.valueAt(percentile);
+	}
+
+	public long getMaxLatencyNanos() {
+		return latency.getMax();
+	}
+
+	public double getMeanLatencyNanos() {
+		return latency.getMean();
+	}
+
+	/** Element <i>n</i> is how many messages matched exactly <i>n</i> subs; the last one is {@value #MAX_MATCH_BUCKET} or more */
+	public long[] getMatchDistribution() {
+		return matchDistribution.clone();
+	}
+
+	/** Fraction of messages that matched no subs at all, and went to the default listener */
+	public double getUnmatchedRatio() {
+		return messages == 0 ? 0.0 : (double)matchDistribution[0] / messages;
+	}
+
+	/** The busiest subs and how many messages each matched, busiest first */
+	public List<Map.Entry<String, Long>> getTopSubs() {
+		return topSubs;
+	}
+
+	/** With recorded pacing, the furthest behind schedule the replay ever got; 0 at full speed */
+	public long getMaxLagNanos() {
+		return maxLagNanos;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("Engine %s: %,d msgs in %.3f s dispatching = %,.0f msgs/s%n", engine, messages, elapsedNanos / 1e9, getMessagesPerSecond()));
+		sb.append(String.format("Latency (us): mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, p99.9 %.2f, p99.99 %.2f, max %.2f%n",
+				getMeanLatencyNanos() / 1e3, getLatencyNanos(50) / 1e3, getLatencyNanos(90) / 1e3, getLatencyNanos(99) / 1e3,
+				getLatencyNanos(99.9) / 1e3, getLatencyNanos(99.99) / 1e3, getMaxLatencyNanos() / 1e3));
+		if (maxLagNanos > 0) sb.append(String.format("Max lag behind recorded pacing: %.3f ms%n", maxLagNanos / 1e6));
+		sb.append("Subs matched per msg:");
+		for (int i=0; i<matchDistribution.length; i++) {
+			if (matchDistribution[i] == 0) continue;
+			sb.append(String.format(" %s%s=%.2f%%", i, i == MAX_MATCH_BUCKET ? "+" : "", 100.0 * matchDistribution[i] / Math.max(1, messages)));
+		}
+		sb.append(String.format("%nTop subs:%n"));
+		for (Map.Entry<String, Long> entry : topSubs) {
+			sb.append(String.format("  %,12d  %s%n", entry.getValue(), entry.getKey()));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,119 @@
+package com.solace.labs.topic.replay;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * <p>Streams the records of a topic trace file through memory-mapped windows, so files of any size can be read
+ * without pulling them onto the heap.  A record that straddles the end of a window just starts the next one.</p>
+ */
+public final class TopicTraceReader {
+
+	static final int DEFAULT_WINDOW = 256 * 1024 * 1024;
+	private static final int MAX_TOPIC_BYTES = 64 * 1024;  // way more than any real topic, just a sanity check
+
+	private final Path file;
+	private final TraceFormat format;
+	private final int windowSize;
+	private final byte[] topicBytes = new byte[MAX_TOPIC_BYTES];
+	private boolean stopped = false;  // the handler said so
+
+	public TopicTraceReader(Path file, TraceFormat format) {
+		this(file, format, DEFAULT_WINDOW);
+	}
+
+	TopicTraceReader(Path file, TraceFormat format, int windowSize) {
+		this.file = file;
+		if (this.file == null) throw new NullPointerException("File is null");
+		this.format = format;
+		if (this.format == null) throw new NullPointerException("TraceFormat is null");
+		if (windowSize < MAX_TOPIC_BYTES * 2) throw new IllegalArgumentException("Window too small");
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Reads the whole file (or until the handler returns false) on the calling thread.
+	 * @return how many records were handed to the handler
+	 * @throws IOException if the file can't be read, or a record is malformed
+	 */
+	public long read(TraceRecordHandler handler) throws IOException {
+		long records = 0;
+		stopped = false;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			long windowStart = 0;
+			while (windowStart < size) {
+				long length = Math.min(windowSize, size - windowStart);
+				MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, length);
+				boolean last = windowStart + length == size;
+				int consumed = 0;  // bytes of whole records handled in this window
+				while (true) {
+					int next = format == TraceFormat.LINES ? nextLine(window, consumed, last, handler) : nextRecord(window, consumed, last, handler);
+					if (next < 0) break;  // partial record at the end, or the handler said stop
+					consumed = next;
+					records++;
+					if (stopped) return records;
+				}
+				if (last) break;
+				if (consumed == 0) throw new IOException("Record at offset " + windowStart + " is bigger than the read window");
+				windowStart += consumed;
+			}
+		}
+		return records;
+	}
+
+	/** @return where the next record starts, or -1 if the record isn't all in this window (or there are no more) */
+	private int nextLine(MappedByteBuffer window, int from, boolean last, TraceRecordHandler handler) throws IOException {
+		int limit = window.limit();
+		while (true) {
+			if (from >= limit) return -1;
+			int end = from;
+			while (end < limit && window.get(end) != '\n') end++;
+			if (end == limit && !last) return -1;  // might continue in the next window
+			int next = Math.min(end + 1, limit);
+			if (end > from && window.get(end-1) == '\r') end--;
+			if (end == from) {  // blank line
+				from = next;
+				continue;
+			}
+			long timestamp = 0;
+			int topicStart = from;
+			int tab = from;
+			while (tab < end && window.get(tab) >= '0' && window.get(tab) <= '9') tab++;
+			if (tab > from && tab < end && window.get(tab) == '\t') {
+				for (int i=from; i<tab; i++) timestamp = timestamp*10 + (window.get(i) - '0');
+				topicStart = tab + 1;
+			}
+			stopped = !handler.onRecord(decode(window, topicStart, end - topicStart), timestamp);
+			return next;
+		}
+	}
+
+	private int nextRecord(MappedByteBuffer window, int from, boolean last, TraceRecordHandler handler) throws IOException {
+		int limit = window.limit();
+		if (from == limit) return -1;
+		if (limit - from < 12) {
+			if (last) throw new IOException("Truncated record at the end of " + file);
+			return -1;
+		}
+		int length = window.getInt(from);
+		if (length < 0 || length > MAX_TOPIC_BYTES) throw new IOException("Bad topic length " + length + " in " + file);
+		if (limit - from - 12 < length) {
+			if (last) throw new IOException("Truncated record at the end of " + file);
+			return -1;
+		}
+		long timestamp = window.getLong(from + 4);
+		stopped = !handler.onRecord(decode(window, from + 12, length), timestamp);
+		return from + 12 + length;
+	}
+
+	private String decode(MappedByteBuffer window, int from, int length) throws IOException {
+		if (length > MAX_TOPIC_BYTES) throw new IOException("Topic longer than " + MAX_TOPIC_BYTES + " bytes in " + file);
+		for (int i=0; i<length; i++) topicBytes[i] = window.get(from + i);
+		return new String(topicBytes, 0, length, StandardCharsets.UTF_8);
+	}
+}
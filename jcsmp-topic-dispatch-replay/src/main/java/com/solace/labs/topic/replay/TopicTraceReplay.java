@@ -0,0 +1,242 @@
+package com.solace.labs.topic.replay;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.solace.labs.topic.DefaultMessageListener;
+import com.solace.labs.topic.DispatchMessageListener;
+import com.solace.labs.topic.EngineType;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solace.labs.topic.Sub;
+import com.solace.labs.topic.TopicDispatchException;
+import com.solacesystems.jcsmp.BytesXMLMessage;
+import com.solacesystems.jcsmp.JCSMPException;
+
+/**
+ * <p>Feeds a captured topic trace through a {@link MessageListenerWithTopicDispatch} loaded with a real subscription set,
+ * and reports throughput, per-message latency percentiles, and how the messages were spread across the subs.  Each sub
+ * gets its own trivial counting callback, and only the dispatcher's <code>onReceive()</code> is timed (not reading and
+ * decoding the trace, or pacing it), so what's measured is the dispatcher itself.</p>
+ * <p>Runs on the calling thread.  Replay either as fast as possible, or at the pace the trace was recorded
+ * (optionally sped up), if it has timestamps.</p>
+ */
+public final class TopicTraceReplay {
+
+	public enum Pacing {
+		/** As fast as the dispatcher will go */
+		FULL_SPEED,
+		/** Keep to the trace's timestamps, divided by the speed factor; records without a timestamp aren't paced */
+		RECORDED,
+		;
+	}
+
+	/** Counts the messages for one sub, and how many subs matched the current message */
+	private final class SubCounter implements DispatchMessageListener {
+		final Sub sub;
+		long hits = 0;
+
+		SubCounter(Sub sub) {
+			this.sub = sub;
+		}
+
+		@Override
+		public void onReceive(BytesXMLMessage msg) {
+			hits++;
+			matchesThisMessage++;
+		}
+
+		@Override
+		public void onUncaughtException(TopicDispatchException e) {
+			// we never throw
+		}
+	}
+
+	private final List<SubCounter> counters = new ArrayList<>();
+	private final EngineType engineType;
+	private final MessageListenerWithTopicDispatch dispatcher;
+	private Pacing pacing = Pacing.FULL_SPEED;
+	private double speed = 1.0;
+	private long warmupMessages = 0;
+	private int topSubCount = 10;
+	private int matchesThisMessage = 0;
+
+	/**
+	 * @param subs the subscription set to replay against; duplicates are only registered once
+	 * @param engineType which matching engine the dispatcher should use
+	 * @param mode pass {@link Mode#CALL_EACH} to count every matching sub, which is what the match distribution shows
+	 */
+	public TopicTraceReplay(List<Sub> subs, EngineType engineType, Mode mode) {
+		this.engineType = engineType;
+		dispatcher = new MessageListenerWithTopicDispatch(mode, engineType, new DefaultMessageListener() {
+			@Override
+			public void onReceiveDefault(BytesXMLMessage msg) {
+				// nothing matched, shows up as 0 in the distribution
+			}
+
+			@Override
+			public void onException(JCSMPException e) {
+				// nothing to do
+			}
+		});
+		for (Sub sub : new LinkedHashSet<>(subs)) {
+			SubCounter counter = new SubCounter(sub);
+			counters.add(counter);
+			dispatcher.registerCallback(sub, counter);
+		}
+	}
+
+	/** @param speed with {@link Pacing#RECORDED}, 2.0 replays twice as fast as it was recorded */
+	public void setPacing(Pacing pacing, double speed) {
+		if (pacing == null) throw new NullPointerException("Pacing is null");
+		if (speed <= 0) throw new IllegalArgumentException("Speed must be positive");
+		this.pacing = pacing;
+		this.speed = speed;
+	}
+
+	/** Run this many messages through first without measuring them, to let the JIT and any caches warm up */
+	public void setWarmupMessages(long warmupMessages) {
+		if (warmupMessages < 0) throw new IllegalArgumentException("Warm-up can't be negative");
+		this.warmupMessages = warmupMessages;
+	}
+
+	public void setTopSubCount(int topSubCount) {
+		this.topSubCount = topSubCount;
+	}
+
+	/** The dispatcher being replayed against, e.g. to look at its {@link MessageListenerWithTopicDispatch#getRegistryStats()} */
+	public MessageListenerWithTopicDispatch getDispatcher() {
+		return dispatcher;
+	}
+
+	public ReplayReport run(TopicTraceReader reader) throws IOException {
+		final ReplayMessage message = new ReplayMessage();
+		final LatencyHistogram latency = new LatencyHistogram();
+		final long[] distribution = new long[ReplayReport.MAX_MATCH_BUCKET + 1];
+		final long[] state = new long[5];  // seen, time in the dispatcher, first timestamp, pacing start, max lag
+		final int SEEN = 0, DISPATCHING = 1, FIRST_TS = 2, PACE_START = 3, MAX_LAG = 4;
+		for (SubCounter counter : counters) counter.hits = 0;
+		reader.read((topic, timestampMicros) -> {
+			if (pacing == Pacing.RECORDED && timestampMicros > 0) {
+				if (state[FIRST_TS] == 0) {
+					state[FIRST_TS] = timestampMicros;
+					state[PACE_START] = System.nanoTime();
+				}
+				long due = state[PACE_START] + (long)(TimeUnit.MICROSECONDS.toNanos(timestampMicros - state[FIRST_TS]) / speed);
+				long early = due - System.nanoTime();
+				if (early > 0) waitFor(due);
+				else if (-early > state[MAX_LAG]) state[MAX_LAG] = -early;
+			}
+			if (state[SEEN]++ == warmupMessages) {  // warm-up done, start counting from here
+				for (SubCounter counter : counters) counter.hits = 0;
+			}
+			BytesXMLMessage msg = message.on(topic);
+			matchesThisMessage = 0;
+			long start = System.nanoTime();
+			dispatcher.onReceive(msg);
+			long end = System.nanoTime();
+			if (state[SEEN] > warmupMessages) {
+				latency.record(end - start);
+				state[DISPATCHING] += end - start;
+				distribution[Math.min(matchesThisMessage, ReplayReport.MAX_MATCH_BUCKET)]++;
+			}
+			return true;
+		});
+		List<Map.Entry<String, Long>> top = new ArrayList<>();
+		List<SubCounter> sorted = new ArrayList<>(counters);
+		sorted.sort((a, b) -> Long.compare(b.hits, a.hits));
+		for (int i=0; i<Math.min(topSubCount, sorted.size()) && sorted.get(i).hits > 0; i++) {
+			top.add(new AbstractMap.SimpleImmutableEntry<>(sorted.get(i).sub.toString(), sorted.get(i).hits));
+		}
+		return new ReplayReport(engineType.toString(), latency.getCount(), state[DISPATCHING], latency, distribution, top, state[MAX_LAG]);
+	}
+
+	/** Parks for most of the wait, then spins for the last bit, since parking isn't very precise */
+	private static void waitFor(long due) {
+		long remaining;
+		while ((remaining = due - System.nanoTime()) > 0) {
+			if (remaining > 200_000) LockSupport.parkNanos(remaining - 100_000);
+			else Thread.yield();
+		}
+	}
+
+	/** One sub per line; blank lines and lines starting with <code>//</code> are skipped */
+	public static List<Sub> loadSubs(Path file) throws IOException {
+		List<Sub> subs = new ArrayList<>();
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if (line.isEmpty() || line.startsWith("//")) continue;  // not '#', that's a valid sub
+			subs.add(new Sub(line));
+		}
+		return subs;
+	}
+
+	private static void usage() {
+		System.out.println("Usage: TopicTraceReplay <subs-file> <trace-file> [options]");
+		System.out.println("  --format lines|binary      trace file format (default: lines)");
+		System.out.println("  --engine <type>[,<type>..] one or more of " + Arrays.toString(EngineType.values()) + " (default: TRIE)");
+		System.out.println("  --mode dedupe|call_each    (default: call_each)");
+		System.out.println("  --pace full|recorded       (default: full)");
+		System.out.println("  --speed <factor>           speed-up for recorded pacing (default: 1.0)");
+		System.out.println("  --warmup <messages>        (default: 0)");
+		System.exit(-1);
+	}
+
+	public static void main(String... args) throws IOException {
+		if (args.length < 2) usage();
+		Path subsFile = Paths.get(args[0]);
+		Path traceFile = Paths.get(args[1]);
+		TraceFormat format = TraceFormat.LINES;
+		List<EngineType> engines = new ArrayList<>();
+		Mode mode = Mode.CALL_EACH;
+		Pacing pacing = Pacing.FULL_SPEED;
+		double speed = 1.0;
+		long warmup = 0;
+		for (int i=2; i<args.length; i++) {
+			if (i+1 == args.length) usage();
+			String value = args[++i];
+			switch (args[i-1]) {
+			case "--format":
+				format = TraceFormat.valueOf(value.toUpperCase());
+				break;
+			case "--engine":
+				for (String engine : value.split(",")) engines.add(EngineType.valueOf(engine.trim().toUpperCase()));
+				break;
+			case "--mode":
+				mode = Mode.valueOf(value.toUpperCase());
+				break;
+			case "--pace":
+				pacing = value.equalsIgnoreCase("recorded") ? Pacing.RECORDED : Pacing.FULL_SPEED;
+				break;
+			case "--speed":
+				speed = Double.parseDouble(value);
+				break;
+			case "--warmup":
+				warmup = Long.parseLong(value);
+				break;
+			default:
+				usage();
+			}
+		}
+		if (engines.isEmpty()) engines.add(EngineType.TRIE);
+		List<Sub> subs = loadSubs(subsFile);
+		System.out.printf("Loaded %,d subs from %s%n", subs.size(), subsFile);
+		for (EngineType engine : engines) {  // same trace through each engine, for comparison
+			TopicTraceReplay replay = new TopicTraceReplay(subs, engine, mode);
+			replay.setPacing(pacing, speed);
+			replay.setWarmupMessages(warmup);
+			System.out.println(replay.run(new TopicTraceReader(traceFile, format)));
+		}
+	}
+}
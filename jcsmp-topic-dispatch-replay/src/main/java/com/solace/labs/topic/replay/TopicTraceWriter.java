@@ -0,0 +1,30 @@
+package com.solace.labs.topic.replay;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Writes a {@link TraceFormat#BINARY} trace, e.g. from a capture consumer's callback.  Not thread-safe. */
+public final class TopicTraceWriter implements AutoCloseable {
+
+	private final DataOutputStream out;
+
+	public TopicTraceWriter(Path file) throws IOException {
+		out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), 1 << 16));
+	}
+
+	public void write(String topic, long timestampMicros) throws IOException {
+		byte[] bytes = topic.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.writeLong(timestampMicros);
+		out.write(bytes);
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
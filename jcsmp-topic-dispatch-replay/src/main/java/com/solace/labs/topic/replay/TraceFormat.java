@@ -0,0 +1,16 @@
+package com.solace.labs.topic.replay;
+
+/** The two trace file layouts {@link TopicTraceReader} understands */
+public enum TraceFormat {
+	/**
+	 * One topic per line, UTF-8.  A line may start with a timestamp in microseconds and a tab,
+	 * e.g. <code>1697712000123456&lt;TAB&gt;a/b/c</code>, for recorded pacing.  Blank lines are skipped.
+	 */
+	LINES,
+	/**
+	 * Length-prefixed binary records, big-endian: <code>int topicLength, long timestampMicros, byte[topicLength]</code> UTF-8.
+	 * A timestamp of 0 means not recorded.  See {@link TopicTraceWriter}.
+	 */
+	BINARY,
+	;
+}
@@ -0,0 +1,12 @@
+package com.solace.labs.topic.replay;
+
+/** Gets each record as {@link TopicTraceReader} streams through a trace */
+@FunctionalInterface
+public interface TraceRecordHandler {
+
+	/**
+	 * @param timestampMicros when the message was captured, or 0 if the trace doesn't say
+	 * @return false to stop reading
+	 */
+	boolean onRecord(String topic, long timestampMicros);
+}
@@ -0,0 +1,173 @@
+package com.solace.labs.topic.replay;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.solace.labs.topic.EngineType;
+import com.solace.labs.topic.MessageListenerWithTopicDispatch.Mode;
+import com.solace.labs.topic.Sub;
+import com.solace.labs.topic.WorkloadGenerator;
+
+public class TopicTraceReplayTests {
+
+	private static final int WINDOW = 128 * 1024;  // the smallest allowed, so records straddle windows
+	private static final int RECORDS = 20_000;
+
+	private static Path tempFile() throws IOException {
+		Path file = Files.createTempFile("topic-trace", ".trace");
+		file.toFile().deleteOnExit();
+		return file;
+	}
+
+	private static String topic(int i) {
+		return "orders/region" + (i % 4) + "/item" + i + "/new";
+	}
+
+	private static Path linesTrace() throws IOException {
+		Path file = tempFile();
+		try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			for (int i=0; i<RECORDS; i++) {
+				if (i % 2 == 0) out.write(Long.toString(1_000_000L + i) + '\t');  // some with timestamps, some without
+				out.write(topic(i));
+				out.write(i % 3 == 0 ? "\r\n" : "\n");
+				if (i % 1000 == 0) out.write("\n");
+			}
+		}
+		return file;
+	}
+
+	private static Path binaryTrace() throws IOException {
+		Path file = tempFile();
+		try (TopicTraceWriter writer = new TopicTraceWriter(file)) {
+			for (int i=0; i<RECORDS; i++) writer.write(topic(i), 1_000_000L + i);
+		}
+		return file;
+	}
+
+	private static void readsEveryRecord(Path file, TraceFormat format) throws IOException {
+		List<String> topics = new ArrayList<>();
+		List<Long> timestamps = new ArrayList<>();
+		long count = new TopicTraceReader(file, format, WINDOW).read((topic, ts) -> {
+			topics.add(topic);
+			timestamps.add(ts);
+			return true;
+		});
+		assertEquals(format.toString(), RECORDS, count);
+		for (int i=0; i<RECORDS; i++) {
+			assertEquals(format.toString(), topic(i), topics.get(i));
+			if (format == TraceFormat.BINARY || i % 2 == 0) assertEquals(1_000_000L + i, timestamps.get(i).longValue());
+			else assertEquals(0L, timestamps.get(i).longValue());
+		}
+	}
+
+	@Test
+	public void linesFormatReadsEveryRecord() throws IOException {
+		readsEveryRecord(linesTrace(), TraceFormat.LINES);
+	}
+
+	@Test
+	public void binaryFormatReadsEveryRecord() throws IOException {
+		readsEveryRecord(binaryTrace(), TraceFormat.BINARY);
+	}
+
+	@Test
+	public void handlerCanStopEarly() throws IOException {
+		long count = new TopicTraceReader(binaryTrace(), TraceFormat.BINARY, WINDOW).read((topic, ts) -> !topic.equals(topic(99)));
+		assertEquals(100, count);
+	}
+
+	@Test
+	public void replayReportsMatchDistribution() throws IOException {
+		List<Sub> subs = Arrays.asList(new Sub("orders/>"), new Sub("orders/region0/>"), new Sub("orders/*/*/new"), new Sub("other/>"));
+		TopicTraceReplay replay = new TopicTraceReplay(subs, EngineType.TRIE, Mode.CALL_EACH);
+		replay.setWarmupMessages(1000);
+		ReplayReport report = replay.run(new TopicTraceReader(binaryTrace(), TraceFormat.BINARY, WINDOW));
+		assertEquals(RECORDS - 1000, report.getMessageCount());
+		long[] distribution = report.getMatchDistribution();
+		assertEquals(0, distribution[0]);
+		assertEquals((RECORDS - 1000) / 4, distribution[3]);  // region0 gets all three
+		assertEquals((RECORDS - 1000) / 4 * 3, distribution[2]);
+		assertEquals(3, report.getTopSubs().size());  // other/> never matched
+		assertEquals("orders/>", report.getTopSubs().get(0).getKey());
+		assertTrue(report.getMessagesPerSecond() > 0);
+		assertTrue(report.getLatencyNanos(50) <= report.getLatencyNanos(99.9));
+		assertTrue(report.getLatencyNanos(99.9) <= report.getMaxLatencyNanos());
+	}
+
+	@Test
+	public void recordedPacingKeepsToTheTimestamps() throws IOException {
+		Path file = tempFile();
+		try (TopicTraceWriter writer = new TopicTraceWriter(file)) {
+			for (int i=0; i<50; i++) writer.write("a/b", 5_000_000L + i * 2_000);  // 2ms apart, 100ms in all
+		}
+		TopicTraceReplay replay = new TopicTraceReplay(Arrays.asList(new Sub("a/>")), EngineType.LINEAR_SCAN, Mode.DEDUPE);
+		replay.setPacing(TopicTraceReplay.Pacing.RECORDED, 2.0);  // so about 50ms
+		long start = System.nanoTime();
+		ReplayReport report = replay.run(new TopicTraceReader(file, TraceFormat.BINARY));
+		long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+		assertEquals(50, report.getMessageCount());
+		assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 45 && elapsedMillis < 1000);
+		assertTrue(report.getElapsedNanos() < 45_000_000L);  // just the dispatching, not the waiting between messages
+	}
+
+	@Test
+	public void duplicateSubsAreCountedOnce() throws IOException {
+		List<Sub> subs = Arrays.asList(new Sub("orders/>"), new Sub("orders/>"), new Sub("orders/*/*/new"));
+		TopicTraceReplay replay = new TopicTraceReplay(subs, EngineType.TRIE, Mode.CALL_EACH);
+		assertEquals(2, replay.getDispatcher().getRegistryStats().getSubCount());
+		ReplayReport report = replay.run(new TopicTraceReader(binaryTrace(), TraceFormat.BINARY, WINDOW));
+		assertEquals(RECORDS, report.getMatchDistribution()[2]);
+		assertEquals(2, report.getTopSubs().size());
+		assertEquals(RECORDS, (long)report.getTopSubs().get(0).getValue());
+	}
+
+	@Test
+	public void generatedWorkloadMatchesTheSameOnEveryEngine() throws IOException {
+		WorkloadGenerator generator = new WorkloadGenerator(42, new String[] { "region", "store", "sensor" }, new int[] { 5, 50, 20 });
+		generator.setMinDepth(2);
+		List<Sub> subs = new ArrayList<>();
+		for (String sub : generator.subs(500)) subs.add(new Sub(sub));
+		Path file = tempFile();
+		try (TopicTraceWriter writer = new TopicTraceWriter(file)) {
+			long[] ts = { 0 };
+			generator.forEachTopic(RECORDS, topic -> {
+				try {
+					writer.write(topic, ts[0]++);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+		long[] expected = null;
+		for (EngineType engine : Arrays.asList(EngineType.LINEAR_SCAN, EngineType.TRIE)) {
+			ReplayReport report = new TopicTraceReplay(subs, engine, Mode.CALL_EACH).run(new TopicTraceReader(file, TraceFormat.BINARY, WINDOW));
+			assertEquals(RECORDS, report.getMessageCount());
+			if (expected == null) expected = report.getMatchDistribution();
+			else assertEquals(engine.toString(), Arrays.toString(expected), Arrays.toString(report.getMatchDistribution()));
+		}
+		assertTrue(expected[0] < RECORDS);  // the hot subs do see traffic
+	}
+
+	@Test
+	public void histogramPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i=1; i<=10_000; i++) histogram.record(i * 100L);  // 100ns .. 1ms
+		assertEquals(10_000, histogram.getCount());
+		assertEquals(500_000, histogram.valueAt(50), 500_000 * 0.04);
+		assertEquals(990_000, histogram.valueAt(99), 990_000 * 0.04);
+		assertEquals(1_000_000, histogram.valueAt(100));
+		assertEquals(500_050.0, histogram.getMean(), 0.001);
+	}
+}
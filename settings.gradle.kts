@@ -10,3 +10,4 @@
 rootProject.name = "jcsmp-topic-dispatch"
 include("jcsmp-topic-dispatch-lib")
 include("jcsmp-topic-dispatch-example-app")
+include("jcsmp-topic-dispatch-replay")